@@ -0,0 +1,56 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+/**
+ * An {@link ApplyProgressListener} that also receives performance telemetry while a patch is being
+ * applied. The counters are accumulated by the applier and delivered in a handful of calls per
+ * phase or recompression range, never per byte, so a listener can be installed for every patch
+ * applied. When an {@link ApplyProgressListener} that is not an {@link ApplyListener} (or no
+ * listener at all) is given, none of this telemetry is collected.
+ */
+public interface ApplyListener extends ApplyProgressListener {
+  /**
+   * Invoked whenever a phase has been left, either for another phase or because patch application
+   * has completed. {@link Phase#BSDIFF} and {@link Phase#RECOMPRESS} alternate, so each may be
+   * reported many times; the time spent in a phase is the sum of the times reported for it. The
+   * time in {@link Phase#RECOMPRESS} includes producing the bytes that are recompressed.
+   * @param phase the phase that has been left
+   * @param elapsedNanos the time spent in the phase since it was entered, in nanoseconds
+   */
+  void onPhaseCompleted(Phase phase, long elapsedNanos);
+
+  /**
+   * Invoked once the delta-friendly old blob has been written.
+   * @param bytesInflated the number of bytes produced by uncompressing the old file
+   */
+  void onOldBlobExpanded(long bytesInflated);
+
+  /**
+   * Invoked each time a recompression range has been completed.
+   * @param level the deflate level used for the range
+   * @param bytesDeflated the number of (uncompressed) bytes of the range
+   */
+  void onRangeRecompressed(int level, long bytesDeflated);
+
+  /**
+   * Invoked after each batch of bsdiff control entries has been processed, and once the delta has
+   * been applied; the counts are those of the batch. Batches are small enough to show where the
+   * time goes within the delta, but large enough that reporting them is cheap.
+   * @param controlEntries the number of control entries processed
+   * @param oldDataSeeks the number of times reading the delta-friendly old blob had to move to a
+   *     position other than where the previous read ended
+   */
+  void onControlEntriesApplied(long controlEntries, long oldDataSeeks);
+}
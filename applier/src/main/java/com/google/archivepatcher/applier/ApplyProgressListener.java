@@ -0,0 +1,55 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+/**
+ * Receives progress events while a patch is being applied. Events are delivered synchronously on
+ * the thread that is applying the patch, so implementations should return quickly.
+ */
+public interface ApplyProgressListener {
+  /**
+   * The phases of patch application.
+   */
+  public enum Phase {
+    /**
+     * The old file is being expanded into the delta-friendly old blob.
+     */
+    EXPAND_OLD,
+
+    /**
+     * The delta is being applied and its output copied to the new file without modification.
+     */
+    BSDIFF,
+
+    /**
+     * The delta is being applied and its output recompressed into the new file.
+     */
+    RECOMPRESS
+  }
+
+  /**
+   * Invoked whenever patch application enters a new phase. During delta application the phase
+   * alternates between {@link Phase#BSDIFF} and {@link Phase#RECOMPRESS} as the output moves in and
+   * out of recompression ranges.
+   * @param phase the phase that has been entered
+   */
+  void onPhase(Phase phase);
+
+  /**
+   * Invoked periodically while the delta is being applied.
+   * @param deltaBytesConsumed the number of bytes of the delta consumed so far
+   * @param newBytesWritten the number of bytes of the new file written so far
+   */
+  void onProgress(long deltaBytesConsumed, long newBytesWritten);
+}
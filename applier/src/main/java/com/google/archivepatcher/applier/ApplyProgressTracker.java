@@ -0,0 +1,201 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes of delta consumed and new file written during patch application and reports
+ * them to an {@link ApplyProgressListener}. Progress is reported each time bytes are written to the
+ * new file, which happens in buffer-sized chunks. If the listener is an {@link ApplyListener}, the
+ * time spent in each phase and the other telemetry are reported to it as well.
+ */
+class ApplyProgressTracker {
+  /**
+   * The listener to report to.
+   */
+  private final ApplyProgressListener listener;
+
+  /**
+   * The listener to report telemetry to, or null if the listener is not an {@link ApplyListener}.
+   */
+  private final ApplyListener applyListener;
+
+  /**
+   * The number of bytes of the delta consumed so far.
+   */
+  private long deltaBytesConsumed = 0;
+
+  /**
+   * The number of bytes of the new file written so far.
+   */
+  private long newBytesWritten = 0;
+
+  /**
+   * The last phase reported, to suppress duplicate events.
+   */
+  private ApplyProgressListener.Phase phase = null;
+
+  /**
+   * The value of {@link System#nanoTime()} when the current phase was entered. Only maintained
+   * when reporting telemetry.
+   */
+  private long phaseStartNanos = 0;
+
+  /**
+   * Creates a new tracker that reports to the specified listener.
+   * @param listener the listener
+   */
+  ApplyProgressTracker(ApplyProgressListener listener) {
+    this.listener = listener;
+    this.applyListener = listener instanceof ApplyListener ? (ApplyListener) listener : null;
+  }
+
+  /**
+   * Returns the listener to report telemetry to.
+   * @return the listener, or null if telemetry is not being collected
+   */
+  ApplyListener getApplyListener() {
+    return applyListener;
+  }
+
+  /**
+   * Reports that the specified phase has been entered, unless it is the current phase.
+   * @param newPhase the phase
+   */
+  void enterPhase(ApplyProgressListener.Phase newPhase) {
+    if (newPhase != phase) {
+      completePhase();
+      phase = newPhase;
+      listener.onPhase(newPhase);
+    }
+  }
+
+  /**
+   * Reports that patch application has completed, which completes the current phase.
+   */
+  void finish() {
+    completePhase();
+    phase = null;
+  }
+
+  /**
+   * Reports that the delta-friendly old blob has been written.
+   * @param bytesInflated the number of bytes produced by uncompressing the old file
+   */
+  void oldBlobExpanded(long bytesInflated) {
+    if (applyListener != null) {
+      applyListener.onOldBlobExpanded(bytesInflated);
+    }
+  }
+
+  /**
+   * Reports that a recompression range has been completed.
+   * @param level the deflate level used for the range
+   * @param bytesDeflated the number of (uncompressed) bytes of the range
+   */
+  void rangeRecompressed(int level, long bytesDeflated) {
+    if (applyListener != null) {
+      applyListener.onRangeRecompressed(level, bytesDeflated);
+    }
+  }
+
+  /**
+   * If telemetry is being collected, reports the time spent in the current phase, if any, and
+   * starts timing the next one.
+   */
+  private void completePhase() {
+    if (applyListener == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (phase != null) {
+      applyListener.onPhaseCompleted(phase, now - phaseStartNanos);
+    }
+    phaseStartNanos = now;
+  }
+
+  /**
+   * Wraps the delta stream so that the bytes read from it are counted.
+   * @param deltaIn the delta stream
+   * @return the wrapped stream
+   */
+  InputStream trackDelta(InputStream deltaIn) {
+    return new FilterInputStream(deltaIn) {
+      @Override
+      public int read() throws IOException {
+        int result = in.read();
+        if (result >= 0) {
+          deltaBytesConsumed++;
+        }
+        return result;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int numRead = in.read(b, off, len);
+        if (numRead > 0) {
+          deltaBytesConsumed += numRead;
+        }
+        return numRead;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long numSkipped = in.skip(n);
+        deltaBytesConsumed += numSkipped;
+        return numSkipped;
+      }
+    };
+  }
+
+  /**
+   * Wraps the new file stream so that the bytes written to it are counted and reported.
+   * @param newBlobOut the new file stream
+   * @return the wrapped stream
+   */
+  OutputStream trackNewBlob(OutputStream newBlobOut) {
+    return new FilterOutputStream(newBlobOut) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        newBytesWritten++;
+        listener.onProgress(deltaBytesConsumed, newBytesWritten);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        newBytesWritten += len;
+        listener.onProgress(deltaBytesConsumed, newBytesWritten);
+      }
+    };
+  }
+
+  /**
+   * Throws if the current thread has been interrupted, which is how patch application is
+   * cancelled. The interrupt status is left unchanged.
+   * @throws InterruptedIOException if the current thread has been interrupted
+   */
+  static void checkCancelled() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("patch application cancelled");
+    }
+  }
+}
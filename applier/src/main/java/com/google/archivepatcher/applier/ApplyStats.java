@@ -0,0 +1,117 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * An {@link ApplyListener} that accumulates the telemetry of one or more patch applications. All
+ * methods are thread-safe.
+ */
+public class ApplyStats implements ApplyListener {
+  /** The number of deflate levels, 0 through 9. */
+  private static final int NUM_LEVELS = 10;
+
+  private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+  private final long[] bytesDeflatedByLevel = new long[NUM_LEVELS];
+  private long bytesInflated = 0;
+  private long rangesRecompressed = 0;
+  private long controlEntries = 0;
+  private long oldDataSeeks = 0;
+
+  @Override
+  public void onPhase(Phase phase) {
+    // Only the time spent in each phase is of interest.
+  }
+
+  @Override
+  public void onProgress(long deltaBytesConsumed, long newBytesWritten) {
+    // Not needed for telemetry.
+  }
+
+  @Override
+  public synchronized void onPhaseCompleted(Phase phase, long elapsedNanos) {
+    Long total = phaseNanos.get(phase);
+    phaseNanos.put(phase, total == null ? elapsedNanos : total + elapsedNanos);
+  }
+
+  @Override
+  public synchronized void onOldBlobExpanded(long bytesInflated) {
+    this.bytesInflated += bytesInflated;
+  }
+
+  @Override
+  public synchronized void onRangeRecompressed(int level, long bytesDeflated) {
+    bytesDeflatedByLevel[level] += bytesDeflated;
+    rangesRecompressed++;
+  }
+
+  @Override
+  public synchronized void onControlEntriesApplied(long controlEntries, long oldDataSeeks) {
+    this.controlEntries += controlEntries;
+    this.oldDataSeeks += oldDataSeeks;
+  }
+
+  /**
+   * Returns the total time spent in the specified phase, in nanoseconds.
+   * @param phase the phase
+   * @return as described
+   */
+  public synchronized long getPhaseNanos(Phase phase) {
+    Long total = phaseNanos.get(phase);
+    return total == null ? 0 : total;
+  }
+
+  /**
+   * Returns the total number of bytes produced by uncompressing old files.
+   * @return as described
+   */
+  public synchronized long getBytesInflated() {
+    return bytesInflated;
+  }
+
+  /**
+   * Returns the total number of (uncompressed) bytes recompressed at the specified level.
+   * @param level the deflate level, 0 through 9
+   * @return as described
+   */
+  public synchronized long getBytesDeflated(int level) {
+    return bytesDeflatedByLevel[level];
+  }
+
+  /**
+   * Returns the total number of recompression ranges completed.
+   * @return as described
+   */
+  public synchronized long getRangesRecompressed() {
+    return rangesRecompressed;
+  }
+
+  /**
+   * Returns the total number of bsdiff control entries processed.
+   * @return as described
+   */
+  public synchronized long getControlEntries() {
+    return controlEntries;
+  }
+
+  /**
+   * Returns the total number of seeks in delta-friendly old blobs.
+   * @return as described
+   */
+  public synchronized long getOldDataSeeks() {
+    return oldDataSeeks;
+  }
+}
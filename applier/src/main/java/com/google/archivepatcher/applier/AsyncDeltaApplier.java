@@ -0,0 +1,137 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Applies patches asynchronously on a caller-supplied {@link Executor}. Each application is
+ * represented by a {@link CompletableFuture} that completes when the new file has been completely
+ * written, or exceptionally if application fails.
+ *
+ * <p>Cancelling the future with {@link CompletableFuture#cancel(boolean) cancel(true)} interrupts
+ * the thread that is applying the patch, if it has started; {@link
+ * com.google.archivepatcher.applier.bsdiff.BsPatch} and {@link PartiallyCompressingOutputStream}
+ * check for interruption as they go and abandon the work promptly. The interrupt is cleared before
+ * the executor thread is returned to the executor. Cancelling a future whose work has not yet
+ * started simply prevents it from running.
+ */
+public class AsyncDeltaApplier {
+  /**
+   * The applier that does the work.
+   */
+  private final FileByFileDeltaApplier applier;
+
+  /**
+   * The executor to run on.
+   */
+  private final Executor executor;
+
+  /**
+   * Creates a new asynchronous applier.
+   * @param applier the applier that does the work
+   * @param executor the executor to run on
+   */
+  public AsyncDeltaApplier(FileByFileDeltaApplier applier, Executor executor) {
+    this.applier = applier;
+    this.executor = executor;
+  }
+
+  /**
+   * Asynchronously applies a delta from deltaIn to oldBlob and writes the result to newBlobOut.
+   * The streams are not closed, and must not be used by the caller until the returned future is
+   * done.
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlobOut the stream to write the result to
+   * @param listener if non-null, the listener to report progress to; it is invoked on the executor
+   *     thread that applies the patch
+   * @return a future that completes when the delta has been applied
+   */
+  public CompletableFuture<Void> applyDelta(
+      final File oldBlob,
+      final InputStream deltaIn,
+      final OutputStream newBlobOut,
+      final ApplyProgressListener listener) {
+    ApplyFuture future =
+        new ApplyFuture() {
+          @Override
+          void apply() throws Exception {
+            applier.applyDelta(oldBlob, deltaIn, newBlobOut, listener);
+          }
+        };
+    executor.execute(future);
+    return future;
+  }
+
+  /**
+   * A future that runs its own work and interrupts it when cancelled.
+   */
+  private abstract static class ApplyFuture extends CompletableFuture<Void> implements Runnable {
+    /**
+     * The thread running the work, non-null only while the work is running. Guarded by this.
+     */
+    private Thread runner = null;
+
+    /**
+     * Does the work.
+     * @throws Exception if the work fails
+     */
+    abstract void apply() throws Exception;
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (isDone()) {
+          // Cancelled before it started.
+          return;
+        }
+        runner = Thread.currentThread();
+      }
+      try {
+        apply();
+        complete(null);
+      } catch (Throwable t) {
+        // No effect if the future has already been cancelled.
+        completeExceptionally(t);
+      } finally {
+        synchronized (this) {
+          runner = null;
+          if (isCancelled()) {
+            // Don't leak an interrupt meant for this work into the executor's next task.
+            Thread.interrupted();
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled && mayInterruptIfRunning) {
+        synchronized (this) {
+          if (runner != null) {
+            runner.interrupt();
+          }
+        }
+      }
+      return cancelled;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Applies many patches to the same old file. {@link FileByFileDeltaApplier} expands the old file
+ * into a delta-friendly old blob for every patch; this class instead groups the patches by their
+ * old file uncompression plan, materializes the delta-friendly old blob once per group through a
+ * {@link DeltaFriendlyOldBlobCache}, and applies every patch in the group against it, optionally
+ * in parallel.
+ *
+ * <p>Patches can only share a blob if their uncompression plans are identical: the offsets in the
+ * delta are relative to the layout of the blob, which any other plan would change.
+ */
+public class BatchDeltaApplier {
+  /**
+   * Size of the buffer used to read each patch.
+   */
+  private static final int PATCH_BUFFER_SIZE = 32768;
+
+  /**
+   * The applier that does the work of applying each patch.
+   */
+  private final FileByFileDeltaApplier applier;
+
+  /**
+   * The cache of delta-friendly old blobs.
+   */
+  private final DeltaFriendlyOldBlobCache cache;
+
+  /**
+   * Creates a new batch applier.
+   *
+   * @param applier the applier used to apply each patch once its delta-friendly old blob exists;
+   *     its configuration (e.g., whether to verify output) applies to every patch in the batch
+   * @param cache the cache of delta-friendly old blobs, which may be shared with other batch
+   *     appliers so that blobs are reused across batches
+   */
+  public BatchDeltaApplier(FileByFileDeltaApplier applier, DeltaFriendlyOldBlobCache cache) {
+    this.applier = applier;
+    this.cache = cache;
+  }
+
+  /**
+   * Applies each of the specified patches to the old file, writing the result of patchFiles[i] to
+   * newBlobs[i].
+   *
+   * @param oldBlob the old file
+   * @param patchFiles the patches to apply
+   * @param newBlobs the files to write the results to, one per patch
+   * @param executor if not null, the executor used to apply the patches in each group
+   *     concurrently; otherwise, the patches are applied one at a time on the calling thread
+   * @throws IOException if any patch fails to apply; when applying concurrently, the first failure
+   *     is thrown after all outstanding work in the group has finished
+   * @throws InterruptedException if interrupted while waiting for concurrent work
+   */
+  public void applyDeltas(
+      File oldBlob, List<File> patchFiles, List<File> newBlobs, ExecutorService executor)
+      throws IOException, InterruptedException {
+    if (patchFiles.size() != newBlobs.size()) {
+      throw new IllegalArgumentException(
+          "patchFiles and newBlobs differ in size: " + patchFiles.size() + ", " + newBlobs.size());
+    }
+    // Read all the plans up front so that patches can be grouped before any blob is materialized.
+    Map<List<TypedRange<Void>>, List<Integer>> groups =
+        new LinkedHashMap<List<TypedRange<Void>>, List<Integer>>();
+    List<PatchApplyPlan> plans = new ArrayList<PatchApplyPlan>(patchFiles.size());
+    for (int index = 0; index < patchFiles.size(); index++) {
+      PatchApplyPlan plan;
+      try (InputStream patchIn = openPatch(patchFiles.get(index))) {
+        plan = new PatchReader().readPatchApplyPlan(patchIn);
+      }
+      plans.add(plan);
+      List<Integer> group = groups.get(plan.getOldFileUncompressionPlan());
+      if (group == null) {
+        group = new ArrayList<Integer>();
+        groups.put(plan.getOldFileUncompressionPlan(), group);
+      }
+      group.add(index);
+    }
+
+    byte[] oldBlobDigest = DeltaFriendlyOldBlobCache.digestOldBlob(oldBlob);
+    for (List<Integer> group : groups.values()) {
+      try (DeltaFriendlyOldBlobCache.Lease lease =
+          cache.acquire(oldBlob, oldBlobDigest, plans.get(group.get(0)))) {
+        if (executor == null) {
+          for (int index : group) {
+            applyDelta(lease.getFile(), patchFiles.get(index), newBlobs.get(index));
+          }
+        } else {
+          applyDeltasConcurrently(lease.getFile(), group, patchFiles, newBlobs, executor);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the patches in a group concurrently and waits for all of them to finish.
+   *
+   * @param deltaFriendlyOldBlob the delta-friendly old blob shared by the group
+   * @param group the indices of the patches in the group
+   * @param patchFiles all the patches
+   * @param newBlobs all the output files
+   * @param executor the executor to run on
+   * @throws IOException if any patch fails to apply
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private void applyDeltasConcurrently(
+      final File deltaFriendlyOldBlob,
+      List<Integer> group,
+      final List<File> patchFiles,
+      final List<File> newBlobs,
+      ExecutorService executor)
+      throws IOException, InterruptedException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(group.size());
+    for (final int index : group) {
+      futures.add(
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  applyDelta(deltaFriendlyOldBlob, patchFiles.get(index), newBlobs.get(index));
+                  return null;
+                }
+              }));
+    }
+    // Wait for everything, even after a failure, so that the blob is not released while in use.
+    Throwable failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException("Unable to apply patch", failure);
+    }
+  }
+
+  /**
+   * Applies one patch to a materialized delta-friendly old blob.
+   *
+   * @param deltaFriendlyOldBlob the delta-friendly old blob
+   * @param patchFile the patch
+   * @param newBlob the file to write the result to
+   * @throws IOException if the patch fails to apply
+   */
+  private void applyDelta(File deltaFriendlyOldBlob, File patchFile, File newBlob)
+      throws IOException {
+    try (InputStream patchIn = openPatch(patchFile)) {
+      PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(patchIn);
+      applier.applyDeltaToFile(plan, deltaFriendlyOldBlob, patchIn, newBlob, false);
+    }
+  }
+
+  private static InputStream openPatch(File patchFile) throws IOException {
+    return new BufferedInputStream(new FileInputStream(patchFile), PATCH_BUFFER_SIZE);
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A size-bounded cache of delta-friendly old blobs on disk. The delta-friendly old blob is entirely
+ * determined by the content of the old file and the old file uncompression plan in the patch, so
+ * entries are keyed by a digest of the old file and the plan. Patches that share both can all be
+ * applied against one copy of the blob instead of expanding the old file once per patch.
+ *
+ * <p>Entries are evicted in least-recently-used order once the total size of the cached blobs
+ * exceeds the configured limit. Entries that are in use are never evicted; the limit may therefore
+ * be exceeded temporarily, and an entry that is larger than the limit on its own is deleted as soon
+ * as it is no longer in use. This class is thread-safe.
+ */
+public class DeltaFriendlyOldBlobCache {
+  /**
+   * The algorithm used to digest old files.
+   */
+  private static final String OLD_FILE_DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * Size of the buffer used to read old files when digesting them.
+   */
+  private static final int DIGEST_BUFFER_SIZE = 32768;
+
+  /**
+   * The temp directory in which the blobs are stored.
+   */
+  private final File tempDir;
+
+  /**
+   * The maximum total size of the blobs that are not in use, in bytes.
+   */
+  private final long maxSizeBytes;
+
+  /**
+   * The entries, in least-recently-used order.
+   */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+  /**
+   * The total size of the blobs currently on disk, in bytes.
+   */
+  private long sizeBytes = 0;
+
+  /**
+   * Creates a new cache that stores blobs in the specified temp directory.
+   *
+   * @param tempDir the directory in which to store the blobs; if null, the system's default
+   *     temporary directory is used
+   * @param maxSizeBytes the maximum total size of the blobs to retain once they are no longer in
+   *     use; zero disables retention, so that each blob is only shared by concurrent users
+   */
+  public DeltaFriendlyOldBlobCache(File tempDir, long maxSizeBytes) {
+    if (maxSizeBytes < 0) {
+      throw new IllegalArgumentException("maxSizeBytes must be >= 0: " + maxSizeBytes);
+    }
+    if (tempDir == null) {
+      tempDir = new File(System.getProperty("java.io.tmpdir"));
+    }
+    this.tempDir = tempDir;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Computes the digest of an old file that is used as part of the cache key. Callers applying many
+   * patches to the same old file should compute this once and reuse it.
+   *
+   * @param oldBlob the old file
+   * @return the digest
+   * @throws IOException if unable to read the file
+   */
+  public static byte[] digestOldBlob(File oldBlob) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(OLD_FILE_DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to create old file digest", e);
+    }
+    byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+    try (InputStream in = new FileInputStream(oldBlob)) {
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, numRead);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Returns a lease on the delta-friendly old blob for the specified old file and plan,
+   * materializing it if it is not already cached. The blob remains on disk at least until the lease
+   * is closed. Concurrent callers asking for the same blob wait for a single materialization.
+   *
+   * @param oldBlob the old file
+   * @param oldBlobDigest the digest of the old file, as returned by {@link #digestOldBlob(File)}
+   * @param plan the plan whose old file uncompression plan describes the blob
+   * @return the lease
+   * @throws IOException if unable to materialize the blob
+   */
+  public Lease acquire(File oldBlob, byte[] oldBlobDigest, PatchApplyPlan plan)
+      throws IOException {
+    Key key = new Key(oldBlobDigest, plan.getOldFileUncompressionPlan());
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key);
+        entries.put(key, entry);
+      }
+      entry.refCount++;
+    }
+    boolean success = false;
+    try {
+      entry.materialize(plan, oldBlob);
+      success = true;
+    } finally {
+      if (!success) {
+        release(entry);
+      }
+    }
+    return new Lease(entry);
+  }
+
+  /**
+   * Returns the number of blobs currently cached, whether or not they are in use.
+   * @return as described
+   */
+  public synchronized int getNumEntries() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the total size of the blobs currently on disk, in bytes.
+   * @return as described
+   */
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Deletes all blobs that are not currently in use.
+   */
+  public synchronized void clear() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.refCount == 0) {
+        iterator.remove();
+        delete(entry);
+      }
+    }
+  }
+
+  /**
+   * Releases one reference to the specified entry and evicts entries as necessary.
+   * @param entry the entry to release
+   */
+  private synchronized void release(Entry entry) {
+    entry.refCount--;
+    if (entry.refCount == 0 && entry.file == null) {
+      // Materialization failed; there is nothing to retain.
+      entries.remove(entry.key);
+    }
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Entry candidate = iterator.next();
+      if (candidate.refCount == 0) {
+        iterator.remove();
+        delete(candidate);
+      }
+    }
+  }
+
+  /**
+   * Records that an entry's blob has been written to disk.
+   * @param entry the entry
+   */
+  private synchronized void added(Entry entry) {
+    sizeBytes += entry.file.length();
+  }
+
+  /**
+   * Deletes an entry's blob from disk, if it has one.
+   * @param entry the entry, which must no longer be in use
+   */
+  private void delete(Entry entry) {
+    if (entry.file != null) {
+      sizeBytes -= entry.file.length();
+      entry.file.delete();
+      entry.file = null;
+    }
+  }
+
+  /**
+   * A lease on a cached delta-friendly old blob. The blob must not be modified, and must not be
+   * used after the lease is closed.
+   */
+  public final class Lease implements Closeable {
+    private final Entry entry;
+    private boolean closed = false;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the delta-friendly old blob.
+     * @return the file
+     */
+    public File getFile() {
+      return entry.file;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(entry);
+      }
+    }
+  }
+
+  /**
+   * The key for an entry: the old file digest and the old file uncompression plan.
+   */
+  private static final class Key {
+    private final byte[] oldBlobDigest;
+    private final List<TypedRange<Void>> oldFileUncompressionPlan;
+
+    Key(byte[] oldBlobDigest, List<TypedRange<Void>> oldFileUncompressionPlan) {
+      this.oldBlobDigest = oldBlobDigest.clone();
+      this.oldFileUncompressionPlan =
+          Collections.unmodifiableList(new ArrayList<TypedRange<Void>>(oldFileUncompressionPlan));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(oldBlobDigest) + oldFileUncompressionPlan.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return Arrays.equals(oldBlobDigest, other.oldBlobDigest)
+          && oldFileUncompressionPlan.equals(other.oldFileUncompressionPlan);
+    }
+  }
+
+  /**
+   * A cache entry. {@link #refCount} and {@link #file} are guarded by the cache; materialization is
+   * additionally serialized on the entry itself so that it happens at most once.
+   */
+  private final class Entry {
+    private final Key key;
+    private int refCount = 0;
+    private File file = null;
+    private boolean materialized = false;
+
+    Entry(Key key) {
+      this.key = key;
+    }
+
+    /**
+     * Writes the blob to disk unless that has already been done.
+     * @param plan the plan describing the blob
+     * @param oldBlob the old file
+     * @throws IOException if unable to write the blob
+     */
+    synchronized void materialize(PatchApplyPlan plan, File oldBlob) throws IOException {
+      if (materialized) {
+        return;
+      }
+      if (!tempDir.exists()) {
+        tempDir.mkdirs();
+      }
+      File tempFile = File.createTempFile("gfbfv1", "old", tempDir);
+      try {
+        FileByFileDeltaApplier.writeDeltaFriendlyOldBlob(plan, oldBlob, tempFile);
+      } catch (IOException e) {
+        tempFile.delete();
+        throw e;
+      }
+      synchronized (DeltaFriendlyOldBlobCache.this) {
+        file = tempFile;
+        materialized = true;
+        added(this);
+      }
+    }
+  }
+}
@@ -16,11 +16,18 @@ package com.google.archivepatcher.applier;
 
 import com.google.archivepatcher.applier.bsdiff.BsDiffDeltaApplier;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.FileChannelOutputStream;
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.RandomAccessFileOutputStream;
+import com.google.archivepatcher.shared.TypedRange;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 /** Applies patches. */
 public class FileByFileDeltaApplier implements DeltaApplier {
@@ -35,6 +42,11 @@ public class FileByFileDeltaApplier implements DeltaApplier {
    */
   private final File tempDir;
 
+  /**
+   * Whether to verify the output against the verification data recorded in the patch, if any.
+   */
+  private final boolean verifyOutput;
+
   /**
    * Creates a new delta applier that will use the default temp directory for working files. This is
    * equivalent to calling {@link #FileByFileDeltaApplier(File)} with a <code>null</code> file
@@ -51,44 +63,160 @@ public class FileByFileDeltaApplier implements DeltaApplier {
    *     patch application process; if null, the system's default temporary directory is used
    */
   public FileByFileDeltaApplier(File tempDir) {
+    this(tempDir, false);
+  }
+
+  /**
+   * Creates a new delta applier that will use the specified temp directory and optionally verify
+   * its output while it is being written.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param verifyOutput if true, and the patch records a digest of the new file and/or the CRC32s
+   *     of the recompression ranges, verify the output against them as it is written. A {@link
+   *     VerificationException} is thrown as soon as a mismatch is detected; the digest can only
+   *     be checked once the entire output has been written. This avoids a separate pass over the
+   *     output to check it after the patch has been applied.
+   */
+  public FileByFileDeltaApplier(File tempDir, boolean verifyOutput) {
     if (tempDir == null) {
       tempDir = new File(System.getProperty("java.io.tmpdir"));
     }
     this.tempDir = tempDir;
+    this.verifyOutput = verifyOutput;
   }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
-    if (!tempDir.exists()) {
-      // Be nice, try to create the temp directory. Don't bother to check return value as the code
-      // will fail when it tries to create the file in a few more lines anyways.
-      tempDir.mkdirs();
-    }
-    File tempFile = File.createTempFile("gfbfv1", "old", tempDir);
+    applyDelta(oldBlob, deltaIn, newBlobOut, null);
+  }
+
+  /**
+   * Applies a delta from deltaIn to oldBlob and writes the result to newBlobOut, reporting progress
+   * to the specified listener. Application can be cancelled by interrupting the calling thread, in
+   * which case an {@link java.io.InterruptedIOException} is thrown (or a {@link
+   * java.nio.channels.ClosedByInterruptException}, if the interrupt arrives during file I/O).
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlobOut the stream to write the result to
+   * @param listener if non-null, the listener to report progress to. If it is an {@link
+   *     ApplyListener}, telemetry is reported to it as well.
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public void applyDelta(
+      File oldBlob, InputStream deltaIn, OutputStream newBlobOut, ApplyProgressListener listener)
+      throws IOException {
+    ApplyProgressTracker tracker = listener == null ? null : new ApplyProgressTracker(listener);
+    File tempFile = createTempFile();
     try {
-      applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut);
+      PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(deltaIn);
+      if (tracker != null) {
+        tracker.enterPhase(ApplyProgressListener.Phase.EXPAND_OLD);
+      }
+      writeDeltaFriendlyOldBlob(plan, oldBlob, tempFile);
+      if (tracker != null && tracker.getApplyListener() != null) {
+        tracker.oldBlobExpanded(getBytesInflated(plan, oldBlob.length()));
+      }
+      applyDeltaToDeltaFriendlyOldBlob(plan, tempFile, deltaIn, newBlobOut, tracker);
     } finally {
       tempFile.delete();
     }
   }
 
   /**
-   * Does the work for applying a delta.
+   * Applies a delta from deltaIn to oldBlob and writes the result directly to the file newBlob,
+   * replacing any existing content. The file is written through a {@link FileChannelOutputStream}
+   * with a large direct buffer, and is pre-allocated to its final size if the patch records it.
+   *
    * @param oldBlob the old blob
-   * @param deltaFriendlyOldBlob the location in which to store the delta-friendly old blob
-   * @param deltaIn the patch stream
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlob the file to write the result to
+   * @param sync if true, force the new file to the backing storage once it has been completely
+   *     written
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public void applyDelta(File oldBlob, InputStream deltaIn, File newBlob, boolean sync)
+      throws IOException {
+    File tempFile = createTempFile();
+    try {
+      PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(deltaIn);
+      writeDeltaFriendlyOldBlob(plan, oldBlob, tempFile);
+      applyDeltaToFile(plan, tempFile, deltaIn, newBlob, sync);
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Applies a delta to an already materialized delta-friendly old blob and writes the result
+   * directly to the file newBlob, as described in {@link #applyDelta(File, InputStream, File,
+   * boolean)}.
+   *
+   * @param plan the plan read from the patch stream
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, as produced by {@link
+   *     #writeDeltaFriendlyOldBlob(PatchApplyPlan, File, File)} for the plan
+   * @param deltaIn the patch stream, positioned at the first byte of delta bytes
+   * @param newBlob the file to write the result to
+   * @param sync if true, force the new file to the backing storage once it has been completely
+   *     written
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  void applyDeltaToFile(
+      PatchApplyPlan plan,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      File newBlob,
+      boolean sync)
+      throws IOException {
+    try (FileChannelOutputStream newBlobOut =
+        new FileChannelOutputStream(
+            newBlob, plan.getNewFileSize(), FileChannelOutputStream.DEFAULT_BUFFER_SIZE, sync)) {
+      applyDeltaToDeltaFriendlyOldBlob(plan, deltaFriendlyOldBlob, deltaIn, newBlobOut, null);
+      long expectedSize = plan.getNewFileSize();
+      if (expectedSize >= 0 && newBlobOut.getNumBytesWritten() != expectedSize) {
+        throw new PatchFormatException(
+            "new file size mismatch: expected "
+                + expectedSize
+                + ", wrote "
+                + newBlobOut.getNumBytesWritten());
+      }
+    }
+  }
+
+  /**
+   * Creates a temp file in the temp directory to hold the delta-friendly old blob.
+   * @return the file
+   * @throws IOException if unable to create the file
+   */
+  File createTempFile() throws IOException {
+    if (!tempDir.exists()) {
+      // Be nice, try to create the temp directory. Don't bother to check return value as the code
+      // will fail when it tries to create the file in a few more lines anyways.
+      tempDir.mkdirs();
+    }
+    return File.createTempFile("gfbfv1", "old", tempDir);
+  }
+
+  /**
+   * Does the work for applying a delta once the delta-friendly old blob has been written.
+   * @param plan the plan read from the patch stream
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, as produced by {@link
+   *     #writeDeltaFriendlyOldBlob(PatchApplyPlan, File, File)} for the plan; it is only read, so
+   *     it may be shared by several concurrent applications of patches with the same plan
+   * @param deltaIn the patch stream, positioned at the first byte of delta bytes
    * @param newBlobOut the stream to write the new blob to after applying the delta
+   * @param tracker if non-null, the tracker to report progress to
    * @throws IOException if anything goes wrong
    */
-  private void applyDeltaInternal(
-      File oldBlob, File deltaFriendlyOldBlob, InputStream deltaIn, OutputStream newBlobOut)
+  void applyDeltaToDeltaFriendlyOldBlob(
+      PatchApplyPlan plan,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream newBlobOut,
+      ApplyProgressTracker tracker)
       throws IOException {
-
-    // First, read the patch plan from the patch stream.
-    PatchReader patchReader = new PatchReader();
-    PatchApplyPlan plan = patchReader.readPatchApplyPlan(deltaIn);
-    writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob);
     // Apply the delta. In v1 there is always exactly one delta descriptor, it is bsdiff, and it
     // takes up the rest of the patch stream - so there is no need to examine the list of
     // DeltaDescriptors in the patch at all.
@@ -96,16 +224,77 @@ public class FileByFileDeltaApplier implements DeltaApplier {
     DeltaApplier deltaApplier = getDeltaApplier();
     // Don't close this stream, as it is just a limiting wrapper.
     @SuppressWarnings("resource")
-    LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+    InputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+    if (tracker != null) {
+      ApplyProgressTracker.checkCancelled();
+      limitedDeltaIn = tracker.trackDelta(limitedDeltaIn);
+      newBlobOut = tracker.trackNewBlob(newBlobOut);
+      tracker.enterPhase(ApplyProgressListener.Phase.BSDIFF);
+    }
+    MessageDigest newFileDigest = null;
+    List<Long> expectedCrc32s = null;
+    if (verifyOutput) {
+      if (plan.getNewFileDigest() != null) {
+        newFileDigest = createNewFileDigest();
+        // Don't close this stream, as it would close the underlying OutputStream.
+        @SuppressWarnings("resource")
+        DigestOutputStream digestingNewBlobOut = new DigestOutputStream(newBlobOut, newFileDigest);
+        newBlobOut = digestingNewBlobOut;
+      }
+      expectedCrc32s = plan.getDeltaFriendlyNewFileRecompressionCrc32s();
+    }
     // Don't close this stream, as it would close the underlying OutputStream (that we don't own).
     @SuppressWarnings("resource")
     PartiallyCompressingOutputStream recompressingNewBlobOut =
         new PartiallyCompressingOutputStream(
             plan.getDeltaFriendlyNewFileRecompressionPlan(),
             newBlobOut,
-            DEFAULT_COPY_BUFFER_SIZE);
-    deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut);
+            DEFAULT_COPY_BUFFER_SIZE,
+            expectedCrc32s);
+    recompressingNewBlobOut.setProgressTracker(tracker);
+    ApplyListener applyListener = tracker == null ? null : tracker.getApplyListener();
+    if (applyListener != null && deltaApplier instanceof BsDiffDeltaApplier) {
+      ((BsDiffDeltaApplier) deltaApplier)
+          .applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut, applyListener);
+    } else {
+      deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut);
+    }
     recompressingNewBlobOut.flush();
+    if (tracker != null) {
+      tracker.finish();
+    }
+    if (newFileDigest != null
+        && !MessageDigest.isEqual(newFileDigest.digest(), plan.getNewFileDigest())) {
+      throw new VerificationException("new file digest mismatch");
+    }
+  }
+
+  /**
+   * Creates a digest for verifying the new file.
+   * @return the digest
+   * @throws IOException if the digest algorithm is not available
+   */
+  private static MessageDigest createNewFileDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance(PatchConstants.NEW_FILE_DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to create new file digest", e);
+    }
+  }
+
+  /**
+   * Returns the number of bytes produced by uncompressing the old file according to the plan: the
+   * size of the delta-friendly old blob, less the bytes of the old file that are copied as-is.
+   * @param plan the plan used for uncompressing
+   * @param oldBlobSize the size of the old file
+   * @return as described
+   */
+  private static long getBytesInflated(PatchApplyPlan plan, long oldBlobSize) {
+    long compressedBytes = 0;
+    for (TypedRange<Void> range : plan.getOldFileUncompressionPlan()) {
+      compressedBytes += range.getLength();
+    }
+    return plan.getDeltaFriendlyOldFileSize() - (oldBlobSize - compressedBytes);
   }
 
   /**
@@ -116,7 +305,7 @@ public class FileByFileDeltaApplier implements DeltaApplier {
    * @param deltaFriendlyOldBlob where to write the blob
    * @throws IOException if anything goes wrong
    */
-  private void writeDeltaFriendlyOldBlob(
+  static void writeDeltaFriendlyOldBlob(
       PatchApplyPlan plan, File oldBlob, File deltaFriendlyOldBlob) throws IOException {
     try (RandomAccessFileOutputStream deltaFriendlyOldFileOut =
         new RandomAccessFileOutputStream(
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -75,6 +76,23 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
    */
   private JreDeflateParameters lastDeflateParameters = null;
 
+  /**
+   * The iterator over the expected CRC32s of the compression ranges, or null if no verification is
+   * to be performed.
+   */
+  private final Iterator<Long> expectedCrc32Iterator;
+
+  /**
+   * The CRC32 of the uncompressed bytes of the current compression range, non-null only if
+   * verification is to be performed.
+   */
+  private final CRC32 crc32;
+
+  /**
+   * If non-null, the tracker to report phase changes to.
+   */
+  private ApplyProgressTracker progressTracker = null;
+
   /**
    * Creates a new stream that wraps the specified other stream, compressing the specified ranges
    * with the specified parameters. All unspecified ranges are implicitly copied without
@@ -87,16 +105,101 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
       List<TypedRange<JreDeflateParameters>> compressionRanges,
       OutputStream out,
       int compressionBufferSize) {
+    this(compressionRanges, out, compressionBufferSize, null);
+  }
+
+  /**
+   * Creates a new stream that wraps the specified other stream, compressing the specified ranges
+   * with the specified parameters and optionally verifying the uncompressed bytes of each range
+   * before it is compressed. All unspecified ranges are implicitly copied without modification.
+   * @param compressionRanges ranges to be compressed, with accompanying parameters
+   * @param out the stream to write to
+   * @param compressionBufferSize the size of the buffer to use when compressing data
+   * @param expectedCrc32s if non-null, the expected CRC32 of the uncompressed bytes of each range
+   * in compressionRanges, in the same order; a {@link VerificationException} is thrown as soon as
+   * a range is completed whose bytes do not match
+   */
+  public PartiallyCompressingOutputStream(
+      List<TypedRange<JreDeflateParameters>> compressionRanges,
+      OutputStream out,
+      int compressionBufferSize,
+      List<Long> expectedCrc32s) {
+    this(compressionRanges, out, compressionBufferSize, expectedCrc32s, 0);
+  }
+
+  /**
+   * Creates a new stream that resumes the work of an earlier stream with the same ranges after it
+   * had been written startOffset bytes. The earlier stream must have been at a checkpointable
+   * position (see {@link #isCheckpointable(List, long)}), so that no compression state needs to be
+   * carried over.
+   * @param compressionRanges ranges to be compressed, with accompanying parameters
+   * @param out the stream to write to
+   * @param compressionBufferSize the size of the buffer to use when compressing data
+   * @param expectedCrc32s as described in {@link #PartiallyCompressingOutputStream(List,
+   * OutputStream, int, List)}
+   * @param startOffset the number of (uncompressed) bytes written to the earlier stream
+   */
+  PartiallyCompressingOutputStream(
+      List<TypedRange<JreDeflateParameters>> compressionRanges,
+      OutputStream out,
+      int compressionBufferSize,
+      List<Long> expectedCrc32s,
+      long startOffset) {
     super(out);
+    if (expectedCrc32s != null && expectedCrc32s.size() != compressionRanges.size()) {
+      throw new IllegalArgumentException("one CRC32 is required per compression range");
+    }
+    if (!isCheckpointable(compressionRanges, startOffset)) {
+      throw new IllegalArgumentException("cannot start inside a compression range: " + startOffset);
+    }
     this.normalOut = out;
     this.compressionBufferSize = compressionBufferSize;
+    this.expectedCrc32Iterator = expectedCrc32s == null ? null : expectedCrc32s.iterator();
+    this.crc32 = expectedCrc32s == null ? null : new CRC32();
+    this.numBytesWritten = startOffset;
     rangeIterator = compressionRanges.iterator();
-    if (rangeIterator.hasNext()) {
-      nextCompressedRange = rangeIterator.next();
-    } else {
-      // Degenerate case, no compression at all/
-      nextCompressedRange = null;
+    nextCompressedRange = null;
+    while (rangeIterator.hasNext()) {
+      TypedRange<JreDeflateParameters> range = rangeIterator.next();
+      if (range.getOffset() + range.getLength() > startOffset) {
+        nextCompressedRange = range;
+        break;
+      }
+      // Already completed by the earlier stream.
+      if (expectedCrc32Iterator != null) {
+        expectedCrc32Iterator.next();
+      }
+    }
+  }
+
+  /**
+   * Returns true if a stream with the specified ranges that has been written the specified number
+   * of bytes holds no compression state: that is, if the offset is not strictly inside a
+   * compression range. Only at such offsets can the work of the stream be checkpointed and
+   * resumed.
+   * @param compressionRanges the compression ranges, in file order
+   * @param offset the number of (uncompressed) bytes written
+   * @return as described
+   */
+  static boolean isCheckpointable(
+      List<TypedRange<JreDeflateParameters>> compressionRanges, long offset) {
+    for (TypedRange<JreDeflateParameters> range : compressionRanges) {
+      if (range.getOffset() >= offset) {
+        return true;
+      }
+      if (range.getOffset() + range.getLength() > offset) {
+        return false;
+      }
     }
+    return true;
+  }
+
+  /**
+   * Sets the tracker to report to whenever this stream starts or stops compressing.
+   * @param progressTracker the tracker
+   */
+  void setProgressTracker(ApplyProgressTracker progressTracker) {
+    this.progressTracker = progressTracker;
   }
 
   @Override
@@ -112,6 +215,8 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
+    // Cooperative cancellation: the thread applying the patch is interrupted to cancel it.
+    ApplyProgressTracker.checkCancelled();
     int writtenSoFar = 0;
     while (writtenSoFar < length) {
       writtenSoFar += writeChunk(buffer, offset + writtenSoFar, length - writtenSoFar);
@@ -145,6 +250,9 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
       deflater.setLevel(parameters.level);
       deflater.setStrategy(parameters.strategy);
       deflaterOut = new DeflaterOutputStream(normalOut, deflater, compressionBufferSize);
+      if (progressTracker != null) {
+        progressTracker.enterPhase(ApplyProgressListener.Phase.RECOMPRESS);
+      }
     }
 
     int numBytesToWrite;
@@ -166,9 +274,19 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
 
     writeTarget.write(buffer, offset, numBytesToWrite);
     numBytesWritten += numBytesToWrite;
+    if (crc32 != null && currentlyCompressing()) {
+      crc32.update(buffer, offset, numBytesToWrite);
+    }
 
     if (currentlyCompressing() && bytesTillCompressionEnds() == 0) {
       // Compression range complete. Finish the output and set up for the next run.
+      if (crc32 != null) {
+        verifyCrc32();
+      }
+      if (progressTracker != null) {
+        progressTracker.rangeRecompressed(
+            nextCompressedRange.getMetadata().level, nextCompressedRange.getLength());
+      }
       deflaterOut.finish();
       deflaterOut.flush();
       deflaterOut = null;
@@ -183,11 +301,34 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
         deflater.end();
         deflater = null;
       }
+      if (progressTracker != null) {
+        progressTracker.enterPhase(ApplyProgressListener.Phase.BSDIFF);
+      }
     }
 
     return numBytesToWrite;
   }
 
+  /**
+   * Checks the CRC32 of the compression range that has just been completed against the expected
+   * value and resets it for the next range.
+   * @throws VerificationException if the values do not match
+   */
+  private void verifyCrc32() throws VerificationException {
+    long expected = expectedCrc32Iterator.next();
+    long actual = crc32.getValue();
+    crc32.reset();
+    if (expected != actual) {
+      throw new VerificationException(
+          "CRC32 mismatch in recompression range at offset "
+              + nextCompressedRange.getOffset()
+              + ": expected "
+              + Long.toHexString(expected)
+              + ", got "
+              + Long.toHexString(actual));
+    }
+  }
+
   private boolean currentlyCompressing() {
     return deflaterOut != null;
   }
@@ -61,6 +61,24 @@ public class PatchApplyPlan {
    */
   private final List<DeltaDescriptor> deltaDescriptors;
 
+  /**
+   * The expected size of the new file after executing the
+   * {@link #deltaFriendlyNewFileRecompressionPlan}, or -1 if the patch does not record it.
+   */
+  private final long newFileSize;
+
+  /**
+   * The expected digest of the new file, or null if the patch does not record it.
+   */
+  private final byte[] newFileDigest;
+
+  /**
+   * The expected CRC32 of the uncompressed data in each range of the
+   * {@link #deltaFriendlyNewFileRecompressionPlan}, in the same order, or null if the patch does
+   * not record them.
+   */
+  private final List<Long> deltaFriendlyNewFileRecompressionCrc32s;
+
   /**
    * Constructs a new plan.
    * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
@@ -76,10 +94,77 @@ public class PatchApplyPlan {
       long deltaFriendlyOldFileSize,
       List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
       List<DeltaDescriptor> deltaDescriptors) {
+    this(
+        oldFileUncompressionPlan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileRecompressionPlan,
+        deltaDescriptors,
+        -1);
+  }
+
+  /**
+   * Constructs a new plan.
+   * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, after
+   * executing the plan in oldFileUncompressionPlan; this can be used to pre-allocate the necessary
+   * space to hold the delta-friendly old file
+   * @param deltaFriendlyNewFileRecompressionPlan the plan for recompressing the delta-friendly new
+   * file, in file order
+   * @param deltaDescriptors the descriptors for the deltas in the patch stream
+   * @param newFileSize the expected size of the new file, or -1 if unknown; this can be used to
+   * pre-allocate the necessary space to hold the new file
+   */
+  public PatchApplyPlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
+      List<DeltaDescriptor> deltaDescriptors,
+      long newFileSize) {
+    this(
+        oldFileUncompressionPlan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileRecompressionPlan,
+        deltaDescriptors,
+        newFileSize,
+        null,
+        null);
+  }
+
+  /**
+   * Constructs a new plan.
+   * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, after
+   * executing the plan in oldFileUncompressionPlan; this can be used to pre-allocate the necessary
+   * space to hold the delta-friendly old file
+   * @param deltaFriendlyNewFileRecompressionPlan the plan for recompressing the delta-friendly new
+   * file, in file order
+   * @param deltaDescriptors the descriptors for the deltas in the patch stream
+   * @param newFileSize the expected size of the new file, or -1 if unknown; this can be used to
+   * pre-allocate the necessary space to hold the new file
+   * @param newFileDigest the expected digest of the new file, or null if unknown
+   * @param deltaFriendlyNewFileRecompressionCrc32s the expected CRC32 of the uncompressed data in
+   * each range of deltaFriendlyNewFileRecompressionPlan, in the same order, or null if unknown
+   */
+  public PatchApplyPlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
+      List<DeltaDescriptor> deltaDescriptors,
+      long newFileSize,
+      byte[] newFileDigest,
+      List<Long> deltaFriendlyNewFileRecompressionCrc32s) {
+    if (deltaFriendlyNewFileRecompressionCrc32s != null
+        && deltaFriendlyNewFileRecompressionCrc32s.size()
+            != deltaFriendlyNewFileRecompressionPlan.size()) {
+      throw new IllegalArgumentException("one CRC32 is required per recompression range");
+    }
     this.oldFileUncompressionPlan = oldFileUncompressionPlan;
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileRecompressionPlan = deltaFriendlyNewFileRecompressionPlan;
     this.deltaDescriptors = deltaDescriptors;
+    this.newFileSize = newFileSize;
+    this.newFileDigest = newFileDigest;
+    this.deltaFriendlyNewFileRecompressionCrc32s = deltaFriendlyNewFileRecompressionCrc32s;
   }
 
   /**
@@ -115,4 +200,34 @@ public class PatchApplyPlan {
   public List<DeltaDescriptor> getDeltaDescriptors() {
     return deltaDescriptors;
   }
+
+  /**
+   * Returns the expected size of the new file after executing the plan returned by
+   * {@link #getDeltaFriendlyNewFileRecompressionPlan()}, or -1 if the patch does not record it.
+   * This can be used to pre-allocate the necessary space to hold the new file.
+   * @return as described
+   */
+  public long getNewFileSize() {
+    return newFileSize;
+  }
+
+  /**
+   * Returns the expected digest of the new file, computed with
+   * {@link com.google.archivepatcher.shared.PatchConstants#NEW_FILE_DIGEST_ALGORITHM}, or null if
+   * the patch does not record it.
+   * @return as described
+   */
+  public byte[] getNewFileDigest() {
+    return newFileDigest;
+  }
+
+  /**
+   * Returns the expected CRC32 of the uncompressed data in each range of the plan returned by
+   * {@link #getDeltaFriendlyNewFileRecompressionPlan()}, in the same order, or null if the patch
+   * does not record them.
+   * @return as described
+   */
+  public List<Long> getDeltaFriendlyNewFileRecompressionCrc32s() {
+    return deltaFriendlyNewFileRecompressionCrc32s;
+  }
 }
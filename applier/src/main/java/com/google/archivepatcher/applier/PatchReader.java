@@ -54,9 +54,23 @@ public class PatchReader {
     if (!Arrays.equals(expectedIdentifier, actualIdentifier)) {
       throw new PatchFormatException("Bad identifier");
     }
-    dataIn.skip(4); // Flags (ignored in v1)
+    int flags = dataIn.readInt();
+    if ((flags & ~PatchConstants.PatchFlag.allMasks()) != 0) {
+      throw new PatchFormatException("Unsupported flags: " + Integer.toHexString(flags));
+    }
     long deltaFriendlyOldFileSize = checkNonNegative(
         dataIn.readLong(), "delta-friendly old file size");
+    long newFileSize = -1;
+    if ((flags & PatchConstants.PatchFlag.NEW_FILE_SIZE.mask) != 0) {
+      newFileSize = checkNonNegative(dataIn.readLong(), "new file size");
+    }
+    byte[] newFileDigest = null;
+    if ((flags & PatchConstants.PatchFlag.NEW_FILE_DIGEST.mask) != 0) {
+      newFileDigest = new byte[PatchConstants.NEW_FILE_DIGEST_LENGTH];
+      dataIn.readFully(newFileDigest);
+    }
+    boolean hasRecompressionCrc32s =
+        (flags & PatchConstants.PatchFlag.RECOMPRESSION_CRC32.mask) != 0;
 
     // Read old file uncompression instructions.
     int numOldFileUncompressionInstructions = (int) checkNonNegative(
@@ -83,6 +97,11 @@ public class PatchReader {
     List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan =
         new ArrayList<TypedRange<JreDeflateParameters>>(
             numDeltaFriendlyNewFileRecompressionInstructions);
+    List<Long> deltaFriendlyNewFileRecompressionCrc32s = null;
+    if (hasRecompressionCrc32s) {
+      deltaFriendlyNewFileRecompressionCrc32s =
+          new ArrayList<Long>(numDeltaFriendlyNewFileRecompressionInstructions);
+    }
     lastReadOffset = -1;
     for (int x = 0; x < numDeltaFriendlyNewFileRecompressionInstructions; x++) {
       long offset = checkNonNegative(
@@ -111,6 +130,9 @@ public class PatchReader {
               length,
               JreDeflateParameters.of(level, strategy, nowrapInt == 0 ? false : true));
       deltaFriendlyNewFileRecompressionPlan.add(range);
+      if (hasRecompressionCrc32s) {
+        deltaFriendlyNewFileRecompressionCrc32s.add(dataIn.readInt() & 0xffffffffL);
+      }
     }
 
     // Read the delta metadata, but stop before the first byte of the actual delta.
@@ -149,7 +171,12 @@ public class PatchReader {
         Collections.unmodifiableList(oldFileUncompressionPlan),
         deltaFriendlyOldFileSize,
         Collections.unmodifiableList(deltaFriendlyNewFileRecompressionPlan),
-        Collections.unmodifiableList(deltaDescriptors));
+        Collections.unmodifiableList(deltaDescriptors),
+        newFileSize,
+        newFileDigest,
+        hasRecompressionCrc32s
+            ? Collections.unmodifiableList(deltaFriendlyNewFileRecompressionCrc32s)
+            : null);
   }
 
   /**
@@ -0,0 +1,603 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.applier.bsdiff.BsPatch;
+import com.google.archivepatcher.shared.FileChannelOutputStream;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies patches like {@link FileByFileDeltaApplier}, but periodically persists checkpoints so
+ * that application can be resumed after the process dies (e.g., when a device reboots) instead of
+ * starting over. The delta-friendly old blob and the checkpoint are kept in a caller-supplied work
+ * directory; calling {@link #applyDelta(File, File, File, File)} again with the same arguments
+ * resumes from the last checkpoint.
+ *
+ * <p>A checkpoint records the position of {@link BsPatch} in the delta and the old data, the
+ * position of the {@link PartiallyCompressingOutputStream} in its recompression ranges, and the
+ * length of the new file. Because deflater state cannot be persisted, checkpoints are only taken
+ * at directive boundaries that lie outside of recompression ranges (or exactly on their edges);
+ * at most one checkpoint is taken per checkpoint interval of new data. Before a checkpoint is
+ * written, the new file is synced to the backing storage so that it is intact up to the recorded
+ * length.
+ *
+ * <p>A checkpoint is only resumed if the patch and the old blob have the same SHA-256 digests as
+ * when it was taken, so each call reads both in full once to check them; any other checkpoint is
+ * discarded and application starts over.
+ *
+ * <p>The patch must be a file rather than a stream, so that it can be re-read from the checkpoint.
+ * Each patch must use its own work directory.
+ */
+public class ResumableDeltaApplier {
+  /**
+   * The default number of bytes of new data between checkpoints.
+   */
+  public static final long DEFAULT_CHECKPOINT_INTERVAL_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The name of the delta-friendly old blob in the work directory.
+   */
+  private static final String DELTA_FRIENDLY_OLD_BLOB_NAME = "old.delta-friendly";
+
+  /**
+   * The name of the checkpoint in the work directory.
+   */
+  private static final String CHECKPOINT_NAME = "checkpoint";
+
+  /**
+   * The version of the checkpoint format.
+   */
+  private static final int CHECKPOINT_VERSION = 2;
+
+  /**
+   * Size of the buffers used to read the patch and to recompress.
+   */
+  private static final int DEFAULT_COPY_BUFFER_SIZE = 32768;
+
+  /**
+   * The number of bytes of new data between checkpoints.
+   */
+  private final long checkpointIntervalBytes;
+
+  /**
+   * Whether to verify the output against the verification data recorded in the patch, if any.
+   */
+  private final boolean verifyOutput;
+
+  /**
+   * Creates a new applier that checkpoints every {@link #DEFAULT_CHECKPOINT_INTERVAL_BYTES} bytes
+   * and does not verify its output.
+   */
+  public ResumableDeltaApplier() {
+    this(DEFAULT_CHECKPOINT_INTERVAL_BYTES, false);
+  }
+
+  /**
+   * Creates a new applier.
+   *
+   * @param checkpointIntervalBytes the minimum number of bytes of (delta-friendly) new data between
+   *     checkpoints; must be greater than zero
+   * @param verifyOutput as described in {@link FileByFileDeltaApplier#FileByFileDeltaApplier(File,
+   *     boolean)}; when resuming, the digest is primed by re-reading the part of the new file
+   *     written before the checkpoint
+   */
+  public ResumableDeltaApplier(long checkpointIntervalBytes, boolean verifyOutput) {
+    if (checkpointIntervalBytes <= 0) {
+      throw new IllegalArgumentException(
+          "checkpointIntervalBytes must be > 0: " + checkpointIntervalBytes);
+    }
+    this.checkpointIntervalBytes = checkpointIntervalBytes;
+    this.verifyOutput = verifyOutput;
+  }
+
+  /**
+   * Returns true if the specified work directory holds a checkpoint from which application could be
+   * resumed.
+   * @param workDir the work directory
+   * @return as described
+   */
+  public static boolean hasCheckpoint(File workDir) {
+    return new File(workDir, CHECKPOINT_NAME).exists();
+  }
+
+  /**
+   * Deletes any checkpoint and delta-friendly old blob in the specified work directory, so that
+   * the next application starts from scratch.
+   * @param workDir the work directory
+   */
+  public static void clearCheckpoint(File workDir) {
+    new File(workDir, CHECKPOINT_NAME).delete();
+    new File(workDir, DELTA_FRIENDLY_OLD_BLOB_NAME).delete();
+  }
+
+  /**
+   * Applies the patch in patchFile to oldBlob and writes the result to newBlob, resuming from the
+   * checkpoint in workDir if there is a valid one for the same inputs. On success the work
+   * directory is cleared; on failure it is left as-is, so that a later call can resume.
+   *
+   * @param oldBlob the old blob
+   * @param patchFile the patch
+   * @param newBlob the file to write the result to
+   * @param workDir the directory for the delta-friendly old blob and the checkpoint
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public void applyDelta(File oldBlob, File patchFile, File newBlob, File workDir)
+      throws IOException {
+    if (!workDir.exists()) {
+      workDir.mkdirs();
+    }
+    PatchApplyPlan plan;
+    try (InputStream patchIn = openPatch(patchFile)) {
+      plan = new PatchReader().readPatchApplyPlan(patchIn);
+    }
+    // In v1 there is always exactly one delta descriptor, it is bsdiff, and it takes up the rest of
+    // the patch.
+    long deltaLength = plan.getDeltaDescriptors().get(0).getDeltaLength();
+    long deltaStart = patchFile.length() - deltaLength;
+    if (deltaStart < 0) {
+      throw new PatchFormatException("delta length exceeds patch length");
+    }
+
+    Fingerprint fingerprint = new Fingerprint(patchFile, oldBlob, plan);
+    File deltaFriendlyOldBlob = new File(workDir, DELTA_FRIENDLY_OLD_BLOB_NAME);
+    State state = readCheckpoint(workDir, fingerprint, plan);
+    if (state == null
+        || deltaFriendlyOldBlob.length() != plan.getDeltaFriendlyOldFileSize()) {
+      // Never leave a checkpoint next to a partially written blob.
+      new File(workDir, CHECKPOINT_NAME).delete();
+      FileByFileDeltaApplier.writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob);
+      state = new State(null, 0, 0);
+      writeCheckpoint(workDir, fingerprint, state);
+    }
+
+    MessageDigest newFileDigest = null;
+    List<Long> expectedCrc32s = null;
+    if (verifyOutput) {
+      if (plan.getNewFileDigest() != null) {
+        newFileDigest = createNewFileDigest();
+        primeDigest(newFileDigest, newBlob, state.outputLength);
+      }
+      expectedCrc32s = plan.getDeltaFriendlyNewFileRecompressionCrc32s();
+    }
+
+    try (FileChannelOutputStream fileOut =
+            new FileChannelOutputStream(
+                newBlob,
+                plan.getNewFileSize(),
+                state.outputLength,
+                FileChannelOutputStream.DEFAULT_BUFFER_SIZE,
+                true);
+        InputStream deltaIn = openPatch(patchFile);
+        RandomAccessFile oldData = new RandomAccessFile(deltaFriendlyOldBlob, "r")) {
+      OutputStream newBlobOut = fileOut;
+      if (newFileDigest != null) {
+        newBlobOut = new DigestOutputStream(fileOut, newFileDigest);
+      }
+      long patchOffset = state.bsdiff == null ? 0 : state.bsdiff.patchOffset;
+      long newDataOffset = state.bsdiff == null ? 0 : state.bsdiff.newDataOffset;
+      skipFully(deltaIn, deltaStart + patchOffset);
+      // Don't close these streams; the underlying streams are closed above.
+      @SuppressWarnings("resource")
+      PartiallyCompressingOutputStream recompressingNewBlobOut =
+          new PartiallyCompressingOutputStream(
+              plan.getDeltaFriendlyNewFileRecompressionPlan(),
+              newBlobOut,
+              DEFAULT_COPY_BUFFER_SIZE,
+              expectedCrc32s,
+              newDataOffset);
+      @SuppressWarnings("resource")
+      LimitedInputStream limitedDeltaIn =
+          new LimitedInputStream(deltaIn, deltaLength - patchOffset);
+      Checkpointer checkpointer =
+          new Checkpointer(
+              workDir,
+              fingerprint,
+              plan.getDeltaFriendlyNewFileRecompressionPlan(),
+              recompressingNewBlobOut,
+              fileOut,
+              newDataOffset);
+      BsPatch.applyPatch(
+          oldData, recompressingNewBlobOut, limitedDeltaIn, null, state.bsdiff, checkpointer);
+      recompressingNewBlobOut.flush();
+      if (newFileDigest != null
+          && !MessageDigest.isEqual(newFileDigest.digest(), plan.getNewFileDigest())) {
+        throw new VerificationException("new file digest mismatch");
+      }
+      long expectedSize = plan.getNewFileSize();
+      if (expectedSize >= 0 && fileOut.getNumBytesWritten() != expectedSize) {
+        throw new PatchFormatException(
+            "new file size mismatch: expected "
+                + expectedSize
+                + ", wrote "
+                + fileOut.getNumBytesWritten());
+      }
+    }
+    clearCheckpoint(workDir);
+  }
+
+  /**
+   * Decides when to checkpoint and writes the checkpoints.
+   */
+  private class Checkpointer implements BsPatch.Checkpointer {
+    private final File workDir;
+    private final Fingerprint fingerprint;
+    private final List<TypedRange<JreDeflateParameters>> ranges;
+    private final OutputStream recompressingNewBlobOut;
+    private final FileChannelOutputStream fileOut;
+
+    /**
+     * The index of the first range that has not been completely written.
+     */
+    private int rangeIndex = 0;
+
+    /**
+     * The offset of the last checkpoint, in the delta-friendly new data.
+     */
+    private long lastCheckpointOffset;
+
+    Checkpointer(
+        File workDir,
+        Fingerprint fingerprint,
+        List<TypedRange<JreDeflateParameters>> ranges,
+        OutputStream recompressingNewBlobOut,
+        FileChannelOutputStream fileOut,
+        long startOffset) {
+      this.workDir = workDir;
+      this.fingerprint = fingerprint;
+      this.ranges = ranges;
+      this.recompressingNewBlobOut = recompressingNewBlobOut;
+      this.fileOut = fileOut;
+      this.lastCheckpointOffset = startOffset;
+    }
+
+    @Override
+    public boolean shouldCheckpoint(long newDataOffset) {
+      if (newDataOffset - lastCheckpointOffset < checkpointIntervalBytes) {
+        return false;
+      }
+      // Offsets only increase, so the cursor never moves backwards.
+      while (rangeIndex < ranges.size() && rangeEnd(ranges.get(rangeIndex)) <= newDataOffset) {
+        rangeIndex++;
+      }
+      return rangeIndex == ranges.size() || ranges.get(rangeIndex).getOffset() >= newDataOffset;
+    }
+
+    @Override
+    public void checkpoint(BsPatch.Checkpoint checkpoint) throws IOException {
+      // The recompressing stream holds no state here; push everything down to the file.
+      recompressingNewBlobOut.flush();
+      fileOut.sync();
+      writeCheckpoint(
+          workDir, fingerprint, new State(checkpoint, rangeIndex, fileOut.getNumBytesWritten()));
+      lastCheckpointOffset = checkpoint.newDataOffset;
+      checkpointWritten(checkpoint.newDataOffset);
+    }
+  }
+
+  /**
+   * Invoked after each checkpoint has been written.
+   * @param newDataOffset the offset of the checkpoint in the delta-friendly new data
+   * @throws IOException to abandon patch application, as if the process had died
+   */
+  // Visible for testing only
+  void checkpointWritten(long newDataOffset) throws IOException {
+    // Nothing to do by default.
+  }
+
+  /**
+   * Reads the checkpoint in the work directory.
+   * @param workDir the work directory
+   * @param fingerprint the fingerprint of the current inputs
+   * @param plan the plan read from the patch
+   * @return the checkpoint, or null if there is none or it does not belong to the current inputs
+   */
+  private static State readCheckpoint(File workDir, Fingerprint fingerprint, PatchApplyPlan plan) {
+    File checkpointFile = new File(workDir, CHECKPOINT_NAME);
+    if (!checkpointFile.exists()) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+      if (in.readInt() != CHECKPOINT_VERSION || !fingerprint.equals(Fingerprint.read(in))) {
+        return null;
+      }
+      BsPatch.Checkpoint bsdiff = null;
+      if (in.readBoolean()) {
+        bsdiff = new BsPatch.Checkpoint(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+      }
+      int rangeIndex = in.readInt();
+      long outputLength = in.readLong();
+      // The range cursor must agree with the recompression plan in the patch.
+      List<TypedRange<JreDeflateParameters>> ranges =
+          plan.getDeltaFriendlyNewFileRecompressionPlan();
+      long newDataOffset = bsdiff == null ? 0 : bsdiff.newDataOffset;
+      if (rangeIndex < 0
+          || rangeIndex > ranges.size()
+          || (rangeIndex > 0 && rangeEnd(ranges.get(rangeIndex - 1)) > newDataOffset)
+          || (rangeIndex < ranges.size() && ranges.get(rangeIndex).getOffset() < newDataOffset)) {
+        return null;
+      }
+      return new State(bsdiff, rangeIndex, outputLength);
+    } catch (IOException e) {
+      // Unreadable; start over.
+      return null;
+    }
+  }
+
+  /**
+   * Atomically replaces the checkpoint in the work directory.
+   * @param workDir the work directory
+   * @param fingerprint the fingerprint of the current inputs
+   * @param state the state to record
+   * @throws IOException if unable to write the checkpoint
+   */
+  private static void writeCheckpoint(File workDir, Fingerprint fingerprint, State state)
+      throws IOException {
+    File tempFile = new File(workDir, CHECKPOINT_NAME + ".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+      DataOutputStream out = new DataOutputStream(fileOut);
+      out.writeInt(CHECKPOINT_VERSION);
+      fingerprint.write(out);
+      out.writeBoolean(state.bsdiff != null);
+      if (state.bsdiff != null) {
+        out.writeLong(state.bsdiff.patchOffset);
+        out.writeLong(state.bsdiff.oldDataOffset);
+        out.writeLong(state.bsdiff.newDataOffset);
+        out.writeLong(state.bsdiff.newSize);
+      }
+      out.writeInt(state.rangeIndex);
+      out.writeLong(state.outputLength);
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    File checkpointFile = new File(workDir, CHECKPOINT_NAME);
+    if (!tempFile.renameTo(checkpointFile)) {
+      // Some platforms cannot rename over an existing file.
+      checkpointFile.delete();
+      if (!tempFile.renameTo(checkpointFile)) {
+        throw new IOException("Unable to write checkpoint " + checkpointFile);
+      }
+    }
+  }
+
+  /**
+   * Feeds the first length bytes of the specified file to the digest.
+   * @param digest the digest
+   * @param file the file
+   * @param length the number of bytes
+   * @throws IOException if unable to read the bytes
+   */
+  private static void primeDigest(MessageDigest digest, File file, long length)
+      throws IOException {
+    if (length == 0) {
+      return;
+    }
+    byte[] buffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+    try (InputStream in = new FileInputStream(file)) {
+      while (length > 0) {
+        int numRead = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+        if (numRead < 0) {
+          throw new IOException("new file is shorter than the checkpoint");
+        }
+        digest.update(buffer, 0, numRead);
+        length -= numRead;
+      }
+    }
+  }
+
+  private static MessageDigest createNewFileDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance(PatchConstants.NEW_FILE_DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to create new file digest", e);
+    }
+  }
+
+  private static void skipFully(InputStream in, long numBytes) throws IOException {
+    while (numBytes > 0) {
+      long numSkipped = in.skip(numBytes);
+      if (numSkipped <= 0) {
+        if (in.read() < 0) {
+          throw new PatchFormatException("patch is truncated");
+        }
+        numSkipped = 1;
+      }
+      numBytes -= numSkipped;
+    }
+  }
+
+  private static InputStream openPatch(File patchFile) throws IOException {
+    return new BufferedInputStream(new FileInputStream(patchFile), DEFAULT_COPY_BUFFER_SIZE);
+  }
+
+  private static long rangeEnd(TypedRange<?> range) {
+    return range.getOffset() + range.getLength();
+  }
+
+  /**
+   * The state recorded in a checkpoint.
+   */
+  private static final class State {
+    /**
+     * The state of bsdiff, or null if the delta-friendly old blob has been written but bsdiff has
+     * not yet made any progress.
+     */
+    final BsPatch.Checkpoint bsdiff;
+
+    /**
+     * The index of the first recompression range that has not been completely written.
+     */
+    final int rangeIndex;
+
+    /**
+     * The number of bytes of the new file written.
+     */
+    final long outputLength;
+
+    State(BsPatch.Checkpoint bsdiff, int rangeIndex, long outputLength) {
+      this.bsdiff = bsdiff;
+      this.rangeIndex = rangeIndex;
+      this.outputLength = outputLength;
+    }
+  }
+
+  /**
+   * The algorithm of the digests of the inputs in a {@link Fingerprint}.
+   */
+  private static final String FINGERPRINT_DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * Identifies the inputs a checkpoint belongs to, so that a stale checkpoint is never resumed. The
+   * contents of the patch and the old blob are identified by their digests, because a leftover
+   * checkpoint for different inputs of the same sizes would otherwise be resumed into a corrupt
+   * new file.
+   */
+  private static final class Fingerprint {
+    private final byte[] patchDigest;
+    private final byte[] oldBlobDigest;
+    private final long patchLength;
+    private final long oldBlobLength;
+    private final long deltaFriendlyOldFileSize;
+    private final int numUncompressionRanges;
+    private final int numRecompressionRanges;
+    private final long newFileSize;
+
+    Fingerprint(File patchFile, File oldBlob, PatchApplyPlan plan) throws IOException {
+      this(
+          digestFile(patchFile),
+          digestFile(oldBlob),
+          patchFile.length(),
+          oldBlob.length(),
+          plan.getDeltaFriendlyOldFileSize(),
+          plan.getOldFileUncompressionPlan().size(),
+          plan.getDeltaFriendlyNewFileRecompressionPlan().size(),
+          plan.getNewFileSize());
+    }
+
+    private Fingerprint(
+        byte[] patchDigest,
+        byte[] oldBlobDigest,
+        long patchLength,
+        long oldBlobLength,
+        long deltaFriendlyOldFileSize,
+        int numUncompressionRanges,
+        int numRecompressionRanges,
+        long newFileSize) {
+      this.patchDigest = patchDigest;
+      this.oldBlobDigest = oldBlobDigest;
+      this.patchLength = patchLength;
+      this.oldBlobLength = oldBlobLength;
+      this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
+      this.numUncompressionRanges = numUncompressionRanges;
+      this.numRecompressionRanges = numRecompressionRanges;
+      this.newFileSize = newFileSize;
+    }
+
+    static Fingerprint read(DataInputStream in) throws IOException {
+      return new Fingerprint(
+          readDigest(in),
+          readDigest(in),
+          in.readLong(),
+          in.readLong(),
+          in.readLong(),
+          in.readInt(),
+          in.readInt(),
+          in.readLong());
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      writeDigest(out, patchDigest);
+      writeDigest(out, oldBlobDigest);
+      out.writeLong(patchLength);
+      out.writeLong(oldBlobLength);
+      out.writeLong(deltaFriendlyOldFileSize);
+      out.writeInt(numUncompressionRanges);
+      out.writeInt(numRecompressionRanges);
+      out.writeLong(newFileSize);
+    }
+
+    /**
+     * Returns the digest of the contents of the specified file.
+     * @param file the file
+     * @return the digest
+     * @throws IOException if unable to read the file
+     */
+    private static byte[] digestFile(File file) throws IOException {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance(FINGERPRINT_DIGEST_ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException("Unable to create fingerprint digest", e);
+      }
+      byte[] buffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+      try (InputStream in = new FileInputStream(file)) {
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0) {
+          digest.update(buffer, 0, numRead);
+        }
+      }
+      return digest.digest();
+    }
+
+    private static byte[] readDigest(DataInputStream in) throws IOException {
+      int length = in.readUnsignedByte();
+      byte[] digest = new byte[length];
+      in.readFully(digest);
+      return digest;
+    }
+
+    private static void writeDigest(DataOutputStream out, byte[] digest) throws IOException {
+      out.writeByte(digest.length);
+      out.write(digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(patchDigest)
+          ^ Arrays.hashCode(oldBlobDigest)
+          ^ (int) (patchLength ^ oldBlobLength ^ deltaFriendlyOldFileSize ^ newFileSize);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Fingerprint)) return false;
+      Fingerprint other = (Fingerprint) obj;
+      return Arrays.equals(patchDigest, other.patchDigest)
+          && Arrays.equals(oldBlobDigest, other.oldBlobDigest)
+          && patchLength == other.patchLength
+          && oldBlobLength == other.oldBlobLength
+          && deltaFriendlyOldFileSize == other.deltaFriendlyOldFileSize
+          && numUncompressionRanges == other.numUncompressionRanges
+          && numRecompressionRanges == other.numRecompressionRanges
+          && newFileSize == other.newFileSize;
+    }
+  }
+}
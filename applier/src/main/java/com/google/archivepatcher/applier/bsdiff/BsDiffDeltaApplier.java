@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyListener;
 import com.google.archivepatcher.applier.DeltaApplier;
 import java.io.File;
 import java.io.IOException;
@@ -29,10 +30,27 @@ public class BsDiffDeltaApplier implements DeltaApplier {
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
+    applyDelta(oldBlob, deltaIn, newBlobOut, null);
+  }
+
+  /**
+   * Applies a delta as described in {@link #applyDelta(File, InputStream, OutputStream)},
+   * reporting the number of control entries processed and seeks in the old blob to the specified
+   * listener.
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlobOut the stream to write the result to
+   * @param listener if non-null, the listener to report to
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public void applyDelta(
+      File oldBlob, InputStream deltaIn, OutputStream newBlobOut, ApplyListener listener)
+      throws IOException {
     RandomAccessFile oldBlobRaf = null;
     try {
       oldBlobRaf = new RandomAccessFile(oldBlob, "r");
-      BsPatch.applyPatch(oldBlobRaf, newBlobOut, deltaIn);
+      BsPatch.applyPatch(oldBlobRaf, newBlobOut, deltaIn, null, null, null, listener);
     } finally {
       try {
         oldBlobRaf.close();
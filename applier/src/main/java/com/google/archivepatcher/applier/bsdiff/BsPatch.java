@@ -14,11 +14,13 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyListener;
 import com.google.archivepatcher.applier.PatchFormatException;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.logging.Level;
@@ -26,8 +28,12 @@ import java.util.logging.Logger;
 
 /**
  * A Java implementation of the "bspatch" algorithm based on the BSD-2 licensed source code
- * available here: https://github.com/mendsley/bsdiff. This implementation supports a maximum file
- * size of 2GB for all binaries involved (old, new and patch binaries).
+ * available here: https://github.com/mendsley/bsdiff. All offsets and lengths are 64-bit, so there
+ * is no limit on the size of the binaries involved (old, new and patch binaries) other than that
+ * of the files themselves.
+ *
+ * <p>Patch application can be cancelled by interrupting the thread that is applying the patch; an
+ * {@link InterruptedIOException} is then thrown at the next directive or buffer boundary.
  */
 public class BsPatch {
   /** If true, output verbose debugging information. */
@@ -36,6 +42,12 @@ public class BsPatch {
   /** Standard header found at the start of every patch. */
   private static final String SIGNATURE = "ENDSLEY/BSDIFF43";
 
+  /** The length of the patch header: the signature and the new size. */
+  private static final int HEADER_LENGTH = SIGNATURE.length() + 8;
+
+  /** The length of the control data at the start of each directive: three longs. */
+  private static final int DIRECTIVE_LENGTH = 3 * 8;
+
   /**
    * Masks the upper bit of a long, used to determine if a long is positive or negative.
    */
@@ -59,6 +71,9 @@ public class BsPatch {
    */
   private static final int PATCH_BUFFER_SIZE = 3 * OUTPUT_STREAM_BUFFER_SIZE;
 
+  /** The number of control entries reported to an {@link ApplyListener} at a time. */
+  static final int CONTROL_ENTRY_BATCH_SIZE = 1024;
+
   /** An instance of Java logger for use with the {@code VERBOSE} mode. */
   private static final Logger logger = Logger.getLogger(BsPatch.class.getName());
 
@@ -92,10 +107,68 @@ public class BsPatch {
   public static void applyPatch(
       RandomAccessFile oldData, OutputStream newData, InputStream patchData, Long expectedNewSize)
       throws PatchFormatException, IOException {
+    applyPatch(oldData, newData, patchData, expectedNewSize, null, null);
+  }
+
+  /**
+   * Applies a patch from |patchData| to the data in |oldData|, writing the result to |newData|,
+   * optionally resuming from a checkpoint and reporting new checkpoints as patching progresses.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from; if |resumeFrom| is non-null, it must
+   *     be positioned {@link Checkpoint#patchOffset} bytes after the start of the patch
+   * @param expectedNewSize the expected number of bytes in |newData| when patching completes. Can
+   *     be null in which case no expectedNewSize checks will be performed.
+   * @param resumeFrom if non-null, a checkpoint previously reported to a {@link Checkpointer} for
+   *     the same old data and patch; patching resumes from that point, and |newData| receives only
+   *     the bytes after {@link Checkpoint#newDataOffset}
+   * @param checkpointer if non-null, consulted at the end of every directive
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData,
+      OutputStream newData,
+      InputStream patchData,
+      Long expectedNewSize,
+      Checkpoint resumeFrom,
+      Checkpointer checkpointer)
+      throws PatchFormatException, IOException {
+    applyPatch(oldData, newData, patchData, expectedNewSize, resumeFrom, checkpointer, null);
+  }
+
+  /**
+   * Applies a patch as described in {@link #applyPatch(RandomAccessFile, OutputStream,
+   * InputStream, Long, Checkpoint, Checkpointer)}, reporting the number of control entries
+   * processed and seeks in |oldData| to the specified listener every {@link
+   * #CONTROL_ENTRY_BATCH_SIZE} control entries and once patching completes.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @param expectedNewSize the expected number of bytes in |newData| when patching completes. Can
+   *     be null in which case no expectedNewSize checks will be performed.
+   * @param resumeFrom if non-null, a checkpoint to resume from
+   * @param checkpointer if non-null, consulted at the end of every directive
+   * @param listener if non-null, the listener to report to
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData,
+      OutputStream newData,
+      InputStream patchData,
+      Long expectedNewSize,
+      Checkpoint resumeFrom,
+      Checkpointer checkpointer,
+      ApplyListener listener)
+      throws PatchFormatException, IOException {
     patchData = new BufferedInputStream(patchData, PATCH_STREAM_BUFFER_SIZE);
     newData = new BufferedOutputStream(newData, OUTPUT_STREAM_BUFFER_SIZE);
     try {
-      applyPatchInternal(oldData, newData, patchData, expectedNewSize);
+      applyPatchInternal(
+          oldData, newData, patchData, expectedNewSize, resumeFrom, checkpointer, listener);
     } finally {
       newData.flush();
     }
@@ -106,28 +179,52 @@ public class BsPatch {
       final RandomAccessFile oldData,
       final OutputStream newData,
       final InputStream patchData,
-      final Long expectedNewSize)
+      final Long expectedNewSize,
+      final Checkpoint resumeFrom,
+      final Checkpointer checkpointer,
+      final ApplyListener listener)
       throws PatchFormatException, IOException {
-    final byte[] signatureBuffer = new byte[SIGNATURE.length()];
-    try {
-      readFully(patchData, signatureBuffer, 0, signatureBuffer.length);
-    } catch (IOException e) {
-      throw new PatchFormatException("truncated signature", e);
-    }
+    final long oldSize = oldData.length();
+    final long newSize;
+    // Offsets into |patchData|, |oldData| and |newData|.
+    long patchOffset; // only used for checkpoints
+    long oldDataOffset; // strobes |oldData| in order specified by the patch file
+    long newDataBytesWritten; // monotonically increases from 0 .. |expectedNewSize|
+    if (resumeFrom == null) {
+      final byte[] signatureBuffer = new byte[SIGNATURE.length()];
+      try {
+        readFully(patchData, signatureBuffer, 0, signatureBuffer.length);
+      } catch (IOException e) {
+        throw new PatchFormatException("truncated signature", e);
+      }
 
-    String signature = new String(signatureBuffer, 0, signatureBuffer.length, "US-ASCII");
-    if (!SIGNATURE.equals(signature)) {
-      throw new PatchFormatException(
-          String.format("bad signature: found %s should've been %s", signature, SIGNATURE));
-    }
+      String signature = new String(signatureBuffer, 0, signatureBuffer.length, "US-ASCII");
+      if (!SIGNATURE.equals(signature)) {
+        throw new PatchFormatException(
+            String.format("bad signature: found %s should've been %s", signature, SIGNATURE));
+      }
 
-    // Sanity-check: ensure a-priori knowledge matches patch expectations
-    final long oldSize = oldData.length();
-    if (oldSize > Integer.MAX_VALUE) {
-      throw new PatchFormatException("bad oldSize");
+      newSize = readBsdiffLong(patchData);
+      patchOffset = HEADER_LENGTH;
+      oldDataOffset = 0;
+      newDataBytesWritten = 0;
+    } else {
+      newSize = resumeFrom.newSize;
+      patchOffset = resumeFrom.patchOffset;
+      oldDataOffset = resumeFrom.oldDataOffset;
+      newDataBytesWritten = resumeFrom.newDataOffset;
+      if (patchOffset < HEADER_LENGTH
+          || oldDataOffset < 0
+          || oldDataOffset > oldSize
+          || newDataBytesWritten < 0
+          || newDataBytesWritten > newSize) {
+        throw new PatchFormatException("bad checkpoint");
+      }
     }
-    final long newSize = readBsdiffLong(patchData);
-    if (newSize < 0 || newSize > Integer.MAX_VALUE) {
+
+    // Sanity-check: ensure a-priori knowledge matches patch expectations. All offsets are longs,
+    // so there is no limit on the sizes other than that they be non-negative.
+    if (newSize < 0) {
       throw new PatchFormatException("bad newSize");
     }
     if (expectedNewSize != null && expectedNewSize != newSize) {
@@ -137,13 +234,15 @@ public class BsPatch {
     // These buffers are used for performing transformations and copies. They are not stateful.
     final byte[] buffer1 = new byte[PATCH_BUFFER_SIZE];
     final byte[] buffer2 = new byte[PATCH_BUFFER_SIZE];
-
-    // Offsets into |oldData| and |newData|.
-    long oldDataOffset = 0; // strobes |oldData| in order specified by the patch file
-    long newDataBytesWritten = 0; // monotonically increases from 0 .. |expectedNewSize|
     int numDirectives = 0; // only used for debugging output
+    // The counts of the current batch, only used for the listener.
+    int numDirectivesInBatch = 0;
+    int numOldDataSeeksInBatch = 0;
+    // The position of |oldData|, to avoid seeking to where the previous directive stopped reading.
+    long oldDataPosition = -1;
 
     while (newDataBytesWritten < newSize) {
+      checkCancelled();
       // Read "control data" for the operation. There are three values here:
       // 1. |diffSegmentLength| defines a number of "similar" bytes that can be transformed
       //    from |oldData| to |newData| by applying byte-by-byte addends. The addend bytes are
@@ -179,41 +278,67 @@ public class BsPatch {
                 + offsetToNextInput);
       }
 
-      // Sanity-checks
-      if (diffSegmentLength < 0 || diffSegmentLength > Integer.MAX_VALUE) {
+      // Sanity-checks. The values are compared with the space remaining rather than summed first,
+      // as the sums of arbitrary longs could overflow.
+      if (diffSegmentLength < 0) {
         throw new PatchFormatException("bad diffSegmentLength");
       }
-      if (copySegmentLength < 0 || copySegmentLength > Integer.MAX_VALUE) {
+      if (copySegmentLength < 0) {
         throw new PatchFormatException("bad copySegmentLength");
       }
-      if (offsetToNextInput < Integer.MIN_VALUE || offsetToNextInput > Integer.MAX_VALUE) {
-        throw new PatchFormatException("bad offsetToNextInput");
-      }
 
-      final long expectedFinalNewDataBytesWritten =
-          newDataBytesWritten + diffSegmentLength + copySegmentLength;
-      if (expectedFinalNewDataBytesWritten > newSize) {
+      final long newDataBytesRemaining = newSize - newDataBytesWritten;
+      if (diffSegmentLength > newDataBytesRemaining
+          || copySegmentLength > newDataBytesRemaining - diffSegmentLength) {
         throw new PatchFormatException("expectedFinalNewDataBytesWritten too large");
       }
+      final long expectedFinalNewDataBytesWritten =
+          newDataBytesWritten + diffSegmentLength + copySegmentLength;
 
-      final long expectedFinalOldDataOffset = oldDataOffset + diffSegmentLength + offsetToNextInput;
-      if (expectedFinalOldDataOffset > oldSize) {
+      if (diffSegmentLength > oldSize - oldDataOffset) {
+        throw new PatchFormatException("diffSegmentLength past end of old data");
+      }
+      final long oldDataOffsetAfterDiff = oldDataOffset + diffSegmentLength;
+      if (offsetToNextInput > oldSize - oldDataOffsetAfterDiff) {
         throw new PatchFormatException("expectedFinalOldDataOffset too large");
       }
-      if (expectedFinalOldDataOffset < 0) {
+      if (offsetToNextInput < -oldDataOffsetAfterDiff) {
         throw new PatchFormatException("expectedFinalOldDataOffset is negative");
       }
+      final long expectedFinalOldDataOffset = oldDataOffsetAfterDiff + offsetToNextInput;
 
       // At this point everything is known to be sane, and the operations should all succeed.
-      oldData.seek(oldDataOffset);
       if (diffSegmentLength > 0) {
-        transformBytes((int) diffSegmentLength, patchData, oldData, newData, buffer1, buffer2);
+        if (oldDataPosition != oldDataOffset) {
+          oldData.seek(oldDataOffset);
+          numOldDataSeeksInBatch++;
+        }
+        transformBytes(diffSegmentLength, patchData, oldData, newData, buffer1, buffer2);
+        oldDataPosition = oldDataOffsetAfterDiff;
       }
       if (copySegmentLength > 0) {
-        pipe(patchData, newData, buffer1, (int) copySegmentLength);
+        pipe(patchData, newData, buffer1, copySegmentLength);
       }
       newDataBytesWritten = expectedFinalNewDataBytesWritten;
       oldDataOffset = expectedFinalOldDataOffset;
+      patchOffset += DIRECTIVE_LENGTH + diffSegmentLength + copySegmentLength;
+      if (listener != null && ++numDirectivesInBatch == CONTROL_ENTRY_BATCH_SIZE) {
+        listener.onControlEntriesApplied(numDirectivesInBatch, numOldDataSeeksInBatch);
+        numDirectivesInBatch = 0;
+        numOldDataSeeksInBatch = 0;
+      }
+
+      if (checkpointer != null
+          && newDataBytesWritten < newSize
+          && checkpointer.shouldCheckpoint(newDataBytesWritten)) {
+        // Everything up to this point must reach the checkpointer's stream before it persists.
+        newData.flush();
+        checkpointer.checkpoint(
+            new Checkpoint(patchOffset, oldDataOffset, newDataBytesWritten, newSize));
+      }
+    }
+    if (listener != null && numDirectivesInBatch > 0) {
+      listener.onControlEntriesApplied(numDirectivesInBatch, numOldDataSeeksInBatch);
     }
   }
 
@@ -240,16 +365,17 @@ public class BsPatch {
    */
   // Visible for testing only
   static void transformBytes(
-      final int diffLength,
+      final long diffLength,
       final InputStream patchData,
       final RandomAccessFile oldData,
       final OutputStream newData,
       final byte[] buffer1,
       final byte[] buffer2)
       throws IOException {
-    int numBytesLeft = diffLength;
+    long numBytesLeft = diffLength;
     while (numBytesLeft > 0) {
-      final int numBytesThisRound = Math.min(numBytesLeft, buffer1.length);
+      checkCancelled();
+      final int numBytesThisRound = (int) Math.min(numBytesLeft, buffer1.length);
       oldData.readFully(buffer1, 0, numBytesThisRound);
       readFully(patchData, buffer2, 0, numBytesThisRound);
       for (int i = 0; i < numBytesThisRound; i++) {
@@ -323,13 +449,81 @@ public class BsPatch {
    */
   // Visible for testing only
   static void pipe(
-      final InputStream in, final OutputStream out, final byte[] buffer, int copyLength)
+      final InputStream in, final OutputStream out, final byte[] buffer, long copyLength)
       throws IOException {
     while (copyLength > 0) {
-      int maxCopy = Math.min(buffer.length, copyLength);
+      checkCancelled();
+      int maxCopy = (int) Math.min(buffer.length, copyLength);
       readFully(in, buffer, 0, maxCopy);
       out.write(buffer, 0, maxCopy);
       copyLength -= maxCopy;
     }
   }
+
+  /**
+   * Throws if the current thread has been interrupted. The interrupt status is left unchanged.
+   *
+   * @throws InterruptedIOException if the current thread has been interrupted
+   */
+  private static void checkCancelled() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("patch application cancelled");
+    }
+  }
+
+  /**
+   * The state of patch application at the boundary between two directives, from which application
+   * can be resumed.
+   */
+  public static final class Checkpoint {
+    /** The number of bytes of the patch consumed, including the header. */
+    public final long patchOffset;
+
+    /** The offset in the old data at which the next directive begins reading. */
+    public final long oldDataOffset;
+
+    /** The number of bytes of new data written. */
+    public final long newDataOffset;
+
+    /** The total size of the new data, from the patch header. */
+    public final long newSize;
+
+    /**
+     * Creates a new checkpoint.
+     *
+     * @param patchOffset the number of bytes of the patch consumed, including the header
+     * @param oldDataOffset the offset in the old data at which the next directive begins reading
+     * @param newDataOffset the number of bytes of new data written
+     * @param newSize the total size of the new data, from the patch header
+     */
+    public Checkpoint(long patchOffset, long oldDataOffset, long newDataOffset, long newSize) {
+      this.patchOffset = patchOffset;
+      this.oldDataOffset = oldDataOffset;
+      this.newDataOffset = newDataOffset;
+      this.newSize = newSize;
+    }
+  }
+
+  /**
+   * Decides when to take checkpoints during patch application, and persists them.
+   */
+  public interface Checkpointer {
+    /**
+     * Invoked at the end of every directive, except the last, to ask whether a checkpoint should be
+     * taken. This is called very frequently and must be cheap.
+     *
+     * @param newDataOffset the number of bytes of new data written so far
+     * @return true to take a checkpoint
+     */
+    boolean shouldCheckpoint(long newDataOffset);
+
+    /**
+     * Invoked after {@link #shouldCheckpoint(long)} returns true, once all of the new data up to
+     * the checkpoint has been flushed to the output stream.
+     *
+     * @param checkpoint the checkpoint
+     * @throws IOException if unable to persist the checkpoint
+     */
+    void checkpoint(Checkpoint checkpoint) throws IOException;
+  }
 }
@@ -0,0 +1,165 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AsyncDeltaApplier}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class AsyncDeltaApplierTest {
+  private static final byte[] NEW_CONTENT = new byte[] {1, 2, 3};
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testApplyDelta() throws Exception {
+    FileByFileDeltaApplier applier =
+        new FileByFileDeltaApplier() {
+          @Override
+          public void applyDelta(
+              File oldBlob,
+              InputStream deltaIn,
+              OutputStream newBlobOut,
+              ApplyProgressListener listener)
+              throws IOException {
+            newBlobOut.write(NEW_CONTENT);
+          }
+        };
+    ByteArrayOutputStream newBlobOut = new ByteArrayOutputStream();
+    CompletableFuture<Void> future =
+        new AsyncDeltaApplier(applier, executor)
+            .applyDelta(null, new ByteArrayInputStream(new byte[0]), newBlobOut, null);
+    future.get(10, TimeUnit.SECONDS);
+    assertThat(newBlobOut.toByteArray()).isEqualTo(NEW_CONTENT);
+  }
+
+  @Test
+  public void testApplyDelta_Failure() throws Exception {
+    FileByFileDeltaApplier applier =
+        new FileByFileDeltaApplier() {
+          @Override
+          public void applyDelta(
+              File oldBlob,
+              InputStream deltaIn,
+              OutputStream newBlobOut,
+              ApplyProgressListener listener)
+              throws IOException {
+            throw new PatchFormatException("bad patch");
+          }
+        };
+    CompletableFuture<Void> future =
+        new AsyncDeltaApplier(applier, executor)
+            .applyDelta(
+                null, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), null);
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      assertWithMessage("Should have failed").fail();
+    } catch (ExecutionException expected) {
+      assertThat(expected.getCause()).isInstanceOf(PatchFormatException.class);
+    }
+  }
+
+  @Test
+  public void testApplyDelta_Cancel() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    FileByFileDeltaApplier applier =
+        new FileByFileDeltaApplier() {
+          @Override
+          public void applyDelta(
+              File oldBlob,
+              InputStream deltaIn,
+              OutputStream newBlobOut,
+              ApplyProgressListener listener)
+              throws IOException {
+            started.countDown();
+            try {
+              // Stand-in for a long-running application that checks for cancellation.
+              while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                  throw new InterruptedIOException();
+                }
+                Thread.yield();
+              }
+            } catch (IOException e) {
+              thrown.set(e);
+              throw e;
+            } finally {
+              finished.countDown();
+            }
+          }
+        };
+    CompletableFuture<Void> future =
+        new AsyncDeltaApplier(applier, executor)
+            .applyDelta(
+                null, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), null);
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(future.cancel(true)).isTrue();
+    assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(thrown.get()).isInstanceOf(InterruptedIOException.class);
+    try {
+      future.get();
+      assertWithMessage("Should have been cancelled").fail();
+    } catch (CancellationException expected) {
+      // Pass
+    }
+
+    // The executor thread must not be left interrupted.
+    final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+    executor
+        .submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                interrupted.set(Thread.currentThread().isInterrupted());
+              }
+            })
+        .get(10, TimeUnit.SECONDS);
+    assertThat(interrupted.get()).isFalse();
+  }
+}
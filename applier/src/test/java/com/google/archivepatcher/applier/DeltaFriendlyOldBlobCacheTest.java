@@ -0,0 +1,138 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DeltaFriendlyOldBlobCache}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeltaFriendlyOldBlobCacheTest {
+  private static final byte[] OLD_CONTENT = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+  private static final byte[] OTHER_DIGEST = new byte[] {42};
+
+  /**
+   * A plan with nothing to uncompress, so that the delta-friendly old blob is a copy of the old
+   * file.
+   */
+  private static final PatchApplyPlan PLAN =
+      new PatchApplyPlan(
+          Collections.<TypedRange<Void>>emptyList(),
+          OLD_CONTENT.length,
+          Collections.<TypedRange<JreDeflateParameters>>emptyList(),
+          Collections.<DeltaDescriptor>emptyList());
+
+  private File oldFile;
+  private byte[] oldFileDigest;
+  private File tempDir;
+
+  @Before
+  public void setUp() throws IOException {
+    oldFile = File.createTempFile("fbfv1cache", "old");
+    oldFile.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(oldFile)) {
+      out.write(OLD_CONTENT);
+    }
+    oldFileDigest = DeltaFriendlyOldBlobCache.digestOldBlob(oldFile);
+    tempDir = oldFile.getParentFile();
+  }
+
+  @After
+  public void tearDown() {
+    oldFile.delete();
+  }
+
+  @Test
+  public void testAcquire_ReusesBlob() throws IOException {
+    DeltaFriendlyOldBlobCache cache = new DeltaFriendlyOldBlobCache(tempDir, 1000);
+    File blob;
+    try (DeltaFriendlyOldBlobCache.Lease lease = cache.acquire(oldFile, oldFileDigest, PLAN)) {
+      blob = lease.getFile();
+      assertThat(blob.length()).isEqualTo(OLD_CONTENT.length);
+    }
+    try (DeltaFriendlyOldBlobCache.Lease lease = cache.acquire(oldFile, oldFileDigest, PLAN)) {
+      assertThat(lease.getFile()).isEqualTo(blob);
+    }
+    assertThat(cache.getNumEntries()).isEqualTo(1);
+    assertThat(cache.getSizeBytes()).isEqualTo(OLD_CONTENT.length);
+    cache.clear();
+    assertThat(blob.exists()).isFalse();
+    assertThat(cache.getSizeBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAcquire_DifferentDigest() throws IOException {
+    DeltaFriendlyOldBlobCache cache = new DeltaFriendlyOldBlobCache(tempDir, 1000);
+    try (DeltaFriendlyOldBlobCache.Lease lease1 = cache.acquire(oldFile, oldFileDigest, PLAN);
+        DeltaFriendlyOldBlobCache.Lease lease2 = cache.acquire(oldFile, OTHER_DIGEST, PLAN)) {
+      assertThat(lease1.getFile()).isNotEqualTo(lease2.getFile());
+    }
+    assertThat(cache.getNumEntries()).isEqualTo(2);
+    cache.clear();
+  }
+
+  @Test
+  public void testRelease_EvictsLeastRecentlyUsed() throws IOException {
+    // Room for exactly one blob.
+    DeltaFriendlyOldBlobCache cache = new DeltaFriendlyOldBlobCache(tempDir, OLD_CONTENT.length);
+    File blob1;
+    try (DeltaFriendlyOldBlobCache.Lease lease = cache.acquire(oldFile, oldFileDigest, PLAN)) {
+      blob1 = lease.getFile();
+    }
+    File blob2;
+    try (DeltaFriendlyOldBlobCache.Lease lease = cache.acquire(oldFile, OTHER_DIGEST, PLAN)) {
+      blob2 = lease.getFile();
+      // Both are on disk while the second is in use.
+      assertThat(blob1.exists()).isTrue();
+    }
+    assertThat(blob1.exists()).isFalse();
+    assertThat(blob2.exists()).isTrue();
+    assertThat(cache.getNumEntries()).isEqualTo(1);
+    cache.clear();
+  }
+
+  @Test
+  public void testRelease_NoRetention() throws IOException {
+    DeltaFriendlyOldBlobCache cache = new DeltaFriendlyOldBlobCache(tempDir, 0);
+    File blob;
+    try (DeltaFriendlyOldBlobCache.Lease lease1 = cache.acquire(oldFile, oldFileDigest, PLAN)) {
+      blob = lease1.getFile();
+      try (DeltaFriendlyOldBlobCache.Lease lease2 = cache.acquire(oldFile, oldFileDigest, PLAN)) {
+        assertThat(lease2.getFile()).isEqualTo(blob);
+      }
+      // Still in use through the first lease.
+      assertThat(blob.exists()).isTrue();
+    }
+    assertThat(blob.exists()).isFalse();
+    assertThat(cache.getNumEntries()).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstruct_NegativeSize() {
+    new DeltaFriendlyOldBlobCache(tempDir, -1);
+  }
+}
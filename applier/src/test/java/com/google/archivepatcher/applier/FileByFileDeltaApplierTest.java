@@ -15,6 +15,7 @@
 package com.google.archivepatcher.applier;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 
 import com.google.archivepatcher.shared.JreDeflateParameters;
@@ -29,8 +30,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -162,6 +169,30 @@ public class FileByFileDeltaApplierTest {
    * @throws IOException if anything goes wrong
    */
   private byte[] writePatch() throws IOException {
+    return writePatch(-1);
+  }
+
+  /**
+   * Write a patch that will convert the old file to the new file, and return it.
+   * @param newFileSize if non-negative, the new file size to record in the patch
+   * @return the patch, as a byte array
+   * @throws IOException if anything goes wrong
+   */
+  private byte[] writePatch(long newFileSize) throws IOException {
+    return writePatch(newFileSize, null, -1);
+  }
+
+  /**
+   * Write a patch that will convert the old file to the new file, and return it.
+   * @param newFileSize if non-negative, the new file size to record in the patch
+   * @param newFileDigest if non-null, the new file digest to record in the patch
+   * @param recompressionCrc32 if non-negative, the CRC32 of the recompression range to record in
+   * the patch
+   * @return the patch, as a byte array
+   * @throws IOException if anything goes wrong
+   */
+  private byte[] writePatch(long newFileSize, byte[] newFileDigest, long recompressionCrc32)
+      throws IOException {
     // The long type cast is to prevent int overflow.
     long deltaFriendlyOldFileSize =
         ((long) UNCOMPRESSED_HEADER.length)
@@ -176,8 +207,21 @@ public class FileByFileDeltaApplierTest {
     DataOutputStream dataOut = new DataOutputStream(buffer);
     // Now write a patch, independent of the PatchWrite code.
     dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
-    dataOut.writeInt(0); // Flags (reserved)
+    int flags = newFileSize >= 0 ? PatchConstants.PatchFlag.NEW_FILE_SIZE.mask : 0;
+    if (newFileDigest != null) {
+      flags |= PatchConstants.PatchFlag.NEW_FILE_DIGEST.mask;
+    }
+    if (recompressionCrc32 >= 0) {
+      flags |= PatchConstants.PatchFlag.RECOMPRESSION_CRC32.mask;
+    }
+    dataOut.writeInt(flags);
     dataOut.writeLong(deltaFriendlyOldFileSize);
+    if (newFileSize >= 0) {
+      dataOut.writeLong(newFileSize);
+    }
+    if (newFileDigest != null) {
+      dataOut.write(newFileDigest);
+    }
 
     // Write a single uncompress instruction to uncompress the compressed content in oldFile
     dataOut.writeInt(1); // num instructions that follow
@@ -193,6 +237,9 @@ public class FileByFileDeltaApplierTest {
     dataOut.write(PARAMS1.level);
     dataOut.write(PARAMS1.strategy);
     dataOut.write(PARAMS1.nowrap ? 1 : 0);
+    if (recompressionCrc32 >= 0) {
+      dataOut.writeInt((int) recompressionCrc32);
+    }
 
     // Write a delta. This test class uses its own delta applier to intercept and mangle the data.
     dataOut.writeInt(1);
@@ -270,4 +317,177 @@ public class FileByFileDeltaApplierTest {
     assertThat(actualNewBlobOut.toByteArray()).isEqualTo(expectedNewBytes);
     assertThat(closed.get()).isFalse();
   }
+
+  @Test
+  public void testApplyDelta_ToFile() throws IOException {
+    File newFile = File.createTempFile("fbfv1dat", "new");
+    try {
+      fakeApplier.applyDelta(
+          oldFile, new ByteArrayInputStream(writePatch(expectedNewBytes.length)), newFile, true);
+      assertThat(readFile(newFile)).isEqualTo(expectedNewBytes);
+    } finally {
+      newFile.delete();
+    }
+  }
+
+  @Test
+  public void testApplyDelta_ToFileWithoutNewFileSize() throws IOException {
+    File newFile = File.createTempFile("fbfv1dat", "new");
+    try {
+      fakeApplier.applyDelta(oldFile, new ByteArrayInputStream(patchBytes), newFile, false);
+      assertThat(readFile(newFile)).isEqualTo(expectedNewBytes);
+    } finally {
+      newFile.delete();
+    }
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testApplyDelta_ToFileWithWrongNewFileSize() throws IOException {
+    File newFile = File.createTempFile("fbfv1dat", "new");
+    try {
+      fakeApplier.applyDelta(
+          oldFile,
+          new ByteArrayInputStream(writePatch(expectedNewBytes.length + 1)),
+          newFile,
+          false);
+    } finally {
+      newFile.delete();
+    }
+  }
+
+  @Test
+  public void testApplyDelta_Verified() throws Exception {
+    FileByFileDeltaApplier verifyingApplier = newFakeApplier(true);
+    byte[] patch =
+        writePatch(
+            expectedNewBytes.length,
+            MessageDigest.getInstance(PatchConstants.NEW_FILE_DIGEST_ALGORITHM)
+                .digest(expectedNewBytes),
+            crc32(UNCOMPRESSED_NEW_CONTENT));
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    verifyingApplier.applyDelta(oldFile, new ByteArrayInputStream(patch), actualNewBlobOut);
+    assertThat(actualNewBlobOut.toByteArray()).isEqualTo(expectedNewBytes);
+  }
+
+  @Test(expected = VerificationException.class)
+  public void testApplyDelta_VerifiedWithBadDigest() throws IOException {
+    FileByFileDeltaApplier verifyingApplier = newFakeApplier(true);
+    byte[] patch = writePatch(-1, new byte[PatchConstants.NEW_FILE_DIGEST_LENGTH], -1);
+    verifyingApplier.applyDelta(
+        oldFile, new ByteArrayInputStream(patch), new ByteArrayOutputStream());
+  }
+
+  @Test(expected = VerificationException.class)
+  public void testApplyDelta_VerifiedWithBadCrc32() throws IOException {
+    FileByFileDeltaApplier verifyingApplier = newFakeApplier(true);
+    byte[] patch = writePatch(-1, null, crc32(UNCOMPRESSED_NEW_CONTENT) ^ 1);
+    verifyingApplier.applyDelta(
+        oldFile, new ByteArrayInputStream(patch), new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void testApplyDelta_UnverifiedIgnoresVerificationData() throws IOException {
+    long badCrc32 = crc32(UNCOMPRESSED_NEW_CONTENT) ^ 1;
+    byte[] patch = writePatch(-1, new byte[PatchConstants.NEW_FILE_DIGEST_LENGTH], badCrc32);
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    fakeApplier.applyDelta(oldFile, new ByteArrayInputStream(patch), actualNewBlobOut);
+    assertThat(actualNewBlobOut.toByteArray()).isEqualTo(expectedNewBytes);
+  }
+
+  @Test
+  public void testApplyDelta_WithProgressListener() throws IOException {
+    final List<ApplyProgressListener.Phase> phases = new ArrayList<ApplyProgressListener.Phase>();
+    final long[] lastProgress = new long[2];
+    ApplyProgressListener listener =
+        new ApplyProgressListener() {
+          @Override
+          public void onPhase(Phase phase) {
+            phases.add(phase);
+          }
+
+          @Override
+          public void onProgress(long deltaBytesConsumed, long newBytesWritten) {
+            lastProgress[0] = deltaBytesConsumed;
+            lastProgress[1] = newBytesWritten;
+          }
+        };
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    fakeApplier.applyDelta(
+        oldFile, new ByteArrayInputStream(patchBytes), actualNewBlobOut, listener);
+    assertThat(actualNewBlobOut.toByteArray()).isEqualTo(expectedNewBytes);
+    assertThat(phases)
+        .isEqualTo(
+            Arrays.asList(
+                ApplyProgressListener.Phase.EXPAND_OLD,
+                ApplyProgressListener.Phase.BSDIFF,
+                ApplyProgressListener.Phase.RECOMPRESS,
+                ApplyProgressListener.Phase.BSDIFF));
+    assertThat(lastProgress[0]).isEqualTo(BSDIFF_DELTA.length());
+    assertThat(lastProgress[1]).isEqualTo(expectedNewBytes.length);
+  }
+
+  @Test
+  public void testApplyDelta_WithApplyListener() throws IOException {
+    ApplyStats stats = new ApplyStats();
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    fakeApplier.applyDelta(
+        oldFile, new ByteArrayInputStream(patchBytes), actualNewBlobOut, stats);
+    assertThat(actualNewBlobOut.toByteArray()).isEqualTo(expectedNewBytes);
+    assertThat(stats.getBytesInflated()).isEqualTo(UNCOMPRESSED_OLD_CONTENT.length);
+    assertThat(stats.getBytesDeflated(PARAMS1.level)).isEqualTo(UNCOMPRESSED_NEW_CONTENT.length);
+    assertThat(stats.getRangesRecompressed()).isEqualTo(1);
+    for (ApplyProgressListener.Phase phase : ApplyProgressListener.Phase.values()) {
+      assertThat(stats.getPhaseNanos(phase)).isGreaterThan(0L);
+    }
+    // The fake delta applier does not process control entries.
+    assertThat(stats.getControlEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void testApplyDelta_Cancelled() throws IOException {
+    ApplyProgressListener listener =
+        new ApplyProgressListener() {
+          @Override
+          public void onPhase(Phase phase) {
+            if (phase == Phase.BSDIFF) {
+              Thread.currentThread().interrupt();
+            }
+          }
+
+          @Override
+          public void onProgress(long deltaBytesConsumed, long newBytesWritten) {}
+        };
+    try {
+      fakeApplier.applyDelta(
+          oldFile, new ByteArrayInputStream(patchBytes), new ByteArrayOutputStream(), listener);
+      assertWithMessage("Should have thrown an InterruptedIOException").fail();
+    } catch (InterruptedIOException expected) {
+      // Pass
+    } finally {
+      assertThat(Thread.interrupted()).isTrue();
+    }
+  }
+
+  private FileByFileDeltaApplier newFakeApplier(boolean verifyOutput) {
+    return new FileByFileDeltaApplier(tempDir, verifyOutput) {
+      @Override
+      protected DeltaApplier getDeltaApplier() {
+        return new FakeDeltaApplier();
+      }
+    };
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+    return crc32.getValue();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] result = new byte[(int) file.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      in.readFully(result);
+    }
+    return result;
+  }
 }
@@ -24,6 +24,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -165,4 +167,98 @@ public class PartiallyCompressingOutputStreamTest {
     stream.close();
     assertThat(outBuffer.toByteArray()).isEqualTo(expected);
   }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+    return crc32.getValue();
+  }
+
+  @Test
+  public void testWrite_VerifiedCrc32s() throws IOException {
+    stream =
+        new PartiallyCompressingOutputStream(
+            Arrays.asList(COMPRESS_RANGE_1, COMPRESS_RANGE_2),
+            outBuffer,
+            32768,
+            Arrays.asList(
+                crc32(ENTRY1.getUncompressedBinaryContent()),
+                crc32(ENTRY2.getUncompressedBinaryContent())));
+    byte[] input =
+        fuse(
+            PREAMBLE_BYTES,
+            ENTRY1.getUncompressedBinaryContent(),
+            GAP1_BYTES,
+            ENTRY2.getUncompressedBinaryContent());
+    byte[] expected =
+        fuse(
+            PREAMBLE_BYTES,
+            ENTRY1.getCompressedBinaryContent(),
+            GAP1_BYTES,
+            ENTRY2.getCompressedBinaryContent());
+    // Write one byte at a time so that the CRC32 is accumulated across many chunks.
+    for (int x = 0; x < input.length; x++) {
+      stream.write(input[x] & 0xff);
+    }
+    stream.flush();
+    assertThat(outBuffer.toByteArray()).isEqualTo(expected);
+  }
+
+  @Test(expected = VerificationException.class)
+  public void testWrite_MismatchedCrc32() throws IOException {
+    stream =
+        new PartiallyCompressingOutputStream(
+            Collections.singletonList(COMPRESS_RANGE_1),
+            outBuffer,
+            32768,
+            Collections.singletonList(crc32(ENTRY1.getUncompressedBinaryContent()) ^ 1));
+    stream.write(fuse(PREAMBLE_BYTES, ENTRY1.getUncompressedBinaryContent()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstruct_WrongNumberOfCrc32s() {
+    new PartiallyCompressingOutputStream(
+        Collections.singletonList(COMPRESS_RANGE_1),
+        outBuffer,
+        32768,
+        Collections.<Long>emptyList());
+  }
+
+  @Test
+  public void testIsCheckpointable() {
+    List<TypedRange<JreDeflateParameters>> ranges =
+        Arrays.asList(COMPRESS_RANGE_1, COMPRESS_RANGE_2);
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, 0)).isTrue();
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, OFFSET1)).isTrue();
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, OFFSET1 + 1)).isFalse();
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, OFFSET1 + LENGTH1))
+        .isTrue();
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, OFFSET2 + 1)).isFalse();
+    assertThat(PartiallyCompressingOutputStream.isCheckpointable(ranges, OFFSET2 + LENGTH2))
+        .isTrue();
+  }
+
+  @Test
+  public void testWrite_Resumed() throws IOException {
+    // Resume in the gap between the two ranges, as if the first stream had been checkpointed there.
+    stream =
+        new PartiallyCompressingOutputStream(
+            Arrays.asList(COMPRESS_RANGE_1, COMPRESS_RANGE_2),
+            outBuffer,
+            32768,
+            Arrays.asList(
+                crc32(ENTRY1.getUncompressedBinaryContent()) ^ 1,
+                crc32(ENTRY2.getUncompressedBinaryContent())),
+            OFFSET1 + LENGTH1);
+    stream.write(fuse(GAP1_BYTES, ENTRY2.getUncompressedBinaryContent()));
+    stream.flush();
+    assertThat(outBuffer.toByteArray())
+        .isEqualTo(fuse(GAP1_BYTES, ENTRY2.getCompressedBinaryContent()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstruct_ResumedInsideRange() {
+    new PartiallyCompressingOutputStream(
+        Collections.singletonList(COMPRESS_RANGE_1), outBuffer, 32768, null, OFFSET1 + 1);
+  }
 }
@@ -113,8 +113,25 @@ public class PatchReaderTest {
     boolean corruptDeltaFriendlyNewFileWorkRangeOffset = false;
     boolean corruptDeltaFriendlyNewFileWorkRangeLength = false;
     boolean corruptDeltaLength = false;
+    boolean corruptFlags = false;
+    boolean corruptNewFileSize = false;
   }
 
+  /**
+   * If non-negative, the new file size to record in the test patch.
+   */
+  private long newFileSize = -1;
+
+  /**
+   * If non-null, the new file digest to record in the test patch.
+   */
+  private byte[] newFileDigest = null;
+
+  /**
+   * If non-null, the recompression range CRC32s to record in the test patch.
+   */
+  private List<Long> recompressionCrc32s = null;
+
   @Before
   public void setup() {
     corruption = new Corruption();
@@ -139,9 +156,22 @@ public class PatchReaderTest {
         corruption.corruptIdentifier
             ? new byte[8]
             : PatchConstants.IDENTIFIER.getBytes("US-ASCII")); // header
-    patchOut.writeInt(0); // Flags, all reserved in v1
+    int flags = newFileSize >= 0 ? PatchConstants.PatchFlag.NEW_FILE_SIZE.mask : 0;
+    if (newFileDigest != null) {
+      flags |= PatchConstants.PatchFlag.NEW_FILE_DIGEST.mask;
+    }
+    if (recompressionCrc32s != null) {
+      flags |= PatchConstants.PatchFlag.RECOMPRESSION_CRC32.mask;
+    }
+    patchOut.writeInt(corruption.corruptFlags ? 0x80000000 : flags);
     patchOut.writeLong(
         corruption.corruptDeltaFriendlyOldFileSize ? -1 : DELTA_FRIENDLY_OLD_FILE_SIZE);
+    if (newFileSize >= 0) {
+      patchOut.writeLong(corruption.corruptNewFileSize ? -1 : newFileSize);
+    }
+    if (newFileDigest != null) {
+      patchOut.write(newFileDigest);
+    }
 
     // Write the uncompression instructions
     patchOut.writeInt(
@@ -170,6 +200,7 @@ public class PatchReaderTest {
     if (corruption.corruptDeltaFriendlyNewFileRecompressionInstructionOrder) {
       Collections.reverse(newDeltaFriendlyRecompressPlan);
     }
+    int rangeIndex = 0;
     for (TypedRange<JreDeflateParameters> range : newDeltaFriendlyRecompressPlan) {
       patchOut.writeLong(
           corruption.corruptDeltaFriendlyNewFileRecompressionInstructionOffset
@@ -187,6 +218,10 @@ public class PatchReaderTest {
       patchOut.write(corruption.corruptLevel ? 11 : range.getMetadata().level);
       patchOut.write(corruption.corruptStrategy ? 11 : range.getMetadata().strategy);
       patchOut.write(corruption.corruptNowrap ? 3 : (range.getMetadata().nowrap ? 1 : 0));
+      if (recompressionCrc32s != null) {
+        patchOut.writeInt((int) recompressionCrc32s.get(rangeIndex).longValue());
+      }
+      rangeIndex++;
     }
 
     // Delta section. V1 patches have exactly one delta entry and it is always mapped to the entire
@@ -230,6 +265,51 @@ public class PatchReaderTest {
     Assert.assertEquals(
         NEW_DELTA_FRIENDLY_RECOMPRESS_PLAN, plan.getDeltaFriendlyNewFileRecompressionPlan());
     Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+    Assert.assertEquals(-1, plan.getNewFileSize());
+    Assert.assertNull(plan.getNewFileDigest());
+    Assert.assertNull(plan.getDeltaFriendlyNewFileRecompressionCrc32s());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_WithNewFileSize() throws IOException {
+    newFileSize = BIG + 3L;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(BIG + 3L, plan.getNewFileSize());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, plan.getDeltaFriendlyOldFileSize());
+    Assert.assertEquals(OLD_DELTA_FRIENDLY_UNCOMPRESS_PLAN, plan.getOldFileUncompressionPlan());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_WithVerificationData() throws IOException {
+    newFileSize = 5L;
+    newFileDigest = new byte[PatchConstants.NEW_FILE_DIGEST_LENGTH];
+    for (int x = 0; x < newFileDigest.length; x++) {
+      newFileDigest[x] = (byte) x;
+    }
+    recompressionCrc32s = Arrays.asList(0xfedcba98L, 0x01234567L);
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(5L, plan.getNewFileSize());
+    Assert.assertArrayEquals(newFileDigest, plan.getNewFileDigest());
+    Assert.assertEquals(
+        NEW_DELTA_FRIENDLY_RECOMPRESS_PLAN, plan.getDeltaFriendlyNewFileRecompressionPlan());
+    Assert.assertEquals(recompressionCrc32s, plan.getDeltaFriendlyNewFileRecompressionCrc32s());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CorruptFlags() throws IOException {
+    corruption.corruptFlags = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CorruptNewFileSize() throws IOException {
+    newFileSize = 1L;
+    corruption.corruptNewFileSize = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
   }
 
   @Test(expected = PatchFormatException.class)
@@ -0,0 +1,255 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.archivepatcher.shared.PatchConstants;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ResumableDeltaApplier}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ResumableDeltaApplierTest {
+  // A real bsdiff patch from the bsdiff tests. The file-by-file patch wrapping it has no
+  // uncompression or recompression ranges, so the old file is also the delta-friendly old file.
+  private static final String OLD_DATA = "bsdiff/testdata/bsdifftest_minimal_blob_a.bin";
+  private static final String BSDIFF_PATCH = "bsdiff/testdata/bsdifftest_minimal_patch_a_to_b.bin";
+  private static final String NEW_DATA = "bsdiff/testdata/bsdifftest_minimal_blob_b.bin";
+  private static final String OTHER_OLD_DATA = "bsdiff/testdata/bsdifftest_internal_blob_a.bin";
+  private static final String OTHER_BSDIFF_PATCH =
+      "bsdiff/testdata/bsdifftest_internal_patch_a_to_b.bin";
+  private static final String OTHER_NEW_DATA = "bsdiff/testdata/bsdifftest_internal_blob_b.bin";
+  // The offset of the first diff byte in BSDIFF_PATCH: after the 16-byte signature, the 8-byte
+  // new size and the 24-byte first control entry.
+  private static final int FIRST_DIFF_BYTE_OFFSET = 48;
+
+  private File oldFile;
+  private File patchFile;
+  private File newFile;
+  private File workDir;
+  private byte[] expectedNewData;
+
+  /**
+   * Thrown to simulate the process dying right after a checkpoint.
+   */
+  private static class SimulatedCrashException extends IOException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    oldFile = File.createTempFile("resumable", "old");
+    writeFile(oldFile, readTestData(OLD_DATA));
+    expectedNewData = readTestData(NEW_DATA);
+    patchFile = File.createTempFile("resumable", "patch");
+    writeFile(patchFile, writePatch(readTestData(BSDIFF_PATCH), oldFile.length()));
+    newFile = File.createTempFile("resumable", "new");
+    workDir = File.createTempFile("resumable", "work");
+    workDir.delete();
+  }
+
+  @After
+  public void tearDown() {
+    ResumableDeltaApplier.clearCheckpoint(workDir);
+    workDir.delete();
+    oldFile.delete();
+    patchFile.delete();
+    newFile.delete();
+  }
+
+  @Test
+  public void testApplyDelta() throws IOException {
+    new ResumableDeltaApplier().applyDelta(oldFile, patchFile, newFile, workDir);
+    assertThat(readFile(newFile)).isEqualTo(expectedNewData);
+    assertThat(ResumableDeltaApplier.hasCheckpoint(workDir)).isFalse();
+  }
+
+  @Test
+  public void testApplyDelta_ResumeAfterCrash() throws IOException {
+    final long[] crashedAt = new long[1];
+    ResumableDeltaApplier crashingApplier =
+        new ResumableDeltaApplier(1000, false) {
+          @Override
+          void checkpointWritten(long newDataOffset) throws IOException {
+            crashedAt[0] = newDataOffset;
+            throw new SimulatedCrashException();
+          }
+        };
+    try {
+      crashingApplier.applyDelta(oldFile, patchFile, newFile, workDir);
+      assertWithMessage("Should have crashed").fail();
+    } catch (SimulatedCrashException expected) {
+      // Pass
+    }
+    assertThat(crashedAt[0]).isGreaterThan(0L);
+    assertThat(ResumableDeltaApplier.hasCheckpoint(workDir)).isTrue();
+
+    // Corrupt the output past the checkpoint; resuming must discard it.
+    try (FileOutputStream out = new FileOutputStream(newFile, true)) {
+      out.write(new byte[] {1, 2, 3});
+    }
+
+    final boolean[] resumed = new boolean[] {true};
+    ResumableDeltaApplier resumingApplier =
+        new ResumableDeltaApplier(1000, false) {
+          @Override
+          void checkpointWritten(long newDataOffset) {
+            // Checkpoints after a resume only ever move forward.
+            if (newDataOffset <= crashedAt[0]) {
+              resumed[0] = false;
+            }
+          }
+        };
+    resumingApplier.applyDelta(oldFile, patchFile, newFile, workDir);
+    assertThat(resumed[0]).isTrue();
+    assertThat(readFile(newFile)).isEqualTo(expectedNewData);
+    assertThat(ResumableDeltaApplier.hasCheckpoint(workDir)).isFalse();
+  }
+
+  @Test
+  public void testApplyDelta_IgnoresStaleCheckpoint() throws IOException {
+    ResumableDeltaApplier crashingApplier =
+        new ResumableDeltaApplier(1000, false) {
+          @Override
+          void checkpointWritten(long newDataOffset) throws IOException {
+            throw new SimulatedCrashException();
+          }
+        };
+    try {
+      crashingApplier.applyDelta(oldFile, patchFile, newFile, workDir);
+      assertWithMessage("Should have crashed").fail();
+    } catch (SimulatedCrashException expected) {
+      // Pass
+    }
+    // A different patch against a different old file must start from scratch rather than resume
+    // the checkpoint left behind in the work directory.
+    writeFile(oldFile, readTestData(OTHER_OLD_DATA));
+    writeFile(patchFile, writePatch(readTestData(OTHER_BSDIFF_PATCH), oldFile.length()));
+    new ResumableDeltaApplier(1000, false).applyDelta(oldFile, patchFile, newFile, workDir);
+    assertThat(readFile(newFile)).isEqualTo(readTestData(OTHER_NEW_DATA));
+  }
+
+  @Test
+  public void testApplyDelta_IgnoresCheckpointForSameSizeDifferentPatch() throws IOException {
+    crashAtFirstCheckpoint();
+    // Change the first byte of the first diff segment, which comes before the checkpoint: the
+    // patch keeps its size and its structure but produces a different new file.
+    byte[] otherBsdiffPatch = readTestData(BSDIFF_PATCH);
+    otherBsdiffPatch[FIRST_DIFF_BYTE_OFFSET] ^= 1;
+    byte[] otherPatch = writePatch(otherBsdiffPatch, oldFile.length());
+    assertThat((long) otherPatch.length).isEqualTo(patchFile.length());
+    writeFile(patchFile, otherPatch);
+    new ResumableDeltaApplier(1000, false).applyDelta(oldFile, patchFile, newFile, workDir);
+    byte[] expected = expectedNewData.clone();
+    expected[0] += 1;
+    assertThat(readFile(newFile)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testApplyDelta_IgnoresCheckpointForSameSizeDifferentOldBlob() throws IOException {
+    crashAtFirstCheckpoint();
+    byte[] otherOldData = readTestData(OLD_DATA);
+    otherOldData[0] += 1;
+    writeFile(oldFile, otherOldData);
+    new ResumableDeltaApplier(1000, false).applyDelta(oldFile, patchFile, newFile, workDir);
+    byte[] expected = expectedNewData.clone();
+    expected[0] += 1;
+    assertThat(readFile(newFile)).isEqualTo(expected);
+  }
+
+  /**
+   * Applies the patch until the first checkpoint has been written, then stops as if the process
+   * had died.
+   */
+  private void crashAtFirstCheckpoint() throws IOException {
+    ResumableDeltaApplier crashingApplier =
+        new ResumableDeltaApplier(1000, false) {
+          @Override
+          void checkpointWritten(long newDataOffset) throws IOException {
+            throw new SimulatedCrashException();
+          }
+        };
+    try {
+      crashingApplier.applyDelta(oldFile, patchFile, newFile, workDir);
+      assertWithMessage("Should have crashed").fail();
+    } catch (SimulatedCrashException expected) {
+      // Pass
+    }
+    assertThat(ResumableDeltaApplier.hasCheckpoint(workDir)).isTrue();
+  }
+
+  /**
+   * Wraps a bsdiff patch in a file-by-file patch with no uncompression or recompression ranges.
+   */
+  private static byte[] writePatch(byte[] bsdiffPatch, long oldSize) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(buffer);
+    dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
+    dataOut.writeInt(0); // flags
+    dataOut.writeLong(oldSize);
+    dataOut.writeInt(0); // no uncompression instructions
+    dataOut.writeInt(0); // no recompression instructions
+    dataOut.writeInt(1);
+    dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+    dataOut.writeLong(0);
+    dataOut.writeLong(oldSize);
+    dataOut.writeLong(0);
+    dataOut.writeLong(0); // length of the working range in new; unused by the applier
+    dataOut.writeLong(bsdiffPatch.length);
+    dataOut.write(bsdiffPatch);
+    dataOut.flush();
+    return buffer.toByteArray();
+  }
+
+  private byte[] readTestData(String path) throws IOException {
+    InputStream in = getClass().getResourceAsStream(path);
+    assertWithMessage("test data file doesn't exist: " + path).that(in).isNotNull();
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[32768];
+    int numRead;
+    while ((numRead = in.read(buffer)) >= 0) {
+      result.write(buffer, 0, numRead);
+    }
+    in.close();
+    return result.toByteArray();
+  }
+
+  private static void writeFile(File file, byte[] content) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(content);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] result = new byte[(int) file.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      in.readFully(result);
+    }
+    return result;
+  }
+}
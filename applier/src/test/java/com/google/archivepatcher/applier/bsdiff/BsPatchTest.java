@@ -17,6 +17,7 @@ package com.google.archivepatcher.applier.bsdiff;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
+import com.google.archivepatcher.applier.ApplyStats;
 import com.google.archivepatcher.applier.PatchFormatException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -24,8 +25,11 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -89,6 +93,29 @@ public class BsPatchTest {
     assertThat(actual).isEqualTo(expectedNewData);
   }
 
+  @Test
+  public void testTransformBytes_Cancelled() throws IOException {
+    final byte[] patchInput = "this is a sample string to read".getBytes("US-ASCII");
+    copyToOldFile("bsdifftest_partial_a.txt");
+    RandomAccessFile oldData = new RandomAccessFile(oldFile, "r");
+    Thread.currentThread().interrupt();
+    try {
+      BsPatch.transformBytes(
+          patchInput.length,
+          new ByteArrayInputStream(patchInput),
+          oldData,
+          new ByteArrayOutputStream(),
+          buffer1,
+          buffer2);
+      assertWithMessage("Should have thrown an InterruptedIOException").fail();
+    } catch (InterruptedIOException expected) {
+      // Pass
+    } finally {
+      // Clear the interrupt so that it doesn't leak into other tests.
+      assertThat(Thread.interrupted()).isTrue();
+    }
+  }
+
   @Test
   public void testTransformBytes_Error_NotEnoughBytes() throws IOException {
     // This test sets up a trivial 1-byte "patch" (addends) stream but then asks
@@ -155,6 +182,83 @@ public class BsPatchTest {
         "bsdifftest_minimal_blob_b.bin");
   }
 
+  @Test
+  public void testApplyPatch_Resume() throws Exception {
+    copyToOldFile("bsdifftest_minimal_blob_a.bin");
+    byte[] patch = readTestData("bsdifftest_minimal_patch_a_to_b.bin");
+    byte[] expectedNewData = readTestData("bsdifftest_minimal_blob_b.bin");
+    final List<BsPatch.Checkpoint> checkpoints = new ArrayList<BsPatch.Checkpoint>();
+    BsPatch.Checkpointer checkpointer =
+        new BsPatch.Checkpointer() {
+          @Override
+          public boolean shouldCheckpoint(long newDataOffset) {
+            return true;
+          }
+
+          @Override
+          public void checkpoint(BsPatch.Checkpoint checkpoint) {
+            checkpoints.add(checkpoint);
+          }
+        };
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(
+          oldData, newData, new ByteArrayInputStream(patch), null, null, checkpointer);
+    }
+    assertThat(newData.toByteArray()).isEqualTo(expectedNewData);
+    assertThat(checkpoints).isNotEmpty();
+
+    // Resume from each checkpoint in turn; each must produce exactly the rest of the new data.
+    for (BsPatch.Checkpoint checkpoint : checkpoints) {
+      ByteArrayOutputStream resumedNewData = new ByteArrayOutputStream();
+      ByteArrayInputStream patchIn = new ByteArrayInputStream(patch);
+      assertThat(patchIn.skip(checkpoint.patchOffset)).isEqualTo(checkpoint.patchOffset);
+      try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+        BsPatch.applyPatch(oldData, resumedNewData, patchIn, null, checkpoint, null);
+      }
+      int newDataOffset = (int) checkpoint.newDataOffset;
+      assertThat(resumedNewData.size()).isEqualTo(expectedNewData.length - newDataOffset);
+      assertThat(
+              regionEquals(
+                  resumedNewData.toByteArray(),
+                  0,
+                  expectedNewData,
+                  newDataOffset,
+                  resumedNewData.size()))
+          .isTrue();
+    }
+  }
+
+  @Test
+  public void testApplyPatch_WithListener() throws Exception {
+    copyToOldFile("bsdifftest_minimal_blob_a.bin");
+    byte[] patch = readTestData("bsdifftest_minimal_patch_a_to_b.bin");
+    final int[] numCheckpoints = new int[1];
+    BsPatch.Checkpointer checkpointer =
+        new BsPatch.Checkpointer() {
+          @Override
+          public boolean shouldCheckpoint(long newDataOffset) {
+            return true;
+          }
+
+          @Override
+          public void checkpoint(BsPatch.Checkpoint checkpoint) {
+            numCheckpoints[0]++;
+          }
+        };
+    ApplyStats stats = new ApplyStats();
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(
+          oldData, newData, new ByteArrayInputStream(patch), null, null, checkpointer, stats);
+    }
+    assertThat(newData.toByteArray()).isEqualTo(readTestData("bsdifftest_minimal_blob_b.bin"));
+    // A checkpoint is offered after every control entry but the last.
+    assertThat(stats.getControlEntries()).isEqualTo(numCheckpoints[0] + 1);
+    assertThat(stats.getOldDataSeeks()).isAtLeast(1L);
+    assertThat(stats.getOldDataSeeks()).isAtMost(stats.getControlEntries());
+  }
+
   @Test
   public void testApplyPatch_BadSignature() throws Exception {
     createEmptyOldFile(10);
@@ -368,6 +472,53 @@ public class BsPatchTest {
     }
   }
 
+  @Test
+  public void testApplyPatch_ExpectedFinalNewDataBytesWritten_Overflow() throws Exception {
+    createEmptyOldFile(10);
+    // A sum of the lengths that overflows must not pass for a small one.
+    InputStream patchIn =
+        makePatch(
+            SIGNATURE,
+            10, // newLength
+            5, // diffSegmentLength
+            Long.MAX_VALUE, // copySegmentLength
+            0, // offsetToNextInput
+            new byte[5] // addends
+            );
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), newData, patchIn);
+      assertWithMessage("Read patch with overflowing lengths").fail();
+    } catch (PatchFormatException expected) {
+      // No way to mock the internal logic, so resort to testing exception string for coverage
+      String actual = expected.getMessage();
+      assertThat(actual).isEqualTo("expectedFinalNewDataBytesWritten too large");
+    }
+  }
+
+  @Test
+  public void testApplyPatch_DiffSegmentPastEndOfOldData() throws Exception {
+    createEmptyOldFile(10);
+    InputStream patchIn =
+        makePatch(
+            SIGNATURE,
+            20, // newLength
+            11, // diffSegmentLength (longer than the old data)
+            0, // copySegmentLength
+            -11, // offsetToNextInput
+            new byte[11] // addends
+            );
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), newData, patchIn);
+      assertWithMessage("Read patch that reads past EOF in old file").fail();
+    } catch (PatchFormatException expected) {
+      // No way to mock the internal logic, so resort to testing exception string for coverage
+      String actual = expected.getMessage();
+      assertThat(actual).isEqualTo("diffSegmentLength past end of old data");
+    }
+  }
+
   @Test
   public void testApplyPatch_ExpectedFinalOldDataOffset_Negative() throws Exception {
     createEmptyOldFile(10);
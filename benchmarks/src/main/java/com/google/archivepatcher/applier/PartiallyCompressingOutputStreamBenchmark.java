@@ -0,0 +1,90 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.NullOutputStream;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the throughput of {@link PartiallyCompressingOutputStream} on a delta-friendly new
+ * blob in which every other range of {@link #rangeSize} bytes is recompressed, written in chunks
+ * of {@link #writeSize} bytes the way the bsdiff applier writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PartiallyCompressingOutputStreamBenchmark {
+  /** The size of the blob written per invocation. */
+  private static final int BLOB_SIZE = 8 * 1024 * 1024;
+
+  /** The size of the buffer the stream compresses through. */
+  private static final int COMPRESSION_BUFFER_SIZE = 32768;
+
+  @Param({"65536", "1048576"})
+  public int rangeSize;
+
+  @Param({"1", "16384"})
+  public int writeSize;
+
+  private byte[] blob;
+  private List<TypedRange<JreDeflateParameters>> compressionRanges;
+
+  @Setup
+  public void setUp() {
+    blob = BenchmarkData.blob(BenchmarkData.Kind.REPETITIVE, BLOB_SIZE, 1);
+    compressionRanges = new ArrayList<TypedRange<JreDeflateParameters>>();
+    JreDeflateParameters parameters = JreDeflateParameters.of(6, 0, true);
+    for (long offset = 0; offset + rangeSize <= BLOB_SIZE; offset += 2L * rangeSize) {
+      compressionRanges.add(
+          new TypedRange<JreDeflateParameters>(offset, rangeSize, parameters));
+    }
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    try (PartiallyCompressingOutputStream out =
+        new PartiallyCompressingOutputStream(
+            compressionRanges, new NullOutputStream(), COMPRESSION_BUFFER_SIZE)) {
+      if (writeSize == 1) {
+        for (byte b : blob) {
+          out.write(b);
+        }
+      } else {
+        for (int offset = 0; offset < blob.length; offset += writeSize) {
+          out.write(blob, offset, Math.min(writeSize, blob.length - offset));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.applier.bsdiff;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.generator.bsdiff.BsDiffPatchWriter;
+import com.google.archivepatcher.shared.NullOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks {@link BsPatch#applyPatch} with the old blob in a file, as in production. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BsPatchBenchmark {
+  @Param({"RANDOM", "REPETITIVE"})
+  public BenchmarkData.Kind kind;
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  private File oldFile;
+  private RandomAccessFile oldData;
+  private byte[] patch;
+  private long newSize;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    byte[] oldBytes = BenchmarkData.blob(kind, size, 1);
+    byte[] newBytes = BenchmarkData.mutate(oldBytes, size / 4096, 2);
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldBytes, newBytes, patchOut);
+    patch = patchOut.toByteArray();
+    newSize = newBytes.length;
+    oldFile = File.createTempFile("bspatch-benchmark", "old");
+    try (FileOutputStream out = new FileOutputStream(oldFile)) {
+      out.write(oldBytes);
+    }
+    oldData = new RandomAccessFile(oldFile, "r");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    oldData.close();
+    oldFile.delete();
+  }
+
+  @Benchmark
+  public void applyPatch() throws IOException {
+    BsPatch.applyPatch(
+        oldData, new NullOutputStream(), new ByteArrayInputStream(patch), newSize);
+  }
+}
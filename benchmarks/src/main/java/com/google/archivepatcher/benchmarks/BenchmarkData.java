@@ -0,0 +1,140 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Deterministic inputs for the benchmarks. Every method derives its output from the seed alone, so
+ * that numbers from different runs and machines are comparable without a downloaded corpus.
+ */
+public final class BenchmarkData {
+  /** The kinds of blob the benchmarks are run on. */
+  public enum Kind {
+    /** Uniformly random bytes: few matches, shallow suffix sorting. */
+    RANDOM,
+    /** Text built from a small vocabulary: many matches, deep suffix sorting. */
+    REPETITIVE
+  }
+
+  /** The modification time given to all generated zip entries. */
+  private static final long ZIP_ENTRY_TIME = 1262304000000L; // 2010-01-01T00:00:00Z
+
+  private static final String[] WORDS = {
+    "archive", "patcher", "delta", "file", "by", "the", "a", "zip", "entry", "deflate", "old",
+    "new", "match", "suffix", "sort", "bytes", "of", "to", "and", "compressed", "central",
+    "directory"
+  };
+
+  private BenchmarkData() {
+    // Static utility class.
+  }
+
+  /**
+   * Returns a blob of the specified kind.
+   *
+   * @param kind the kind of blob
+   * @param size the size of the blob, in bytes
+   * @param seed the seed to derive the blob from
+   * @return the blob
+   */
+  public static byte[] blob(Kind kind, int size, long seed) {
+    Random random = new Random(seed);
+    byte[] result = new byte[size];
+    switch (kind) {
+      case RANDOM:
+        random.nextBytes(result);
+        break;
+      case REPETITIVE:
+        int position = 0;
+        while (position < size) {
+          byte[] word = WORDS[random.nextInt(WORDS.length)].getBytes();
+          for (int index = 0; index < word.length && position < size; index++) {
+            result[position++] = word[index];
+          }
+          if (position < size) {
+            result[position++] = (byte) (random.nextInt(8) == 0 ? '\n' : ' ');
+          }
+        }
+        break;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a modified copy of a blob, the way a new version of a file differs from the old one:
+   * runs of bytes are changed, inserted and deleted at pseudo-random positions.
+   *
+   * @param original the blob to modify
+   * @param numEdits the number of edits to make
+   * @param seed the seed to derive the edits from
+   * @return the modified copy
+   */
+  public static byte[] mutate(byte[] original, int numEdits, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream result = new ByteArrayOutputStream(original.length + numEdits * 16);
+    int averageGap = Math.max(1, original.length / (numEdits + 1));
+    int position = 0;
+    while (position < original.length) {
+      int gap = Math.min(original.length - position, 1 + random.nextInt(2 * averageGap));
+      result.write(original, position, gap);
+      position += gap;
+      int runLength = 1 + random.nextInt(32);
+      switch (random.nextInt(3)) {
+        case 0: // Change a run.
+          position += runLength;
+          // Fall through.
+        case 1: // Insert a run.
+          for (int index = 0; index < runLength; index++) {
+            result.write(random.nextInt(256));
+          }
+          break;
+        default: // Delete a run.
+          position += runLength;
+          break;
+      }
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * Returns a zip archive with the specified number of deflated entries.
+   *
+   * @param numEntries the number of entries
+   * @param entrySize the uncompressed size of each entry, in bytes
+   * @param level the deflate level to compress the entries with
+   * @param seed the seed to derive the content of the entries from
+   * @return the archive
+   * @throws IOException if unable to write the archive
+   */
+  public static byte[] zip(int numEntries, int entrySize, int level, long seed)
+      throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(result)) {
+      out.setLevel(level);
+      for (int index = 0; index < numEntries; index++) {
+        ZipEntry entry = new ZipEntry("dir" + (index % 16) + "/entry" + index + ".txt");
+        entry.setTime(ZIP_ENTRY_TIME);
+        out.putNextEntry(entry);
+        out.write(blob(Kind.REPETITIVE, entrySize, seed + index));
+        out.closeEntry();
+      }
+    }
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.benchmarks;
+
+import com.google.archivepatcher.applier.FileByFileDeltaApplier;
+import com.google.archivepatcher.generator.FileByFileDeltaGenerator;
+import com.google.archivepatcher.generator.PreDiffPlanEntryModifier;
+import com.google.archivepatcher.shared.NullOutputStream;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks end-to-end generation and application of File-by-File patches between two generated
+ * archives. The archives are built from {@link UnitTestZipArchive} entries, whose content is large
+ * enough for divination to succeed: some entries are unchanged, some are changed and some are
+ * compressed at a different level, and each archive has entries the other does not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileByFileBenchmark {
+  @Param({"16", "128"})
+  public int numEntries;
+
+  private File tempDir;
+  private File oldFile;
+  private File newFile;
+  private byte[] patch;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    List<UnitTestZipEntry> oldEntries = new ArrayList<UnitTestZipEntry>();
+    List<UnitTestZipEntry> newEntries = new ArrayList<UnitTestZipEntry>();
+    for (int index = 0; index < numEntries; index++) {
+      String path = "entry" + index + ".txt";
+      int level = 1 + index % 9;
+      if (index % 8 != 7) {
+        oldEntries.add(UnitTestZipArchive.makeUnitTestZipEntry(path, level, "v1 " + path, null));
+      }
+      switch (index % 4) {
+        case 0: // Unchanged.
+          newEntries.add(UnitTestZipArchive.makeUnitTestZipEntry(path, level, "v1 " + path, null));
+          break;
+        case 1: // Changed.
+          newEntries.add(UnitTestZipArchive.makeUnitTestZipEntry(path, level, "v2 " + path, null));
+          break;
+        case 2: // Recompressed.
+          newEntries.add(
+              UnitTestZipArchive.makeUnitTestZipEntry(path, 10 - level, "v1 " + path, null));
+          break;
+        default: // Deleted.
+          break;
+      }
+    }
+    tempDir = File.createTempFile("file-by-file-benchmark", "dir");
+    tempDir.delete();
+    tempDir.mkdirs();
+    oldFile = write(UnitTestZipArchive.makeTestZip(oldEntries), "old");
+    newFile = write(UnitTestZipArchive.makeTestZip(newEntries), "new");
+    patch = generate();
+  }
+
+  @TearDown
+  public void tearDown() {
+    oldFile.delete();
+    newFile.delete();
+    tempDir.delete();
+  }
+
+  @Benchmark
+  public byte[] generate() throws IOException, InterruptedException {
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    new FileByFileDeltaGenerator(
+            Collections.<PreDiffPlanEntryModifier>emptyList(),
+            EnumSet.of(DeltaFormat.BSDIFF),
+            /* useNativeBsDiff= */ false)
+        .generateDelta(oldFile, newFile, patchOut);
+    return patchOut.toByteArray();
+  }
+
+  @Benchmark
+  public void apply() throws IOException {
+    new FileByFileDeltaApplier(tempDir)
+        .applyDelta(oldFile, new ByteArrayInputStream(patch), new NullOutputStream());
+  }
+
+  private File write(byte[] data, String suffix) throws IOException {
+    File file = new File(tempDir, "archive." + suffix);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+    return file;
+  }
+}
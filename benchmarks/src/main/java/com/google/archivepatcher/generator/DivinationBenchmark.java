@@ -0,0 +1,74 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link DefaultDeflateCompressionDiviner#divineDeflateParametersForEntry(ByteSource)}.
+ * The cost depends heavily on how many trials are needed before the parameters are found, so the
+ * entry is compressed at a low, the default and the highest level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DivinationBenchmark {
+  @Param({"1", "6", "9"})
+  public int level;
+
+  @Param({"65536", "1048576"})
+  public int size;
+
+  private byte[] compressedData;
+
+  @Setup
+  public void setUp() throws IOException {
+    Deflater deflater = new Deflater(level, true);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+      out.write(BenchmarkData.blob(BenchmarkData.Kind.REPETITIVE, size, 1));
+    } finally {
+      deflater.end();
+    }
+    compressedData = compressed.toByteArray();
+  }
+
+  @Benchmark
+  public JreDeflateParameters divineDeflateParametersForEntry() throws IOException {
+    try (ByteSource entry = ByteSource.wrap(compressedData)) {
+      return DefaultDeflateCompressionDiviner.divineDeflateParametersForEntry(entry);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks {@link MinimalZipArchive#listEntries(ByteSource)} on archives with many entries. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZipListingBenchmark {
+  @Param({"1000", "20000"})
+  public int numEntries;
+
+  private ByteSource archive;
+
+  @Setup
+  public void setUp() throws IOException {
+    archive = ByteSource.wrap(BenchmarkData.zip(numEntries, 256, Deflater.DEFAULT_COMPRESSION, 1));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    archive.close();
+  }
+
+  @Benchmark
+  public List<MinimalZipEntry> listEntries() throws IOException {
+    return MinimalZipArchive.listEntries(archive);
+  }
+}
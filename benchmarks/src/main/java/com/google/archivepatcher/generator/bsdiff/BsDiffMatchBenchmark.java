@@ -0,0 +1,100 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link BsDiff#searchForMatch} and a full pass of {@link BsDiffMatcher} over a new blob
+ * that is a lightly edited copy of the old one. The suffix array is built once, outside the
+ * measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BsDiffMatchBenchmark {
+  /** The number of evenly spaced positions of the new blob that are searched per invocation. */
+  private static final int NUM_SEARCHES = 1024;
+
+  @Param({"RANDOM", "REPETITIVE"})
+  public BenchmarkData.Kind kind;
+
+  @Param({"1048576"})
+  public int size;
+
+  private ByteSource oldData;
+  private ByteSource newData;
+  private RandomAccessObject groupArray;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    byte[] oldBytes = BenchmarkData.blob(kind, size, 1);
+    oldData = ByteSource.wrap(oldBytes);
+    newData = ByteSource.wrap(BenchmarkData.mutate(oldBytes, size / 4096, 2));
+    groupArray =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory())
+            .suffixSort(oldData);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    groupArray.close();
+    oldData.close();
+    newData.close();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long searchForMatch() throws IOException {
+    long totalLength = 0;
+    int newLength = (int) newData.length();
+    for (int index = 0; index < NUM_SEARCHES; index++) {
+      int newStart = (int) ((long) newLength * index / NUM_SEARCHES);
+      totalLength +=
+          BsDiff.searchForMatch(groupArray, oldData, newData, newStart, 0, (int) oldData.length())
+              .length;
+    }
+    return totalLength;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long matcher() throws IOException, InterruptedException {
+    Matcher matcher =
+        new BsDiffMatcher(
+            oldData, newData, groupArray, BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH);
+    long numMatches = 0;
+    while (matcher.next().didFindMatch) {
+      numMatches++;
+    }
+    return numMatches;
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.benchmarks.BenchmarkData;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks {@link DivSuffixSorter#suffixSort(ByteSource)}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SuffixSortBenchmark {
+  @Param({"RANDOM", "REPETITIVE"})
+  public BenchmarkData.Kind kind;
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  private byte[] data;
+
+  @Setup
+  public void setUp() {
+    data = BenchmarkData.blob(kind, size, 1);
+  }
+
+  @Benchmark
+  public long suffixSort() throws IOException, InterruptedException {
+    DivSuffixSorter sorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    try (ByteSource input = ByteSource.wrap(data);
+        RandomAccessObject groupArray = sorter.suffixSort(input)) {
+      groupArray.seekToIntAligned(size / 2);
+      return groupArray.readInt();
+    }
+  }
+}
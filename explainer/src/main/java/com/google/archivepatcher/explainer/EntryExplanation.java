@@ -40,6 +40,11 @@ public class EntryExplanation {
    */
   private final long compressedSizeInPatch;
 
+  /**
+   * The projected time needed to recompress the entry when the patch is applied, in nanoseconds.
+   */
+  private final long projectedRecompressionNanos;
+
   /**
    * Construct a new explanation for an old entry.
    *
@@ -52,8 +57,31 @@ public class EntryExplanation {
       ByteArrayHolder path,
       long compressedSizeInPatch,
       UncompressionOptionExplanation explanation) {
+    return forOld(path, compressedSizeInPatch, explanation, 0L);
+  }
+
+  /**
+   * Construct a new explanation for an old entry that will be recompressed when the patch is
+   * applied.
+   *
+   * @param path the path of the entry in the new archive
+   * @param compressedSizeInPatch the <strong>approximate</strong> size of the entry in the patch
+   *     stream
+   * @param explanation the explanation that the entry is included
+   * @param projectedRecompressionNanos the projected time needed to recompress the entry when the
+   *     patch is applied, in nanoseconds, or zero if it is not recompressed
+   */
+  public static EntryExplanation forOld(
+      ByteArrayHolder path,
+      long compressedSizeInPatch,
+      UncompressionOptionExplanation explanation,
+      long projectedRecompressionNanos) {
     return new EntryExplanation(
-        path, /* isNew= */ false, Optional.of(explanation), compressedSizeInPatch);
+        path,
+        /* isNew= */ false,
+        Optional.of(explanation),
+        compressedSizeInPatch,
+        projectedRecompressionNanos);
   }
 
   /**
@@ -64,7 +92,8 @@ public class EntryExplanation {
    *     stream
    */
   public static EntryExplanation forNew(ByteArrayHolder path, long compressedSizeInPatch) {
-    return new EntryExplanation(path, /* isNew= */ true, Optional.empty(), compressedSizeInPatch);
+    return new EntryExplanation(
+        path, /* isNew= */ true, Optional.empty(), compressedSizeInPatch, 0L);
   }
 
   /**
@@ -76,17 +105,21 @@ public class EntryExplanation {
    *     included
    * @param compressedSizeInPatch the <strong>approximate</strong> size of the entry in the patch
    *     stream
+   * @param projectedRecompressionNanos the projected time needed to recompress the entry when the
+   *     patch is applied, in nanoseconds
    */
   private EntryExplanation(
       ByteArrayHolder path,
       boolean isNew,
       Optional<UncompressionOptionExplanation> explanationIncludedIfNotNew,
-      long compressedSizeInPatch) {
+      long compressedSizeInPatch,
+      long projectedRecompressionNanos) {
     super();
     this.path = path;
     this.isNew = isNew;
     this.explanationIncludedIfNotNew = explanationIncludedIfNotNew;
     this.compressedSizeInPatch = compressedSizeInPatch;
+    this.projectedRecompressionNanos = projectedRecompressionNanos;
   }
 
   /**
@@ -124,4 +157,15 @@ public class EntryExplanation {
   public long getCompressedSizeInPatch() {
     return compressedSizeInPatch;
   }
+
+  /**
+   * Returns the projected time needed to recompress the entry when the patch is applied, in
+   * nanoseconds. This is zero if the entry is not recompressed, or if the explanation was produced
+   * without a {@link com.google.archivepatcher.generator.RecompressionCostModel}.
+   *
+   * @return as described
+   */
+  public long getProjectedRecompressionNanos() {
+    return projectedRecompressionNanos;
+  }
 }
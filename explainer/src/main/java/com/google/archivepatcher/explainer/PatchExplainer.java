@@ -16,64 +16,102 @@ package com.google.archivepatcher.explainer;
 
 import com.google.archivepatcher.generator.ByteArrayHolder;
 import com.google.archivepatcher.generator.DeltaGenerator;
-import com.google.archivepatcher.generator.MinimalZipArchive;
-import com.google.archivepatcher.generator.MinimalZipEntry;
 import com.google.archivepatcher.generator.PreDiffExecutor;
 import com.google.archivepatcher.generator.PreDiffPlan;
 import com.google.archivepatcher.generator.PreDiffPlanEntry;
 import com.google.archivepatcher.generator.PreDiffPlanEntryModifier;
+import com.google.archivepatcher.generator.RecompressionCostModel;
 import com.google.archivepatcher.generator.TempFileHolder;
 import com.google.archivepatcher.generator.UncompressionOptionExplanation;
+import com.google.archivepatcher.generator.ZipEntryTable;
 import com.google.archivepatcher.shared.Compressor;
 import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.DeflateUncompressor;
+import com.google.archivepatcher.shared.NullOutputStream;
 import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 import com.google.archivepatcher.shared.Uncompressor;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Explains where the data in a patch would come from. */
+/**
+ * Explains where the data in a patch would come from.
+ *
+ * <p>The cost of each entry is analyzed independently, so the entries can be analyzed on several
+ * threads at once (see {@link #PatchExplainer(CompressorFactory, DeltaGenerator,
+ * RecompressionCostModel, int)}). The explanations are always returned in the same order,
+ * however many threads are used.
+ *
+ * <p>Entries whose old and new content are both no larger than a threshold are expanded, diffed
+ * and compressed in memory, in buffers that each thread reuses from entry to entry; only larger
+ * entries are spilled to temporary files.
+ */
 // TODO: Add explicit logic for renames
 public class PatchExplainer {
   /**
-   * A stream that discards everything written to it.
+   * The default size, in bytes, up to which the content of an entry is analyzed in memory.
    */
-  private static class NullOutputStream extends OutputStream {
-    @Override
-    public void write(int b) throws IOException {
-      // Nothing.
-    }
-
-    @Override
-    public void write(byte[] b) throws IOException {
-      // Nothing.
-    }
+  public static final long DEFAULT_IN_MEMORY_THRESHOLD = 1024 * 1024;
 
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-      // Nothing.
-    }
+  /**
+   * Creates the {@link Compressor}s used to establish compressed patch size estimates, one for
+   * each thread that analyzes entries.
+   */
+  public interface CompressorFactory {
+    /**
+     * Returns a compressor for the exclusive use of one thread.
+     * @return the compressor
+     */
+    Compressor newCompressor();
   }
 
   /**
-   * The compressor to use for compressing patch content.
+   * The factory for the compressors to use for compressing patch content.
    */
-  private final Compressor compressor;
+  private final CompressorFactory compressorFactory;
 
   /**
    * The delta generator to use for generating uncompressed patch content.
    */
   private final DeltaGenerator deltaGenerator;
 
+  /**
+   * The delta generator to use for entries analyzed in memory, which keeps its working storage in
+   * memory too (see {@link DeltaGenerator#withInMemoryStorage()}).
+   */
+  private final DeltaGenerator inMemoryDeltaGenerator;
+
+  /**
+   * The model used to project recompression time at patch-apply time, or null.
+   */
+  private final RecompressionCostModel recompressionCostModel;
+
+  /**
+   * The maximum number of threads to analyze entries on.
+   */
+  private final int numThreads;
+
+  /**
+   * The size up to which the old and new content of an entry are analyzed in memory.
+   */
+  private final long inMemoryThreshold;
+
   /**
    * Construct a new patch explainer that will use the specified {@link Compressor} to establish
    * compressed patch size estimates and the specified {@link DeltaGenerator} to generate the deltas
@@ -82,8 +120,89 @@ public class PatchExplainer {
    * @param deltaGenerator the delta generator to use
    */
   public PatchExplainer(Compressor compressor, DeltaGenerator deltaGenerator) {
-    this.compressor = compressor;
+    this(compressor, deltaGenerator, null);
+  }
+
+  /**
+   * Construct a new patch explainer that additionally projects the time needed to recompress each
+   * entry when the patch is applied; see {@link EntryExplanation#getProjectedRecompressionNanos()}.
+   * @param compressor the compressor to use
+   * @param deltaGenerator the delta generator to use
+   * @param recompressionCostModel the model used to project recompression time, typically created
+   *     from a calibration of the devices that will apply the patch; if null, no time is projected
+   */
+  public PatchExplainer(
+      final Compressor compressor,
+      DeltaGenerator deltaGenerator,
+      RecompressionCostModel recompressionCostModel) {
+    this(
+        new CompressorFactory() {
+          @Override
+          public Compressor newCompressor() {
+            return compressor;
+          }
+        },
+        deltaGenerator,
+        recompressionCostModel,
+        1);
+  }
+
+  /**
+   * Construct a new patch explainer that analyzes the entries of an archive on up to the specified
+   * number of threads. Each thread has its own compressor, uncompressor and temporary files; the
+   * delta generator is shared, so it must be safe to use from several threads at once if numThreads
+   * is greater than 1 ({@link com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator} is).
+   * @param compressorFactory the factory for the compressors to use
+   * @param deltaGenerator the delta generator to use
+   * @param recompressionCostModel the model used to project recompression time, or null
+   * @param numThreads the maximum number of threads to analyze entries on; must be at least 1. If
+   *     1, all entries are analyzed on the calling thread.
+   */
+  public PatchExplainer(
+      CompressorFactory compressorFactory,
+      DeltaGenerator deltaGenerator,
+      RecompressionCostModel recompressionCostModel,
+      int numThreads) {
+    this(
+        compressorFactory,
+        deltaGenerator,
+        recompressionCostModel,
+        numThreads,
+        DEFAULT_IN_MEMORY_THRESHOLD);
+  }
+
+  /**
+   * Like {@link #PatchExplainer(CompressorFactory, DeltaGenerator, RecompressionCostModel, int)},
+   * but with the specified threshold for analyzing entries in memory. Each thread may hold about
+   * three times the threshold in memory.
+   * @param compressorFactory the factory for the compressors to use
+   * @param deltaGenerator the delta generator to use
+   * @param recompressionCostModel the model used to project recompression time, or null
+   * @param numThreads the maximum number of threads to analyze entries on; must be at least 1
+   * @param inMemoryThreshold the size in bytes up to which the old and new content of an entry
+   *     (after any uncompression) are analyzed in memory; larger entries are analyzed in temporary
+   *     files. Zero analyzes all entries in temporary files.
+   */
+  public PatchExplainer(
+      CompressorFactory compressorFactory,
+      DeltaGenerator deltaGenerator,
+      RecompressionCostModel recompressionCostModel,
+      int numThreads,
+      long inMemoryThreshold) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+    }
+    if (inMemoryThreshold < 0) {
+      throw new IllegalArgumentException(
+          "inMemoryThreshold cannot be negative: " + inMemoryThreshold);
+    }
+    this.compressorFactory = compressorFactory;
     this.deltaGenerator = deltaGenerator;
+    this.inMemoryDeltaGenerator =
+        deltaGenerator == null ? null : deltaGenerator.withInMemoryStorage();
+    this.recompressionCostModel = recompressionCostModel;
+    this.numThreads = numThreads;
+    this.inMemoryThreshold = inMemoryThreshold;
   }
 
   /**
@@ -103,23 +222,20 @@ public class PatchExplainer {
     if (preDiffPlanEntryModifiers == null) {
       throw new IllegalArgumentException("preDiffPlanEntryModifiers cannot be null");
     }
-    List<EntryExplanation> result = new ArrayList<>();
 
     // Isolate entries that are only found in the new archive.
-    Map<ByteArrayHolder, MinimalZipEntry> allOldEntries = mapEntries(oldFile);
-    Map<ByteArrayHolder, MinimalZipEntry> allNewEntries = mapEntries(newFile);
-    Map<ByteArrayHolder, MinimalZipEntry> completelyNewEntries = new HashMap<>(allNewEntries);
-    completelyNewEntries.keySet().removeAll(allOldEntries.keySet());
-
-    // Now calculate the costs for the new files and track them in the explanations returned.
-    for (Map.Entry<ByteArrayHolder, MinimalZipEntry> entry : completelyNewEntries.entrySet()) {
-      long compressedSize = getCompressedSize(newFile, entry.getValue(), compressor);
-      result.add(
-          EntryExplanation.forNew(
-              new ByteArrayHolder(entry.getValue().getFileNameBytes()), compressedSize));
+    ZipEntryTable allOldEntries = ZipEntryTable.read(oldFile);
+    ZipEntryTable allNewEntries = ZipEntryTable.read(newFile);
+    List<Integer> newOnlyIndices = new ArrayList<>();
+    for (int newIndex = 0; newIndex < allNewEntries.getNumEntries(); newIndex++) {
+      if (allNewEntries.indexOf(allNewEntries, newIndex) != newIndex
+          || allOldEntries.indexOf(allNewEntries, newIndex) != ZipEntryTable.NOT_FOUND) {
+        // Either a later entry has the same path, or the path is also in the old archive.
+        continue;
+      }
+      newOnlyIndices.add(newIndex);
     }
 
-    Uncompressor uncompressor = new DeflateUncompressor();
     PreDiffPlan plan;
     try (ByteSource oldBlob = ByteSource.fromFile(oldFile);
         ByteSource newBlob = ByteSource.fromFile(newFile)) {
@@ -130,95 +246,302 @@ public class PatchExplainer {
               .build();
       plan = executor.prepareForDiffing();
     }
-    try (TempFileHolder oldTemp = new TempFileHolder();
-        TempFileHolder newTemp = new TempFileHolder();
-        TempFileHolder deltaTemp = new TempFileHolder()) {
-      for (PreDiffPlanEntry preDiffPlanEntry : plan.getPreDiffPlanEntries()) {
-
-        // Short-circuit for identical resources.
-        if (preDiffPlanEntry.getUncompressionOptionExplanation()
-            == UncompressionOptionExplanation.COMPRESSED_BYTES_IDENTICAL) {
-          // Patch size should be effectively zero.
-          result.add(
-              EntryExplanation.forOld(
-                  new ByteArrayHolder(preDiffPlanEntry.getNewEntry().getFileNameBytes()),
-                  /* compressedSizeInPatch= */ 0L,
-                  preDiffPlanEntry.getUncompressionOptionExplanation()));
-          continue;
-        }
 
-        if (preDiffPlanEntry.getOldEntry().getCrc32OfUncompressedData()
-                == preDiffPlanEntry.getNewEntry().getCrc32OfUncompressedData()
-            && preDiffPlanEntry.getOldEntry().getUncompressedSize()
-                == preDiffPlanEntry.getNewEntry().getUncompressedSize()) {
-          // If the path, size and CRC32 are the same assume it's a match. Patch size should be
-          // effectively zero.
-          result.add(
-              EntryExplanation.forOld(
-                  new ByteArrayHolder(preDiffPlanEntry.getNewEntry().getFileNameBytes()),
-                  /* compressedSizeInPatch= */ 0L,
-                  preDiffPlanEntry.getUncompressionOptionExplanation()));
-          continue;
+    // The costs for the new files come first, then those for the entries in the plan.
+    final ExplanationWork work =
+        new ExplanationWork(
+            oldFile, newFile, allNewEntries, newOnlyIndices, plan.getPreDiffPlanEntries());
+    int numWorkers = Math.min(numThreads, work.explanations.length);
+    if (numWorkers <= 1) {
+      work.work();
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+      try {
+        List<Future<Void>> futures = new ArrayList<>(numWorkers);
+        for (int worker = 0; worker < numWorkers; worker++) {
+          futures.add(
+              executor.submit(
+                  new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                      work.work();
+                      return null;
+                    }
+                  }));
         }
-
-        // Everything past here is a resource that has changed in some way.
-        // NB: This magically takes care of UncompressionOptionExplanation.RESOURCE_CONSTRAINED. The
-        // logic
-        // below will keep the RESOURCE_CONSTRAINED entries compressed, running the delta on their
-        // compressed contents, and the resulting explanation will preserve the RESOURCE_CONSTRAINED
-        // reason. This will correctly attribute the size of these blobs to the RESOURCE_CONSTRAINED
-        // category.
-
-        // Get the inputs ready for running a delta: uncompress/copy the *old* content as necessary.
-        long oldOffset = preDiffPlanEntry.getOldEntry().getFileOffsetOfCompressedData();
-        long oldLength = preDiffPlanEntry.getOldEntry().getCompressedSize();
-        if (preDiffPlanEntry.getZipEntryUncompressionOption().uncompressOldEntry) {
-          uncompress(oldFile, oldOffset, oldLength, uncompressor, oldTemp.file);
-        } else {
-          extractCopy(oldFile, oldOffset, oldLength, oldTemp.file);
+        for (Future<Void> future : futures) {
+          waitFor(future);
         }
+      } finally {
+        // Only does anything if a worker failed, in which case the remaining work is abandoned.
+        executor.shutdownNow();
+      }
+    }
+    return Arrays.asList(work.explanations);
+  }
 
-        // Get the inputs ready for running a delta: uncompress/copy the *new* content as necessary.
-        long newOffset = preDiffPlanEntry.getNewEntry().getFileOffsetOfCompressedData();
-        long newLength = preDiffPlanEntry.getNewEntry().getCompressedSize();
-        if (preDiffPlanEntry.getZipEntryUncompressionOption().uncompressNewEntry) {
-          uncompress(newFile, newOffset, newLength, uncompressor, newTemp.file);
-        } else {
-          extractCopy(newFile, newOffset, newLength, newTemp.file);
-        }
+  /**
+   * The entries of one explanation, analyzed by any number of workers that each take the next
+   * entry that has not been taken yet. Each explanation is stored at the index of its entry, so the
+   * order of the results does not depend on how the work was scheduled.
+   */
+  private class ExplanationWork {
+    private final File oldFile;
+    private final File newFile;
+    private final ZipEntryTable allNewEntries;
+    private final List<Integer> newOnlyIndices;
+    private final List<PreDiffPlanEntry> preDiffPlanEntries;
+
+    /** The explanations, indexed like the new-only entries followed by the plan entries. */
+    private final EntryExplanation[] explanations;
+
+    /** The index of the next entry to analyze. */
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    ExplanationWork(
+        File oldFile,
+        File newFile,
+        ZipEntryTable allNewEntries,
+        List<Integer> newOnlyIndices,
+        List<PreDiffPlanEntry> preDiffPlanEntries) {
+      this.oldFile = oldFile;
+      this.newFile = newFile;
+      this.allNewEntries = allNewEntries;
+      this.newOnlyIndices = newOnlyIndices;
+      this.preDiffPlanEntries = preDiffPlanEntries;
+      this.explanations =
+          new EntryExplanation[newOnlyIndices.size() + preDiffPlanEntries.size()];
+    }
 
-        // File is actually changed (or transitioned between compressed and uncompressed forms).
-        // Generate and compress a delta.
-        try (FileOutputStream deltaOut = new FileOutputStream(deltaTemp.file);
-            BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaOut)) {
-          deltaGenerator.generateDelta(oldTemp.file, newTemp.file, bufferedDeltaOut);
-          bufferedDeltaOut.flush();
-          long compressedDeltaSize =
-              getCompressedSize(deltaTemp.file, 0, deltaTemp.file.length(), compressor);
-          result.add(
-              EntryExplanation.forOld(
-                  new ByteArrayHolder(preDiffPlanEntry.getOldEntry().getFileNameBytes()),
-                  compressedDeltaSize,
-                  preDiffPlanEntry.getUncompressionOptionExplanation()));
+    /**
+     * Analyzes entries until there are none left, with resources of its own.
+     * @throws IOException if unable to read data
+     * @throws InterruptedException if any thread interrupts this thread
+     */
+    void work() throws IOException, InterruptedException {
+      Compressor compressor = compressorFactory.newCompressor();
+      Uncompressor uncompressor = new DeflateUncompressor();
+      ReusableBuffers buffers = new ReusableBuffers();
+      try (TempFiles tempFiles = new TempFiles()) {
+        int index;
+        while ((index = nextIndex.getAndIncrement()) < explanations.length) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          if (index < newOnlyIndices.size()) {
+            int newIndex = newOnlyIndices.get(index);
+            long compressedSize =
+                getCompressedSize(
+                    newFile,
+                    allNewEntries.getFileOffsetOfCompressedData(newIndex),
+                    allNewEntries.getCompressedSize(newIndex),
+                    compressor);
+            explanations[index] =
+                EntryExplanation.forNew(
+                    new ByteArrayHolder(allNewEntries.getFileNameBytes(newIndex)),
+                    compressedSize);
+          } else {
+            explanations[index] =
+                explain(
+                    preDiffPlanEntries.get(index - newOnlyIndices.size()),
+                    oldFile,
+                    newFile,
+                    compressor,
+                    uncompressor,
+                    buffers,
+                    tempFiles);
+          }
         }
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        // Stop the other workers from taking more entries.
+        nextIndex.set(explanations.length);
+        throw e;
       }
     }
+  }
+
+  /**
+   * Explains the cost of one entry of the plan.
+   * @param preDiffPlanEntry the entry
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param compressor the compressor to use
+   * @param uncompressor the uncompressor to use
+   * @param buffers the buffers to analyze small entries in
+   * @param tempFiles the temporary files to analyze large entries in
+   * @return the explanation
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private EntryExplanation explain(
+      PreDiffPlanEntry preDiffPlanEntry,
+      File oldFile,
+      File newFile,
+      Compressor compressor,
+      Uncompressor uncompressor,
+      ReusableBuffers buffers,
+      TempFiles tempFiles)
+      throws IOException, InterruptedException {
+    long projectedRecompressionNanos = projectRecompressionNanos(preDiffPlanEntry);
+
+    // Short-circuit for identical resources.
+    if (preDiffPlanEntry.getUncompressionOptionExplanation()
+        == UncompressionOptionExplanation.COMPRESSED_BYTES_IDENTICAL) {
+      // Patch size should be effectively zero.
+      return EntryExplanation.forOld(
+          new ByteArrayHolder(preDiffPlanEntry.getNewEntry().getFileNameBytes()),
+          /* compressedSizeInPatch= */ 0L,
+          preDiffPlanEntry.getUncompressionOptionExplanation());
+    }
+
+    if (preDiffPlanEntry.getOldEntry().getCrc32OfUncompressedData()
+            == preDiffPlanEntry.getNewEntry().getCrc32OfUncompressedData()
+        && preDiffPlanEntry.getOldEntry().getUncompressedSize()
+            == preDiffPlanEntry.getNewEntry().getUncompressedSize()) {
+      // If the path, size and CRC32 are the same assume it's a match. Patch size should be
+      // effectively zero.
+      return EntryExplanation.forOld(
+          new ByteArrayHolder(preDiffPlanEntry.getNewEntry().getFileNameBytes()),
+          /* compressedSizeInPatch= */ 0L,
+          preDiffPlanEntry.getUncompressionOptionExplanation(),
+          projectedRecompressionNanos);
+    }
+
+    // Everything past here is a resource that has changed in some way.
+    // NB: This magically takes care of UncompressionOptionExplanation.RESOURCE_CONSTRAINED. The
+    // logic
+    // below will keep the RESOURCE_CONSTRAINED entries compressed, running the delta on their
+    // compressed contents, and the resulting explanation will preserve the RESOURCE_CONSTRAINED
+    // reason. This will correctly attribute the size of these blobs to the RESOURCE_CONSTRAINED
+    // category.
+
+    boolean uncompressOld = preDiffPlanEntry.getZipEntryUncompressionOption().uncompressOldEntry;
+    boolean uncompressNew = preDiffPlanEntry.getZipEntryUncompressionOption().uncompressNewEntry;
+    long oldOffset = preDiffPlanEntry.getOldEntry().getFileOffsetOfCompressedData();
+    long oldLength = preDiffPlanEntry.getOldEntry().getCompressedSize();
+    long newOffset = preDiffPlanEntry.getNewEntry().getFileOffsetOfCompressedData();
+    long newLength = preDiffPlanEntry.getNewEntry().getCompressedSize();
+    long compressedDeltaSize;
+    if ((uncompressOld ? preDiffPlanEntry.getOldEntry().getUncompressedSize() : oldLength)
+            <= inMemoryThreshold
+        && (uncompressNew ? preDiffPlanEntry.getNewEntry().getUncompressedSize() : newLength)
+            <= inMemoryThreshold) {
+      // Small enough to expand, diff and compress without touching the file system.
+      buffers.reset();
+      readInto(
+          oldFile, oldOffset, oldLength, uncompressOld ? uncompressor : null, buffers.oldContent);
+      readInto(
+          newFile, newOffset, newLength, uncompressNew ? uncompressor : null, buffers.newContent);
+      inMemoryDeltaGenerator.generateDelta(
+          buffers.oldContent.asByteSource(), buffers.newContent.asByteSource(), buffers.delta);
+      compressedDeltaSize = getCompressedSize(buffers.delta.asInputStream(), compressor);
+    } else {
+      compressedDeltaSize =
+          explainInFiles(
+              preDiffPlanEntry,
+              oldFile,
+              newFile,
+              compressor,
+              uncompressor,
+              tempFiles);
+    }
+    return EntryExplanation.forOld(
+        new ByteArrayHolder(preDiffPlanEntry.getOldEntry().getFileNameBytes()),
+        compressedDeltaSize,
+        preDiffPlanEntry.getUncompressionOptionExplanation(),
+        projectedRecompressionNanos);
+  }
+
+  /**
+   * Computes the compressed size of the delta for a changed entry, using temporary files for the
+   * old and new content and the delta.
+   * @param preDiffPlanEntry the entry
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param compressor the compressor to use
+   * @param uncompressor the uncompressor to use
+   * @param tempFiles the temporary files to hold the old and new content and the delta
+   * @return the compressed size of the delta
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private long explainInFiles(
+      PreDiffPlanEntry preDiffPlanEntry,
+      File oldFile,
+      File newFile,
+      Compressor compressor,
+      Uncompressor uncompressor,
+      TempFiles tempFiles)
+      throws IOException, InterruptedException {
+    tempFiles.create();
+    File oldTemp = tempFiles.oldTemp.file;
+    File newTemp = tempFiles.newTemp.file;
+    File deltaTemp = tempFiles.deltaTemp.file;
+    // Get the inputs ready for running a delta: uncompress/copy the *old* content as necessary.
+    long oldOffset = preDiffPlanEntry.getOldEntry().getFileOffsetOfCompressedData();
+    long oldLength = preDiffPlanEntry.getOldEntry().getCompressedSize();
+    if (preDiffPlanEntry.getZipEntryUncompressionOption().uncompressOldEntry) {
+      uncompress(oldFile, oldOffset, oldLength, uncompressor, oldTemp);
+    } else {
+      extractCopy(oldFile, oldOffset, oldLength, oldTemp);
+    }
 
-    return result;
+    // Get the inputs ready for running a delta: uncompress/copy the *new* content as necessary.
+    long newOffset = preDiffPlanEntry.getNewEntry().getFileOffsetOfCompressedData();
+    long newLength = preDiffPlanEntry.getNewEntry().getCompressedSize();
+    if (preDiffPlanEntry.getZipEntryUncompressionOption().uncompressNewEntry) {
+      uncompress(newFile, newOffset, newLength, uncompressor, newTemp);
+    } else {
+      extractCopy(newFile, newOffset, newLength, newTemp);
+    }
+
+    // File is actually changed (or transitioned between compressed and uncompressed forms).
+    // Generate and compress a delta.
+    try (FileOutputStream deltaOut = new FileOutputStream(deltaTemp);
+        BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaOut)) {
+      deltaGenerator.generateDelta(oldTemp, newTemp, bufferedDeltaOut);
+      bufferedDeltaOut.flush();
+    }
+    return getCompressedSize(deltaTemp, 0, deltaTemp.length(), compressor);
   }
 
   /**
-   * Determines the size of the entry if it were compressed with the specified compressor.
-   * @param file the file to read from
-   * @param entry the entry to estimate the size of
-   * @param compressor the compressor to use for compressing
-   * @return the size of the entry if compressed with the specified compressor
-   * @throws IOException if anything goes wrong
+   * Waits for a worker, rethrowing whatever it threw.
+   * @param future the future of the worker
+   * @throws IOException if the worker was unable to read data
+   * @throws InterruptedException if interrupted while waiting, or if the worker was
    */
-  private long getCompressedSize(File file, MinimalZipEntry entry, Compressor compressor)
-      throws IOException {
-    return getCompressedSize(
-        file, entry.getFileOffsetOfCompressedData(), entry.getCompressedSize(), compressor);
+  private static void waitFor(Future<Void> future) throws IOException, InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Unexpected failure", cause);
+    }
+  }
+
+  /**
+   * Projects the time needed to recompress the new entry when the patch is applied.
+   * @param preDiffPlanEntry the entry
+   * @return the time in nanoseconds, or zero if the entry is not recompressed or there is no model
+   */
+  private long projectRecompressionNanos(PreDiffPlanEntry preDiffPlanEntry) {
+    if (recompressionCostModel == null
+        || !preDiffPlanEntry.getZipEntryUncompressionOption().uncompressNewEntry) {
+      return 0L;
+    }
+    return recompressionCostModel.estimateRecompressionNanos(
+        preDiffPlanEntry.getNewJreDeflateParameters(),
+        preDiffPlanEntry.getNewEntry().getUncompressedSize());
   }
 
   /**
@@ -241,6 +564,32 @@ public class PatchExplainer {
     }
   }
 
+  /**
+   * Reads the specified content into a buffer, uncompressing it if an uncompressor is given.
+   * @param source the file to read from
+   * @param offset the offset at which to start reading
+   * @param length the number of bytes to read
+   * @param uncompressor the uncompressor to use, or null to copy the bytes as they are
+   * @param dest the buffer to write the bytes to
+   * @throws IOException if anything goes wrong
+   */
+  private static void readInto(
+      File source, long offset, long length, Uncompressor uncompressor, ReusableBuffer dest)
+      throws IOException {
+    try (RandomAccessFileInputStream rafis =
+        new RandomAccessFileInputStream(source, offset, length)) {
+      if (uncompressor != null) {
+        uncompressor.uncompress(rafis, dest);
+      } else {
+        byte[] buffer = new byte[32768];
+        int numRead = 0;
+        while ((numRead = rafis.read(buffer)) >= 0) {
+          dest.write(buffer, 0, numRead);
+        }
+      }
+    }
+  }
+
   /**
    * Extract a copy of the specified content to a new file.
    * @param source the file to read from
@@ -274,28 +623,91 @@ public class PatchExplainer {
    */
   private long getCompressedSize(File file, long offset, long length, Compressor compressor)
       throws IOException {
+    try (RandomAccessFileInputStream rafis =
+        new RandomAccessFileInputStream(file, offset, length)) {
+      return getCompressedSize(rafis, compressor);
+    }
+  }
+
+  /**
+   * Compresses everything in the given stream and returns the compressed size.
+   * @param in the stream to read from
+   * @param compressor the compressor to use for compressing
+   * @return the size of the content if compressed with the specified compressor
+   * @throws IOException if anything goes wrong
+   */
+  private static long getCompressedSize(InputStream in, Compressor compressor) throws IOException {
     try (OutputStream sink = new NullOutputStream();
-        CountingOutputStream counter = new CountingOutputStream(sink);
-        RandomAccessFileInputStream rafis = new RandomAccessFileInputStream(file, offset, length)) {
-      compressor.compress(rafis, counter);
+        CountingOutputStream counter = new CountingOutputStream(sink)) {
+      compressor.compress(in, counter);
       counter.flush();
       return counter.getNumBytesWritten();
     }
   }
 
   /**
-   * Convert a file into a map whose keys are {@link ByteArrayHolder} objects containing the entry
-   * paths and whose values are the corresponding {@link MinimalZipEntry} objects.
-   * @param file the file to scan, which must be a valid zip archive
-   * @return the mapping, as described
-   * @throws IOException if anything goes wrong
+   * A {@link ByteArrayOutputStream} whose storage is kept across {@link #reset()}s and can be read
+   * without copying.
+   */
+  private static class ReusableBuffer extends ByteArrayOutputStream {
+    /**
+     * Returns the bytes written since the last reset as a {@link ByteSource}, without copying.
+     * @return as described
+     */
+    ByteSource asByteSource() {
+      return ByteSource.wrap(buf, 0, count);
+    }
+
+    /**
+     * Returns a stream of the bytes written since the last reset, without copying.
+     * @return as described
+     */
+    InputStream asInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  /**
+   * The temporary files that one thread analyzes large entries in, reused from entry to entry and
+   * only created once a large entry is found.
    */
-  private static Map<ByteArrayHolder, MinimalZipEntry> mapEntries(File file) throws IOException {
-    List<MinimalZipEntry> allEntries = MinimalZipArchive.listEntries(file);
-    Map<ByteArrayHolder, MinimalZipEntry> result = new HashMap<>(allEntries.size());
-    for (MinimalZipEntry entry : allEntries) {
-      result.put(new ByteArrayHolder(entry.getFileNameBytes()), entry);
+  private static class TempFiles implements Closeable {
+    TempFileHolder oldTemp;
+    TempFileHolder newTemp;
+    TempFileHolder deltaTemp;
+
+    void create() throws IOException {
+      if (oldTemp == null) {
+        oldTemp = new TempFileHolder();
+      }
+      if (newTemp == null) {
+        newTemp = new TempFileHolder();
+      }
+      if (deltaTemp == null) {
+        deltaTemp = new TempFileHolder();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (TempFileHolder holder : new TempFileHolder[] {oldTemp, newTemp, deltaTemp}) {
+        if (holder != null) {
+          holder.close();
+        }
+      }
+    }
+  }
+
+  /** The buffers that one thread analyzes small entries in, reused from entry to entry. */
+  private static class ReusableBuffers {
+    final ReusableBuffer oldContent = new ReusableBuffer();
+    final ReusableBuffer newContent = new ReusableBuffer();
+    final ReusableBuffer delta = new ReusableBuffer();
+
+    void reset() {
+      oldContent.reset();
+      newContent.reset();
+      delta.reset();
     }
-    return result;
   }
 }
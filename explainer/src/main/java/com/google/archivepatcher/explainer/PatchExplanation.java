@@ -79,6 +79,11 @@ public class PatchExplanation {
    */
   private final long estimatedResourceConstrainedSize;
 
+  /**
+   * The sum total of the projected times needed to recompress entries when the patch is applied.
+   */
+  private final long projectedRecompressionNanos;
+
   /**
    * Constructs a new aggregate explanation for the specified {@link EntryExplanation}s.
    * @param entryExplanations the explanations for all of the individual entries in the patch
@@ -91,7 +96,9 @@ public class PatchExplanation {
     long tempEstimatedNewSize = 0;
     long tempEstimatedChangedSize = 0;
     long tempEstimatedResourceConstrainedSize = 0;
+    long tempProjectedRecompressionNanos = 0;
     for (EntryExplanation explanation : entryExplanations) {
+      tempProjectedRecompressionNanos += explanation.getProjectedRecompressionNanos();
       if (explanation.isNew()) {
         tempEstimatedNewSize += explanation.getCompressedSizeInPatch();
         tempExplainedAsNew.add(explanation);
@@ -120,6 +127,7 @@ public class PatchExplanation {
     estimatedNewSize = tempEstimatedNewSize;
     estimatedChangedSize = tempEstimatedChangedSize;
     estimatedResourceConstrainedSize = tempEstimatedResourceConstrainedSize;
+    projectedRecompressionNanos = tempProjectedRecompressionNanos;
   }
 
   /**
@@ -192,12 +200,27 @@ public class PatchExplanation {
     return estimatedResourceConstrainedSize;
   }
 
+  /**
+   * Returns the projected time needed to apply the patch, in milliseconds. Only recompression is
+   * projected, since it dominates the apply time of most patches; the time needed to read the old
+   * file, apply the delta and write the new file is not included. This is zero unless the entry
+   * explanations were produced with a {@link
+   * com.google.archivepatcher.generator.RecompressionCostModel}.
+   *
+   * @return as described
+   */
+  public long getProjectedApplyTimeMillis() {
+    return (projectedRecompressionNanos + 999999L) / 1000000L;
+  }
+
   /**
    * Writes a JSON representation of the data to the specified {@link PrintWriter}. The data has the
    * following form: <code>
    * <br>{
    * <br>&nbsp;&nbsp;estimatedNewSize = &lt;number&gt;,
    * <br>&nbsp;&nbsp;estimatedChangedSize = &lt;number&gt;,
+   * <br>&nbsp;&nbsp;estimatedResourceConstrainedSize = &lt;number&gt;,
+   * <br>&nbsp;&nbsp;projectedApplyTimeMillis = &lt;number&gt;,
    * <br>&nbsp;&nbsp;explainedAsNew = [
    * <br>&nbsp;&nbsp;&nbsp;&nbsp;&lt;entry_list&gt;
    * <br>&nbsp;&nbsp;],
@@ -227,6 +250,10 @@ public class PatchExplanation {
         .append("  estimatedResourceConstrainedSize: ")
         .append(getEstimatedResourceConstrainedSize())
         .append(",\n");
+    buffer
+        .append("  projectedApplyTimeMillis: ")
+        .append(getProjectedApplyTimeMillis())
+        .append(",\n");
     dumpJson(getExplainedAsNew(), "explainedAsNew", buffer, "  ");
     buffer.append(",\n");
     dumpJson(getExplainedAsChanged(), "explainedAsChanged", buffer, "  ");
@@ -18,11 +18,16 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.archivepatcher.generator.ByteArrayHolder;
 import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationListener;
 import com.google.archivepatcher.generator.MinimalZipArchive;
 import com.google.archivepatcher.generator.MinimalZipEntry;
+import com.google.archivepatcher.generator.RecompressionCostModel;
 import com.google.archivepatcher.generator.TotalRecompressionLimiter;
 import com.google.archivepatcher.generator.UncompressionOptionExplanation;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
 import com.google.archivepatcher.shared.Compressor;
+import com.google.archivepatcher.shared.DeflateCompressor;
+import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
@@ -34,8 +39,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -125,6 +133,51 @@ public class PatchExplainerTest {
     }
   }
 
+  /**
+   * A "delta generator" that counts the deltas generated from files and from byte sources, writing
+   * a fixed string for each. {@link #withInMemoryStorage()} returns the specified generator, so
+   * that the two can be told apart.
+   */
+  private static class RecordingDeltaGenerator extends DeltaGenerator {
+    static final String OUTPUT = "recordingdeltagenerator output";
+    private final DeltaGenerator inMemoryStorageGenerator;
+    int fileDeltas;
+    int byteSourceDeltas;
+
+    RecordingDeltaGenerator(DeltaGenerator inMemoryStorageGenerator) {
+      this.inMemoryStorageGenerator = inMemoryStorageGenerator;
+    }
+
+    @Override
+    public synchronized void generateDelta(
+        File oldBlob, File newBlob, OutputStream deltaOut, GenerationListener listener)
+        throws IOException {
+      fileDeltas++;
+      deltaOut.write(OUTPUT.getBytes("US-ASCII"));
+    }
+
+    @Override
+    public synchronized void generateDelta(
+        ByteSource oldBlob, ByteSource newBlob, OutputStream deltaOut) throws IOException {
+      byteSourceDeltas++;
+      deltaOut.write(OUTPUT.getBytes("US-ASCII"));
+    }
+
+    @Override
+    public DeltaGenerator withInMemoryStorage() {
+      return inMemoryStorageGenerator != null ? inMemoryStorageGenerator : this;
+    }
+  }
+
+  /** Creates a new {@link DeflateCompressor} for each thread. */
+  private static final PatchExplainer.CompressorFactory DEFLATE_COMPRESSOR_FACTORY =
+      new PatchExplainer.CompressorFactory() {
+        @Override
+        public Compressor newCompressor() {
+          return new DeflateCompressor();
+        }
+      };
+
   /**
    * Temporary old file.
    */
@@ -247,6 +300,31 @@ public class PatchExplainerTest {
     checkExplanation(explanations, expected);
   }
 
+  @Test
+  public void testExplainPatch_ProjectsRecompressionTime() throws Exception {
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A1_LEVEL_6));
+    byte[] newBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A1_LEVEL_9));
+    save(oldBytes, oldFile);
+    save(newBytes, newFile);
+    // Recompression costs as many nanoseconds per byte as the compression level.
+    Map<JreDeflateParameters, Double> costs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      costs.put(parameters, (double) parameters.level);
+    }
+    PatchExplainer explainer = new PatchExplainer(null, null, new RecompressionCostModel(costs));
+    List<EntryExplanation> explanations = explainer.explainPatch(oldFile, newFile);
+    EntryExplanation expected =
+        EntryExplanation.forOld(
+            path(ENTRY_A1_LEVEL_9),
+            /* compressedSizeInPatch= */ 0,
+            UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED,
+            9L * ENTRY_A1_LEVEL_9.getUncompressedBinaryContent().length);
+    checkExplanation(explanations, expected);
+    assertThat(new PatchExplanation(explanations).getProjectedApplyTimeMillis())
+        .isEqualTo((expected.getProjectedRecompressionNanos() + 999999L) / 1000000L);
+  }
+
   @Test
   public void testExplainPatch_BothEntriesUncompressed_BytesUnchanged() throws Exception {
     byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A1_STORED));
@@ -381,6 +459,115 @@ public class PatchExplainerTest {
     checkExplanation(explanations, expected);
   }
 
+  @Test
+  public void testExplainPatch_Parallel() throws Exception {
+    saveManyEntries();
+    List<EntryExplanation> serial =
+        new PatchExplainer(DEFLATE_COMPRESSOR_FACTORY, new BsDiffDeltaGenerator(), null, 1)
+            .explainPatch(oldFile, newFile);
+    List<EntryExplanation> parallel =
+        new PatchExplainer(DEFLATE_COMPRESSOR_FACTORY, new BsDiffDeltaGenerator(), null, 4)
+            .explainPatch(oldFile, newFile);
+    assertThat(serial).hasSize(21);
+    assertThat(serial.get(0).getPath()).isEqualTo(path(ENTRY_B_LEVEL_6));
+    checkExplanations(parallel, serial);
+  }
+
+  @Test
+  public void testExplainPatch_InMemoryMatchesFiles() throws Exception {
+    saveManyEntries();
+    List<EntryExplanation> inFiles =
+        new PatchExplainer(DEFLATE_COMPRESSOR_FACTORY, new BsDiffDeltaGenerator(), null, 1, 0)
+            .explainPatch(oldFile, newFile);
+    List<EntryExplanation> inMemory =
+        new PatchExplainer(
+                DEFLATE_COMPRESSOR_FACTORY,
+                new BsDiffDeltaGenerator(),
+                null,
+                1,
+                PatchExplainer.DEFAULT_IN_MEMORY_THRESHOLD)
+            .explainPatch(oldFile, newFile);
+    checkExplanations(inMemory, inFiles);
+  }
+
+  @Test
+  public void testExplainPatch_SmallEntriesUseInMemoryGenerator() throws Exception {
+    saveManyEntries();
+    RecordingDeltaGenerator inMemory = new RecordingDeltaGenerator(null);
+    RecordingDeltaGenerator inFiles = new RecordingDeltaGenerator(inMemory);
+    new PatchExplainer(
+            DEFLATE_COMPRESSOR_FACTORY,
+            inFiles,
+            null,
+            1,
+            PatchExplainer.DEFAULT_IN_MEMORY_THRESHOLD)
+        .explainPatch(oldFile, newFile);
+    assertThat(inMemory.byteSourceDeltas).isGreaterThan(0);
+    assertThat(inMemory.fileDeltas).isEqualTo(0);
+    assertThat(inFiles.byteSourceDeltas).isEqualTo(0);
+    assertThat(inFiles.fileDeltas).isEqualTo(0);
+  }
+
+  @Test
+  public void testExplainPatch_ZeroInMemoryThresholdUsesFiles() throws Exception {
+    saveManyEntries();
+    RecordingDeltaGenerator inMemory = new RecordingDeltaGenerator(null);
+    RecordingDeltaGenerator inFiles = new RecordingDeltaGenerator(inMemory);
+    new PatchExplainer(DEFLATE_COMPRESSOR_FACTORY, inFiles, null, 1, 0)
+        .explainPatch(oldFile, newFile);
+    assertThat(inFiles.fileDeltas).isGreaterThan(0);
+    assertThat(inFiles.byteSourceDeltas).isEqualTo(0);
+    assertThat(inMemory.byteSourceDeltas).isEqualTo(0);
+    assertThat(inMemory.fileDeltas).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadNumThreads() {
+    new PatchExplainer((PatchExplainer.CompressorFactory) null, null, null, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeInMemoryThreshold() {
+    new PatchExplainer((PatchExplainer.CompressorFactory) null, null, null, 1, -1);
+  }
+
+  /**
+   * Saves old and new archives with many entries: in the new archive, most entries are changed,
+   * every third one is unchanged and one is new.
+   * @throws IOException if saving fails
+   */
+  private void saveManyEntries() throws IOException {
+    List<UnitTestZipEntry> oldEntries = new ArrayList<>();
+    List<UnitTestZipEntry> newEntries = new ArrayList<>();
+    for (int x = 0; x < 20; x++) {
+      oldEntries.add(UnitTestZipArchive.makeUnitTestZipEntry("/path " + x, 6, "old " + x, null));
+      String newContent = (x % 3 == 0 ? "old " : "new ") + x;
+      newEntries.add(UnitTestZipArchive.makeUnitTestZipEntry("/path " + x, 6, newContent, null));
+    }
+    newEntries.add(ENTRY_B_LEVEL_6);
+    save(UnitTestZipArchive.makeTestZip(oldEntries), oldFile);
+    save(UnitTestZipArchive.makeTestZip(newEntries), newFile);
+  }
+
+  /**
+   * Check that the specified lists of explanations match, in order.
+   * @param explanations the explanations created by the {@link PatchExplainer}
+   * @param expected the expected explanations
+   */
+  private void checkExplanations(
+      List<EntryExplanation> explanations, List<EntryExplanation> expected) {
+    assertThat(explanations).hasSize(expected.size());
+    for (int x = 0; x < expected.size(); x++) {
+      EntryExplanation actual = explanations.get(x);
+      assertThat(actual.getPath()).isEqualTo(expected.get(x).getPath());
+      assertThat(actual.isNew()).isEqualTo(expected.get(x).isNew());
+      assertThat(actual.getExplanationIncludedIfNotNew())
+          .isEqualTo(expected.get(x).getExplanationIncludedIfNotNew());
+      assertThat(actual.getCompressedSizeInPatch())
+          .isEqualTo(expected.get(x).getCompressedSizeInPatch());
+    }
+  }
+
   /**
    * Check that the specified list of explanations has exactly one explanation and that it matches
    * the expected explanation.
@@ -395,6 +582,8 @@ public class PatchExplainerTest {
     assertThat(actual.getExplanationIncludedIfNotNew())
         .isEqualTo(expected.getExplanationIncludedIfNotNew());
     assertThat(actual.getCompressedSizeInPatch()).isEqualTo(expected.getCompressedSizeInPatch());
+    assertThat(actual.getProjectedRecompressionNanos())
+        .isEqualTo(expected.getProjectedRecompressionNanos());
   }
 
   /**
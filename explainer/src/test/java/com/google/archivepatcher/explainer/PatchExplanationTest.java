@@ -129,6 +129,22 @@ public final class PatchExplanationTest {
     assertThat(patchExplanation.getEstimatedChangedSize()).isEqualTo(EXPECTED_CHANGED_SIZE);
   }
 
+  @Test
+  public void testGetProjectedApplyTimeMillis() throws Exception {
+    ByteArrayHolder path = new ByteArrayHolder("/path".getBytes("UTF-8"));
+    PatchExplanation patchExplanation =
+        new PatchExplanation(
+            Arrays.asList(
+                EXPLANATION_1_NEW,
+                EntryExplanation.forOld(
+                    path, 10, UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED, 1500000L),
+                EntryExplanation.forOld(
+                    path, 0, UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED, 1L)));
+    // Partial milliseconds are rounded up.
+    assertThat(patchExplanation.getProjectedApplyTimeMillis()).isEqualTo(2);
+    assertThat(new PatchExplanation(ALL_EXPLANATIONS).getProjectedApplyTimeMillis()).isEqualTo(0);
+  }
+
   @Test
   public void testToJson() throws IOException {
     // We lack a proper JSON parser in the vanilla JRE so short of string matching there's nothing
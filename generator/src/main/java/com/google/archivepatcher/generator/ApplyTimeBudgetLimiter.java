@@ -0,0 +1,219 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Limits the projected time needed to recompress entries while applying a patch via the {@link
+ * PreDiffPlanEntryModifier} interface. This expresses the constraint "the patch must apply in under
+ * N seconds on the reference hardware" more directly than {@link TotalRecompressionLimiter}, which
+ * limits bytes: recompressing a megabyte at level 9 can take several times as long as at level 1.
+ *
+ * <p>The time to recompress each entry is projected from a {@link DeflateThroughputCalibration}
+ * measured on the reference hardware, via {@link RecompressionCostModel}. The number of patch bytes
+ * saved by recompressing each entry is estimated by diffing a small sample of it (see {@link
+ * SampledDeltaSavingEstimator}).
+ *
+ * <p>This class implements the following algorithm:
+ *
+ * <ol>
+ *   <li>Identify all of the {@link PreDiffPlanEntry}s that have {@link
+ *       ZipEntryUncompressionOption#uncompressNewEntry} set to <code>true</code>, and project the
+ *       recompression time and saving of each.
+ *   <li>Sort those entries in order of decreasing time per byte saved. Entries that save nothing
+ *       come first.
+ *   <li>Iterate over the list in order, preventing each entry from being uncompressed, until the
+ *       total projected time of the remaining entries is within the budget.
+ *   <li>Return all of the entries in the original order.
+ * </ol>
+ *
+ * <p>This greedy approach is cheap and predictable; {@link CostBasedRecompressionLimiter} instead
+ * searches for the subset that saves the most bytes within the budget.
+ */
+public class ApplyTimeBudgetLimiter implements PreDiffPlanEntryModifier {
+  /** The maximum projected recompression time, in nanoseconds. */
+  private final long maxRecompressionNanos;
+
+  /** The model used to project the recompression time of each entry. */
+  private final RecompressionCostModel costModel;
+
+  /** The estimator used to estimate the saving from uncompressing each entry. */
+  private final DeltaSavingEstimator savingEstimator;
+
+  /**
+   * Create a new limiter that will restrict the projected recompression time, as measured by the
+   * specified calibration, to the specified budget.
+   *
+   * @param maxRecompressionMillis the maximum projected recompression time, in milliseconds; must
+   *     be greater than or equal to zero
+   * @param calibration the throughput of the reference hardware
+   */
+  public ApplyTimeBudgetLimiter(
+      long maxRecompressionMillis, DeflateThroughputCalibration calibration) {
+    this(maxRecompressionMillis, RecompressionCostModel.fromCalibration(calibration));
+  }
+
+  /**
+   * Create a new limiter that will restrict the projected recompression time, as projected by the
+   * specified model, to the specified budget.
+   *
+   * @param maxRecompressionMillis the maximum projected recompression time, in milliseconds; must
+   *     be greater than or equal to zero
+   * @param costModel the model used to project the recompression time of each entry
+   */
+  public ApplyTimeBudgetLimiter(long maxRecompressionMillis, RecompressionCostModel costModel) {
+    this(
+        maxRecompressionMillis,
+        costModel,
+        new SampledDeltaSavingEstimator(SampledDeltaSavingEstimator.DEFAULT_SAMPLE_SIZE_BYTES));
+  }
+
+  /**
+   * Create a new limiter with the specified saving estimator.
+   *
+   * @param maxRecompressionMillis the maximum projected recompression time, in milliseconds; must
+   *     be greater than or equal to zero
+   * @param costModel the model used to project the recompression time of each entry
+   * @param savingEstimator the estimator used to estimate the saving from uncompressing each entry
+   */
+  ApplyTimeBudgetLimiter(
+      long maxRecompressionMillis,
+      RecompressionCostModel costModel,
+      DeltaSavingEstimator savingEstimator) {
+    if (maxRecompressionMillis < 0) {
+      throw new IllegalArgumentException(
+          "maxRecompressionMillis must be non-negative: " + maxRecompressionMillis);
+    }
+    this.maxRecompressionNanos =
+        maxRecompressionMillis > Long.MAX_VALUE / 1000000L
+            ? Long.MAX_VALUE
+            : maxRecompressionMillis * 1000000L;
+    this.costModel = costModel;
+    this.savingEstimator = savingEstimator;
+  }
+
+  @Override
+  public List<PreDiffPlanEntry> getModifiedPreDiffPlanEntries(
+      ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> originalEntries) {
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    long totalNanos = 0;
+    for (int index = 0; index < originalEntries.size(); index++) {
+      PreDiffPlanEntry entry = originalEntries.get(index);
+      if (entry.getZipEntryUncompressionOption().uncompressNewEntry) {
+        long costNanos =
+            costModel.estimateRecompressionNanos(
+                entry.getNewJreDeflateParameters(), entry.getNewEntry().getUncompressedSize());
+        totalNanos += costNanos;
+        candidates.add(new Candidate(index, costNanos, -1));
+      }
+    }
+    if (totalNanos <= maxRecompressionNanos) {
+      // Everything fits, so there is no need to estimate the savings.
+      return new ArrayList<PreDiffPlanEntry>(originalEntries);
+    }
+    for (Candidate candidate : candidates) {
+      candidate.savingBytes =
+          estimateSavingBytes(oldFile, newFile, originalEntries.get(candidate.index));
+    }
+    Collections.sort(candidates, Collections.reverseOrder(new CostPerByteSavedComparator()));
+
+    boolean[] dropped = new boolean[originalEntries.size()];
+    for (Candidate candidate : candidates) {
+      if (totalNanos <= maxRecompressionNanos) {
+        break;
+      }
+      dropped[candidate.index] = true;
+      totalNanos -= candidate.costNanos;
+    }
+
+    List<PreDiffPlanEntry> result = new ArrayList<PreDiffPlanEntry>(originalEntries.size());
+    for (int index = 0; index < originalEntries.size(); index++) {
+      PreDiffPlanEntry originalEntry = originalEntries.get(index);
+      if (dropped[index]) {
+        // Update the entry to prevent uncompressing this tuple.
+        result.add(
+            originalEntry.toBuilder()
+                .setUncompressionOption(
+                    ZipEntryUncompressionOption.UNCOMPRESS_NEITHER,
+                    UncompressionOptionExplanation.RESOURCE_CONSTRAINED)
+                .build());
+      } else {
+        result.add(originalEntry);
+      }
+    }
+    return result;
+  }
+
+  private long estimateSavingBytes(ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry) {
+    try {
+      return savingEstimator.estimateSavingBytes(oldFile, newFile, entry);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** An entry that is planned to be recompressed. */
+  private static class Candidate {
+    /** The index of the entry in the original list. */
+    final int index;
+
+    /** The projected recompression time of the entry. */
+    final long costNanos;
+
+    /** The estimated saving from uncompressing the entry. */
+    long savingBytes;
+
+    Candidate(int index, long costNanos, long savingBytes) {
+      this.index = index;
+      this.costNanos = costNanos;
+      this.savingBytes = savingBytes;
+    }
+  }
+
+  /**
+   * Helper class implementing the sort order described in the class documentation: by time per byte
+   * saved, with entries that save nothing being the most expensive, then by time, then by original
+   * position so that the result is deterministic.
+   */
+  private static class CostPerByteSavedComparator implements Comparator<Candidate> {
+    @Override
+    public int compare(Candidate c1, Candidate c2) {
+      int result = Double.compare(costPerByteSaved(c1), costPerByteSaved(c2));
+      if (result == 0) {
+        result = Long.compare(c1.costNanos, c2.costNanos);
+      }
+      if (result == 0) {
+        result = Integer.compare(c2.index, c1.index);
+      }
+      return result;
+    }
+
+    private static double costPerByteSaved(Candidate candidate) {
+      return candidate.savingBytes <= 0
+          ? Double.POSITIVE_INFINITY
+          : candidate.costNanos / (double) candidate.savingBytes;
+    }
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator.MatchingStrategy;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates patches from many old archives to the same new archive, as when a release is patched
+ * from each of the last several releases. {@link FileByFileDeltaGenerator} parses the new archive
+ * and divines its deflate parameters for every patch; this class instead does so once, with a
+ * {@link PreparedNewArchive}, and then runs the pairwise generations concurrently.
+ *
+ * <p>The generations run on at most maxConcurrency threads. If a total memory budget is given, it
+ * is divided evenly between the generations that run at once, and each plans for its share as
+ * described in {@link GenerationMemoryBudget}, so that the batch as a whole stays within the
+ * total. A generation that fails does not stop the others; its failure is recorded in the {@link
+ * BatchGenerationReport}.
+ *
+ * <p>The actual memory usage of a generation is measured from the Java heap, which the concurrent
+ * generations share, so it is only reported per generation when they run one at a time. The peak of
+ * the whole batch is always reported.
+ */
+public class BatchDeltaGenerator {
+  private final List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers;
+  private final Set<DeltaFormat> supportedDeltaFormats;
+  private final boolean useNativeBsDiff;
+  private final Set<PatchFlag> patchFlags;
+  private final MatchingStrategy matchingStrategy;
+
+  /** The memory budget for all the generations that run at once, or null if not limited. */
+  private final GenerationMemoryBudget totalMemoryBudget;
+
+  /** The maximum number of generations to run at once. */
+  private final int maxConcurrency;
+
+  /**
+   * Constructs a new batch generator. All arguments but the last two are as for {@link
+   * FileByFileDeltaGenerator.Builder} and apply to every patch.
+   *
+   * @param preDiffPlanEntryModifiers optionally, {@link PreDiffPlanEntryModifier}s to use for
+   *     modifying the planning phase of patch generation
+   * @param supportedDeltaFormats the set of supported delta formats to use in the patches
+   * @param useNativeBsDiff whether to use the native implementation of BSDIFF internally, if it
+   *     fits in the memory budget
+   * @param patchFlags optional features to enable in the patch headers
+   * @param matchingStrategy how the deltas find matches
+   * @param totalMemoryBudget optionally, the memory budget for all the generations that run at
+   *     once; each gets an equal share
+   * @param maxConcurrency the maximum number of generations to run at once; must be at least 1
+   */
+  public BatchDeltaGenerator(
+      List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers,
+      Set<DeltaFormat> supportedDeltaFormats,
+      boolean useNativeBsDiff,
+      Set<PatchFlag> patchFlags,
+      MatchingStrategy matchingStrategy,
+      GenerationMemoryBudget totalMemoryBudget,
+      int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxConcurrency must be at least 1: " + maxConcurrency);
+    }
+    this.preDiffPlanEntryModifiers = preDiffPlanEntryModifiers;
+    this.supportedDeltaFormats = supportedDeltaFormats;
+    this.useNativeBsDiff = useNativeBsDiff;
+    this.patchFlags = patchFlags;
+    this.matchingStrategy = matchingStrategy;
+    this.totalMemoryBudget = totalMemoryBudget;
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Generates a patch from each of the specified old archives to the new archive, writing the
+   * patch from oldFiles[i] to patchFiles[i].
+   *
+   * @param newFile the new archive (will be read)
+   * @param oldFiles the old archives (will be read)
+   * @param patchFiles the files to write the patches to, one per old archive
+   * @return the report
+   * @throws IOException if unable to read or parse the new archive; failures to generate
+   *     individual patches are recorded in the report instead
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public BatchGenerationReport generateDeltas(
+      File newFile, List<File> oldFiles, List<File> patchFiles)
+      throws IOException, InterruptedException {
+    return generateDeltas(newFile, oldFiles, patchFiles, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #generateDeltas(File, List, List)}, reporting the preparation of the new archive
+   * and the phases of every generation to the specified listener, which must be thread-safe.
+   *
+   * @param newFile the new archive (will be read)
+   * @param oldFiles the old archives (will be read)
+   * @param patchFiles the files to write the patches to, one per old archive
+   * @param listener the listener to report to
+   * @return the report
+   * @throws IOException if unable to read or parse the new archive; failures to generate
+   *     individual patches are recorded in the report instead
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public BatchGenerationReport generateDeltas(
+      File newFile, List<File> oldFiles, List<File> patchFiles, GenerationListener listener)
+      throws IOException, InterruptedException {
+    if (oldFiles.size() != patchFiles.size()) {
+      throw new IllegalArgumentException(
+          "oldFiles and patchFiles differ in size: " + oldFiles.size() + ", " + patchFiles.size());
+    }
+    long startNanos = System.nanoTime();
+    int numThreads = Math.max(1, Math.min(maxConcurrency, oldFiles.size()));
+    GenerationMemoryBudget memoryBudget = null;
+    if (totalMemoryBudget != null) {
+      memoryBudget =
+          new GenerationMemoryBudget(
+              totalMemoryBudget.getMaxBytes() / numThreads, totalMemoryBudget.getAdaptation());
+    }
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator.Builder()
+            .addPreDiffPlanEntryModifiers(preDiffPlanEntryModifiers)
+            .addSupportedDeltaFormats(supportedDeltaFormats)
+            .usingNativeBsDiff(useNativeBsDiff)
+            .addPatchFlags(patchFlags)
+            .withMemoryBudget(memoryBudget)
+            .withMatchingStrategy(matchingStrategy)
+            .build();
+    List<BatchGenerationReport.Entry> entries = new ArrayList<>(oldFiles.size());
+    long preparationNanos;
+    long peakBytes;
+    // ByteSource.fromFile can be read from all the generations at once.
+    try (ByteSource newBlob = ByteSource.fromFile(newFile)) {
+      PreparedNewArchive newArchive = PreparedNewArchive.prepare(newBlob, listener);
+      preparationNanos = System.nanoTime() - startNanos;
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      MemoryUsageSampler sampler =
+          new MemoryUsageSampler(MemoryUsageSampler.DEFAULT_INTERVAL_MILLIS);
+      sampler.start();
+      try {
+        List<Future<BatchGenerationReport.Entry>> futures = new ArrayList<>(oldFiles.size());
+        for (int index = 0; index < oldFiles.size(); index++) {
+          futures.add(
+              executor.submit(
+                  newGenerationTask(
+                      generator,
+                      newArchive,
+                      oldFiles.get(index),
+                      patchFiles.get(index),
+                      /* measureMemory= */ numThreads == 1,
+                      listener)));
+        }
+        for (Future<BatchGenerationReport.Entry> future : futures) {
+          entries.add(getResult(future));
+        }
+      } finally {
+        // Only does anything if waiting failed, in which case the remaining work is abandoned.
+        executor.shutdownNow();
+        peakBytes = sampler.stop();
+      }
+    }
+    return new BatchGenerationReport(
+        newFile, preparationNanos, System.nanoTime() - startNanos, peakBytes, entries);
+  }
+
+  /**
+   * Returns a task that generates one patch and returns its outcome.
+   *
+   * @param generator the generator to use
+   * @param newArchive the prepared new archive
+   * @param oldFile the old archive
+   * @param patchFile the file to write the patch to
+   * @param measureMemory whether to measure the actual memory usage of the generation, which is
+   *     only meaningful if no other generation runs at the same time
+   * @param listener the listener to report to
+   * @return the task
+   */
+  private static Callable<BatchGenerationReport.Entry> newGenerationTask(
+      final FileByFileDeltaGenerator generator,
+      final PreparedNewArchive newArchive,
+      final File oldFile,
+      final File patchFile,
+      final boolean measureMemory,
+      final GenerationListener listener) {
+    return new Callable<BatchGenerationReport.Entry>() {
+      @Override
+      public BatchGenerationReport.Entry call() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        try (ByteSource oldBlob = ByteSource.fromFile(oldFile);
+            FileOutputStream patchOut = new FileOutputStream(patchFile);
+            BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(patchOut)) {
+          GenerationMemoryReport memoryReport =
+              measureMemory
+                  ? generator.generateDeltaReportingMemory(
+                      oldBlob, newArchive, bufferedPatchOut, listener)
+                  : generator.generateDeltaReportingPlannedMemory(
+                      oldBlob, newArchive, bufferedPatchOut, listener);
+          bufferedPatchOut.flush();
+          return new BatchGenerationReport.Entry(
+              oldFile,
+              patchFile,
+              System.nanoTime() - startNanos,
+              patchFile.length(),
+              memoryReport);
+        } catch (IOException | RuntimeException e) {
+          // Don't leave a partial patch behind to be mistaken for a good one.
+          patchFile.delete();
+          return new BatchGenerationReport.Entry(
+              oldFile, patchFile, System.nanoTime() - startNanos, e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Waits for a generation task and returns its outcome, rethrowing anything unexpected that it
+   * threw.
+   *
+   * @param future the future of the task
+   * @return the outcome
+   * @throws InterruptedException if interrupted while waiting, or if the task was
+   */
+  private static BatchGenerationReport.Entry getResult(Future<BatchGenerationReport.Entry> future)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Unexpected failure", cause);
+    }
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The outcome of generating patches from many old archives to one new archive with a {@link
+ * BatchDeltaGenerator}: how long the shared preparation of the new archive took, the peak memory of
+ * the batch, and the outcome of each generation, in the order the old archives were given.
+ */
+public final class BatchGenerationReport {
+  /** The outcome of generating one patch. */
+  public static final class Entry {
+    private final File oldFile;
+    private final File patchFile;
+    private final long elapsedNanos;
+    private final long patchSize;
+    private final GenerationMemoryReport memoryReport;
+    private final Exception failure;
+
+    /**
+     * Creates an entry for a generation that succeeded.
+     *
+     * @param oldFile the old archive
+     * @param patchFile the patch written
+     * @param elapsedNanos the time the generation took
+     * @param patchSize the size of the patch written
+     * @param memoryReport the planned and, if measured, actual memory usage of the generation
+     */
+    Entry(
+        File oldFile,
+        File patchFile,
+        long elapsedNanos,
+        long patchSize,
+        GenerationMemoryReport memoryReport) {
+      this(oldFile, patchFile, elapsedNanos, patchSize, memoryReport, null);
+    }
+
+    /**
+     * Creates an entry for a generation that failed.
+     *
+     * @param oldFile the old archive
+     * @param patchFile the patch that was to be written
+     * @param elapsedNanos the time until the generation failed
+     * @param failure the reason the generation failed
+     */
+    Entry(File oldFile, File patchFile, long elapsedNanos, Exception failure) {
+      this(oldFile, patchFile, elapsedNanos, -1, null, failure);
+    }
+
+    private Entry(
+        File oldFile,
+        File patchFile,
+        long elapsedNanos,
+        long patchSize,
+        GenerationMemoryReport memoryReport,
+        Exception failure) {
+      this.oldFile = oldFile;
+      this.patchFile = patchFile;
+      this.elapsedNanos = elapsedNanos;
+      this.patchSize = patchSize;
+      this.memoryReport = memoryReport;
+      this.failure = failure;
+    }
+
+    /** Returns the old archive. */
+    public File getOldFile() {
+      return oldFile;
+    }
+
+    /** Returns the patch file. */
+    public File getPatchFile() {
+      return patchFile;
+    }
+
+    /** Returns the time the generation took, or took to fail, in nanoseconds. */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /** Returns the size of the patch written, or -1 if the generation failed. */
+    public long getPatchSize() {
+      return patchSize;
+    }
+
+    /**
+     * Returns the planned and actual memory usage of the generation, or null if the generation
+     * failed. The actual peak is only measured, as described in {@link
+     * GenerationMemoryReport#getActualPeakBytes()}, when the generations ran one at a time.
+     */
+    public GenerationMemoryReport getMemoryReport() {
+      return memoryReport;
+    }
+
+    /**
+     * Returns the reason the generation failed, or null if it succeeded. This is usually an {@link
+     * IOException}, but may be a {@link RuntimeException} thrown by, e.g., a {@link
+     * PreDiffPlanEntryModifier}.
+     */
+    public Exception getFailure() {
+      return failure;
+    }
+
+    /** Returns true if the generation succeeded. */
+    public boolean isSuccessful() {
+      return failure == null;
+    }
+  }
+
+  private final File newFile;
+  private final long preparationNanos;
+  private final long elapsedNanos;
+  private final long peakBytes;
+  private final List<Entry> entries;
+
+  /**
+   * Creates a new report.
+   *
+   * @param newFile the new archive
+   * @param preparationNanos the time taken to parse and divine the new archive
+   * @param elapsedNanos the time taken by the whole batch, including preparation
+   * @param peakBytes the peak growth of the used Java heap while the generations ran
+   * @param entries the outcome of each generation, in the order the old archives were given
+   */
+  BatchGenerationReport(
+      File newFile, long preparationNanos, long elapsedNanos, long peakBytes, List<Entry> entries) {
+    this.newFile = newFile;
+    this.preparationNanos = preparationNanos;
+    this.elapsedNanos = elapsedNanos;
+    this.peakBytes = peakBytes;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /** Returns the new archive. */
+  public File getNewFile() {
+    return newFile;
+  }
+
+  /** Returns the time taken to parse and divine the new archive, in nanoseconds. */
+  public long getPreparationNanos() {
+    return preparationNanos;
+  }
+
+  /** Returns the time taken by the whole batch, including preparation, in nanoseconds. */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Returns the peak growth of the used Java heap while the generations ran, in bytes. Unlike the
+   * actual peak of each generation, this is measured even when the generations ran concurrently.
+   * It includes garbage that has not been collected yet and excludes suffix arrays held outside the
+   * heap.
+   */
+  public long getPeakBytes() {
+    return peakBytes;
+  }
+
+  /** Returns the outcome of each generation, in the order the old archives were given. */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /** Returns the number of generations that failed. */
+  public int getNumFailures() {
+    int result = 0;
+    for (Entry entry : entries) {
+      if (!entry.isSuccessful()) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the report as JSON to the specified writer and flushes it. Each element of "patches"
+   * has the old and patch file and the elapsed time, plus either the patch size, backend, planned
+   * peak memory and, if measured, actual peak memory or, if the generation failed, an error
+   * message.
+   *
+   * @param writer the writer to write the JSON to
+   */
+  public void writeJson(PrintWriter writer) {
+    StringBuilder buffer = new StringBuilder(); // For convenience
+    buffer.append("{\n");
+    buffer.append("  \"newFile\": ");
+    appendString(buffer, newFile.getPath());
+    buffer.append(",\n");
+    buffer.append("  \"preparationNanos\": ").append(preparationNanos).append(",\n");
+    buffer.append("  \"elapsedNanos\": ").append(elapsedNanos).append(",\n");
+    buffer.append("  \"peakBytes\": ").append(peakBytes).append(",\n");
+    buffer.append("  \"patches\": [");
+    Iterator<Entry> iterator = entries.iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      buffer.append("\n    {\"oldFile\": ");
+      appendString(buffer, entry.oldFile.getPath());
+      buffer.append(", \"patchFile\": ");
+      appendString(buffer, entry.patchFile.getPath());
+      buffer.append(", \"elapsedNanos\": ").append(entry.elapsedNanos);
+      if (entry.isSuccessful()) {
+        buffer.append(", \"patchBytes\": ").append(entry.patchSize);
+        buffer.append(", \"backend\": \"").append(entry.memoryReport.getBackend()).append("\"");
+        buffer.append(", \"plannedPeakBytes\": ").append(entry.memoryReport.getPlannedPeakBytes());
+        if (entry.memoryReport.getActualPeakBytes() >= 0) {
+          buffer
+              .append(", \"actualPeakBytes\": ")
+              .append(entry.memoryReport.getActualPeakBytes());
+        }
+      } else {
+        buffer.append(", \"error\": ");
+        appendString(buffer, String.valueOf(entry.failure));
+      }
+      buffer.append("}");
+      if (iterator.hasNext()) {
+        buffer.append(",");
+      }
+    }
+    buffer.append(entries.isEmpty() ? "]\n" : "\n  ]\n");
+    buffer.append("}\n");
+    writer.write(buffer.toString());
+    writer.flush();
+  }
+
+  /**
+   * Appends the specified string to the buffer as a quoted JSON string.
+   *
+   * @param buffer the buffer to append to
+   * @param value the string
+   */
+  private static void appendString(StringBuilder buffer, String value) {
+    buffer.append('"');
+    for (int index = 0; index < value.length(); index++) {
+      char c = value.charAt(index);
+      if (c == '"' || c == '\\') {
+        buffer.append('\\').append(c);
+      } else if (c < 0x20) {
+        buffer.append(String.format("\\u%04x", (int) c));
+      } else {
+        buffer.append(c);
+      }
+    }
+    buffer.append('"');
+  }
+}
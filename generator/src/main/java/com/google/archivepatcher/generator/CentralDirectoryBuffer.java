@@ -0,0 +1,438 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.ZipException;
+
+/**
+ * A central directory read in bulk into a single little-endian {@link ByteBuffer}. Unlike
+ * {@link MinimalZipParser#parseCentralDirectoryEntry(java.io.InputStream)}, which reads one byte at
+ * a time from a stream and copies every file name, this class decodes each field with a single
+ * absolute read from the buffer and refers to file names by their position within it. Only the
+ * fields that may be overridden by a zip64 extra field are decoded up front; everything else is
+ * decoded on demand.
+ *
+ * <p>The data offsets of all entries are then resolved by {@link
+ * #resolveCompressedDataOffsets(ByteSource)} in a single pass over the local entries in file order,
+ * reading each fixed-length local header into one reusable buffer.
+ */
+class CentralDirectoryBuffer {
+  /**
+   * The length of the fixed-size part of a central directory entry.
+   */
+  private static final int CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH = 46;
+
+  /**
+   * The length of the fixed-size part of a local entry.
+   */
+  private static final int LOCAL_ENTRY_FIXED_LENGTH = 30;
+
+  /**
+   * The central directory.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * The offset of each entry's record within {@link #buffer}, in central directory order.
+   */
+  private final int[] recordOffsets;
+
+  /**
+   * The compressed size of each entry.
+   */
+  private final long[] compressedSizes;
+
+  /**
+   * The uncompressed size of each entry.
+   */
+  private final long[] uncompressedSizes;
+
+  /**
+   * The file offset of each entry's local entry.
+   */
+  private final long[] localEntryOffsets;
+
+  /**
+   * The file offset of each entry's compressed data, or -1 until resolved.
+   */
+  private final long[] compressedDataOffsets;
+
+  /**
+   * The file offset of the central directory, which bounds the local entries.
+   */
+  private final long offsetOfCentralDirectory;
+
+  private CentralDirectoryBuffer(
+      ByteBuffer buffer, int numEntries, long offsetOfCentralDirectory) {
+    this.buffer = buffer;
+    this.recordOffsets = new int[numEntries];
+    this.compressedSizes = new long[numEntries];
+    this.uncompressedSizes = new long[numEntries];
+    this.localEntryOffsets = new long[numEntries];
+    this.compressedDataOffsets = new long[numEntries];
+    Arrays.fill(compressedDataOffsets, -1L);
+    this.offsetOfCentralDirectory = offsetOfCentralDirectory;
+  }
+
+  /**
+   * Reads and parses the central directory described by the specified metadata.
+   * @param data the archive
+   * @param metadata the metadata locating the central directory
+   * @return the parsed central directory
+   * @throws IOException if unable to read the central directory
+   * @throws ZipException if the central directory is malformed or larger than 2GB
+   */
+  static CentralDirectoryBuffer read(ByteSource data, MinimalCentralDirectoryMetadata metadata)
+      throws IOException {
+    long length = metadata.getLengthOfCentralDirectory();
+    if (length > Integer.MAX_VALUE) {
+      throw new ZipException("Central directory too large: " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    try (InputStream in =
+        data.slice(metadata.getOffsetOfCentralDirectory(), length).openStream()) {
+      readFully(in, bytes, bytes.length);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    CentralDirectoryBuffer result =
+        new CentralDirectoryBuffer(
+            buffer,
+            metadata.getNumEntriesInCentralDirectory(),
+            metadata.getOffsetOfCentralDirectory());
+    result.parse();
+    return result;
+  }
+
+  /**
+   * Locates every record in the buffer and decodes the sizes and local entry offsets, consulting
+   * the zip64 extra field where the fixed-size fields hold placeholders.
+   * @throws ZipException if the central directory is malformed
+   */
+  private void parse() throws ZipException {
+    int position = 0;
+    for (int index = 0; index < recordOffsets.length; index++) {
+      if (position + CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH > buffer.limit()
+          || buffer.getInt(position) != MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_SIGNATURE) {
+        throw new ZipException("Bad central directory header");
+      }
+      recordOffsets[index] = position;
+      long compressedSize = uint32(position + 20);
+      long uncompressedSize = uint32(position + 24);
+      int fileNameLength = uint16(position + 28);
+      int extrasLength = uint16(position + 30);
+      int commentLength = uint16(position + 32);
+      long localEntryOffset = uint32(position + 42);
+      int extrasOffset = position + CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH + fileNameLength;
+      int nextPosition = extrasOffset + extrasLength + commentLength;
+      if (nextPosition > buffer.limit()) {
+        throw new ZipException("Central directory entry overruns the central directory");
+      }
+      if (uncompressedSize == MinimalZipParser.ZIP64_PLACEHOLDER_32
+          || compressedSize == MinimalZipParser.ZIP64_PLACEHOLDER_32
+          || localEntryOffset == MinimalZipParser.ZIP64_PLACEHOLDER_32) {
+        // Without a zip64 extra field the values are real, as in java.util.zip. Only the values
+        // whose fixed-size fields hold the placeholder are present, in this order.
+        int zip64Position = findZip64ExtraField(extrasOffset, extrasLength);
+        if (zip64Position != -1) {
+          if (uncompressedSize == MinimalZipParser.ZIP64_PLACEHOLDER_32) {
+            uncompressedSize = int64(zip64Position, extrasOffset + extrasLength);
+            zip64Position += 8;
+          }
+          if (compressedSize == MinimalZipParser.ZIP64_PLACEHOLDER_32) {
+            compressedSize = int64(zip64Position, extrasOffset + extrasLength);
+            zip64Position += 8;
+          }
+          if (localEntryOffset == MinimalZipParser.ZIP64_PLACEHOLDER_32) {
+            localEntryOffset = int64(zip64Position, extrasOffset + extrasLength);
+          }
+        }
+      }
+      compressedSizes[index] = compressedSize;
+      uncompressedSizes[index] = uncompressedSize;
+      localEntryOffsets[index] = localEntryOffset;
+      position = nextPosition;
+    }
+  }
+
+  /**
+   * Returns the position within {@link #buffer} of the data of the zip64 extra field.
+   * @param extrasOffset the position of the extras
+   * @param extrasLength the length of the extras
+   * @return as described, or -1 if there is no zip64 extra field
+   */
+  private int findZip64ExtraField(int extrasOffset, int extrasLength) {
+    int position = extrasOffset;
+    int limit = extrasOffset + extrasLength;
+    // Each extra field is a 2-byte header ID, a 2-byte data size and the data.
+    while (position + 4 <= limit) {
+      if (uint16(position) == MinimalZipParser.ZIP64_EXTRA_FIELD_HEADER_ID) {
+        return position + 4;
+      }
+      position += 4 + uint16(position + 2);
+    }
+    return -1;
+  }
+
+  /**
+   * Resolves the file offset of the compressed data of every entry by visiting each local entry in
+   * file order and reading its fixed-length header.
+   * @param data the archive
+   * @throws IOException if unable to read
+   * @throws ZipException if a local entry is malformed or overlaps the next one
+   */
+  void resolveCompressedDataOffsets(ByteSource data) throws IOException {
+    int[] fileOrder = getIndicesInFileOrder();
+    if (fileOrder.length == 0) {
+      return;
+    }
+    long firstOffset = localEntryOffsets[fileOrder[0]];
+    byte[] header = new byte[LOCAL_ENTRY_FIXED_LENGTH];
+    ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    try (InputStream in =
+        data.slice(firstOffset, offsetOfCentralDirectory - firstOffset).openStream()) {
+      long position = firstOffset;
+      for (int x = 0; x < fileOrder.length; x++) {
+        int index = fileOrder[x];
+        long localEntryOffset = localEntryOffsets[index];
+        // Don't allow reading past the start of the next entry or into the central directory.
+        long limit =
+            x < fileOrder.length - 1
+                ? localEntryOffsets[fileOrder[x + 1]]
+                : offsetOfCentralDirectory;
+        if (localEntryOffset + LOCAL_ENTRY_FIXED_LENGTH > limit) {
+          throw new ZipException("Local entry overruns the next entry");
+        }
+        skipFully(in, localEntryOffset - position);
+        readFully(in, header, header.length);
+        position = localEntryOffset + LOCAL_ENTRY_FIXED_LENGTH;
+        if (headerBuffer.getInt(0) != MinimalZipParser.LOCAL_ENTRY_SIGNATURE) {
+          throw new ZipException("Bad local entry header");
+        }
+        int fileNameLength = headerBuffer.getShort(26) & 0xffff;
+        int extrasLength = headerBuffer.getShort(28) & 0xffff;
+        compressedDataOffsets[index] =
+            localEntryOffset + LOCAL_ENTRY_FIXED_LENGTH + fileNameLength + extrasLength;
+      }
+    }
+  }
+
+  /**
+   * Returns the indices of the entries sorted by the file offset of their local entries.
+   * @return as described
+   */
+  int[] getIndicesInFileOrder() {
+    int[] result = new int[recordOffsets.length];
+    boolean sorted = true;
+    for (int index = 0; index < result.length; index++) {
+      result[index] = index;
+      if (index > 0 && localEntryOffsets[index] < localEntryOffsets[index - 1]) {
+        sorted = false;
+      }
+    }
+    if (sorted) {
+      // The usual case: central directories are almost always written in file order.
+      return result;
+    }
+    Integer[] boxed = new Integer[result.length];
+    for (int index = 0; index < boxed.length; index++) {
+      boxed[index] = index;
+    }
+    Arrays.sort(
+        boxed,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(Integer o1, Integer o2) {
+            return Long.compare(localEntryOffsets[o1], localEntryOffsets[o2]);
+          }
+        });
+    for (int index = 0; index < boxed.length; index++) {
+      result[index] = boxed[index];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return as described
+   */
+  int getNumEntries() {
+    return recordOffsets.length;
+  }
+
+  /**
+   * Returns the buffer containing the central directory, in little-endian order. File names are
+   * located within it by {@link #getFileNameOffset(int)} and {@link #getFileNameLength(int)}.
+   * @return the buffer, which must not be modified
+   */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCompressionMethod()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  int getCompressionMethod(int index) {
+    return uint16(recordOffsets[index] + 10);
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCrc32OfUncompressedData()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  long getCrc32OfUncompressedData(int index) {
+    return uint32(recordOffsets[index] + 16);
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCompressedSize()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  long getCompressedSize(int index) {
+    return compressedSizes[index];
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getUncompressedSize()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  long getUncompressedSize(int index) {
+    return uncompressedSizes[index];
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getGeneralPurposeFlagBit11()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  boolean getGeneralPurposeFlagBit11(int index) {
+    return (uint16(recordOffsets[index] + 8) & (0x1 << 10)) != 0;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getFileOffsetOfLocalEntry()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  long getFileOffsetOfLocalEntry(int index) {
+    return localEntryOffsets[index];
+  }
+
+  /**
+   * Returns the file offset of the compressed data of the specified entry, once resolved by {@link
+   * #resolveCompressedDataOffsets(ByteSource)}.
+   * @param index the index of the entry
+   * @return the offset, or -1 if not yet resolved
+   */
+  long getFileOffsetOfCompressedData(int index) {
+    return compressedDataOffsets[index];
+  }
+
+  /**
+   * Returns the position of the specified entry's file name within {@link #getBuffer()}.
+   * @param index the index of the entry
+   * @return as described
+   */
+  int getFileNameOffset(int index) {
+    return recordOffsets[index] + CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH;
+  }
+
+  /**
+   * Returns the length of the specified entry's file name.
+   * @param index the index of the entry
+   * @return as described
+   */
+  int getFileNameLength(int index) {
+    return uint16(recordOffsets[index] + 28);
+  }
+
+  /**
+   * Creates a {@link MinimalZipEntry} for the specified entry, copying its file name.
+   * @param index the index of the entry
+   * @return the entry
+   */
+  MinimalZipEntry toMinimalZipEntry(int index) {
+    byte[] fileNameBytes = new byte[getFileNameLength(index)];
+    int fileNameOffset = getFileNameOffset(index);
+    for (int x = 0; x < fileNameBytes.length; x++) {
+      fileNameBytes[x] = buffer.get(fileNameOffset + x);
+    }
+    MinimalZipEntry entry =
+        new MinimalZipEntry(
+            getCompressionMethod(index),
+            getCrc32OfUncompressedData(index),
+            compressedSizes[index],
+            uncompressedSizes[index],
+            fileNameBytes,
+            getGeneralPurposeFlagBit11(index),
+            localEntryOffsets[index]);
+    entry.setFileOffsetOfCompressedData(compressedDataOffsets[index]);
+    return entry;
+  }
+
+  private int uint16(int position) {
+    return buffer.getShort(position) & 0xffff;
+  }
+
+  private long uint32(int position) {
+    return buffer.getInt(position) & 0xffffffffL;
+  }
+
+  private long int64(int position, int limit) throws ZipException {
+    if (position + 8 > limit) {
+      throw new ZipException("Truncated zip64 extra field");
+    }
+    long value = buffer.getLong(position);
+    if (value < 0) {
+      throw new ZipException("64-bit value out of range");
+    }
+    return value;
+  }
+
+  private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+    int numRead = 0;
+    while (numRead < length) {
+      int readThisRound = in.read(buffer, numRead, length - numRead);
+      if (readThisRound == -1) {
+        throw new IOException("EOF");
+      }
+      numRead += readThisRound;
+    }
+  }
+
+  private static void skipFully(InputStream in, long numBytes) throws IOException {
+    while (numBytes > 0) {
+      long skipped = in.skip(numBytes);
+      if (skipped <= 0) {
+        throw new IOException("EOF");
+      }
+      numBytes -= skipped;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the total time needed to recompress entries while applying a patch via the {@link
+ * PreDiffPlanEntryModifier} interface, keeping the set of entries that saves the most patch bytes
+ * within that time.
+ *
+ * <p>Unlike {@link TotalRecompressionLimiter}, which caps the number of bytes to recompress and
+ * prefers the largest entries, this class weighs each entry by what it actually costs and what it
+ * actually saves:
+ *
+ * <ul>
+ *   <li>The cost of an entry is the time needed to recompress it on the target device, as estimated
+ *       by a {@link RecompressionCostModel} from the entry's uncompressed size and the deflate
+ *       parameters it was compressed with. Entries compressed at high levels can cost several times
+ *       as much per byte as entries compressed at low levels.
+ *   <li>The value of an entry is the number of patch bytes saved by uncompressing it, as estimated
+ *       by diffing a small sample of the entry in both compressed and uncompressed form (see {@link
+ *       SampledDeltaSavingEstimator}).
+ * </ul>
+ *
+ * <p>This class implements the following algorithm:
+ *
+ * <ol>
+ *   <li>Identify all of the {@link PreDiffPlanEntry}s that have {@link
+ *       ZipEntryUncompressionOption#uncompressNewEntry} set to <code>true</code>, and estimate the
+ *       cost and value of each.
+ *   <li>Discard the entries that are estimated to save nothing or to cost more than the whole
+ *       budget.
+ *   <li>Choose the subset of the remaining entries with the greatest total value whose total cost
+ *       fits in the budget, by solving the 0/1 knapsack problem by dynamic programming. Costs are
+ *       rounded up to units of 1/{@value #BUDGET_UNITS} of the budget, so the chosen subset never
+ *       exceeds the budget but may leave a little of it unused.
+ *   <li>Return all of the entries in the original order, with the entries that were not chosen
+ *       updated so that they are not uncompressed.
+ * </ol>
+ *
+ * <p>As with {@link TotalRecompressionLimiter}, the budget covers recompression only, and is only
+ * as accurate as the cost model; a model calibrated on the machine generating the patch should be
+ * scaled to the devices that will apply it (see {@link RecompressionCostModel#scaledBy(double)}).
+ */
+public class CostBasedRecompressionLimiter implements PreDiffPlanEntryModifier {
+  /**
+   * The number of units the budget is divided into when solving the knapsack problem, which bounds
+   * its time and memory to a constant multiple of the number of entries.
+   */
+  static final int BUDGET_UNITS = 1000;
+
+  /** The maximum time to allow for recompression, in nanoseconds. */
+  private final long maxRecompressionNanos;
+
+  /** The model used to estimate the cost of recompressing each entry. */
+  private final RecompressionCostModel costModel;
+
+  /** The estimator used to estimate the value of uncompressing each entry. */
+  private final DeltaSavingEstimator savingEstimator;
+
+  /**
+   * Create a new limiter that will restrict the total estimated recompression time to the specified
+   * quantity, sampling {@value SampledDeltaSavingEstimator#DEFAULT_SAMPLE_SIZE_BYTES} bytes of each
+   * entry to estimate its saving.
+   *
+   * @param maxRecompressionNanos the maximum time to allow for recompression, in nanoseconds; must
+   *     be greater than or equal to zero
+   * @param costModel the model used to estimate the cost of recompressing each entry
+   */
+  public CostBasedRecompressionLimiter(
+      long maxRecompressionNanos, RecompressionCostModel costModel) {
+    this(
+        maxRecompressionNanos,
+        costModel,
+        SampledDeltaSavingEstimator.DEFAULT_SAMPLE_SIZE_BYTES);
+  }
+
+  /**
+   * Create a new limiter that will restrict the total estimated recompression time to the specified
+   * quantity.
+   *
+   * @param maxRecompressionNanos the maximum time to allow for recompression, in nanoseconds; must
+   *     be greater than or equal to zero
+   * @param costModel the model used to estimate the cost of recompressing each entry
+   * @param sampleSizeBytes the number of bytes of each entry to diff when estimating its saving;
+   *     larger samples are more accurate but slower
+   */
+  public CostBasedRecompressionLimiter(
+      long maxRecompressionNanos, RecompressionCostModel costModel, int sampleSizeBytes) {
+    this(maxRecompressionNanos, costModel, new SampledDeltaSavingEstimator(sampleSizeBytes));
+  }
+
+  /**
+   * Create a new limiter with the specified saving estimator.
+   *
+   * @param maxRecompressionNanos the maximum time to allow for recompression, in nanoseconds; must
+   *     be greater than or equal to zero
+   * @param costModel the model used to estimate the cost of recompressing each entry
+   * @param savingEstimator the estimator used to estimate the value of uncompressing each entry
+   */
+  CostBasedRecompressionLimiter(
+      long maxRecompressionNanos,
+      RecompressionCostModel costModel,
+      DeltaSavingEstimator savingEstimator) {
+    if (maxRecompressionNanos < 0) {
+      throw new IllegalArgumentException(
+          "maxRecompressionNanos must be non-negative: " + maxRecompressionNanos);
+    }
+    this.maxRecompressionNanos = maxRecompressionNanos;
+    this.costModel = costModel;
+    this.savingEstimator = savingEstimator;
+  }
+
+  @Override
+  public List<PreDiffPlanEntry> getModifiedPreDiffPlanEntries(
+      ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> originalEntries) {
+    // Gather the candidates and their weights, in units of the budget, and values.
+    int numEntries = originalEntries.size();
+    List<Integer> candidates = new ArrayList<Integer>();
+    List<Integer> weights = new ArrayList<Integer>();
+    List<Long> values = new ArrayList<Long>();
+    for (int index = 0; index < numEntries; index++) {
+      PreDiffPlanEntry entry = originalEntries.get(index);
+      if (!entry.getZipEntryUncompressionOption().uncompressNewEntry) {
+        continue;
+      }
+      long costNanos =
+          costModel.estimateRecompressionNanos(
+              entry.getNewJreDeflateParameters(), entry.getNewEntry().getUncompressedSize());
+      if (costNanos > maxRecompressionNanos) {
+        continue;
+      }
+      long value = estimateSavingBytes(oldFile, newFile, entry);
+      if (value <= 0) {
+        continue;
+      }
+      candidates.add(index);
+      weights.add(toBudgetUnits(costNanos));
+      values.add(value);
+    }
+
+    boolean[] keep = new boolean[numEntries];
+    boolean[][] taken = solveKnapsack(weights, values);
+    int capacity = BUDGET_UNITS;
+    for (int candidate = candidates.size() - 1; candidate >= 0; candidate--) {
+      if (taken[candidate][capacity]) {
+        keep[candidates.get(candidate)] = true;
+        capacity -= weights.get(candidate);
+      }
+    }
+
+    List<PreDiffPlanEntry> result = new ArrayList<PreDiffPlanEntry>(numEntries);
+    for (int index = 0; index < numEntries; index++) {
+      PreDiffPlanEntry originalEntry = originalEntries.get(index);
+      if (originalEntry.getZipEntryUncompressionOption().uncompressNewEntry && !keep[index]) {
+        // Update the entry to prevent uncompressing this tuple.
+        result.add(
+            originalEntry.toBuilder()
+                .setUncompressionOption(
+                    ZipEntryUncompressionOption.UNCOMPRESS_NEITHER,
+                    UncompressionOptionExplanation.RESOURCE_CONSTRAINED)
+                .build());
+      } else {
+        result.add(originalEntry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Converts a cost in nanoseconds to units of the budget, rounding up so that the chosen entries
+   * never exceed the budget.
+   * @param costNanos the cost, which must be no more than the budget
+   * @return the cost in units, between 0 and {@link #BUDGET_UNITS} inclusive
+   */
+  private int toBudgetUnits(long costNanos) {
+    if (costNanos == 0) {
+      return 0;
+    }
+    return (int) Math.ceil(costNanos * (double) BUDGET_UNITS / maxRecompressionNanos);
+  }
+
+  /**
+   * Solves the 0/1 knapsack problem over a capacity of {@link #BUDGET_UNITS}.
+   * @param weights the weight of each item
+   * @param values the value of each item
+   * @return a table in which [i][c] is true if the best solution for items 0..i at capacity c
+   *     includes item i
+   */
+  private static boolean[][] solveKnapsack(List<Integer> weights, List<Long> values) {
+    long[] best = new long[BUDGET_UNITS + 1];
+    boolean[][] taken = new boolean[weights.size()][BUDGET_UNITS + 1];
+    for (int item = 0; item < weights.size(); item++) {
+      int weight = weights.get(item);
+      long value = values.get(item);
+      // Iterate downwards so that each item is used at most once.
+      for (int capacity = BUDGET_UNITS; capacity >= weight; capacity--) {
+        long withItem = best[capacity - weight] + value;
+        if (withItem > best[capacity]) {
+          best[capacity] = withItem;
+          taken[item][capacity] = true;
+        }
+      }
+    }
+    return taken;
+  }
+
+  private long estimateSavingBytes(ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry) {
+    try {
+      return savingEstimator.estimateSavingBytes(oldFile, newFile, entry);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -18,10 +18,12 @@ import static com.google.archivepatcher.shared.bytesource.ByteStreams.readFully;
 
 import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
 import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.bytesource.BlockCachingByteSource;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -44,6 +46,12 @@ public class DefaultDeflateCompressionDiviner {
   /** The levels to try for each strategy, in the order to attempt them. */
   private static final Map<Integer, List<Integer>> LEVELS_BY_STRATEGY = getLevelsByStrategy();
 
+  /**
+   * The size of the block cache used when divining an archive file. Large entries are re-read
+   * from the file for every trial, so entries up to this size are only read from disk once.
+   */
+  private static final long ARCHIVE_BLOCK_CACHE_SIZE_BYTES = 16 * 1024 * 1024;
+
   /**
    * A simple struct that contains a {@link MinimalZipEntry} describing a specific entry from a zip
    * archive along with an optional accompanying {@link JreDeflateParameters} describing the
@@ -91,7 +99,12 @@ public class DefaultDeflateCompressionDiviner {
    */
   public static List<DivinationResult> divineDeflateParameters(File archiveBlob)
       throws IOException {
-    try (ByteSource archiveData = ByteSource.fromFile(archiveBlob)) {
+    try (ByteSource archiveData =
+        new BlockCachingByteSource(
+            ByteSource.fromFile(archiveBlob),
+            BlockCachingByteSource.DEFAULT_BLOCK_SIZE,
+            ARCHIVE_BLOCK_CACHE_SIZE_BYTES,
+            false)) {
       return divineDeflateParameters(archiveData);
     }
   }
@@ -115,34 +128,105 @@ public class DefaultDeflateCompressionDiviner {
     for (MinimalZipEntry minimalZipEntry : zipEntries) {
       JreDeflateParameters divinedParameters = null;
       if (minimalZipEntry.isDeflateCompressed()) {
-        // Keep small entries in memory to avoid unnecessary file I/O.
-        if (minimalZipEntry.getCompressedSize() < (100 * 1024)) {
-          try {
-            byte[] compressedBytes = new byte[(int) minimalZipEntry.getCompressedSize()];
-            try (InputStream in =
-                archiveBlob
-                    .slice(minimalZipEntry.getFileOffsetOfCompressedData(), compressedBytes.length)
-                    .openStream()) {
-              readFully(in, compressedBytes);
-            }
-            divinedParameters = divineDeflateParametersForEntry(ByteSource.wrap(compressedBytes));
-          } catch (Exception ignore) {
-            divinedParameters = null;
-          }
-        } else {
-          try (ByteSource slice =
-              archiveBlob.slice(
-                  minimalZipEntry.getFileOffsetOfCompressedData(),
-                  minimalZipEntry.getCompressedSize())) {
-            divinedParameters = divineDeflateParametersForEntry(slice);
-          }
-        }
+        divinedParameters =
+            divineDeflateParametersForEntry(
+                archiveBlob,
+                minimalZipEntry.getFileOffsetOfCompressedData(),
+                minimalZipEntry.getCompressedSize(),
+                new int[1]);
       }
       results.add(new DivinationResult(minimalZipEntry, divinedParameters));
     }
     return results;
   }
 
+  /**
+   * Attempt to divine deflate parameters for all entries in the specified table.
+   *
+   * @param archiveBlob the archive blob to work on
+   * @param entries the entries of the archive
+   * @return the divined parameters of each entry, indexed like the table; null for entries that
+   *     are not compressed with deflate or whose parameters could not be divined
+   * @throws IOException if unable to read the file
+   */
+  public static JreDeflateParameters[] divineDeflateParameters(
+      ByteSource archiveBlob, ZipEntryTable entries) throws IOException {
+    return divineDeflateParameters(archiveBlob, entries, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Attempt to divine deflate parameters for all entries in the specified table, reporting the
+   * {@link GenerationListener.Phase#DIVINATION} phase to the specified listener. The bytes in are
+   * the total compressed size of the entries that were divined.
+   *
+   * @param archiveBlob the archive blob to work on
+   * @param entries the entries of the archive
+   * @param listener the listener to report to
+   * @return the divined parameters of each entry, indexed like the table; null for entries that
+   *     are not compressed with deflate or whose parameters could not be divined
+   * @throws IOException if unable to read the file
+   */
+  public static JreDeflateParameters[] divineDeflateParameters(
+      ByteSource archiveBlob, ZipEntryTable entries, GenerationListener listener)
+      throws IOException {
+    GenerationPhaseTimer timer =
+        GenerationPhaseTimer.start(listener, GenerationListener.Phase.DIVINATION);
+    JreDeflateParameters[] results = new JreDeflateParameters[entries.getNumEntries()];
+    long bytesIn = 0;
+    int[] numConfigurationsTried = new int[1];
+    for (int index = 0; index < results.length; index++) {
+      if (entries.isDeflateCompressed(index)) {
+        numConfigurationsTried[0] = 0;
+        results[index] =
+            divineDeflateParametersForEntry(
+                archiveBlob,
+                entries.getFileOffsetOfCompressedData(index),
+                entries.getCompressedSize(index),
+                numConfigurationsTried);
+        bytesIn += entries.getCompressedSize(index);
+        if (listener != GenerationListener.NO_OP) {
+          listener.onEntryDivined(
+              new String(entries.getFileNameBytes(index), StandardCharsets.UTF_8),
+              numConfigurationsTried[0],
+              results[index] != null);
+        }
+      }
+    }
+    timer.stop(bytesIn, 0);
+    return results;
+  }
+
+  /**
+   * Divines the deflate parameters of one deflate-compressed entry.
+   *
+   * @param archiveBlob the archive blob to work on
+   * @param offset the file offset of the compressed data of the entry
+   * @param compressedSize the length of the compressed data of the entry
+   * @param numConfigurationsTried incremented for each combination of parameters tried
+   * @return the parameters, or null if they could not be divined
+   * @throws IOException if unable to read the file
+   */
+  private static JreDeflateParameters divineDeflateParametersForEntry(
+      ByteSource archiveBlob, long offset, long compressedSize, int[] numConfigurationsTried)
+      throws IOException {
+    // Keep small entries in memory to avoid unnecessary file I/O.
+    if (compressedSize < (100 * 1024)) {
+      try {
+        byte[] compressedBytes = new byte[(int) compressedSize];
+        try (InputStream in = archiveBlob.slice(offset, compressedBytes.length).openStream()) {
+          readFully(in, compressedBytes);
+        }
+        return divineDeflateParametersForEntry(
+            ByteSource.wrap(compressedBytes), numConfigurationsTried);
+      } catch (Exception ignore) {
+        return null;
+      }
+    }
+    try (ByteSource slice = archiveBlob.slice(offset, compressedSize)) {
+      return divineDeflateParametersForEntry(slice, numConfigurationsTried);
+    }
+  }
+
   /**
    * Determines the original {@link JreDeflateParameters} that were used to compress a given piece
    * of deflated delivery.
@@ -158,6 +242,20 @@ public class DefaultDeflateCompressionDiviner {
    */
   public static JreDeflateParameters divineDeflateParametersForEntry(ByteSource entry)
       throws IOException {
+    return divineDeflateParametersForEntry(entry, new int[1]);
+  }
+
+  /**
+   * Like {@link #divineDeflateParametersForEntry(ByteSource)}, counting the combinations of
+   * parameters tried.
+   *
+   * @param entry the compressed delivery
+   * @param numConfigurationsTried incremented for each combination of parameters tried
+   * @return as described in {@link #divineDeflateParametersForEntry(ByteSource)}
+   * @throws IOException if there is a problem reading the delivery
+   */
+  private static JreDeflateParameters divineDeflateParametersForEntry(
+      ByteSource entry, int[] numConfigurationsTried) throws IOException {
     byte[] copyBuffer = new byte[32 * 1024];
     // Iterate over all relevant combinations of nowrap, strategy and level.
     for (boolean nowrap : new boolean[] {true, false}) {
@@ -171,6 +269,7 @@ public class DefaultDeflateCompressionDiviner {
           deflater.setLevel(level);
           inflater.reset();
           deflater.reset();
+          numConfigurationsTried[0]++;
           try {
             if (matches(inflater, deflater, entry, copyBuffer)) {
               end(inflater, deflater);
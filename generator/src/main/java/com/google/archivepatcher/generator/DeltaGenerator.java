@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.File;
 import java.io.IOException;
@@ -33,12 +34,42 @@ public abstract class DeltaGenerator {
    */
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
+    generateDelta(oldBlob, newBlob, deltaOut, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #generateDelta(File, File, OutputStream)}, reporting the phases of delta
+   * generation to the specified listener.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param deltaOut the stream to write the delta to
+   * @param listener the listener to report to
+   * @throws IOException in the event of an I/O error reading the input files or writing to the
+   *     delta output stream
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      File oldBlob, File newBlob, OutputStream deltaOut, GenerationListener listener)
+      throws IOException, InterruptedException {
     try (ByteSource oldByteSource = ByteSource.fromFile(oldBlob);
         ByteSource newByteSource = ByteSource.fromFile(newBlob)) {
-      generateDelta(oldByteSource, newByteSource, deltaOut);
+      generateDelta(oldByteSource, newByteSource, deltaOut, listener);
     }
   }
 
+  /**
+   * Returns a generator that produces the same deltas as this one but keeps all of its working
+   * storage, such as a suffix array, in memory rather than in temporary files. It is meant for
+   * blobs known to be small, for which creating and deleting files costs more than the memory.
+   * Unless overridden, returns this generator.
+   *
+   * @return the generator
+   */
+  public DeltaGenerator withInMemoryStorage() {
+    return this;
+  }
+
   /**
    * Generates a delta in deltaOut that can be applied to oldBlob to produce newBlob.
    *
@@ -51,4 +82,31 @@ public abstract class DeltaGenerator {
    */
   public abstract void generateDelta(ByteSource oldBlob, ByteSource newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException;
+
+  /**
+   * Like {@link #generateDelta(ByteSource, ByteSource, OutputStream)}, reporting the phases of
+   * delta generation to the specified listener. Unless overridden, all of delta generation is
+   * reported as the {@link GenerationListener.Phase#MATCHING} phase.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param deltaOut the stream to write the delta to
+   * @param listener the listener to report to
+   * @throws IOException in the event of an I/O error reading the input files or writing to the
+   *     delta output stream
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      ByteSource oldBlob, ByteSource newBlob, OutputStream deltaOut, GenerationListener listener)
+      throws IOException, InterruptedException {
+    if (listener == GenerationListener.NO_OP) {
+      generateDelta(oldBlob, newBlob, deltaOut);
+      return;
+    }
+    GenerationPhaseTimer timer =
+        GenerationPhaseTimer.start(listener, GenerationListener.Phase.MATCHING);
+    CountingOutputStream countingOut = new CountingOutputStream(deltaOut);
+    generateDelta(oldBlob, newBlob, countingOut);
+    timer.stop(oldBlob.length() + newBlob.length(), countingOut.getNumBytesWritten());
+  }
 }
@@ -0,0 +1,37 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+
+/**
+ * Estimates how many bytes of patch are saved by uncompressing an entry before diffing it, as
+ * opposed to diffing its compressed bytes.
+ */
+interface DeltaSavingEstimator {
+  /**
+   * Estimates the saving for the specified entry.
+   *
+   * @param oldFile the old archive
+   * @param newFile the new archive
+   * @param entry the entry, which must be planned to be uncompressed in the new archive
+   * @return the estimated saving in bytes; zero if uncompressing is not expected to help
+   * @throws IOException if unable to read the archives
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  long estimateSavingBytes(ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry)
+      throws IOException, InterruptedException;
+}
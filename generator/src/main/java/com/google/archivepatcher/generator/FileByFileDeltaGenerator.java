@@ -16,19 +16,31 @@ package com.google.archivepatcher.generator;
 
 import static com.google.archivepatcher.shared.PatchConstants.USE_NATIVE_BSDIFF_BY_DEFAULT;
 
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
 import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator.MatchingStrategy;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
+import com.google.archivepatcher.shared.TypedRange;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /** Generates file-by-file patches. */
 public class FileByFileDeltaGenerator extends DeltaGenerator {
@@ -44,6 +56,18 @@ public class FileByFileDeltaGenerator extends DeltaGenerator {
 
   private final boolean useNativeBsDiff;
 
+  /** Optional features to enable in the generated patch. */
+  private final Set<PatchFlag> patchFlags;
+
+  /** The memory budget for each generation, or null if memory is not limited. */
+  private final GenerationMemoryBudget memoryBudget;
+
+  /** How the delta finds matches between the delta-friendly blobs. */
+  private final MatchingStrategy matchingStrategy;
+
+  /** The number of threads to match on, or 1 to match serially. */
+  private final int numMatchingThreads;
+
   /**
    * Constructs a new generator for File-by-File patches, using the specified configuration.
    *
@@ -73,9 +97,139 @@ public class FileByFileDeltaGenerator extends DeltaGenerator {
       List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers,
       Set<DeltaFormat> supportedDeltaFormats,
       boolean useNativeBsDiff) {
-    this.preDiffPlanEntryModifiers = getImmutableListCopy(preDiffPlanEntryModifiers);
-    this.supportedDeltaFormats = getImmutableSetCopy(supportedDeltaFormats);
-    this.useNativeBsDiff = useNativeBsDiff;
+    this(
+        new Builder()
+            .addPreDiffPlanEntryModifiers(getImmutableListCopy(preDiffPlanEntryModifiers))
+            .addSupportedDeltaFormats(getImmutableSetCopy(supportedDeltaFormats))
+            .usingNativeBsDiff(useNativeBsDiff));
+  }
+
+  private FileByFileDeltaGenerator(Builder builder) {
+    this.preDiffPlanEntryModifiers = getImmutableListCopy(builder.preDiffPlanEntryModifiers);
+    this.supportedDeltaFormats = getImmutableSetCopy(builder.supportedDeltaFormats);
+    this.useNativeBsDiff = builder.useNativeBsDiff;
+    this.patchFlags = getImmutableSetCopy(builder.patchFlags);
+    this.memoryBudget = builder.memoryBudget;
+    this.matchingStrategy = builder.matchingStrategy;
+    this.numMatchingThreads = builder.numMatchingThreads;
+  }
+
+  /**
+   * A helper class to build a {@link FileByFileDeltaGenerator} with a variety of configurations.
+   */
+  public static final class Builder {
+    private final List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers = new ArrayList<>();
+    private final Set<DeltaFormat> supportedDeltaFormats = new HashSet<>();
+    private final Set<PatchFlag> patchFlags = new HashSet<>();
+
+    private boolean useNativeBsDiff = USE_NATIVE_BSDIFF_BY_DEFAULT;
+    private GenerationMemoryBudget memoryBudget;
+    private MatchingStrategy matchingStrategy = MatchingStrategy.SUFFIX_ARRAY;
+    private int numMatchingThreads = 1;
+
+    /**
+     * Appends {@link PreDiffPlanEntryModifier}s to use for modifying the planning phase of patch
+     * generation. These can be used to, e.g., limit the total amount of recompression that a patch
+     * applier needs to do. Modifiers are applied in the order they are added.
+     *
+     * @param preDiffPlanEntryModifiers the modifiers to add
+     */
+    public Builder addPreDiffPlanEntryModifiers(
+        Collection<? extends PreDiffPlanEntryModifier> preDiffPlanEntryModifiers) {
+      if (preDiffPlanEntryModifiers == null) {
+        throw new IllegalArgumentException("preDiffPlanEntryModifiers cannot be null");
+      }
+      this.preDiffPlanEntryModifiers.addAll(preDiffPlanEntryModifiers);
+      return this;
+    }
+
+    /**
+     * Amends the set of supported delta formats to use in the patch.
+     *
+     * @param supportedDeltaFormats the formats to add
+     */
+    public Builder addSupportedDeltaFormats(Collection<DeltaFormat> supportedDeltaFormats) {
+      if (supportedDeltaFormats == null) {
+        throw new IllegalArgumentException("supportedDeltaFormats cannot be null");
+      }
+      this.supportedDeltaFormats.addAll(supportedDeltaFormats);
+      return this;
+    }
+
+    /**
+     * Sets whether to use the native implementation of BSDIFF internally, if it fits in the memory
+     * budget. Ignored for {@link MatchingStrategy#BLOCK_HASH}. Defaults to {@link
+     * PatchConstants#USE_NATIVE_BSDIFF_BY_DEFAULT}.
+     *
+     * @param useNativeBsDiff whether to use the native implementation
+     */
+    public Builder usingNativeBsDiff(boolean useNativeBsDiff) {
+      this.useNativeBsDiff = useNativeBsDiff;
+      return this;
+    }
+
+    /**
+     * Amends the optional features to enable in the patch header. Patches that enable any feature
+     * can only be applied by appliers that understand patch flags.
+     *
+     * @param patchFlags the flags to add
+     */
+    public Builder addPatchFlags(Collection<PatchFlag> patchFlags) {
+      if (patchFlags == null) {
+        throw new IllegalArgumentException("patchFlags cannot be null");
+      }
+      this.patchFlags.addAll(patchFlags);
+      return this;
+    }
+
+    /**
+     * Sets the memory budget for each generation. The budget is planned for after all the other
+     * modifiers have been applied; see {@link GenerationMemoryBudget}. Defaults to null, meaning
+     * memory is not limited and not planned for.
+     *
+     * @param memoryBudget the budget, or null
+     */
+    public Builder withMemoryBudget(GenerationMemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Sets how the delta finds matches. {@link MatchingStrategy#BLOCK_HASH} generates patches much
+     * faster, at the cost of somewhat larger patches. Defaults to {@link
+     * MatchingStrategy#SUFFIX_ARRAY}.
+     *
+     * @param matchingStrategy the strategy
+     */
+    public Builder withMatchingStrategy(MatchingStrategy matchingStrategy) {
+      if (matchingStrategy == null) {
+        throw new IllegalArgumentException("matchingStrategy cannot be null");
+      }
+      this.matchingStrategy = matchingStrategy;
+      return this;
+    }
+
+    /**
+     * Sets the number of threads to match segments of the delta-friendly new blob on; see {@link
+     * BsDiffDeltaGenerator#withParallelMatching(int)}. Both delta-friendly blobs are then read
+     * into memory, which a memory budget does not account for, so this is ignored if a budget is
+     * set. Defaults to 1, matching serially.
+     *
+     * @param numMatchingThreads the number of threads
+     */
+    public Builder withParallelMatching(int numMatchingThreads) {
+      if (numMatchingThreads < 1) {
+        throw new IllegalArgumentException(
+            "numMatchingThreads must be at least 1: " + numMatchingThreads);
+      }
+      this.numMatchingThreads = numMatchingThreads;
+      return this;
+    }
+
+    /** Builds the generator. */
+    public FileByFileDeltaGenerator build() {
+      return new FileByFileDeltaGenerator(this);
+    }
   }
 
   /**
@@ -94,26 +248,291 @@ public class FileByFileDeltaGenerator extends DeltaGenerator {
   @Override
   public void generateDelta(ByteSource oldBlob, ByteSource newBlob, OutputStream patchOut)
       throws IOException, InterruptedException {
+    generateDelta(oldBlob, newBlob, null, patchOut, GenerationListener.NO_OP, false, false);
+  }
+
+  /**
+   * Like {@link #generateDelta(ByteSource, ByteSource, OutputStream)}, reporting the phases of
+   * patch generation and the plan made for each entry to the specified listener.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newBlob the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param listener the listener to report to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  @Override
+  public void generateDelta(
+      ByteSource oldBlob, ByteSource newBlob, OutputStream patchOut, GenerationListener listener)
+      throws IOException, InterruptedException {
+    generateDelta(oldBlob, newBlob, null, patchOut, listener, false, false);
+  }
+
+  /**
+   * Like {@link #generateDelta(ByteSource, ByteSource, OutputStream, GenerationListener)}, but with
+   * a new archive that has already been parsed and divined, so that neither is repeated. This is
+   * much cheaper when generating patches from many old archives to the same new archive; the
+   * prepared archive can be shared by concurrent generations.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newArchive the prepared original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param listener the listener to report to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      ByteSource oldBlob,
+      PreparedNewArchive newArchive,
+      OutputStream patchOut,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    generateDelta(oldBlob, newArchive.getBlob(), newArchive, patchOut, listener, false, false);
+  }
+
+  /**
+   * Like {@link #generateDelta(ByteSource, ByteSource, OutputStream)}, but also reports the planned
+   * and actual memory usage. Without a memory budget, the plan is the same as with an unlimited
+   * budget.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newBlob the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @return the report
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public GenerationMemoryReport generateDeltaReportingMemory(
+      ByteSource oldBlob, ByteSource newBlob, OutputStream patchOut)
+      throws IOException, InterruptedException {
+    return generateDeltaReportingMemory(oldBlob, newBlob, patchOut, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #generateDeltaReportingMemory(ByteSource, ByteSource, OutputStream)}, reporting the
+   * phases of patch generation and the plan made for each entry to the specified listener.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newBlob the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param listener the listener to report to
+   * @return the report
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public GenerationMemoryReport generateDeltaReportingMemory(
+      ByteSource oldBlob,
+      ByteSource newBlob,
+      OutputStream patchOut,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    return generateDelta(oldBlob, newBlob, null, patchOut, listener, true, true);
+  }
+
+  /**
+   * Like {@link #generateDeltaReportingMemory(ByteSource, ByteSource, OutputStream,
+   * GenerationListener)}, but with a new archive that has already been parsed and divined, so that
+   * neither is repeated. This is much cheaper when generating patches from many old archives to the
+   * same new archive; the prepared archive can be shared by concurrent generations.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newArchive the prepared original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param listener the listener to report to
+   * @return the report
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public GenerationMemoryReport generateDeltaReportingMemory(
+      ByteSource oldBlob,
+      PreparedNewArchive newArchive,
+      OutputStream patchOut,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    return generateDelta(
+        oldBlob, newArchive.getBlob(), newArchive, patchOut, listener, true, true);
+  }
+
+  /**
+   * Like {@link #generateDeltaReportingMemory(ByteSource, PreparedNewArchive, OutputStream,
+   * GenerationListener)}, but without measuring the actual memory usage, which is reported as -1.
+   * The measurement covers the whole Java heap, so it is meaningless while other generations run
+   * concurrently.
+   *
+   * @param oldBlob the original old file to read (will not be modified)
+   * @param newArchive the prepared original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param listener the listener to report to
+   * @return the report
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  GenerationMemoryReport generateDeltaReportingPlannedMemory(
+      ByteSource oldBlob,
+      PreparedNewArchive newArchive,
+      OutputStream patchOut,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    return generateDelta(
+        oldBlob, newArchive.getBlob(), newArchive, patchOut, listener, true, false);
+  }
+
+  /**
+   * Generates the patch. The memory budget is planned for only if one was set or a report was
+   * asked for, and the actual memory usage is sampled only if asked for.
+   *
+   * @return the report if {@code reportMemory} is true, otherwise null; the actual peak is -1
+   *     unless {@code sampleMemory} is also true
+   */
+  private GenerationMemoryReport generateDelta(
+      ByteSource oldBlob,
+      ByteSource newBlob,
+      PreparedNewArchive preparedNewArchive,
+      OutputStream patchOut,
+      GenerationListener listener,
+      boolean reportMemory,
+      boolean sampleMemory)
+      throws IOException, InterruptedException {
+    GenerationMemoryBudget budget =
+        memoryBudget != null || !reportMemory
+            ? memoryBudget
+            : new GenerationMemoryBudget(
+                Long.MAX_VALUE, GenerationMemoryBudget.Adaptation.REDUCE_UNCOMPRESSION_FIRST);
+    Backend preferredBackend =
+        matchingStrategy == MatchingStrategy.BLOCK_HASH
+            ? Backend.BLOCK_HASH
+            : useNativeBsDiff ? Backend.NATIVE : Backend.MEMORY_MAPPED;
+    MemoryBudgetPlanner planner =
+        budget != null ? new MemoryBudgetPlanner(budget, preferredBackend) : null;
+    long actualPeakBytes = -1;
     try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
         TempFileHolder deltaFriendlyNewFile = new TempFileHolder();
-        TempFileHolder deltaFile = new TempFileHolder();
-        FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
-        BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+        TempFileHolder deltaFile = new TempFileHolder()) {
+      List<PreDiffPlanEntryModifier> modifiers = preDiffPlanEntryModifiers;
+      if (planner != null) {
+        modifiers = new ArrayList<>(preDiffPlanEntryModifiers);
+        modifiers.add(planner);
+      }
       PreDiffPlan preDiffPlan =
           generatePreDiffPlan(
-              oldBlob, newBlob, deltaFriendlyOldFile, deltaFriendlyNewFile, supportedDeltaFormats);
-      DeltaGenerator deltaGenerator = getDeltaGenerator();
-      deltaGenerator.generateDelta(
-          deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut);
-      bufferedDeltaOut.close();
+              oldBlob,
+              newBlob,
+              preparedNewArchive,
+              deltaFriendlyOldFile,
+              deltaFriendlyNewFile,
+              supportedDeltaFormats,
+              modifiers,
+              listener);
+      DeltaGenerator deltaGenerator =
+          planner == null || planner.getBackend() == preferredBackend
+              ? getDeltaGenerator()
+              : getDeltaGenerator(planner.getBackend());
+      try (FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
+          BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+        if (sampleMemory) {
+          // The plan only covers generating the delta, so only that is measured.
+          MemoryUsageSampler sampler =
+              new MemoryUsageSampler(MemoryUsageSampler.DEFAULT_INTERVAL_MILLIS);
+          sampler.start();
+          try {
+            deltaGenerator.generateDelta(
+                deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut, listener);
+          } finally {
+            actualPeakBytes = sampler.stop();
+          }
+          if (planner.getBackend() == Backend.NATIVE
+              || planner.getBackend() == Backend.MEMORY_MAPPED) {
+            // The suffix array is held outside the Java heap.
+            actualPeakBytes +=
+                GenerationMemoryBudget.SUFFIX_ARRAY_BYTES_PER_BYTE
+                    * (deltaFriendlyOldFile.file.length() + 1);
+          }
+        } else {
+          deltaGenerator.generateDelta(
+              deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut, listener);
+        }
+      }
       PatchWriter patchWriter =
           new PatchWriter(
               preDiffPlan,
               deltaFriendlyOldFile.file.length(),
               deltaFriendlyNewFile.file.length(),
-              deltaFile.file);
-      patchWriter.writePatch(patchOut);
+              deltaFile.file,
+              patchFlags.contains(PatchFlag.NEW_FILE_SIZE) ? newBlob.length() : -1,
+              patchFlags.contains(PatchFlag.NEW_FILE_DIGEST) ? computeDigest(newBlob) : null,
+              patchFlags.contains(PatchFlag.RECOMPRESSION_CRC32)
+                  ? computeCrc32s(
+                      preDiffPlan.getDeltaFriendlyNewFileRecompressionPlan(),
+                      deltaFriendlyNewFile.file)
+                  : null);
+      patchWriter.writePatch(patchOut, listener);
+    }
+    if (!reportMemory) {
+      return null;
+    }
+    return new GenerationMemoryReport(
+        budget.getMaxBytes(),
+        planner.getBackend(),
+        planner.getProjectedDeltaFriendlyOldSize(),
+        planner.getProjectedDeltaFriendlyNewSize(),
+        planner.isUncompressionReduced(),
+        planner.getPlannedPeakBytes(),
+        actualPeakBytes);
+  }
+
+  /**
+   * Computes the digest of the specified blob with {@link
+   * PatchConstants#NEW_FILE_DIGEST_ALGORITHM}.
+   *
+   * @param blob the blob to digest
+   * @return the digest
+   * @throws IOException if unable to read the blob or the algorithm is not available
+   */
+  private static byte[] computeDigest(ByteSource blob) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(PatchConstants.NEW_FILE_DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to create new file digest", e);
+    }
+    byte[] buffer = new byte[32768];
+    try (InputStream in = blob.openStream()) {
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, numRead);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Computes the CRC32 of each of the specified ranges of the delta-friendly new file.
+   *
+   * @param ranges the ranges to compute the CRC32s of, in file order
+   * @param deltaFriendlyNewFile the delta-friendly new file
+   * @return the CRC32s, in the same order as the ranges
+   * @throws IOException if unable to read the file
+   */
+  private static List<Long> computeCrc32s(
+      List<TypedRange<JreDeflateParameters>> ranges, File deltaFriendlyNewFile)
+      throws IOException {
+    List<Long> result = new ArrayList<>(ranges.size());
+    CRC32 crc32 = new CRC32();
+    byte[] buffer = new byte[32768];
+    try (ByteSource blob = ByteSource.fromFile(deltaFriendlyNewFile)) {
+      for (TypedRange<JreDeflateParameters> range : ranges) {
+        crc32.reset();
+        try (InputStream in = blob.slice(range.getOffset(), range.getLength()).openStream()) {
+          int numRead;
+          while ((numRead = in.read(buffer)) >= 0) {
+            crc32.update(buffer, 0, numRead);
+          }
+        }
+        result.add(crc32.getValue());
+      }
     }
+    return result;
   }
 
   /**
@@ -129,23 +548,39 @@ public class FileByFileDeltaGenerator extends DeltaGenerator {
         ByteSource oldBlob = ByteSource.fromFile(oldFile);
         ByteSource newBlob = ByteSource.fromFile(newFile)) {
       return generatePreDiffPlan(
-          oldBlob, newBlob, deltaFriendlyOldFile, deltaFriendlyNewFile, supportedDeltaFormats);
+          oldBlob,
+          newBlob,
+          null,
+          deltaFriendlyOldFile,
+          deltaFriendlyNewFile,
+          supportedDeltaFormats,
+          preDiffPlanEntryModifiers,
+          GenerationListener.NO_OP);
     }
   }
 
   private PreDiffPlan generatePreDiffPlan(
       ByteSource oldFile,
       ByteSource newFile,
+      PreparedNewArchive preparedNewFile,
       TempFileHolder deltaFriendlyOldFile,
       TempFileHolder deltaFriendlyNewFile,
-      Set<DeltaFormat> supportedDeltaFormats)
+      Set<DeltaFormat> supportedDeltaFormats,
+      List<PreDiffPlanEntryModifier> modifiers,
+      GenerationListener listener)
       throws IOException {
+    PreDiffExecutor.Builder builder = new PreDiffExecutor.Builder();
+    if (preparedNewFile != null) {
+      builder.readingOriginalFiles(oldFile, preparedNewFile);
+    } else {
+      builder.readingOriginalFiles(oldFile, newFile);
+    }
     PreDiffExecutor executor =
-        new PreDiffExecutor.Builder()
-            .readingOriginalFiles(oldFile, newFile)
+        builder
             .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file)
-            .addPreDiffPlanEntryModifiers(preDiffPlanEntryModifiers)
+            .addPreDiffPlanEntryModifiers(modifiers)
             .addSupportedDeltaFormats(supportedDeltaFormats)
+            .withGenerationListener(listener)
             .build();
 
     return executor.prepareForDiffing();
@@ -153,7 +588,33 @@ public class FileByFileDeltaGenerator extends DeltaGenerator {
 
   // Visible for testing only
   protected DeltaGenerator getDeltaGenerator() {
-    return new BsDiffDeltaGenerator(useNativeBsDiff);
+    if (matchingStrategy == MatchingStrategy.BLOCK_HASH) {
+      return new BsDiffDeltaGenerator(MatchingStrategy.BLOCK_HASH);
+    }
+    BsDiffDeltaGenerator generator = new BsDiffDeltaGenerator(useNativeBsDiff);
+    return memoryBudget == null ? generator.withParallelMatching(numMatchingThreads) : generator;
+  }
+
+  /**
+   * Returns the delta generator for a backend that a memory budget chose over the preferred one.
+   *
+   * @param backend the backend
+   * @return the generator
+   */
+  private static DeltaGenerator getDeltaGenerator(Backend backend) {
+    switch (backend) {
+      case NATIVE:
+        return new BsDiffDeltaGenerator(true);
+      case MEMORY_MAPPED:
+        return new BsDiffDeltaGenerator(false);
+      case DISK:
+        return new BsDiffDeltaGenerator(
+            false, new RandomAccessObjectFactory.RandomAccessFileObjectFactory("rw"));
+      case BLOCK_HASH:
+        return new BsDiffDeltaGenerator(MatchingStrategy.BLOCK_HASH);
+      default:
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
   }
 
   private static <T> List<T> getImmutableListCopy(List<T> input) {
@@ -0,0 +1,114 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+/**
+ * Receives measurements while a patch is being generated. Events are delivered synchronously on
+ * the thread doing the work, which may differ between events, so implementations must be
+ * thread-safe and should return quickly.
+ */
+public interface GenerationListener {
+  /** The phases of patch generation, in the order in which they happen. */
+  public enum Phase {
+    /** The zip entries of the old and new files are being read. */
+    PARSING,
+
+    /** The deflate parameters of the entries of the new file are being divined. */
+    DIVINATION,
+
+    /** The entries are being compared and the plan for uncompressing them is being made. */
+    PLANNING,
+
+    /** The delta-friendly old and new blobs are being written. */
+    DELTA_FRIENDLY_EXPANSION,
+
+    /** The suffix array of the delta-friendly old blob is being built. */
+    SUFFIX_SORT,
+
+    /**
+     * Matches are being found and the delta written. For delta generators that do not report
+     * their phases separately, this covers all of delta generation, including any index of the
+     * old blob that is built.
+     */
+    MATCHING,
+
+    /** The patch, including the delta, is being written. */
+    PATCH_WRITING
+  }
+
+  /** A listener that ignores all events. */
+  public static final GenerationListener NO_OP =
+      new GenerationListener() {
+        @Override
+        public void onPhaseStarted(Phase phase) {}
+
+        @Override
+        public void onPhaseCompleted(
+            Phase phase, long wallNanos, long cpuNanos, long bytesIn, long bytesOut) {}
+
+        @Override
+        public void onEntryDivined(String entryName, int configurationsTried, boolean divined) {}
+
+        @Override
+        public void onEntryPlanned(UncompressionOptionExplanation explanation) {}
+
+        @Override
+        public void onSuffixArrayAllocated(long bytes) {}
+      };
+
+  /**
+   * Invoked when a phase starts, on the thread that runs it. {@link #onPhaseCompleted} is invoked
+   * on the same thread when the phase completes, unless it fails.
+   *
+   * @param phase the phase
+   */
+  void onPhaseStarted(Phase phase);
+
+  /**
+   * Invoked when a phase has completed.
+   *
+   * @param phase the phase
+   * @param wallNanos the elapsed time of the phase, in nanoseconds
+   * @param cpuNanos the CPU time used by the thread that ran the phase, in nanoseconds; -1 if CPU
+   *     time cannot be measured. Work the phase handed to other threads is not included.
+   * @param bytesIn the number of bytes the phase read
+   * @param bytesOut the number of bytes the phase wrote
+   */
+  void onPhaseCompleted(Phase phase, long wallNanos, long cpuNanos, long bytesIn, long bytesOut);
+
+  /**
+   * Invoked during {@link Phase#DIVINATION} once the deflate parameters of each deflate-compressed
+   * entry of the new file have been divined, or found impossible to divine. Entries are divined one
+   * at a time, in the order of the {@link ZipEntryTable}, on the thread running the phase.
+   *
+   * @param entryName the name of the entry
+   * @param configurationsTried the number of combinations of level, strategy and nowrap tried
+   * @param divined true if the parameters were found
+   */
+  void onEntryDivined(String entryName, int configurationsTried, boolean divined);
+
+  /**
+   * Invoked once for each entry of the new file when the plan has been made.
+   *
+   * @param explanation why the entry is, or is not, uncompressed
+   */
+  void onEntryPlanned(UncompressionOptionExplanation explanation);
+
+  /**
+   * Invoked when a suffix array has been built, just before {@link Phase#SUFFIX_SORT} completes.
+   *
+   * @param bytes the size of the suffix array, in bytes
+   */
+  void onSuffixArrayAllocated(long bytes);
+}
@@ -0,0 +1,203 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.BsDiffPatchWriter;
+
+/**
+ * A limit on the memory used to generate a file-by-file patch, for callers that run many
+ * generations side by side and need each to have a predictable footprint.
+ *
+ * <p>Generating the delta dominates the memory needed: bsdiff builds a suffix array of the
+ * delta-friendly old blob, which takes 4 bytes per byte of the blob, and the native implementation
+ * additionally holds both blobs and the delta in memory. Before the delta-friendly blobs are
+ * written, {@link FileByFileDeltaGenerator} projects their sizes from the plan and estimates the
+ * peak memory of each {@link Backend} with {@link #estimatePeakBytes(Backend, long, long)}. If the
+ * preferred backend does not fit in the budget, it adapts as directed by the {@link Adaptation},
+ * by one or both of:
+ *
+ * <ul>
+ *   <li>reducing uncompression of the old archive with a {@link DeltaFriendlyOldBlobSizeLimiter},
+ *       so that the suffix array shrinks, at the cost of a larger patch; and
+ *   <li>moving the suffix array out of memory, first to a memory-mapped file and then to a file
+ *       accessed with ordinary reads and writes ({@link Backend#DISK}), which keeps the patch the
+ *       same but makes generation slower.
+ * </ul>
+ *
+ * <p>If nothing fits, generation proceeds with the smallest option and the report says so. The
+ * planned and actual peak usage of each generation are reported in a {@link
+ * GenerationMemoryReport}.
+ */
+public final class GenerationMemoryBudget {
+  /**
+   * The number of bytes of suffix array per byte of the delta-friendly old blob.
+   */
+  static final int SUFFIX_ARRAY_BYTES_PER_BYTE = 4;
+
+  /**
+   * The fixed overhead of the suffix sorter: its bucket arrays, 4 bytes each for 256 and 256 * 256
+   * buckets. The native sorter uses the same algorithm.
+   */
+  static final long SUFFIX_SORTER_OVERHEAD_BYTES = 4L * (256 + 256 * 256);
+
+  /** Where the suffix array of the delta-friendly old blob is stored while generating a delta. */
+  public enum Backend {
+    /**
+     * The native bsdiff implementation, which holds both blobs, the suffix array and the delta in
+     * memory.
+     */
+    NATIVE,
+
+    /** The Java bsdiff implementation with the suffix array in a memory-mapped temp file. */
+    MEMORY_MAPPED,
+
+    /**
+     * The Java bsdiff implementation with the suffix array in a temp file accessed with ordinary
+     * reads and writes, so that it takes no memory beyond small fixed buffers.
+     */
+    DISK,
+
+    /**
+     * Block hash matching ({@link BsDiffDeltaGenerator.MatchingStrategy#BLOCK_HASH}), which holds
+     * two copies of both blobs and a small index of the old blob in memory and builds no suffix
+     * array. If it does not fit, the suffix array is used on {@link #DISK} instead.
+     */
+    BLOCK_HASH
+  }
+
+  /** The order in which to adapt when the preferred backend does not fit in the budget. */
+  public enum Adaptation {
+    /**
+     * Reduce uncompression of the old archive with each backend before trying the next, slower
+     * backend. Favours generation speed over patch size.
+     */
+    REDUCE_UNCOMPRESSION_FIRST,
+
+    /**
+     * Move the suffix array out of memory rather than reduce uncompression, which is never reduced.
+     * Favours patch size over generation speed.
+     */
+    SPILL_TO_DISK_FIRST
+  }
+
+  /** The maximum number of bytes to use. */
+  private final long maxBytes;
+
+  /** The order in which to adapt. */
+  private final Adaptation adaptation;
+
+  /**
+   * Creates a new budget.
+   *
+   * @param maxBytes the maximum number of bytes that generating a patch may use; must be greater
+   *     than or equal to zero
+   * @param adaptation the order in which to adapt when the preferred backend does not fit
+   */
+  public GenerationMemoryBudget(long maxBytes, Adaptation adaptation) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must be non-negative: " + maxBytes);
+    }
+    if (adaptation == null) {
+      throw new IllegalArgumentException("adaptation must not be null");
+    }
+    this.maxBytes = maxBytes;
+    this.adaptation = adaptation;
+  }
+
+  /**
+   * Returns the maximum number of bytes that generating a patch may use.
+   * @return as described
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the order in which to adapt when the preferred backend does not fit.
+   * @return as described
+   */
+  public Adaptation getAdaptation() {
+    return adaptation;
+  }
+
+  /**
+   * Estimates the peak memory needed to generate a delta between blobs of the specified sizes.
+   *
+   * @param backend the backend that will generate the delta
+   * @param deltaFriendlyOldSize the size of the delta-friendly old blob
+   * @param deltaFriendlyNewSize the size of the delta-friendly new blob
+   * @return the estimate, in bytes
+   */
+  public static long estimatePeakBytes(
+      Backend backend, long deltaFriendlyOldSize, long deltaFriendlyNewSize) {
+    long suffixArrayBytes = SUFFIX_ARRAY_BYTES_PER_BYTE * (deltaFriendlyOldSize + 1);
+    switch (backend) {
+      case NATIVE:
+        // Both blobs are copied into memory, and the delta can be as large as the new blob.
+        return deltaFriendlyOldSize
+            + 2 * deltaFriendlyNewSize
+            + suffixArrayBytes
+            + SUFFIX_SORTER_OVERHEAD_BYTES;
+      case MEMORY_MAPPED:
+        if (BsDiffPatchWriter.requiresLongIndexing(deltaFriendlyOldSize, deltaFriendlyNewSize)) {
+          return BsDiffDeltaGenerator.estimateLongIndexingBytes(deltaFriendlyOldSize);
+        }
+        return suffixArrayBytes + SUFFIX_SORTER_OVERHEAD_BYTES;
+      case DISK:
+        // Blobs too large for int indexing are always sorted in memory-mapped storage.
+        if (BsDiffPatchWriter.requiresLongIndexing(deltaFriendlyOldSize, deltaFriendlyNewSize)) {
+          return BsDiffDeltaGenerator.estimateLongIndexingBytes(deltaFriendlyOldSize);
+        }
+        return SUFFIX_SORTER_OVERHEAD_BYTES;
+      case BLOCK_HASH:
+        // Both blobs are read into memory, and wrapping them as ByteSources copies them again.
+        return 2 * (deltaFriendlyOldSize + deltaFriendlyNewSize)
+            + BsDiffDeltaGenerator.estimateBlockHashIndexBytes(deltaFriendlyOldSize);
+      default:
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+  }
+
+  /**
+   * Returns the largest delta-friendly old blob whose estimated peak memory, together with a
+   * delta-friendly new blob of the specified size, fits in this budget.
+   *
+   * @param backend the backend that will generate the delta
+   * @param deltaFriendlyNewSize the size of the delta-friendly new blob
+   * @return the size, or -1 if no size fits
+   */
+  long getMaxDeltaFriendlyOldSize(Backend backend, long deltaFriendlyNewSize) {
+    if (estimatePeakBytes(backend, 0, deltaFriendlyNewSize) > maxBytes) {
+      return -1;
+    }
+    // Sizes are capped well below Long.MAX_VALUE so that no estimate overflows.
+    if (estimatePeakBytes(backend, Long.MAX_VALUE / 32, deltaFriendlyNewSize) <= maxBytes) {
+      return Long.MAX_VALUE;
+    }
+    // The estimate grows with the old size, so binary search for the largest size that fits.
+    long low = 0;
+    long high = Long.MAX_VALUE / 32;
+    while (low < high) {
+      long mid = low + (high - low + 1) / 2;
+      if (estimatePeakBytes(backend, mid, deltaFriendlyNewSize) <= maxBytes) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
+
+/**
+ * The planned and actual memory usage of generating one patch under a {@link
+ * GenerationMemoryBudget}.
+ */
+public final class GenerationMemoryReport {
+  private final long maxBytes;
+  private final Backend backend;
+  private final long projectedDeltaFriendlyOldSize;
+  private final long projectedDeltaFriendlyNewSize;
+  private final boolean uncompressionReduced;
+  private final long plannedPeakBytes;
+  private final long actualPeakBytes;
+
+  /**
+   * Creates a new report.
+   *
+   * @param maxBytes the budget
+   * @param backend the backend chosen for the delta
+   * @param projectedDeltaFriendlyOldSize the projected size of the delta-friendly old blob
+   * @param projectedDeltaFriendlyNewSize the projected size of the delta-friendly new blob
+   * @param uncompressionReduced whether uncompression was reduced to fit the budget
+   * @param plannedPeakBytes the estimated peak memory of the plan
+   * @param actualPeakBytes the measured peak memory, or -1 if not measured
+   */
+  GenerationMemoryReport(
+      long maxBytes,
+      Backend backend,
+      long projectedDeltaFriendlyOldSize,
+      long projectedDeltaFriendlyNewSize,
+      boolean uncompressionReduced,
+      long plannedPeakBytes,
+      long actualPeakBytes) {
+    this.maxBytes = maxBytes;
+    this.backend = backend;
+    this.projectedDeltaFriendlyOldSize = projectedDeltaFriendlyOldSize;
+    this.projectedDeltaFriendlyNewSize = projectedDeltaFriendlyNewSize;
+    this.uncompressionReduced = uncompressionReduced;
+    this.plannedPeakBytes = plannedPeakBytes;
+    this.actualPeakBytes = actualPeakBytes;
+  }
+
+  /**
+   * Returns the budget, in bytes.
+   * @return as described
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the backend chosen for the delta.
+   * @return as described
+   */
+  public Backend getBackend() {
+    return backend;
+  }
+
+  /**
+   * Returns the size of the delta-friendly old blob projected from the plan.
+   * @return as described
+   */
+  public long getProjectedDeltaFriendlyOldSize() {
+    return projectedDeltaFriendlyOldSize;
+  }
+
+  /**
+   * Returns the size of the delta-friendly new blob projected from the plan.
+   * @return as described
+   */
+  public long getProjectedDeltaFriendlyNewSize() {
+    return projectedDeltaFriendlyNewSize;
+  }
+
+  /**
+   * Returns whether uncompression of the old archive was reduced to fit the budget.
+   * @return as described
+   */
+  public boolean isUncompressionReduced() {
+    return uncompressionReduced;
+  }
+
+  /**
+   * Returns the peak memory estimated for the plan, in bytes.
+   * @return as described
+   */
+  public long getPlannedPeakBytes() {
+    return plannedPeakBytes;
+  }
+
+  /**
+   * Returns the peak memory measured while generating the delta, in bytes: the peak growth of the
+   * used Java heap plus the suffix array if it was held outside the heap. Because the heap includes
+   * garbage that has not been collected yet, this is an upper bound. The heap is shared by the
+   * whole JVM, so this is -1 when other generations ran at the same time, as in a {@link
+   * BatchDeltaGenerator} with more than one thread.
+   * @return as described
+   */
+  public long getActualPeakBytes() {
+    return actualPeakBytes;
+  }
+
+  /**
+   * Returns whether the plan fits in the budget. A plan that does not fit is the smallest option
+   * available.
+   * @return as described
+   */
+  public boolean isPlanWithinBudget() {
+    return plannedPeakBytes <= maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "GenerationMemoryReport [maxBytes=" + maxBytes
+        + ", backend=" + backend
+        + ", projectedDeltaFriendlyOldSize=" + projectedDeltaFriendlyOldSize
+        + ", projectedDeltaFriendlyNewSize=" + projectedDeltaFriendlyNewSize
+        + ", uncompressionReduced=" + uncompressionReduced
+        + ", plannedPeakBytes=" + plannedPeakBytes
+        + ", actualPeakBytes=" + actualPeakBytes + "]";
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures one phase of patch generation and reports it to a {@link GenerationListener}. Nothing
+ * is measured for {@link GenerationListener#NO_OP}.
+ */
+public final class GenerationPhaseTimer {
+  private final GenerationListener listener;
+  private final Phase phase;
+  private final long startWallNanos;
+  private final long startCpuNanos;
+
+  private GenerationPhaseTimer(GenerationListener listener, Phase phase) {
+    this.listener = listener;
+    this.phase = phase;
+    boolean measure = listener != GenerationListener.NO_OP;
+    if (measure) {
+      listener.onPhaseStarted(phase);
+    }
+    this.startWallNanos = measure ? System.nanoTime() : 0;
+    this.startCpuNanos = measure ? currentThreadCpuNanos() : -1;
+  }
+
+  /**
+   * Starts timing a phase on the calling thread.
+   *
+   * @param listener the listener to report to
+   * @param phase the phase
+   * @return the timer
+   */
+  public static GenerationPhaseTimer start(GenerationListener listener, Phase phase) {
+    return new GenerationPhaseTimer(listener, phase);
+  }
+
+  /**
+   * Stops timing and reports the phase. Must be called on the thread that started the timer.
+   *
+   * @param bytesIn the number of bytes the phase read
+   * @param bytesOut the number of bytes the phase wrote
+   */
+  public void stop(long bytesIn, long bytesOut) {
+    if (listener == GenerationListener.NO_OP) {
+      return;
+    }
+    long wallNanos = System.nanoTime() - startWallNanos;
+    long cpuNanos = startCpuNanos < 0 ? -1 : currentThreadCpuNanos() - startCpuNanos;
+    listener.onPhaseCompleted(phase, wallNanos, cpuNanos, bytesIn, bytesOut);
+  }
+
+  /**
+   * Returns the CPU time used by the calling thread so far, or -1 if it cannot be measured.
+   *
+   * @return as described
+   */
+  private static long currentThreadCpuNanos() {
+    try {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    } catch (LinkageError | RuntimeException e) {
+      // java.lang.management is not available on all platforms.
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A {@link GenerationListener} that accumulates the measurements of one or more patch generations
+ * and can write them as a JSON report. All methods are thread-safe.
+ */
+public class GenerationStats implements GenerationListener {
+  /** The accumulated measurements of one phase. */
+  public static final class PhaseStats {
+    private int count;
+    private long wallNanos;
+    private long cpuNanos;
+    private long bytesIn;
+    private long bytesOut;
+
+    private PhaseStats() {}
+
+    private PhaseStats(PhaseStats other) {
+      count = other.count;
+      wallNanos = other.wallNanos;
+      cpuNanos = other.cpuNanos;
+      bytesIn = other.bytesIn;
+      bytesOut = other.bytesOut;
+    }
+
+    /** Returns the number of times the phase completed. */
+    public int getCount() {
+      return count;
+    }
+
+    /** Returns the total elapsed time of the phase, in nanoseconds. */
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    /** Returns the total CPU time of the phase, in nanoseconds, or -1 if it was not measured. */
+    public long getCpuNanos() {
+      return cpuNanos;
+    }
+
+    /** Returns the total number of bytes the phase read. */
+    public long getBytesIn() {
+      return bytesIn;
+    }
+
+    /** Returns the total number of bytes the phase wrote. */
+    public long getBytesOut() {
+      return bytesOut;
+    }
+  }
+
+  private final Map<Phase, PhaseStats> phaseStats = new EnumMap<>(Phase.class);
+
+  private final Map<UncompressionOptionExplanation, Integer> entryCounts =
+      new EnumMap<>(UncompressionOptionExplanation.class);
+
+  private long peakSuffixArrayBytes = 0;
+
+  private long divinationAttempts = 0;
+
+  private int entriesNotDivined = 0;
+
+  @Override
+  public void onPhaseStarted(Phase phase) {
+    // Only completed phases are accumulated.
+  }
+
+  @Override
+  public synchronized void onPhaseCompleted(
+      Phase phase, long wallNanos, long cpuNanos, long bytesIn, long bytesOut) {
+    PhaseStats stats = phaseStats.get(phase);
+    if (stats == null) {
+      stats = new PhaseStats();
+      phaseStats.put(phase, stats);
+    }
+    // Once any completion could not be measured, the total is unknown.
+    stats.cpuNanos =
+        (stats.count > 0 && stats.cpuNanos < 0) || cpuNanos < 0 ? -1 : stats.cpuNanos + cpuNanos;
+    stats.count++;
+    stats.wallNanos += wallNanos;
+    stats.bytesIn += bytesIn;
+    stats.bytesOut += bytesOut;
+  }
+
+  @Override
+  public synchronized void onEntryDivined(
+      String entryName, int configurationsTried, boolean divined) {
+    divinationAttempts += configurationsTried;
+    if (!divined) {
+      entriesNotDivined++;
+    }
+  }
+
+  @Override
+  public synchronized void onEntryPlanned(UncompressionOptionExplanation explanation) {
+    Integer count = entryCounts.get(explanation);
+    entryCounts.put(explanation, count == null ? 1 : count + 1);
+  }
+
+  @Override
+  public synchronized void onSuffixArrayAllocated(long bytes) {
+    peakSuffixArrayBytes = Math.max(peakSuffixArrayBytes, bytes);
+  }
+
+  /**
+   * Returns a snapshot of the measurements of the specified phase.
+   *
+   * @param phase the phase
+   * @return the measurements, or null if the phase has not completed
+   */
+  public synchronized PhaseStats getPhaseStats(Phase phase) {
+    PhaseStats stats = phaseStats.get(phase);
+    return stats == null ? null : new PhaseStats(stats);
+  }
+
+  /**
+   * Returns the number of entries that were planned with the specified explanation.
+   *
+   * @param explanation the explanation
+   * @return the number of entries
+   */
+  public synchronized int getEntryCount(UncompressionOptionExplanation explanation) {
+    Integer count = entryCounts.get(explanation);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns the total number of combinations of deflate parameters tried while divining entries.
+   *
+   * @return as described
+   */
+  public synchronized long getDivinationAttempts() {
+    return divinationAttempts;
+  }
+
+  /**
+   * Returns the number of deflate-compressed entries whose parameters could not be divined.
+   *
+   * @return as described
+   */
+  public synchronized int getEntriesNotDivined() {
+    return entriesNotDivined;
+  }
+
+  /**
+   * Returns the size of the largest suffix array that was built, in bytes.
+   *
+   * @return as described
+   */
+  public synchronized long getPeakSuffixArrayBytes() {
+    return peakSuffixArrayBytes;
+  }
+
+  /**
+   * Writes the measurements as a JSON object. Phases that have not completed and explanations
+   * with no entries are omitted.
+   *
+   * @param writer the writer to write to
+   */
+  public synchronized void writeJson(PrintWriter writer) {
+    StringBuilder buffer = new StringBuilder(); // For convenience
+    buffer.append("{\n");
+    buffer.append("  \"phases\": {");
+    Iterator<Map.Entry<Phase, PhaseStats>> phases = phaseStats.entrySet().iterator();
+    while (phases.hasNext()) {
+      Map.Entry<Phase, PhaseStats> entry = phases.next();
+      PhaseStats stats = entry.getValue();
+      buffer.append("\n    \"").append(entry.getKey()).append("\": {");
+      buffer.append("\"count\": ").append(stats.count);
+      buffer.append(", \"wallNanos\": ").append(stats.wallNanos);
+      buffer.append(", \"cpuNanos\": ").append(stats.cpuNanos);
+      buffer.append(", \"bytesIn\": ").append(stats.bytesIn);
+      buffer.append(", \"bytesOut\": ").append(stats.bytesOut);
+      buffer.append("}");
+      if (phases.hasNext()) {
+        buffer.append(",");
+      }
+    }
+    buffer.append(phaseStats.isEmpty() ? "},\n" : "\n  },\n");
+    buffer.append("  \"entries\": {");
+    Iterator<Map.Entry<UncompressionOptionExplanation, Integer>> entries =
+        entryCounts.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<UncompressionOptionExplanation, Integer> entry = entries.next();
+      buffer.append("\n    \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+      if (entries.hasNext()) {
+        buffer.append(",");
+      }
+    }
+    buffer.append(entryCounts.isEmpty() ? "},\n" : "\n  },\n");
+    buffer.append("  \"divinationAttempts\": ").append(divinationAttempts).append(",\n");
+    buffer.append("  \"entriesNotDivined\": ").append(entriesNotDivined).append(",\n");
+    buffer.append("  \"peakSuffixArrayBytes\": ").append(peakSuffixArrayBytes).append("\n");
+    buffer.append("}\n");
+    writer.write(buffer.toString());
+    writer.flush();
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Adaptation;
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fits one patch generation into a {@link GenerationMemoryBudget}. It runs as the last {@link
+ * PreDiffPlanEntryModifier}, when the entries are final but the delta-friendly blobs have not been
+ * written yet, and chooses the {@link Backend} for the delta along with any reduction in
+ * uncompression. A new instance must be used for each generation.
+ */
+class MemoryBudgetPlanner implements PreDiffPlanEntryModifier {
+  /** The budget to fit into. */
+  private final GenerationMemoryBudget budget;
+
+  /** The backend to use if it fits. */
+  private final Backend preferredBackend;
+
+  /** The chosen backend, or null if not planned yet. */
+  private Backend backend = null;
+
+  /** The projected size of the delta-friendly old blob with the chosen entries. */
+  private long projectedDeltaFriendlyOldSize = -1;
+
+  /** The projected size of the delta-friendly new blob with the chosen entries. */
+  private long projectedDeltaFriendlyNewSize = -1;
+
+  /** Whether uncompression was reduced to fit the budget. */
+  private boolean uncompressionReduced = false;
+
+  /**
+   * Creates a planner for one generation.
+   *
+   * @param budget the budget to fit into
+   * @param preferredBackend the backend to use if it fits, according to the configuration of the
+   *     generator
+   */
+  MemoryBudgetPlanner(GenerationMemoryBudget budget, Backend preferredBackend) {
+    this.budget = budget;
+    this.preferredBackend = preferredBackend;
+  }
+
+  @Override
+  public List<PreDiffPlanEntry> getModifiedPreDiffPlanEntries(
+      ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> originalEntries) {
+    List<Backend> backends = new ArrayList<>();
+    backends.add(preferredBackend);
+    if (preferredBackend == Backend.NATIVE) {
+      backends.add(Backend.MEMORY_MAPPED);
+    }
+    backends.add(Backend.DISK);
+
+    for (Backend candidate : backends) {
+      if (fits(candidate, oldFile, newFile, originalEntries)) {
+        return choose(candidate, oldFile, newFile, originalEntries, false);
+      }
+      if (budget.getAdaptation() == Adaptation.REDUCE_UNCOMPRESSION_FIRST
+          && candidate != Backend.DISK) {
+        List<PreDiffPlanEntry> reduced = reduce(candidate, oldFile, newFile, originalEntries);
+        if (reduced != null && fits(candidate, oldFile, newFile, reduced)) {
+          return choose(candidate, oldFile, newFile, reduced, true);
+        }
+      }
+    }
+    // Nothing fits; DISK is the smallest option, and reducing uncompression does not help it.
+    return choose(Backend.DISK, oldFile, newFile, originalEntries, false);
+  }
+
+  /**
+   * Returns the chosen backend.
+   * @return as described
+   */
+  Backend getBackend() {
+    ensurePlanned();
+    return backend;
+  }
+
+  /**
+   * Returns the projected size of the delta-friendly old blob.
+   * @return as described
+   */
+  long getProjectedDeltaFriendlyOldSize() {
+    ensurePlanned();
+    return projectedDeltaFriendlyOldSize;
+  }
+
+  /**
+   * Returns the projected size of the delta-friendly new blob.
+   * @return as described
+   */
+  long getProjectedDeltaFriendlyNewSize() {
+    ensurePlanned();
+    return projectedDeltaFriendlyNewSize;
+  }
+
+  /**
+   * Returns the estimated peak memory of the plan.
+   * @return as described
+   */
+  long getPlannedPeakBytes() {
+    ensurePlanned();
+    return GenerationMemoryBudget.estimatePeakBytes(
+        backend, projectedDeltaFriendlyOldSize, projectedDeltaFriendlyNewSize);
+  }
+
+  /**
+   * Returns whether uncompression was reduced to fit the budget.
+   * @return as described
+   */
+  boolean isUncompressionReduced() {
+    ensurePlanned();
+    return uncompressionReduced;
+  }
+
+  private void ensurePlanned() {
+    if (backend == null) {
+      throw new IllegalStateException("not planned yet");
+    }
+  }
+
+  private List<PreDiffPlanEntry> choose(
+      Backend backend,
+      ByteSource oldFile,
+      ByteSource newFile,
+      List<PreDiffPlanEntry> entries,
+      boolean uncompressionReduced) {
+    this.backend = backend;
+    this.projectedDeltaFriendlyOldSize = projectDeltaFriendlyOldSize(oldFile, entries);
+    this.projectedDeltaFriendlyNewSize = projectDeltaFriendlyNewSize(newFile, entries);
+    this.uncompressionReduced = uncompressionReduced;
+    return entries;
+  }
+
+  private boolean fits(
+      Backend backend, ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> entries) {
+    long peakBytes =
+        GenerationMemoryBudget.estimatePeakBytes(
+            backend,
+            projectDeltaFriendlyOldSize(oldFile, entries),
+            projectDeltaFriendlyNewSize(newFile, entries));
+    return peakBytes <= budget.getMaxBytes();
+  }
+
+  /**
+   * Reduces uncompression of the old archive so that the delta-friendly old blob fits the backend
+   * within the budget, given the current size of the delta-friendly new blob. Reducing old
+   * uncompression can only shrink the new blob, so the result is conservative.
+   *
+   * @return the reduced entries, or null if not even the original old file would fit
+   */
+  private List<PreDiffPlanEntry> reduce(
+      Backend backend, ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> entries) {
+    long maxOldSize =
+        budget.getMaxDeltaFriendlyOldSize(backend, projectDeltaFriendlyNewSize(newFile, entries));
+    if (maxOldSize < oldFile.length()) {
+      return null;
+    }
+    return new DeltaFriendlyOldBlobSizeLimiter(maxOldSize)
+        .getModifiedPreDiffPlanEntries(oldFile, newFile, entries);
+  }
+
+  /**
+   * Projects the size of the delta-friendly old blob, counting each uncompressed range of the old
+   * file once just as {@link PreDiffPlanner} does.
+   *
+   * @param oldFile the old file
+   * @param entries the entries
+   * @return the projected size
+   */
+  static long projectDeltaFriendlyOldSize(ByteSource oldFile, List<PreDiffPlanEntry> entries) {
+    long size = oldFile.length();
+    Set<Long> seenOffsets = new HashSet<>();
+    for (PreDiffPlanEntry entry : entries) {
+      MinimalZipEntry oldEntry = entry.getOldEntry();
+      if (entry.getZipEntryUncompressionOption().uncompressOldEntry
+          && seenOffsets.add(oldEntry.getFileOffsetOfCompressedData())) {
+        size += oldEntry.getUncompressedSize() - oldEntry.getCompressedSize();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Projects the size of the delta-friendly new blob, counting each uncompressed range of the new
+   * file once just as {@link PreDiffPlanner} does.
+   *
+   * @param newFile the new file
+   * @param entries the entries
+   * @return the projected size
+   */
+  static long projectDeltaFriendlyNewSize(ByteSource newFile, List<PreDiffPlanEntry> entries) {
+    long size = newFile.length();
+    Set<Long> seenOffsets = new HashSet<>();
+    for (PreDiffPlanEntry entry : entries) {
+      MinimalZipEntry newEntry = entry.getNewEntry();
+      if (entry.getZipEntryUncompressionOption().uncompressNewEntry
+          && seenOffsets.add(newEntry.getFileOffsetOfCompressedData())) {
+        size += newEntry.getUncompressedSize() - newEntry.getCompressedSize();
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+/**
+ * Samples the used Java heap on a background thread to find its peak growth over an interval. The
+ * used heap includes garbage that has not been collected yet, so the result is an upper bound on
+ * what the work actually needed; it is meant for comparison with a plan, not for exact accounting.
+ */
+class MemoryUsageSampler {
+  /** The default interval between samples, in milliseconds. */
+  static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+  /** The interval between samples, in milliseconds. */
+  private final long intervalMillis;
+
+  /** The used heap when sampling started. */
+  private long baselineBytes;
+
+  /** The largest used heap seen so far; guarded by this. */
+  private long peakBytes;
+
+  /** The sampling thread, or null if not sampling. */
+  private Thread thread = null;
+
+  /** Whether sampling should stop; guarded by this. */
+  private boolean stopped;
+
+  /**
+   * Creates a sampler that samples at the specified interval.
+   *
+   * @param intervalMillis the interval between samples, in milliseconds; must be greater than zero
+   */
+  MemoryUsageSampler(long intervalMillis) {
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("intervalMillis must be > 0: " + intervalMillis);
+    }
+    this.intervalMillis = intervalMillis;
+  }
+
+  /** Starts sampling. */
+  synchronized void start() {
+    if (thread != null) {
+      throw new IllegalStateException("already started");
+    }
+    baselineBytes = usedHeapBytes();
+    peakBytes = baselineBytes;
+    stopped = false;
+    thread =
+        new Thread("MemoryUsageSampler") {
+          @Override
+          public void run() {
+            synchronized (MemoryUsageSampler.this) {
+              while (!stopped) {
+                sample();
+                try {
+                  MemoryUsageSampler.this.wait(intervalMillis);
+                } catch (InterruptedException e) {
+                  return;
+                }
+              }
+            }
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops sampling and returns the peak growth of the used heap since sampling started.
+   * @return the peak growth in bytes, which is zero if the used heap never grew
+   */
+  long stop() {
+    Thread toJoin;
+    synchronized (this) {
+      if (thread == null) {
+        throw new IllegalStateException("not started");
+      }
+      sample();
+      stopped = true;
+      notifyAll();
+      toJoin = thread;
+      thread = null;
+    }
+    try {
+      toJoin.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      return Math.max(0, peakBytes - baselineBytes);
+    }
+  }
+
+  private synchronized void sample() {
+    peakBytes = Math.max(peakBytes, usedHeapBytes());
+  }
+
+  private static long usedHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -19,8 +19,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.zip.ZipException;
 
@@ -32,18 +30,6 @@ import java.util.zip.ZipException;
  */
 public class MinimalZipArchive {
 
-  /**
-   * Sorts {@link MinimalZipEntry} objects by {@link MinimalZipEntry#getFileOffsetOfLocalEntry()} in
-   * ascending order.
-   */
-  private static final Comparator<MinimalZipEntry> LOCAL_ENTRY_OFFSET_COMAPRATOR =
-      new Comparator<MinimalZipEntry>() {
-        @Override
-        public int compare(MinimalZipEntry o1, MinimalZipEntry o2) {
-          return Long.compare(o1.getFileOffsetOfLocalEntry(), o2.getFileOffsetOfLocalEntry());
-        }
-      };
-
   /**
    * Generate a listing of all of the files in a zip archive in file order and return it. Each entry
    * is a {@link MinimalZipEntry}, which has just enough information to generate a patch.
@@ -66,6 +52,31 @@ public class MinimalZipArchive {
    * @throws IOException if anything goes wrong while reading
    */
   public static List<MinimalZipEntry> listEntries(ByteSource data) throws IOException {
+    // Step 1: Read the whole central directory in one go and parse it in place.
+    CentralDirectoryBuffer centralDirectory =
+        CentralDirectoryBuffer.read(data, readCentralDirectoryMetadata(data));
+
+    // Step 2: Visit each local entry in file order to calculate the offset of the compressed data.
+    centralDirectory.resolveCompressedDataOffsets(data);
+
+    // Step 3: List the entries in file order, not central directory order.
+    List<MinimalZipEntry> minimalZipEntries = new ArrayList<>(centralDirectory.getNumEntries());
+    for (int index : centralDirectory.getIndicesInFileOrder()) {
+      minimalZipEntries.add(centralDirectory.toMinimalZipEntry(index));
+    }
+    return minimalZipEntries;
+  }
+
+  /**
+   * Locates and parses the end-of-central-directory record, and the zip64 end-of-central-directory
+   * record if the archive has one.
+   *
+   * @param data the zip file to read
+   * @return the metadata locating the central directory
+   * @throws IOException if anything goes wrong while reading
+   */
+  static MinimalCentralDirectoryMetadata readCentralDirectoryMetadata(ByteSource data)
+      throws IOException {
     // Step 1: Locate the end-of-central-directory record header.
     long offsetOfEocd = MinimalZipParser.locateStartOfEocd(data, 32768);
     if (offsetOfEocd == -1) {
@@ -79,43 +90,25 @@ public class MinimalZipArchive {
       centralDirectoryMetadata = MinimalZipParser.parseEocd(inputStream);
     }
 
-    // Step 3: Extract a list of all central directory entries (contiguous data stream)
-    List<MinimalZipEntry> minimalZipEntries =
-        new ArrayList<>(centralDirectoryMetadata.getNumEntriesInCentralDirectory());
-    try (InputStream inputStream =
-        data.slice(
-                centralDirectoryMetadata.getOffsetOfCentralDirectory(),
-                centralDirectoryMetadata.getLengthOfCentralDirectory())
-            .openStream()) {
-      for (int x = 0; x < centralDirectoryMetadata.getNumEntriesInCentralDirectory(); x++) {
-        minimalZipEntries.add(MinimalZipParser.parseCentralDirectoryEntry(inputStream));
+    // Step 2a: In a zip64 archive the real values are in the zip64 end-of-central-directory record,
+    // located through the locator that immediately precedes the end-of-central-directory record.
+    // Without a locator the values are used as they are, even if they look like zip64
+    // placeholders, as java.util.zip does: an ordinary archive may have exactly 65535 entries.
+    long offsetOfZip64Eocd = -1;
+    if (offsetOfEocd >= MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH) {
+      try (InputStream inputStream =
+          data.slice(
+                  offsetOfEocd - MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH,
+                  MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH)
+              .openStream()) {
+        offsetOfZip64Eocd = MinimalZipParser.parseZip64EocdLocator(inputStream);
       }
     }
-
-    // Step 4: Sort the entries in file order, not central directory order.
-    Collections.sort(minimalZipEntries, LOCAL_ENTRY_OFFSET_COMAPRATOR);
-
-    // Step 5: Seek out each local entry and calculate the offset of the compressed data within
-    for (int x = 0; x < minimalZipEntries.size(); x++) {
-      MinimalZipEntry entry = minimalZipEntries.get(x);
-      long offsetOfNextEntry;
-      if (x < minimalZipEntries.size() - 1) {
-        // Don't allow reading past the start of the next entry, for sanity.
-        offsetOfNextEntry = minimalZipEntries.get(x + 1).getFileOffsetOfLocalEntry();
-      } else {
-        // Last entry. Don't allow reading into the central directory, for sanity.
-        offsetOfNextEntry = centralDirectoryMetadata.getOffsetOfCentralDirectory();
-      }
-      long rangeLength = offsetOfNextEntry - entry.getFileOffsetOfLocalEntry();
-      try (InputStream inputStream =
-          data.slice(entry.getFileOffsetOfLocalEntry(), rangeLength).openStream()) {
-        long relativeDataOffset =
-            MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(inputStream);
-        entry.setFileOffsetOfCompressedData(entry.getFileOffsetOfLocalEntry() + relativeDataOffset);
+    if (offsetOfZip64Eocd != -1) {
+      try (InputStream inputStream = data.sliceFrom(offsetOfZip64Eocd).openStream()) {
+        centralDirectoryMetadata = MinimalZipParser.parseZip64Eocd(inputStream);
       }
     }
-
-    // Done!
-    return minimalZipEntries;
+    return centralDirectoryMetadata;
   }
 }
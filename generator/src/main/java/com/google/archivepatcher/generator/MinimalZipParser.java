@@ -15,6 +15,7 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.ZipException;
@@ -22,8 +23,9 @@ import java.util.zip.ZipException;
 /**
  * A minimal set of zip-parsing utilities just adequate to produce a {@link MinimalZipEntry} and
  * update it. This parser is neither robust nor exhaustive. The parser is built to understand
- * version 2.0 of the ZIP specification, with the notable exception that it does not have support
- * for encrypted central directories.
+ * version 2.0 of the ZIP specification plus the zip64 extensions (the zip64
+ * end-of-central-directory record and locator, and the zip64 extended information extra field),
+ * with the notable exception that it does not have support for encrypted central directories.
  * <p>
  * The offsets, lengths and fields that this parser understands and exposes are based on version
  * 6.3.3 of the ZIP specification (the most recent available at the time of this writing), which may
@@ -54,6 +56,34 @@ class MinimalZipParser {
    */
   public static final int LOCAL_ENTRY_SIGNATURE = 0x04034b50;
 
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory locator" record in a zip64
+   * archive. This is in little-endian order.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory" record in a zip64 archive.
+   * This is in little-endian order.
+   */
+  public static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+  /**
+   * The length of the zip64 end-of-central-directory locator, which immediately precedes the
+   * end-of-central-directory record in a zip64 archive.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+
+  /**
+   * The header ID of the zip64 extended information extra field.
+   */
+  static final int ZIP64_EXTRA_FIELD_HEADER_ID = 0x0001;
+
+  /**
+   * The value of a 32-bit field whose real value is in a zip64 record.
+   */
+  static final long ZIP64_PLACEHOLDER_32 = 0xffffffffL;
+
   /**
    * Read exactly one byte, throwing an exception if unsuccessful.
    * @param in the stream to read from
@@ -111,6 +141,23 @@ class MinimalZipParser {
     return value;
   }
 
+  /**
+   * Reads 8 bytes from the current offset as a 64-bit little-endian value. Values greater than
+   * {@link Long#MAX_VALUE} are rejected, since no file can be that large.
+   * @param in the stream to read from
+   * @return the value as a java long
+   * @throws IOException if unable to read
+   * @throws ZipException if the value is negative as a java long
+   */
+  private static long read64BitUnsigned(InputStream in) throws IOException {
+    long value = read32BitUnsigned(in);
+    value |= read32BitUnsigned(in) << 32;
+    if (value < 0) {
+      throw new ZipException("64-bit value out of range");
+    }
+    return value;
+  }
+
   /**
    * Read exactly the specified amount of data into the specified buffer, throwing an exception if
    * unsuccessful.
@@ -128,7 +175,7 @@ class MinimalZipParser {
     int numRead = 0;
     while (numRead < length) {
       int readThisRound = in.read(buffer, offset + numRead, length - numRead);
-      if (numRead == -1) {
+      if (readThisRound == -1) {
         throw new IOException("EOF");
       }
       numRead += readThisRound;
@@ -160,7 +207,7 @@ class MinimalZipParser {
     // 4 bytes encode the external file attributes, ignore
     // *** 4 bytes encode the offset of the local section entry, where the data is [READ THIS]
     // n bytes encode the file name
-    // n bytes encode the extras
+    // n bytes encode the extras [READ THIS if any of the sizes or the offset are 0xffffffff]
     // n bytes encode the comment
     if (((int) read32BitUnsigned(in)) != CENTRAL_DIRECTORY_ENTRY_SIGNATURE) {
       throw new ZipException("Bad central directory header");
@@ -179,7 +226,28 @@ class MinimalZipParser {
     long fileOffsetOfLocalEntry = read32BitUnsigned(in);
     byte[] fileNameBuffer = new byte[fileNameLength];
     readOrDie(in, fileNameBuffer, 0, fileNameBuffer.length);
-    skipOrDie(in, extrasLength + commentLength);
+    if (uncompressedSize == ZIP64_PLACEHOLDER_32
+        || compressedSize == ZIP64_PLACEHOLDER_32
+        || fileOffsetOfLocalEntry == ZIP64_PLACEHOLDER_32) {
+      // The real values are in the zip64 extended information extra field, if there is one;
+      // otherwise the values are real, as in java.util.zip. Only the values whose fixed-size fields
+      // hold the placeholder are present, in this order.
+      InputStream zip64In = findZip64ExtraField(in, extrasLength);
+      if (zip64In != null) {
+        if (uncompressedSize == ZIP64_PLACEHOLDER_32) {
+          uncompressedSize = read64BitUnsigned(zip64In);
+        }
+        if (compressedSize == ZIP64_PLACEHOLDER_32) {
+          compressedSize = read64BitUnsigned(zip64In);
+        }
+        if (fileOffsetOfLocalEntry == ZIP64_PLACEHOLDER_32) {
+          fileOffsetOfLocalEntry = read64BitUnsigned(zip64In);
+        }
+      }
+      skipOrDie(in, commentLength);
+    } else {
+      skipOrDie(in, extrasLength + commentLength);
+    }
     // General purpose flag bit 11 is an important hint for the character set used for file names.
     boolean generalPurposeFlagBit11 = (generalPurposeFlags & (0x1 << 10)) != 0;
     return new MinimalZipEntry(
@@ -192,6 +260,33 @@ class MinimalZipParser {
         fileOffsetOfLocalEntry);
   }
 
+  /**
+   * Reads the extras of a central directory entry and returns the data of the zip64 extended
+   * information extra field within them.
+   * @param in the input stream to read from, positioned at the first byte of the extras
+   * @param extrasLength the length of the extras
+   * @return a stream of the data in the zip64 extra field, or null if there is none
+   * @throws IOException if unable to read
+   */
+  private static InputStream findZip64ExtraField(InputStream in, int extrasLength)
+      throws IOException {
+    byte[] extras = new byte[extrasLength];
+    readOrDie(in, extras, 0, extras.length);
+    ByteArrayInputStream extrasIn = new ByteArrayInputStream(extras);
+    // Each extra field is a 2-byte header ID, a 2-byte data size and the data.
+    while (extrasIn.available() >= 4) {
+      int headerId = read16BitUnsigned(extrasIn);
+      int dataSize = read16BitUnsigned(extrasIn);
+      if (headerId == ZIP64_EXTRA_FIELD_HEADER_ID) {
+        byte[] data = new byte[Math.min(dataSize, extrasIn.available())];
+        readOrDie(extrasIn, data, 0, data.length);
+        return new ByteArrayInputStream(data);
+      }
+      skipOrDie(extrasIn, dataSize);
+    }
+    return null;
+  }
+
   /**
    * Parses one local file entry and returns the offset from the first byte at which the compressed
    * data begins
@@ -273,9 +368,10 @@ class MinimalZipParser {
   /**
    * Parse the end-of-central-directory record and return the critical information from it.
    * @param in the input stream to read from, assumed to start at the first byte of the entry
-   * @return the metadata
+   * @return the metadata. In a zip64 archive, any of the values may be placeholders (0xffff or
+   *     0xffffffff) whose real values must be read from the zip64 end-of-central-directory record,
+   *     if {@link #parseZip64EocdLocator(InputStream)} finds one.
    * @throws IOException if unable to read
-   * @throws ZipException if the metadata indicates this is a zip64 archive, which is not supported
    */
   public static MinimalCentralDirectoryMetadata parseEocd(InputStream in)
       throws IOException, ZipException {
@@ -294,13 +390,65 @@ class MinimalZipParser {
     // Everything else from here to the EOF is the zip file comment, or junk. Ignore.
     skipOrDie(in, 2 + 2 + 2);
     int numEntriesInCentralDirectory = read16BitUnsigned(in);
-    if (numEntriesInCentralDirectory == 0xffff) {
-      // If 0xffff, this is a zip64 archive and this code doesn't handle that.
-      throw new ZipException("No support for zip64");
-    }
     long lengthOfCentralDirectory = read32BitUnsigned(in);
     long offsetOfCentralDirectory = read32BitUnsigned(in);
     return new MinimalCentralDirectoryMetadata(
         numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
   }
+
+  /**
+   * Parse the zip64 end-of-central-directory locator, if present, and return the offset of the
+   * zip64 end-of-central-directory record.
+   * @param in the input stream to read from, assumed to start at the first byte of where the
+   * locator would be if present (i.e., {@link #ZIP64_EOCD_LOCATOR_LENGTH} bytes before the
+   * end-of-central-directory record)
+   * @return the file offset of the zip64 end-of-central-directory record, or -1 if there is no
+   * locator
+   * @throws IOException if unable to read
+   */
+  public static long parseZip64EocdLocator(InputStream in) throws IOException {
+    // *** 4 bytes encode ZIP64_EOCD_LOCATOR_SIGNATURE [READ THIS]
+    // 4 bytes encode the disk number of the zip64 EOCD record, ignore.
+    // *** 8 bytes encode the file offset of the zip64 EOCD record [READ THIS]
+    // 4 bytes encode the total number of disks, ignore.
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+      return -1;
+    }
+    skipOrDie(in, 4);
+    return read64BitUnsigned(in);
+  }
+
+  /**
+   * Parse the zip64 end-of-central-directory record and return the critical information from it.
+   * @param in the input stream to read from, assumed to start at the first byte of the record
+   * @return the metadata
+   * @throws IOException if unable to read
+   * @throws ZipException if the record is invalid or has more entries than can be handled
+   */
+  public static MinimalCentralDirectoryMetadata parseZip64Eocd(InputStream in)
+      throws IOException, ZipException {
+    // *** 4 bytes encode ZIP64_EOCD_SIGNATURE, verify for sanity
+    // 8 bytes encode the size of the remainder of the record, ignore.
+    // 2 bytes encode the version-made-by, ignore.
+    // 2 bytes encode the version-needed-to-extract, ignore.
+    // 4 bytes encode disk number for this archive, ignore.
+    // 4 bytes encode disk number for the central directory, ignore.
+    // 8 bytes encode num entries in the central directory on this disk, ignore.
+    // *** 8 bytes encode num entries in the central directory overall [READ THIS]
+    // *** 8 bytes encode the length of the central directory [READ THIS]
+    // *** 8 bytes encode the file offset of the central directory [READ THIS]
+    // The zip64 extensible data sector follows. Ignore.
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_SIGNATURE) {
+      throw new ZipException("Bad zip64 eocd header");
+    }
+    skipOrDie(in, 8 + 2 + 2 + 4 + 4 + 8);
+    long numEntriesInCentralDirectory = read64BitUnsigned(in);
+    if (numEntriesInCentralDirectory > Integer.MAX_VALUE) {
+      throw new ZipException("Too many entries: " + numEntriesInCentralDirectory);
+    }
+    long lengthOfCentralDirectory = read64BitUnsigned(in);
+    long offsetOfCentralDirectory = read64BitUnsigned(in);
+    return new MinimalCentralDirectoryMetadata(
+        (int) numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
+  }
 }
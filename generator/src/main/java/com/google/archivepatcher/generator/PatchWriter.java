@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.TypedRange;
@@ -23,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Writes patches.
@@ -49,6 +51,22 @@ public class PatchWriter {
    */
   private final File deltaFile;
 
+  /**
+   * The size of the new file to record in the patch, or -1 to leave it out.
+   */
+  private final long newFileSize;
+
+  /**
+   * The digest of the new file to record in the patch, or null to leave it out.
+   */
+  private final byte[] newFileDigest;
+
+  /**
+   * The CRC32s of the delta-friendly new file recompression ranges to record in the patch, or null
+   * to leave them out.
+   */
+  private final List<Long> recompressionCrc32s;
+
   /**
    * Creates a new patch writer.
    *
@@ -66,10 +84,84 @@ public class PatchWriter {
       long deltaFriendlyOldFileSize,
       long deltaFriendlyNewFileSize,
       File deltaFile) {
+    this(plan, deltaFriendlyOldFileSize, deltaFriendlyNewFileSize, deltaFile, -1);
+  }
+
+  /**
+   * Creates a new patch writer that optionally records the size of the new file in the patch.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided for
+   *     forward compatibility
+   * @param deltaFile the delta that transforms the old delta-friendly file into the new
+   *     delta-friendly file
+   * @param newFileSize if greater than or equal to zero, the size of the new file, recorded in the
+   *     patch with the {@link PatchConstants.PatchFlag#NEW_FILE_SIZE} flag so that the patch
+   *     <strong>applier</strong> can reserve space for the output; otherwise, nothing is recorded
+   *     and the patch remains readable by appliers that do not understand patch flags
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      File deltaFile,
+      long newFileSize) {
+    this(
+        plan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileSize,
+        deltaFile,
+        newFileSize,
+        null,
+        null);
+  }
+
+  /**
+   * Creates a new patch writer that optionally records the size and verification data of the new
+   * file in the patch.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided for
+   *     forward compatibility
+   * @param deltaFile the delta that transforms the old delta-friendly file into the new
+   *     delta-friendly file
+   * @param newFileSize if greater than or equal to zero, the size of the new file, recorded with
+   *     the {@link PatchConstants.PatchFlag#NEW_FILE_SIZE} flag
+   * @param newFileDigest if non-null, the digest of the new file computed with {@link
+   *     PatchConstants#NEW_FILE_DIGEST_ALGORITHM}, recorded with the {@link
+   *     PatchConstants.PatchFlag#NEW_FILE_DIGEST} flag
+   * @param recompressionCrc32s if non-null, the CRC32 of the uncompressed data in each range of the
+   *     plan's delta-friendly new file recompression plan, in the same order, recorded with the
+   *     {@link PatchConstants.PatchFlag#RECOMPRESSION_CRC32} flag
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      File deltaFile,
+      long newFileSize,
+      byte[] newFileDigest,
+      List<Long> recompressionCrc32s) {
+    if (newFileDigest != null && newFileDigest.length != PatchConstants.NEW_FILE_DIGEST_LENGTH) {
+      throw new IllegalArgumentException("bad new file digest length: " + newFileDigest.length);
+    }
+    if (recompressionCrc32s != null
+        && recompressionCrc32s.size() != plan.getDeltaFriendlyNewFileRecompressionPlan().size()) {
+      throw new IllegalArgumentException("one CRC32 is required per recompression range");
+    }
     this.plan = plan;
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
     this.deltaFile = deltaFile;
+    this.newFileSize = newFileSize;
+    this.newFileDigest = newFileDigest;
+    this.recompressionCrc32s = recompressionCrc32s;
   }
 
   /**
@@ -79,6 +171,27 @@ public class PatchWriter {
    * @throws IOException if anything goes wrong
    */
   public void writePatch(OutputStream out) throws IOException {
+    writePatch(out, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Write a patch to the specified output stream, reporting the {@link
+   * GenerationListener.Phase#PATCH_WRITING} phase to the specified listener. The bytes in are the
+   * size of the delta; the bytes out are the size of the patch.
+   *
+   * @param out the stream to write the patch to
+   * @param listener the listener to report to
+   * @throws IOException if anything goes wrong
+   */
+  public void writePatch(OutputStream out, GenerationListener listener) throws IOException {
+    GenerationPhaseTimer timer =
+        GenerationPhaseTimer.start(listener, GenerationListener.Phase.PATCH_WRITING);
+    CountingOutputStream countingOut = new CountingOutputStream(out);
+    writePatchTo(countingOut);
+    timer.stop(deltaFile.length(), countingOut.getNumBytesWritten());
+  }
+
+  private void writePatchTo(OutputStream out) throws IOException {
     // Use DataOutputStream for ease of writing. This is deliberately left open, as closing it would
     // close the output stream that was passed in and that is not part of the method's documented
     // behavior.
@@ -86,8 +199,24 @@ public class PatchWriter {
     DataOutputStream dataOut = new DataOutputStream(out);
 
     dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
-    dataOut.writeInt(0); // Flags (reserved)
+    int flags = 0;
+    if (newFileSize >= 0) {
+      flags |= PatchConstants.PatchFlag.NEW_FILE_SIZE.mask;
+    }
+    if (newFileDigest != null) {
+      flags |= PatchConstants.PatchFlag.NEW_FILE_DIGEST.mask;
+    }
+    if (recompressionCrc32s != null) {
+      flags |= PatchConstants.PatchFlag.RECOMPRESSION_CRC32.mask;
+    }
+    dataOut.writeInt(flags);
     dataOut.writeLong(deltaFriendlyOldFileSize);
+    if (newFileSize >= 0) {
+      dataOut.writeLong(newFileSize);
+    }
+    if (newFileDigest != null) {
+      dataOut.write(newFileDigest);
+    }
 
     // Write out all the delta-friendly old file uncompression instructions
     dataOut.writeInt(plan.getOldFileUncompressionPlan().size());
@@ -97,8 +226,11 @@ public class PatchWriter {
     }
 
     // Write out all the delta-friendly new file recompression instructions
-    dataOut.writeInt(plan.getDeltaFriendlyNewFileRecompressionPlan().size());
-    for (TypedRange<JreDeflateParameters> range : plan.getDeltaFriendlyNewFileRecompressionPlan()) {
+    List<TypedRange<JreDeflateParameters>> recompressionPlan =
+        plan.getDeltaFriendlyNewFileRecompressionPlan();
+    dataOut.writeInt(recompressionPlan.size());
+    for (int x = 0; x < recompressionPlan.size(); x++) {
+      TypedRange<JreDeflateParameters> range = recompressionPlan.get(x);
       dataOut.writeLong(range.getOffset());
       dataOut.writeLong(range.getLength());
       // Write the deflate information
@@ -106,6 +238,9 @@ public class PatchWriter {
       dataOut.write(range.getMetadata().level);
       dataOut.write(range.getMetadata().strategy);
       dataOut.write(range.getMetadata().nowrap ? 1 : 0);
+      if (recompressionCrc32s != null) {
+        dataOut.writeInt((int) recompressionCrc32s.get(x).longValue());
+      }
     }
 
     // Now the delta section
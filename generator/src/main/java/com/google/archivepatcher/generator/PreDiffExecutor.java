@@ -14,7 +14,8 @@
 
 package com.google.archivepatcher.generator;
 
-import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
@@ -27,10 +28,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -45,8 +44,10 @@ public class PreDiffExecutor {
 
     private ByteSource originalOldBlob;
     private ByteSource originalNewBlob;
+    private PreparedNewArchive preparedNewArchive;
     private File deltaFriendlyOldFile;
     private File deltaFriendlyNewFile;
+    private GenerationListener generationListener = GenerationListener.NO_OP;
 
     /**
      * Sets the original, read-only input files to the patch generation process. This has to be
@@ -61,6 +62,26 @@ public class PreDiffExecutor {
       }
       this.originalOldBlob = originalOldBlob;
       this.originalNewBlob = originalNewBlob;
+      this.preparedNewArchive = null;
+      return this;
+    }
+
+    /**
+     * Like {@link #readingOriginalFiles(ByteSource, ByteSource)}, but with a new archive that has
+     * already been parsed and divined, so that neither is repeated. Both arguments must be
+     * non-null.
+     *
+     * @param originalOldBlob the original old blob to read (will not be modified).
+     * @param preparedNewArchive the prepared original new blob to read (will not be modified).
+     */
+    public Builder readingOriginalFiles(
+        ByteSource originalOldBlob, PreparedNewArchive preparedNewArchive) {
+      if (originalOldBlob == null || preparedNewArchive == null) {
+        throw new IllegalStateException("do not set null original input files");
+      }
+      this.originalOldBlob = originalOldBlob;
+      this.originalNewBlob = preparedNewArchive.getBlob();
+      this.preparedNewArchive = preparedNewArchive;
       return this;
     }
 
@@ -121,6 +142,20 @@ public class PreDiffExecutor {
       return this;
     }
 
+    /**
+     * Sets the {@link GenerationListener} to report the phases of planning and the plan made for
+     * each entry to. Defaults to {@link GenerationListener#NO_OP}.
+     *
+     * @param generationListener the listener to set
+     */
+    public Builder withGenerationListener(GenerationListener generationListener) {
+      if (generationListener == null) {
+        throw new IllegalArgumentException("generationListener cannot be null");
+      }
+      this.generationListener = generationListener;
+      return this;
+    }
+
     /**
      * Builds and returns a {@link PreDiffExecutor} according to the currnet configuration.
      */
@@ -132,10 +167,12 @@ public class PreDiffExecutor {
       return new PreDiffExecutor(
           originalOldBlob,
           originalNewBlob,
+          preparedNewArchive,
           deltaFriendlyOldFile,
           deltaFriendlyNewFile,
           preDiffPlanEntryModifiers,
-          supportedDeltaFormats);
+          supportedDeltaFormats,
+          generationListener);
     }
   }
 
@@ -145,6 +182,9 @@ public class PreDiffExecutor {
   /** The original new file to read (will not be modified). */
   private final ByteSource originalNewBlob;
 
+  /** The original new file, already parsed and divined, or null if it has not been. */
+  private final PreparedNewArchive preparedNewArchive;
+
   /**
    * Optional file to write the delta-friendly version of the original old file to (will be created,
    * overwriting if it already exists). If null, only the read-only planning step can be performed.
@@ -165,20 +205,27 @@ public class PreDiffExecutor {
   /** {@link DeltaFormat}s supported for generating the patch. */
   private final Set<DeltaFormat> supportedDeltaFormats;
 
+  /** The listener to report the phases of planning to. */
+  private final GenerationListener generationListener;
+
   /** Constructs a new PreDiffExecutor to work with the specified configuration. */
   private PreDiffExecutor(
       ByteSource originalOldBlob,
       ByteSource originalNewBlob,
+      PreparedNewArchive preparedNewArchive,
       File deltaFriendlyOldFile,
       File deltaFriendlyNewFile,
       List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers,
-      Set<DeltaFormat> supportedDeltaFormats) {
+      Set<DeltaFormat> supportedDeltaFormats,
+      GenerationListener generationListener) {
     this.originalOldBlob = originalOldBlob;
     this.originalNewBlob = originalNewBlob;
+    this.preparedNewArchive = preparedNewArchive;
     this.deltaFriendlyOldFile = deltaFriendlyOldFile;
     this.deltaFriendlyNewFile = deltaFriendlyNewFile;
     this.preDiffPlanEntryModifiers = preDiffPlanEntryModifiers;
     this.supportedDeltaFormats = supportedDeltaFormats;
+    this.generationListener = generationListener;
   }
 
   /**
@@ -211,16 +258,29 @@ public class PreDiffExecutor {
    */
   private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(PreDiffPlan preDiffPlan)
       throws IOException {
-    try (BufferedOutputStream bufferedOut =
-        new BufferedOutputStream(new FileOutputStream(deltaFriendlyOldFile))) {
+    GenerationPhaseTimer timer =
+        GenerationPhaseTimer.start(generationListener, Phase.DELTA_FRIENDLY_EXPANSION);
+    long bytesOut = 0;
+    try (CountingOutputStream countingOut =
+            new CountingOutputStream(new FileOutputStream(deltaFriendlyOldFile));
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(countingOut)) {
       DeltaFriendlyFile.generateDeltaFriendlyFile(
           preDiffPlan.getOldFileUncompressionPlan(), originalOldBlob, bufferedOut);
+      bufferedOut.flush();
+      bytesOut += countingOut.getNumBytesWritten();
     }
-    try (BufferedOutputStream bufferedOut =
-        new BufferedOutputStream(new FileOutputStream(deltaFriendlyNewFile))) {
-      return DeltaFriendlyFile.generateDeltaFriendlyFile(
-          preDiffPlan.getNewFileUncompressionPlan(), originalNewBlob, bufferedOut);
+    List<TypedRange<JreDeflateParameters>> recompressionPlan;
+    try (CountingOutputStream countingOut =
+            new CountingOutputStream(new FileOutputStream(deltaFriendlyNewFile));
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(countingOut)) {
+      recompressionPlan =
+          DeltaFriendlyFile.generateDeltaFriendlyFile(
+              preDiffPlan.getNewFileUncompressionPlan(), originalNewBlob, bufferedOut);
+      bufferedOut.flush();
+      bytesOut += countingOut.getNumBytesWritten();
     }
+    timer.stop(originalOldBlob.length() + originalNewBlob.length(), bytesOut);
+    return recompressionPlan;
   }
 
   /**
@@ -232,37 +292,37 @@ public class PreDiffExecutor {
    * @throws IOException if anything goes wrong
    */
   private PreDiffPlan generatePreDiffPlan() throws IOException {
-    List<MinimalZipEntry> originalOldArchiveZipEntries =
-        MinimalZipArchive.listEntries(originalOldBlob);
-    Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
-        new HashMap<ByteArrayHolder, MinimalZipEntry>(originalOldArchiveZipEntries.size());
-    for (MinimalZipEntry zipEntry : originalOldArchiveZipEntries) {
-      ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
-      originalOldArchiveZipEntriesByPath.put(key, zipEntry);
-    }
-
-    List<DivinationResult> divinationResults =
-        DefaultDeflateCompressionDiviner.divineDeflateParameters(originalNewBlob);
-    Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
-        new HashMap<ByteArrayHolder, MinimalZipEntry>(divinationResults.size());
-    Map<ByteArrayHolder, JreDeflateParameters> originalNewArchiveJreDeflateParametersByPath =
-        new HashMap<ByteArrayHolder, JreDeflateParameters>(divinationResults.size());
-    for (DivinationResult divinationResult : divinationResults) {
-      ByteArrayHolder key =
-          new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
-      originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
-      originalNewArchiveJreDeflateParametersByPath.put(key, divinationResult.divinedParameters);
+    GenerationPhaseTimer timer = GenerationPhaseTimer.start(generationListener, Phase.PARSING);
+    ZipEntryTable originalOldArchiveZipEntries = ZipEntryTable.read(originalOldBlob);
+    ZipEntryTable originalNewArchiveZipEntries;
+    JreDeflateParameters[] originalNewArchiveJreDeflateParameters;
+    if (preparedNewArchive != null) {
+      timer.stop(originalOldBlob.length(), 0);
+      originalNewArchiveZipEntries = preparedNewArchive.getZipEntries();
+      originalNewArchiveJreDeflateParameters = preparedNewArchive.getDeflateParameters();
+    } else {
+      originalNewArchiveZipEntries = ZipEntryTable.read(originalNewBlob);
+      timer.stop(originalOldBlob.length() + originalNewBlob.length(), 0);
+      originalNewArchiveJreDeflateParameters =
+          DefaultDeflateCompressionDiviner.divineDeflateParameters(
+              originalNewBlob, originalNewArchiveZipEntries, generationListener);
     }
 
+    timer = GenerationPhaseTimer.start(generationListener, Phase.PLANNING);
     PreDiffPlanner preDiffPlanner =
         new PreDiffPlanner(
             originalOldBlob,
-            originalOldArchiveZipEntriesByPath,
+            originalOldArchiveZipEntries,
             originalNewBlob,
-            originalNewArchiveZipEntriesByPath,
-            originalNewArchiveJreDeflateParametersByPath,
+            originalNewArchiveZipEntries,
+            originalNewArchiveJreDeflateParameters,
             preDiffPlanEntryModifiers,
             supportedDeltaFormats);
-    return preDiffPlanner.generatePreDiffPlan();
+    PreDiffPlan preDiffPlan = preDiffPlanner.generatePreDiffPlan();
+    timer.stop(0, 0);
+    for (PreDiffPlanEntry entry : preDiffPlan.getPreDiffPlanEntries()) {
+      generationListener.onEntryPlanned(entry.getUncompressionOptionExplanation());
+    }
+    return preDiffPlan;
   }
 }
@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
 import java.util.Objects;
 
@@ -47,6 +48,9 @@ public class PreDiffPlanEntry {
   /** The explanation for {@link #deltaFormat}. */
   private final DeltaFormatExplanation deltaFormatExplanation;
 
+  /** The divined deflate parameters of the new entry, if known. */
+  private final JreDeflateParameters newJreDeflateParameters;
+
   /**
    * Construct a new qualified zipEntryUncompressionOption with the specified data.
    *
@@ -56,6 +60,7 @@ public class PreDiffPlanEntry {
    * @param uncompressionOptionExplanation the uncompressionOptionExplanation for the
    * @param deltaFormat delta format for this pair of entries
    * @param deltaFormatExplanation explanation for the {@code deltaFormat}
+   * @param newJreDeflateParameters the divined deflate parameters of the new entry, or null
    */
   private PreDiffPlanEntry(
       MinimalZipEntry oldEntry,
@@ -63,13 +68,15 @@ public class PreDiffPlanEntry {
       ZipEntryUncompressionOption zipEntryUncompressionOption,
       UncompressionOptionExplanation uncompressionOptionExplanation,
       DeltaFormat deltaFormat,
-      DeltaFormatExplanation deltaFormatExplanation) {
+      DeltaFormatExplanation deltaFormatExplanation,
+      JreDeflateParameters newJreDeflateParameters) {
     this.oldEntry = oldEntry;
     this.newEntry = newEntry;
     this.zipEntryUncompressionOption = zipEntryUncompressionOption;
     this.uncompressionOptionExplanation = uncompressionOptionExplanation;
     this.deltaFormat = deltaFormat;
     this.deltaFormatExplanation = deltaFormatExplanation;
+    this.newJreDeflateParameters = newJreDeflateParameters;
   }
 
   /**
@@ -116,6 +123,14 @@ public class PreDiffPlanEntry {
     return deltaFormatExplanation;
   }
 
+  /**
+   * Returns the divined deflate parameters of the new entry, which are needed to recompress it, or
+   * null if the new entry is not deflate-compressed or its parameters could not be divined.
+   */
+  public JreDeflateParameters getNewJreDeflateParameters() {
+    return newJreDeflateParameters;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hash(
@@ -124,7 +139,8 @@ public class PreDiffPlanEntry {
         zipEntryUncompressionOption,
         uncompressionOptionExplanation,
         deltaFormat,
-        deltaFormatExplanation);
+        deltaFormatExplanation,
+        newJreDeflateParameters);
   }
 
   @Override
@@ -141,7 +157,8 @@ public class PreDiffPlanEntry {
         && zipEntryUncompressionOption == otherEntry.zipEntryUncompressionOption
         && uncompressionOptionExplanation == otherEntry.uncompressionOptionExplanation
         && deltaFormat == otherEntry.deltaFormat
-        && deltaFormatExplanation == otherEntry.deltaFormatExplanation;
+        && deltaFormatExplanation == otherEntry.deltaFormatExplanation
+        && newJreDeflateParameters == otherEntry.newJreDeflateParameters;
   }
 
   @Override
@@ -158,6 +175,8 @@ public class PreDiffPlanEntry {
         + deltaFormat
         + ", deltaFormatExplanation="
         + deltaFormatExplanation
+        + ", newJreDeflateParameters="
+        + newJreDeflateParameters
         + "]";
   }
 
@@ -169,6 +188,7 @@ public class PreDiffPlanEntry {
     private UncompressionOptionExplanation uncompressionOptionExplanation;
     private DeltaFormat deltaFormat;
     private DeltaFormatExplanation deltaFormatExplanation;
+    private JreDeflateParameters newJreDeflateParameters;
 
     private Builder() {}
 
@@ -195,6 +215,12 @@ public class PreDiffPlanEntry {
       return this;
     }
 
+    /** Sets the divined deflate parameters of the new entry; null if unknown. */
+    public Builder setNewJreDeflateParameters(JreDeflateParameters newJreDeflateParameters) {
+      this.newJreDeflateParameters = newJreDeflateParameters;
+      return this;
+    }
+
     /** Builds the {@link PreDiffPlanEntry}. */
     public PreDiffPlanEntry build() {
       if (oldEntry == null || newEntry == null) {
@@ -212,7 +238,8 @@ public class PreDiffPlanEntry {
           zipEntryUncompressionOption,
           uncompressionOptionExplanation,
           deltaFormat,
-          deltaFormatExplanation);
+          deltaFormatExplanation,
+          newJreDeflateParameters);
     }
   }
 
@@ -226,6 +253,7 @@ public class PreDiffPlanEntry {
     return new Builder()
         .setZipEntries(oldEntry, newEntry)
         .setUncompressionOption(zipEntryUncompressionOption, uncompressionOptionExplanation)
-        .setDeltaFormat(deltaFormat, deltaFormatExplanation);
+        .setDeltaFormat(deltaFormat, deltaFormatExplanation)
+        .setNewJreDeflateParameters(newJreDeflateParameters);
   }
 }
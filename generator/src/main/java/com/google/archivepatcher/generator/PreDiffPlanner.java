@@ -38,6 +38,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -56,19 +57,20 @@ class PreDiffPlanner {
   private final ByteSource newFile;
 
   /**
-   * The entries in the old archive, with paths as keys.
+   * The entries in the old archive.
    */
-  private final Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath;
+  private final ZipEntryTable oldArchiveZipEntries;
 
   /**
-   * The entries in the new archive, with paths as keys.
+   * The entries in the new archive.
    */
-  private final Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath;
+  private final ZipEntryTable newArchiveZipEntries;
 
   /**
-   * The divined parameters for compression of the entries in the new archive, with paths as keys.
+   * The divined parameters for compression of the entries in the new archive, indexed like {@link
+   * #newArchiveZipEntries}.
    */
-  private final Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath;
+  private final JreDeflateParameters[] newArchiveJreDeflateParameters;
 
   /**
    * Optional {@link PreDiffPlanEntryModifier}s that will be applied after the default {@link
@@ -97,14 +99,60 @@ class PreDiffPlanner {
       Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
       List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers,
       Set<DeltaFormat> supportedDeltaFormats) {
+    this(
+        oldFile,
+        ZipEntryTable.of(oldArchiveZipEntriesByPath.values()),
+        newFile,
+        ZipEntryTable.of(newArchiveZipEntriesByPath.values()),
+        toArray(newArchiveZipEntriesByPath.values(), newArchiveJreDeflateParametersByPath),
+        preDiffPlanEntryModifiers,
+        supportedDeltaFormats);
+  }
+
+  /**
+   * Constructs a new planner that will work on the specified inputs
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveZipEntries the entries in the old archive
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newArchiveZipEntries the entries in the new archive
+   * @param newArchiveJreDeflateParameters the {@link JreDeflateParameters} for each entry in the
+   *     new archive, indexed like newArchiveZipEntries
+   * @param preDiffPlanEntryModifiers optionally, {@link PreDiffPlanEntryModifier}s to be applied
+   *     after the default {@link PreDiffPlanEntry}s have been made but before the {@link
+   *     PreDiffPlan} is generated in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      ByteSource oldFile,
+      ZipEntryTable oldArchiveZipEntries,
+      ByteSource newFile,
+      ZipEntryTable newArchiveZipEntries,
+      JreDeflateParameters[] newArchiveJreDeflateParameters,
+      List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers,
+      Set<DeltaFormat> supportedDeltaFormats) {
     this.oldFile = oldFile;
-    this.oldArchiveZipEntriesByPath = oldArchiveZipEntriesByPath;
+    this.oldArchiveZipEntries = oldArchiveZipEntries;
     this.newFile = newFile;
-    this.newArchiveZipEntriesByPath = newArchiveZipEntriesByPath;
-    this.newArchiveJreDeflateParametersByPath = newArchiveJreDeflateParametersByPath;
+    this.newArchiveZipEntries = newArchiveZipEntries;
+    this.newArchiveJreDeflateParameters = newArchiveJreDeflateParameters;
     this.preDiffPlanEntryModifiers = preDiffPlanEntryModifiers;
   }
 
+  /**
+   * Converts parameters keyed by path into an array indexed like {@link ZipEntryTable#of(
+   * java.util.Collection)} would index the specified entries.
+   */
+  private static JreDeflateParameters[] toArray(
+      Collection<MinimalZipEntry> entries,
+      Map<ByteArrayHolder, JreDeflateParameters> parametersByPath) {
+    JreDeflateParameters[] result = new JreDeflateParameters[entries.size()];
+    int index = 0;
+    for (MinimalZipEntry entry : entries) {
+      result[index++] = parametersByPath.get(new ByteArrayHolder(entry.getFileNameBytes()));
+    }
+    return result;
+  }
+
   /**
    * Generates and returns the plan for archive transformations to be made prior to differencing.
    * The resulting {@link PreDiffPlan} has the old and new file uncompression plans set. The
@@ -133,8 +181,7 @@ class PreDiffPlanner {
         long offset = entry.getNewEntry().getFileOffsetOfCompressedData();
         long length = entry.getNewEntry().getCompressedSize();
         JreDeflateParameters newJreDeflateParameters =
-            newArchiveJreDeflateParametersByPath.get(
-                new ByteArrayHolder(entry.getNewEntry().getFileNameBytes()));
+            getNewJreDeflateParameters(entry.getNewEntry());
         TypedRange<JreDeflateParameters> range =
             new TypedRange<JreDeflateParameters>(offset, length, newJreDeflateParameters);
         newFilePlan.add(range);
@@ -163,20 +210,29 @@ class PreDiffPlanner {
 
     // This will be used to find files that have been renamed, but not modified. This is relatively
     // cheap to construct as it just requires indexing all entries by the uncompressed CRC32, and
-    // the CRC32 is already available in the ZIP headers.
-    SimilarityFinder trivialRenameFinder =
-        new Crc32SimilarityFinder(oldFile, oldArchiveZipEntriesByPath.values());
+    // the CRC32 is already available in the ZIP headers. It is only built if some path in the new
+    // archive is missing from the old archive.
+    SimilarityFinder trivialRenameFinder = null;
 
     // Iterate over every pair of entries and get a PreDiffPlanEntry
-    for (Map.Entry<ByteArrayHolder, MinimalZipEntry> newEntry :
-        newArchiveZipEntriesByPath.entrySet()) {
-      ByteArrayHolder newEntryPath = newEntry.getKey();
-      MinimalZipEntry oldZipEntry = oldArchiveZipEntriesByPath.get(newEntryPath);
-      if (oldZipEntry == null) {
+    for (int newIndex = 0; newIndex < newArchiveZipEntries.getNumEntries(); newIndex++) {
+      if (newArchiveZipEntries.indexOf(newArchiveZipEntries, newIndex) != newIndex) {
+        // A later entry has the same path; only the last entry with a path is planned.
+        continue;
+      }
+      MinimalZipEntry newZipEntry = newArchiveZipEntries.toMinimalZipEntry(newIndex);
+      MinimalZipEntry oldZipEntry = null;
+      int oldIndex = oldArchiveZipEntries.indexOf(newArchiveZipEntries, newIndex);
+      if (oldIndex != ZipEntryTable.NOT_FOUND) {
+        oldZipEntry = oldArchiveZipEntries.toMinimalZipEntry(oldIndex);
+      } else {
         // The path is only present in the new archive, not in the old archive. Try to find a
         // similar file in the old archive that can serve as a diff base for the new file.
+        if (trivialRenameFinder == null) {
+          trivialRenameFinder = new Crc32SimilarityFinder(oldFile, listOldArchiveZipEntries());
+        }
         List<MinimalZipEntry> identicalEntriesInOldArchive =
-            trivialRenameFinder.findSimilarFiles(newFile, newEntry.getValue());
+            trivialRenameFinder.findSimilarFiles(newFile, newZipEntry);
         if (!identicalEntriesInOldArchive.isEmpty()) {
           // An identical file exists in the old archive at a different path. Use it for the
           // PreDiffPlanEntry and carry on with the normal logic.
@@ -193,26 +249,58 @@ class PreDiffPlanner {
       // null (nothing to do in that case). Otherwise, there is an old entry that is relevant, so
       // get a PreDiffPlanEntry for what to do.
       if (oldZipEntry != null) {
-        entries.add(getPreDiffPlanEntry(oldZipEntry, newEntry.getValue()));
+        JreDeflateParameters newJreDeflateParameters = newArchiveJreDeflateParameters[newIndex];
+        entries.add(getPreDiffPlanEntry(oldZipEntry, newZipEntry, newJreDeflateParameters));
       }
     }
     return entries;
   }
 
+  /**
+   * Returns the entries in the old archive, one per path.
+   * @return as described
+   */
+  private List<MinimalZipEntry> listOldArchiveZipEntries() {
+    List<MinimalZipEntry> result = new ArrayList<>(oldArchiveZipEntries.getNumEntries());
+    for (int oldIndex = 0; oldIndex < oldArchiveZipEntries.getNumEntries(); oldIndex++) {
+      if (oldArchiveZipEntries.indexOf(oldArchiveZipEntries, oldIndex) == oldIndex) {
+        result.add(oldArchiveZipEntries.toMinimalZipEntry(oldIndex));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the divined parameters for the specified entry in the new archive.
+   * @param newEntry the entry in the new archive
+   * @return the parameters, or null if there are none
+   */
+  private JreDeflateParameters getNewJreDeflateParameters(MinimalZipEntry newEntry) {
+    int newIndex = newArchiveZipEntries.indexOf(newEntry.getFileNameBytes());
+    return newIndex == ZipEntryTable.NOT_FOUND ? null : newArchiveJreDeflateParameters[newIndex];
+  }
+
   /**
    * Determines the right {@link PreDiffPlanEntry} for handling the (oldEntry, newEntry) tuple.
    *
    * @param oldEntry the entry in the old archive
    * @param newEntry the entry in the new archive
+   * @param newJreDeflateParameters the divined parameters of the new entry, if any
    * @return the {@link PreDiffPlanEntry}
    * @throws IOException if there are any problems reading the input files
    */
-  private PreDiffPlanEntry getPreDiffPlanEntry(MinimalZipEntry oldEntry, MinimalZipEntry newEntry)
+  private PreDiffPlanEntry getPreDiffPlanEntry(
+      MinimalZipEntry oldEntry,
+      MinimalZipEntry newEntry,
+      JreDeflateParameters newJreDeflateParameters)
       throws IOException {
 
-    PreDiffPlanEntry.Builder builder = PreDiffPlanEntry.builder().setZipEntries(oldEntry, newEntry);
+    PreDiffPlanEntry.Builder builder =
+        PreDiffPlanEntry.builder()
+            .setZipEntries(oldEntry, newEntry)
+            .setNewJreDeflateParameters(newJreDeflateParameters);
 
-    setUncompressionOption(builder, oldEntry, newEntry);
+    setUncompressionOption(builder, oldEntry, newEntry, newJreDeflateParameters);
 
     setDeltaFormat(builder);
 
@@ -220,7 +308,10 @@ class PreDiffPlanner {
   }
 
   private void setUncompressionOption(
-      PreDiffPlanEntry.Builder builder, MinimalZipEntry oldEntry, MinimalZipEntry newEntry)
+      PreDiffPlanEntry.Builder builder,
+      MinimalZipEntry oldEntry,
+      MinimalZipEntry newEntry,
+      JreDeflateParameters newJreDeflateParameters)
       throws IOException {
     // Below we try to find the suitable uncompression settings. It generally follows this logic:
     // 1. If either old and new are unsuitable for uncompression, we leave them untouched.
@@ -229,7 +320,7 @@ class PreDiffPlanner {
 
     // 1. If either old and new are unsuitable for uncompression, we leave them untouched.
     // Reason singled out in order to monitor unsupported versions of zlib.
-    if (unsuitableDeflate(newEntry)) {
+    if (unsuitableDeflate(newEntry, newJreDeflateParameters)) {
       builder.setUncompressionOption(UNCOMPRESS_NEITHER, DEFLATE_UNSUITABLE);
     } else if (unsuitable(oldEntry, newEntry)) {
       builder.setUncompressionOption(UNCOMPRESS_NEITHER, UNSUITABLE);
@@ -285,11 +376,11 @@ class PreDiffPlanner {
    * of an unsupported version of zlib being used.
    *
    * @param newEntry the entry in the new archive
+   * @param newJreDeflateParameters the divined parameters of the new entry, if any
    * @return true if unsuitable
    */
-  private boolean unsuitableDeflate(MinimalZipEntry newEntry) {
-    JreDeflateParameters newJreDeflateParameters =
-        newArchiveJreDeflateParametersByPath.get(new ByteArrayHolder(newEntry.getFileNameBytes()));
+  private boolean unsuitableDeflate(
+      MinimalZipEntry newEntry, JreDeflateParameters newJreDeflateParameters) {
     if (newEntry.isDeflateCompressed() && newJreDeflateParameters == null) {
       // The new entry is compressed via deflate, but the parameters were undivinable. Therefore the
       // new entry cannot be recompressed, so leave both old and new alone.
@@ -364,7 +455,7 @@ class PreDiffPlanner {
         BufferedInputStream newFileBufferedInputStream =
             new BufferedInputStream(newFileInputStream)) {
 
-      for (int i = 0; i < oldEntry.getCompressedSize(); ++i) {
+      for (long i = 0; i < oldEntry.getCompressedSize(); ++i) {
         if (oldFileBufferedInputStream.read() != newFileBufferedInputStream.read()) {
           return false;
         }
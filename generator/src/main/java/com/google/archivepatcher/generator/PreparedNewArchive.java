@@ -0,0 +1,109 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+
+/**
+ * A new archive that has been parsed and whose deflate parameters have been divined, ready to be
+ * diffed against any number of old archives. Divination is the most expensive part of planning,
+ * and it depends only on the new archive, so generating patches from many old archives to the
+ * same new archive only needs to do it once (see {@link BatchDeltaGenerator}).
+ *
+ * <p>Instances are immutable. They can be used by concurrent generations if the blob can be read
+ * concurrently, as blobs from {@link ByteSource#fromFile(java.io.File)} can. The blob is not owned
+ * by the instance and must be kept open while it is in use.
+ */
+public final class PreparedNewArchive {
+  /** The new archive. */
+  private final ByteSource blob;
+
+  /** The entries of the new archive. */
+  private final ZipEntryTable zipEntries;
+
+  /** The deflate parameters divined for each entry, or null where none were found. */
+  private final JreDeflateParameters[] deflateParameters;
+
+  private PreparedNewArchive(
+      ByteSource blob, ZipEntryTable zipEntries, JreDeflateParameters[] deflateParameters) {
+    this.blob = blob;
+    this.zipEntries = zipEntries;
+    this.deflateParameters = deflateParameters;
+  }
+
+  /**
+   * Parses the specified new archive and divines the deflate parameters of its entries.
+   *
+   * @param newBlob the new archive (will not be modified)
+   * @return the prepared archive
+   * @throws IOException if unable to read or parse the archive
+   */
+  public static PreparedNewArchive prepare(ByteSource newBlob) throws IOException {
+    return prepare(newBlob, GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #prepare(ByteSource)}, reporting the parsing and divination phases to the
+   * specified listener.
+   *
+   * @param newBlob the new archive (will not be modified)
+   * @param listener the listener to report to
+   * @return the prepared archive
+   * @throws IOException if unable to read or parse the archive
+   */
+  public static PreparedNewArchive prepare(ByteSource newBlob, GenerationListener listener)
+      throws IOException {
+    GenerationPhaseTimer timer = GenerationPhaseTimer.start(listener, Phase.PARSING);
+    ZipEntryTable zipEntries = ZipEntryTable.read(newBlob);
+    timer.stop(newBlob.length(), 0);
+    JreDeflateParameters[] deflateParameters =
+        DefaultDeflateCompressionDiviner.divineDeflateParameters(newBlob, zipEntries, listener);
+    return new PreparedNewArchive(newBlob, zipEntries, deflateParameters);
+  }
+
+  /**
+   * Returns a prepared archive with the same entries and deflate parameters as this one but reading
+   * from another blob, such as the same file opened again. This lets a preparation be kept for
+   * longer than the blob it was made from. The caller is responsible for ensuring that the blob has
+   * exactly the same content; for instance, by comparing digests.
+   *
+   * @param sameContentBlob a blob with the same content as this archive's
+   * @return the prepared archive
+   */
+  public PreparedNewArchive withBlob(ByteSource sameContentBlob) {
+    if (sameContentBlob.length() != blob.length()) {
+      throw new IllegalArgumentException(
+          "blob length differs: " + sameContentBlob.length() + " != " + blob.length());
+    }
+    return new PreparedNewArchive(sameContentBlob, zipEntries, deflateParameters);
+  }
+
+  /** Returns the new archive. */
+  public ByteSource getBlob() {
+    return blob;
+  }
+
+  /** Returns the entries of the new archive. */
+  ZipEntryTable getZipEntries() {
+    return zipEntries;
+  }
+
+  /** Returns the deflate parameters divined for each entry, or null where none were found. */
+  JreDeflateParameters[] getDeflateParameters() {
+    return deflateParameters;
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Estimates how long it takes to recompress an entry at patch-apply time, from the entry's
+ * uncompressed size and the {@link JreDeflateParameters} it must be recompressed with. The cost of
+ * deflate varies by an order of magnitude across levels and strategies, so the model holds a
+ * separate cost per byte for each set of parameters.
+ *
+ * <p>The costs are best measured on the devices that will apply patches, with {@link
+ * DeflateThroughputCalibration#calibrate()}, and loaded with {@link
+ * #fromCalibration(DeflateThroughputCalibration)}. Alternatively, they can be measured on the
+ * current machine with {@link #calibrate(byte[], int)} and, since patches are usually generated on
+ * much faster machines than the devices that apply them, scaled with {@link #scaledBy(double)}.
+ */
+public class RecompressionCostModel {
+  /**
+   * The cost of recompression per uncompressed byte, in nanoseconds, for each set of parameters.
+   */
+  private final Map<JreDeflateParameters, Double> nanosPerByte;
+
+  /**
+   * The highest cost per byte in {@link #nanosPerByte}, used when the parameters are unknown.
+   */
+  private final double maxNanosPerByte;
+
+  /**
+   * Creates a model with the specified costs.
+   *
+   * @param nanosPerByte the cost of recompression per uncompressed byte, in nanoseconds, for every
+   *     value of {@link JreDeflateParameters}; each cost must be positive
+   */
+  public RecompressionCostModel(Map<JreDeflateParameters, Double> nanosPerByte) {
+    EnumMap<JreDeflateParameters, Double> copy =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    double max = 0;
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      Double cost = nanosPerByte.get(parameters);
+      if (cost == null || !(cost > 0)) {
+        throw new IllegalArgumentException(
+            "Missing or invalid cost for " + parameters + ": " + cost);
+      }
+      copy.put(parameters, cost);
+      max = Math.max(max, cost);
+    }
+    this.nanosPerByte = Collections.unmodifiableMap(copy);
+    this.maxNanosPerByte = max;
+  }
+
+  /**
+   * Measures the cost of recompression on the current machine by compressing the specified sample
+   * with every set of parameters. See {@link DeflateThroughputCalibration#calibrate(byte[], int)}.
+   *
+   * @param sample the data to compress, which should be representative of the content of the
+   *     archives to be patched; tens of kilobytes are enough
+   * @param iterations the number of timed compressions per set of parameters
+   * @return the model
+   * @throws IOException if compression fails
+   */
+  public static RecompressionCostModel calibrate(byte[] sample, int iterations)
+      throws IOException {
+    return fromCalibration(DeflateThroughputCalibration.calibrate(sample, iterations));
+  }
+
+  /**
+   * Creates a model from a table of throughputs, typically measured on the devices that will apply
+   * patches and read with {@link DeflateThroughputCalibration#readFrom(java.io.InputStream)}.
+   *
+   * @param calibration the table
+   * @return the model
+   */
+  public static RecompressionCostModel fromCalibration(DeflateThroughputCalibration calibration) {
+    Map<JreDeflateParameters, Double> nanosPerByte =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      nanosPerByte.put(parameters, 1e9d / calibration.getBytesPerSecond(parameters));
+    }
+    return new RecompressionCostModel(nanosPerByte);
+  }
+
+  /**
+   * Returns a copy of this model with every cost multiplied by the specified factor, e.g. to
+   * project costs measured on a fast machine onto a slower device.
+   *
+   * @param factor the factor; must be positive
+   * @return the scaled model
+   */
+  public RecompressionCostModel scaledBy(double factor) {
+    if (!(factor > 0)) {
+      throw new IllegalArgumentException("factor must be > 0: " + factor);
+    }
+    Map<JreDeflateParameters, Double> scaled =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (Map.Entry<JreDeflateParameters, Double> entry : nanosPerByte.entrySet()) {
+      scaled.put(entry.getKey(), entry.getValue() * factor);
+    }
+    return new RecompressionCostModel(scaled);
+  }
+
+  /**
+   * Returns the cost of recompression per uncompressed byte with the specified parameters.
+   *
+   * @param parameters the parameters, or null if unknown, in which case the highest cost of any
+   *     parameters is returned
+   * @return the cost, in nanoseconds
+   */
+  public double getNanosPerByte(JreDeflateParameters parameters) {
+    return parameters == null ? maxNanosPerByte : nanosPerByte.get(parameters);
+  }
+
+  /**
+   * Estimates the time needed to recompress an entry.
+   *
+   * @param parameters the parameters the entry is compressed with, or null if unknown
+   * @param uncompressedSize the uncompressed size of the entry
+   * @return the estimate, in nanoseconds
+   */
+  public long estimateRecompressionNanos(JreDeflateParameters parameters, long uncompressedSize) {
+    return (long) Math.ceil(getNanosPerByte(parameters) * uncompressedSize);
+  }
+}
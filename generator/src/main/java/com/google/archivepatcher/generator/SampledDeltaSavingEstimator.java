@@ -0,0 +1,146 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.bsdiff.BsDiffPatchWriter;
+import com.google.archivepatcher.shared.CountingOutputStream;
+import com.google.archivepatcher.shared.NullOutputStream;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Estimates the saving from uncompressing an entry by diffing a prefix of the old and new entries
+ * twice: once in uncompressed form and once in compressed form. Each delta is deflated, as the
+ * patch would be for transport, and its size is scaled from the length of the sample to the length
+ * of the whole entry. The saving is the difference between the two estimates.
+ *
+ * <p>Only the first {@link #sampleSizeBytes} bytes of each form are read and diffed, so the cost
+ * per entry is bounded no matter how large the entry is.
+ */
+class SampledDeltaSavingEstimator implements DeltaSavingEstimator {
+  /**
+   * The default number of bytes to sample from each form of each entry.
+   */
+  static final int DEFAULT_SAMPLE_SIZE_BYTES = 64 * 1024;
+
+  /**
+   * The minimum match length used for the sampled deltas, as used by the delta generator.
+   */
+  private static final int MINIMUM_MATCH_LENGTH = 16;
+
+  /**
+   * The number of bytes to sample from each form of each entry.
+   */
+  private final int sampleSizeBytes;
+
+  /**
+   * Creates a new estimator.
+   * @param sampleSizeBytes the number of bytes to sample from each form of each entry
+   */
+  SampledDeltaSavingEstimator(int sampleSizeBytes) {
+    if (sampleSizeBytes <= 0) {
+      throw new IllegalArgumentException("sampleSizeBytes must be > 0: " + sampleSizeBytes);
+    }
+    this.sampleSizeBytes = sampleSizeBytes;
+  }
+
+  @Override
+  public long estimateSavingBytes(ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry)
+      throws IOException, InterruptedException {
+    MinimalZipEntry oldEntry = entry.getOldEntry();
+    MinimalZipEntry newEntry = entry.getNewEntry();
+    long compressedEstimate =
+        estimateDeltaSize(
+            readCompressedSample(oldFile, oldEntry),
+            readCompressedSample(newFile, newEntry),
+            newEntry.getCompressedSize());
+    long uncompressedEstimate =
+        estimateDeltaSize(
+            readUncompressedSample(oldFile, oldEntry),
+            readUncompressedSample(newFile, newEntry),
+            newEntry.getUncompressedSize());
+    return Math.max(0, compressedEstimate - uncompressedEstimate);
+  }
+
+  /**
+   * Diffs the samples and scales the size of the deflated delta up to the full length.
+   * @param oldSample the old sample
+   * @param newSample the new sample
+   * @param fullLength the length of the data that the new sample was taken from
+   * @return the estimated size of the deflated delta for the full data
+   */
+  private static long estimateDeltaSize(byte[] oldSample, byte[] newSample, long fullLength)
+      throws IOException, InterruptedException {
+    if (newSample.length == 0) {
+      return 0;
+    }
+    CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+    Deflater deflater = new Deflater(9, true);
+    try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(counter, deflater)) {
+      BsDiffPatchWriter.generatePatch(oldSample, newSample, deflaterOut, MINIMUM_MATCH_LENGTH);
+    } finally {
+      deflater.end();
+    }
+    double scale = fullLength / (double) newSample.length;
+    return (long) Math.ceil(counter.getNumBytesWritten() * scale);
+  }
+
+  private byte[] readCompressedSample(ByteSource file, MinimalZipEntry entry) throws IOException {
+    int length = (int) Math.min(sampleSizeBytes, entry.getCompressedSize());
+    try (InputStream in = file.slice(entry.getFileOffsetOfCompressedData(), length).openStream()) {
+      return readUpTo(in, length);
+    }
+  }
+
+  private byte[] readUncompressedSample(ByteSource file, MinimalZipEntry entry)
+      throws IOException {
+    if (!entry.isDeflateCompressed()) {
+      return readCompressedSample(file, entry);
+    }
+    int length = (int) Math.min(sampleSizeBytes, entry.getUncompressedSize());
+    Inflater inflater = new Inflater(true);
+    try (InputStream in =
+        new InflaterInputStream(
+            file.slice(entry.getFileOffsetOfCompressedData(), entry.getCompressedSize())
+                .openStream(),
+            inflater)) {
+      return readUpTo(in, length);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Reads up to the specified number of bytes, stopping early at the end of the stream.
+   */
+  private static byte[] readUpTo(InputStream in, int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int numRead = 0;
+    while (numRead < length) {
+      int readThisRound = in.read(buffer, numRead, length - numRead);
+      if (readThisRound < 0) {
+        return Arrays.copyOf(buffer, numRead);
+      }
+      numRead += readThisRound;
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,364 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A compact, read-only table of the entries in a zip archive, in file order. Where a list of
+ * {@link MinimalZipEntry} objects costs several heap objects per entry (plus a {@link
+ * ByteArrayHolder} per entry for every map keyed by path), this table stores each field in one
+ * primitive array, all file names in one shared byte array, and indexes paths with an
+ * open-addressing hash table of ints. Entries are identified by their index in the table; {@link
+ * #toMinimalZipEntry(int)} creates a {@link MinimalZipEntry} on demand for code that needs one.
+ *
+ * <p>If an archive contains the same path more than once, {@link #indexOf(byte[])} returns the
+ * entry that comes last in file order, as a map keyed by path would.
+ */
+public final class ZipEntryTable {
+  /**
+   * Returned by the lookup methods when a path is not in the table.
+   */
+  public static final int NOT_FOUND = -1;
+
+  private final int numEntries;
+  private final long[] localEntryOffsets;
+  private final long[] compressedDataOffsets;
+  private final long[] compressedSizes;
+  private final long[] uncompressedSizes;
+  private final int[] crc32s;
+  private final short[] compressionMethods;
+  private final boolean[] generalPurposeFlagBit11s;
+
+  /**
+   * All file names, back to back. The name of entry i is at [nameOffsets[i], nameOffsets[i + 1]).
+   */
+  private final byte[] names;
+
+  private final int[] nameOffsets;
+
+  /**
+   * The hash of each entry's file name, so that lookups and index growth never rehash names.
+   */
+  private final int[] nameHashes;
+
+  /**
+   * The open-addressing path index: each slot holds 1 + the index of an entry, or 0 if empty. The
+   * length is a power of two at least twice the number of entries, so probing always terminates.
+   */
+  private final int[] slots;
+
+  /**
+   * The number of file name bytes added so far, while the table is being built.
+   */
+  private int namesLength = 0;
+
+  private ZipEntryTable(int numEntries, int namesCapacity) {
+    this.numEntries = numEntries;
+    localEntryOffsets = new long[numEntries];
+    compressedDataOffsets = new long[numEntries];
+    compressedSizes = new long[numEntries];
+    uncompressedSizes = new long[numEntries];
+    crc32s = new int[numEntries];
+    compressionMethods = new short[numEntries];
+    generalPurposeFlagBit11s = new boolean[numEntries];
+    names = new byte[namesCapacity];
+    nameOffsets = new int[numEntries + 1];
+    nameHashes = new int[numEntries];
+    int numSlots = 2;
+    while (numSlots < numEntries * 2) {
+      numSlots <<= 1;
+    }
+    slots = new int[numSlots];
+  }
+
+  /**
+   * Reads the entry table of the specified archive.
+   * @param file the archive
+   * @return the table
+   * @throws IOException if unable to read or parse the archive
+   */
+  public static ZipEntryTable read(File file) throws IOException {
+    try (ByteSource data = ByteSource.fromFile(file)) {
+      return read(data);
+    }
+  }
+
+  /**
+   * Reads the entry table of the specified archive.
+   * @param data the archive
+   * @return the table
+   * @throws IOException if unable to read or parse the archive
+   */
+  public static ZipEntryTable read(ByteSource data) throws IOException {
+    CentralDirectoryBuffer centralDirectory =
+        CentralDirectoryBuffer.read(data, MinimalZipArchive.readCentralDirectoryMetadata(data));
+    centralDirectory.resolveCompressedDataOffsets(data);
+    int namesCapacity = 0;
+    for (int index = 0; index < centralDirectory.getNumEntries(); index++) {
+      namesCapacity += centralDirectory.getFileNameLength(index);
+    }
+    ZipEntryTable table = new ZipEntryTable(centralDirectory.getNumEntries(), namesCapacity);
+    ByteBuffer buffer = centralDirectory.getBuffer();
+    int index = 0;
+    for (int cdIndex : centralDirectory.getIndicesInFileOrder()) {
+      int nameOffset = centralDirectory.getFileNameOffset(cdIndex);
+      int nameLength = centralDirectory.getFileNameLength(cdIndex);
+      for (int x = 0; x < nameLength; x++) {
+        table.names[table.namesLength + x] = buffer.get(nameOffset + x);
+      }
+      table.set(
+          index++,
+          nameLength,
+          centralDirectory.getCompressionMethod(cdIndex),
+          centralDirectory.getCrc32OfUncompressedData(cdIndex),
+          centralDirectory.getCompressedSize(cdIndex),
+          centralDirectory.getUncompressedSize(cdIndex),
+          centralDirectory.getGeneralPurposeFlagBit11(cdIndex),
+          centralDirectory.getFileOffsetOfLocalEntry(cdIndex),
+          centralDirectory.getFileOffsetOfCompressedData(cdIndex));
+    }
+    return table;
+  }
+
+  /**
+   * Creates a table holding the specified entries, in iteration order.
+   * @param entries the entries
+   * @return the table
+   */
+  public static ZipEntryTable of(Collection<MinimalZipEntry> entries) {
+    int namesCapacity = 0;
+    for (MinimalZipEntry entry : entries) {
+      namesCapacity += entry.getFileNameBytes().length;
+    }
+    ZipEntryTable table = new ZipEntryTable(entries.size(), namesCapacity);
+    int index = 0;
+    for (MinimalZipEntry entry : entries) {
+      byte[] name = entry.getFileNameBytes();
+      System.arraycopy(name, 0, table.names, table.namesLength, name.length);
+      table.set(
+          index++,
+          name.length,
+          entry.getCompressionMethod(),
+          entry.getCrc32OfUncompressedData(),
+          entry.getCompressedSize(),
+          entry.getUncompressedSize(),
+          entry.getGeneralPurposeFlagBit11(),
+          entry.getFileOffsetOfLocalEntry(),
+          entry.getFileOffsetOfCompressedData());
+    }
+    return table;
+  }
+
+  /**
+   * Fills in an entry whose name has already been copied to the end of {@link #names}, and adds it
+   * to the path index.
+   */
+  private void set(
+      int index,
+      int nameLength,
+      int compressionMethod,
+      long crc32OfUncompressedData,
+      long compressedSize,
+      long uncompressedSize,
+      boolean generalPurposeFlagBit11,
+      long fileOffsetOfLocalEntry,
+      long fileOffsetOfCompressedData) {
+    nameOffsets[index] = namesLength;
+    namesLength += nameLength;
+    nameOffsets[index + 1] = namesLength;
+    compressionMethods[index] = (short) compressionMethod;
+    crc32s[index] = (int) crc32OfUncompressedData;
+    compressedSizes[index] = compressedSize;
+    uncompressedSizes[index] = uncompressedSize;
+    generalPurposeFlagBit11s[index] = generalPurposeFlagBit11;
+    localEntryOffsets[index] = fileOffsetOfLocalEntry;
+    compressedDataOffsets[index] = fileOffsetOfCompressedData;
+    int hash = hash(names, nameOffsets[index], nameLength);
+    nameHashes[index] = hash;
+    int slot = findSlot(names, nameOffsets[index], nameLength, hash);
+    // A later entry with the same path replaces the earlier one in the index.
+    slots[slot] = index + 1;
+  }
+
+  /**
+   * Returns the number of entries in the table.
+   * @return as described
+   */
+  public int getNumEntries() {
+    return numEntries;
+  }
+
+  /**
+   * Returns the index of the entry with the specified path.
+   * @param fileNameBytes the path, as in {@link MinimalZipEntry#getFileNameBytes()}
+   * @return the index, or {@link #NOT_FOUND}
+   */
+  public int indexOf(byte[] fileNameBytes) {
+    int hash = hash(fileNameBytes, 0, fileNameBytes.length);
+    return slots[findSlot(fileNameBytes, 0, fileNameBytes.length, hash)] - 1;
+  }
+
+  /**
+   * Returns the index of the entry whose path is the same as that of an entry in another table,
+   * without copying the path.
+   * @param other the other table
+   * @param otherIndex the index of the entry in the other table
+   * @return the index in this table, or {@link #NOT_FOUND}
+   */
+  public int indexOf(ZipEntryTable other, int otherIndex) {
+    int offset = other.nameOffsets[otherIndex];
+    int length = other.nameOffsets[otherIndex + 1] - offset;
+    return slots[findSlot(other.names, offset, length, other.nameHashes[otherIndex])] - 1;
+  }
+
+  /**
+   * Returns the slot holding the specified path, or the empty slot at which probing stopped.
+   */
+  private int findSlot(byte[] name, int offset, int length, int hash) {
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      int candidate = slots[slot] - 1;
+      if (nameHashes[candidate] == hash && nameEquals(candidate, name, offset, length)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean nameEquals(int index, byte[] name, int offset, int length) {
+    int candidateOffset = nameOffsets[index];
+    if (nameOffsets[index + 1] - candidateOffset != length) {
+      return false;
+    }
+    for (int x = 0; x < length; x++) {
+      if (names[candidateOffset + x] != name[offset + x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(byte[] name, int offset, int length) {
+    int hash = 1;
+    for (int x = offset; x < offset + length; x++) {
+      hash = 31 * hash + name[x];
+    }
+    // Spread the high bits into the low bits used to pick a slot.
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Returns a copy of the path of the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public byte[] getFileNameBytes(int index) {
+    byte[] result = new byte[nameOffsets[index + 1] - nameOffsets[index]];
+    System.arraycopy(names, nameOffsets[index], result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCompressionMethod()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public int getCompressionMethod(int index) {
+    return compressionMethods[index] & 0xffff;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#isDeflateCompressed()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public boolean isDeflateCompressed(int index) {
+    return getCompressionMethod(index) == 8;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCrc32OfUncompressedData()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public long getCrc32OfUncompressedData(int index) {
+    return crc32s[index] & 0xffffffffL;
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getCompressedSize()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public long getCompressedSize(int index) {
+    return compressedSizes[index];
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getUncompressedSize()} for the specified entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public long getUncompressedSize(int index) {
+    return uncompressedSizes[index];
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getFileOffsetOfLocalEntry()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public long getFileOffsetOfLocalEntry(int index) {
+    return localEntryOffsets[index];
+  }
+
+  /**
+   * Returns the value of {@link MinimalZipEntry#getFileOffsetOfCompressedData()} for the specified
+   * entry.
+   * @param index the index of the entry
+   * @return as described
+   */
+  public long getFileOffsetOfCompressedData(int index) {
+    return compressedDataOffsets[index];
+  }
+
+  /**
+   * Creates a {@link MinimalZipEntry} for the specified entry.
+   * @param index the index of the entry
+   * @return the entry
+   */
+  public MinimalZipEntry toMinimalZipEntry(int index) {
+    MinimalZipEntry entry =
+        new MinimalZipEntry(
+            getCompressionMethod(index),
+            getCrc32OfUncompressedData(index),
+            compressedSizes[index],
+            uncompressedSizes[index],
+            getFileNameBytes(index),
+            generalPurposeFlagBit11s[index],
+            localEntryOffsets[index]);
+    entry.setFileOffsetOfCompressedData(compressedDataOffsets[index]);
+    return entry;
+  }
+}
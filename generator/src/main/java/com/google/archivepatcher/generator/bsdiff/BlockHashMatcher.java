@@ -0,0 +1,251 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Arrays;
+
+/**
+ * A fast alternative to {@link BsDiffMatcher} that needs no suffix array. The old data is indexed
+ * by a rolling hash of each aligned block of {@link #blockSize} bytes, and a window of the same
+ * size rolls over the new data looking those hashes up. Each hit is verified and extended byte-wise
+ * in both directions to find the full exact match.
+ *
+ * <p>Because only aligned blocks of the old data are indexed, a match is only guaranteed to be
+ * found if it is at least 2 * blockSize - 1 bytes long, and only the first occurrence of each block
+ * in the old data is considered. Patches are therefore somewhat larger than with a suffix array,
+ * but indexing is linear in the size of the old data and matching is linear in the size of the new
+ * data. Like {@link BsDiffMatcher}, a match is only reported if it is at least {@link
+ * #minimumMatchLength} bytes longer than what the previous match's alignment already covers, so
+ * that matches which the previous diff would capture anyway are skipped.
+ */
+class BlockHashMatcher implements Matcher {
+  /** The default block size, in bytes. */
+  static final int DEFAULT_BLOCK_SIZE = 32;
+
+  /** The multiplier of the polynomial rolling hash. */
+  private static final long HASH_MULTIPLIER = 0x100000001b3L;
+
+  /** The multiplier used to spread hashes over the table. */
+  private static final long TABLE_MIXER = 0x9e3779b97f4a7c15L;
+
+  /** The maximum load of the hash table before its capacity is doubled. */
+  private static final int MAX_LOAD_DIVISOR = 2;
+
+  /** The maximum number of bits used to select a slot, which bounds the size of the table. */
+  private static final int MAX_TABLE_BITS = 30;
+
+  /** Empty slots in {@link #tablePositions}. */
+  private static final int EMPTY = -1;
+
+  private final byte[] oldData;
+  private final byte[] newData;
+  private final int blockSize;
+  private final int minimumMatchLength;
+
+  /** HASH_MULTIPLIER to the power of blockSize - 1, for removing the byte leaving the window. */
+  private final long outgoingMultiplier;
+
+  /** The hashes of the indexed blocks, by slot. */
+  private final long[] tableHashes;
+
+  /** The positions in the old data of the indexed blocks, by slot; {@link #EMPTY} if unused. */
+  private final int[] tablePositions;
+
+  /** The number of bits used to select a slot. */
+  private final int tableBits;
+
+  /** The position in the new data of the last match reported. */
+  private int newPos = 0;
+
+  /** The position in the old data of the last match reported. */
+  private int oldPos = 0;
+
+  /** The length of the last match reported. */
+  private int matchLen = 0;
+
+  /**
+   * Creates a matcher and indexes the old data.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param blockSize the size of the indexed blocks, in bytes; must be greater than zero
+   * @param minimumMatchLength the minimum "match" (in bytes) to report, as for {@link
+   *     BsDiffMatcher}
+   */
+  BlockHashMatcher(byte[] oldData, byte[] newData, int blockSize, int minimumMatchLength) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("blockSize must be > 0: " + blockSize);
+    }
+    this.oldData = oldData;
+    this.newData = newData;
+    this.blockSize = blockSize;
+    this.minimumMatchLength = minimumMatchLength;
+    long multiplier = 1;
+    for (int i = 1; i < blockSize; i++) {
+      multiplier *= HASH_MULTIPLIER;
+    }
+    this.outgoingMultiplier = multiplier;
+
+    int numBlocks = oldData.length / blockSize;
+    int bits = 1;
+    while ((1L << bits) < (long) numBlocks * MAX_LOAD_DIVISOR && bits < MAX_TABLE_BITS) {
+      bits++;
+    }
+    this.tableBits = bits;
+    this.tableHashes = new long[1 << bits];
+    this.tablePositions = new int[1 << bits];
+    Arrays.fill(tablePositions, EMPTY);
+    // Beyond the maximum load, later blocks are simply not indexed.
+    int maxBlocks = Math.min(numBlocks, (1 << bits) / MAX_LOAD_DIVISOR);
+    for (int block = 0; block < maxBlocks; block++) {
+      int position = block * blockSize;
+      index(hash(oldData, position), position);
+    }
+  }
+
+  /**
+   * Returns the number of bytes of memory that a matcher needs for its index, in addition to the
+   * old and new data, when indexing old data of the specified size.
+   *
+   * @param oldSize the size of the old data
+   * @param blockSize the size of the indexed blocks
+   * @return the number of bytes
+   */
+  static long estimateIndexBytes(long oldSize, int blockSize) {
+    long numBlocks = oldSize / blockSize;
+    long capacity = 2;
+    while (capacity < numBlocks * MAX_LOAD_DIVISOR && capacity < (1L << MAX_TABLE_BITS)) {
+      capacity <<= 1;
+    }
+    return capacity * (8 + 4);
+  }
+
+  @Override
+  public NextMatch next() throws InterruptedException {
+    int previousOldOffset = oldPos - newPos;
+    int searchStart = newPos + matchLen;
+    int position = searchStart;
+    long hash = 0;
+    boolean hashValid = false;
+    while (position + blockSize <= newData.length) {
+      if ((position & 0xffff) == 0 && Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (hashValid) {
+        hash = roll(hash, newData[position - 1], newData[position + blockSize - 1]);
+      } else {
+        hash = hash(newData, position);
+        hashValid = true;
+      }
+      int candidate = lookup(hash);
+      if (candidate != EMPTY && regionsMatch(candidate, position, blockSize)) {
+        // Extend the hit to the full exact match, but not back into the previous match.
+        int back = 0;
+        while (candidate - back > 0
+            && position - back > searchStart
+            && oldData[candidate - back - 1] == newData[position - back - 1]) {
+          back++;
+        }
+        int matchOld = candidate - back;
+        int matchNew = position - back;
+        int length = back + blockSize;
+        while (matchOld + length < oldData.length
+            && matchNew + length < newData.length
+            && oldData[matchOld + length] == newData[matchNew + length]) {
+          length++;
+        }
+        if (length > countMatchesAtOffset(matchNew, length, previousOldOffset)
+            + minimumMatchLength) {
+          oldPos = matchOld;
+          newPos = matchNew;
+          matchLen = length;
+          return NextMatch.of(true, oldPos, newPos);
+        }
+        // The previous alignment already covers this match; carry on after it.
+        position = matchNew + length;
+        hashValid = false;
+        continue;
+      }
+      position++;
+    }
+    return NextMatch.of(false, 0, 0);
+  }
+
+  /**
+   * Counts the bytes in newData[start ... start + length - 1] that equal the bytes at the same
+   * positions plus the specified offset in the old data.
+   */
+  private int countMatchesAtOffset(int start, int length, int oldOffset) {
+    int count = 0;
+    for (int i = start; i < start + length; i++) {
+      int oldIndex = i + oldOffset;
+      if (oldIndex >= 0 && oldIndex < oldData.length && oldData[oldIndex] == newData[i]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private boolean regionsMatch(int oldStart, int newStart, int length) {
+    for (int i = 0; i < length; i++) {
+      if (oldData[oldStart + i] != newData[newStart + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long hash(byte[] data, int start) {
+    long hash = 0;
+    for (int i = start; i < start + blockSize; i++) {
+      hash = hash * HASH_MULTIPLIER + (data[i] & 0xff);
+    }
+    return hash;
+  }
+
+  private long roll(long hash, byte outgoing, byte incoming) {
+    return (hash - (outgoing & 0xff) * outgoingMultiplier) * HASH_MULTIPLIER + (incoming & 0xff);
+  }
+
+  private int slot(long hash) {
+    return (int) ((hash * TABLE_MIXER) >>> (64 - tableBits));
+  }
+
+  /** Indexes a block unless a block with the same hash is already indexed. */
+  private void index(long hash, int position) {
+    int mask = tablePositions.length - 1;
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      if (tablePositions[slot] == EMPTY) {
+        tableHashes[slot] = hash;
+        tablePositions[slot] = position;
+        return;
+      }
+      if (tableHashes[slot] == hash) {
+        return;
+      }
+    }
+  }
+
+  /** Returns the position of the indexed block with the specified hash, or {@link #EMPTY}. */
+  private int lookup(long hash) {
+    int mask = tablePositions.length - 1;
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      int position = tablePositions[slot];
+      if (position == EMPTY || tableHashes[slot] == hash) {
+        return position;
+      }
+    }
+  }
+}
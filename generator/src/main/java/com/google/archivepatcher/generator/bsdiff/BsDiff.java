@@ -25,8 +25,9 @@ import java.io.InputStream;
  * A canonical description of the bsdiff algorithm can be found at the following URL:
  * http://www.daemonology.net/bsdiff/
  * <p>
- * Since Java only supports "int" for array indexing, the maximum size of files that this
- * implementation can handle is 2^31, or 2 gibibytes.
+ * Since Java only supports "int" for array indexing, the suffix array of larger inputs is a
+ * {@link MappedLongArray} rather than a {@link RandomAccessObject}, and there are long-indexed
+ * variants of the search methods to go with it.
  */
 class BsDiff {
 
@@ -136,6 +137,86 @@ class BsDiff {
     return searchForMatch(groupArray, oldData, newData, newStart, oldDataRangeStartA, pivot);
   }
 
+  /**
+   * Long-indexed version of {@link #lengthOfMatch(ByteSource, int, ByteSource, int)}.
+   *
+   * @param oldData the old data to scan
+   * @param oldStart the position in the old data at which to start the scan
+   * @param newData the new data to scan
+   * @param newStart the position in the new data at which to start the scan
+   * @return the number of matching bytes
+   */
+  static long lengthOfMatch(
+      final ByteSource oldData, final long oldStart, final ByteSource newData, final long newStart)
+      throws IOException {
+    final long max = Math.min(oldData.length() - oldStart, newData.length() - newStart);
+    if (max > 0) {
+      try (InputStream oldDataInputStream = oldData.sliceFrom(oldStart).openStream();
+          InputStream newDataInputStream = newData.sliceFrom(newStart).openStream()) {
+        for (long offset = 0; offset < max; offset++) {
+          if (oldDataInputStream.read() != newDataInputStream.read()) {
+            return offset;
+          }
+        }
+      }
+    }
+
+    return max;
+  }
+
+  /**
+   * Long-indexed version of {@link #searchForMatch(RandomAccessObject, ByteSource, ByteSource,
+   * int, int, int)}, searching a suffix array produced by {@link LongSuffixSorter}. The search is
+   * iterative rather than recursive, but finds the same match.
+   *
+   * @param suffixArray the suffix array of the old data
+   * @param oldData the old data to scan
+   * @param newData the new data to scan
+   * @param newStart the position of the first byte in newData to consider
+   * @param oldDataRangeStartA the first index in the suffix array to consider
+   * @param oldDataRangeStartB the last index in the suffix array to consider
+   * @return a LongMatch containing the length of the matching range, and the position at which the
+   *     matching range begins.
+   */
+  static LongMatch searchForMatch(
+      final MappedLongArray suffixArray,
+      final ByteSource oldData,
+      final ByteSource newData,
+      final long newStart,
+      long oldDataRangeStartA,
+      long oldDataRangeStartB)
+      throws IOException {
+    while (oldDataRangeStartB - oldDataRangeStartA >= 2) {
+      final long pivot = oldDataRangeStartA + (oldDataRangeStartB - oldDataRangeStartA) / 2;
+      final long suffixArrayPivot = suffixArray.get(pivot);
+      if (BsUtil.lexicographicalCompare(
+              oldData,
+              suffixArrayPivot,
+              oldData.length() - suffixArrayPivot,
+              newData,
+              newStart,
+              newData.length() - newStart)
+          < 0) {
+        oldDataRangeStartA = pivot;
+      } else {
+        oldDataRangeStartB = pivot;
+      }
+    }
+
+    final long suffixArrayOldDataRangeStartA = suffixArray.get(oldDataRangeStartA);
+    final long lengthOfMatchA =
+        lengthOfMatch(oldData, suffixArrayOldDataRangeStartA, newData, newStart);
+    final long suffixArrayOldDataRangeStartB = suffixArray.get(oldDataRangeStartB);
+    final long lengthOfMatchB =
+        lengthOfMatch(oldData, suffixArrayOldDataRangeStartB, newData, newStart);
+
+    if (lengthOfMatchA > lengthOfMatchB) {
+      return LongMatch.of(suffixArrayOldDataRangeStartA, lengthOfMatchA);
+    }
+
+    return LongMatch.of(suffixArrayOldDataRangeStartB, lengthOfMatchB);
+  }
+
   static class Match {
     final int start;
     final int length;
@@ -149,4 +230,19 @@ class BsDiff {
       this.length = length;
     }
   }
+
+  /** Long-indexed version of {@link Match}. */
+  static class LongMatch {
+    final long start;
+    final long length;
+
+    static LongMatch of(long start, long length) {
+      return new LongMatch(start, length);
+    }
+
+    private LongMatch(long start, long length) {
+      this.start = start;
+      this.length = length;
+    }
+  }
 }
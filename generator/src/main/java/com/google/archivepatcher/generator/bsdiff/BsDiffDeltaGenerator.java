@@ -17,10 +17,13 @@ package com.google.archivepatcher.generator.bsdiff;
 import static com.google.archivepatcher.shared.PatchConstants.USE_NATIVE_BSDIFF_BY_DEFAULT;
 
 import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationListener;
 import com.google.archivepatcher.generator.bsdiff.wrapper.BsDiffNativePatchWriter;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * An implementation of {@link DeltaGenerator} that uses {@link BsDiffPatchWriter} to write a bsdiff
@@ -32,27 +35,193 @@ public class BsDiffDeltaGenerator extends DeltaGenerator {
    */
   private static final int MATCH_LENGTH_BYTES = 16;
 
+  /** How matches between the old and new blobs are found. */
+  public enum MatchingStrategy {
+    /**
+     * Search a suffix array of the old blob, which finds the best matches but takes time and 4
+     * bytes of storage per byte of the old blob.
+     */
+    SUFFIX_ARRAY,
+
+    /**
+     * Look up a rolling hash of blocks of the old blob, which is much faster and needs much less
+     * storage but produces somewhat larger deltas. Never uses the native version of BsDiff.
+     */
+    BLOCK_HASH
+  }
+
   /** Whether to use the native version of BsDiff for generating patches. */
   private final boolean useNativeBsDiff;
 
+  /** How matches are found. */
+  private final MatchingStrategy matchingStrategy;
+
+  /**
+   * The factory for the storage of the suffix array when not using the native version of BsDiff,
+   * or null to use the default of {@link BsDiffPatchWriter}.
+   */
+  private final RandomAccessObjectFactory suffixArrayStorageFactory;
+
+  /**
+   * The number of threads to match segments of the new blob on when the suffix array is built in
+   * Java, or 1 to match serially.
+   */
+  private final int numMatchingThreads;
+
   public BsDiffDeltaGenerator() {
     this(USE_NATIVE_BSDIFF_BY_DEFAULT);
   }
 
   public BsDiffDeltaGenerator(boolean useNativeBsDiff) {
+    this(useNativeBsDiff, null);
+  }
+
+  /**
+   * Creates a generator that stores the suffix array of the old blob in storage from the specified
+   * factory. The suffix array takes 4 bytes per byte of the old blob, so this choice dominates the
+   * memory needed to generate a delta.
+   *
+   * @param useNativeBsDiff whether to use the native version of BsDiff, which ignores the factory
+   * @param suffixArrayStorageFactory the factory, or null to use the default (memory-mapped temp
+   *     files)
+   */
+  public BsDiffDeltaGenerator(
+      boolean useNativeBsDiff, RandomAccessObjectFactory suffixArrayStorageFactory) {
+    this(useNativeBsDiff, suffixArrayStorageFactory, MatchingStrategy.SUFFIX_ARRAY, 1);
+  }
+
+  /**
+   * Creates a generator that finds matches with the specified strategy, using the defaults for
+   * everything else.
+   *
+   * @param matchingStrategy how to find matches
+   */
+  public BsDiffDeltaGenerator(MatchingStrategy matchingStrategy) {
+    this(USE_NATIVE_BSDIFF_BY_DEFAULT, null, matchingStrategy, 1);
+  }
+
+  private BsDiffDeltaGenerator(
+      boolean useNativeBsDiff,
+      RandomAccessObjectFactory suffixArrayStorageFactory,
+      MatchingStrategy matchingStrategy,
+      int numMatchingThreads) {
     this.useNativeBsDiff = useNativeBsDiff;
+    this.suffixArrayStorageFactory = suffixArrayStorageFactory;
+    this.matchingStrategy = matchingStrategy;
+    this.numMatchingThreads = numMatchingThreads;
+  }
+
+  /**
+   * Returns a generator like this one that matches contiguous segments of the new blob on the
+   * specified number of threads, as described in {@link BsDiffPatchWriter#generatePatch(ByteSource,
+   * ByteSource, OutputStream, RandomAccessObjectFactory, int, int, ExecutorService)}. The patch may
+   * be slightly larger than the one generated serially, and both blobs are read into memory.
+   * Ignored by the native version of BsDiff, by {@link MatchingStrategy#BLOCK_HASH}, and for blobs
+   * that need long indexing.
+   *
+   * @param numThreads the number of threads; 1 to match serially
+   * @return the generator
+   */
+  public BsDiffDeltaGenerator withParallelMatching(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+    }
+    return new BsDiffDeltaGenerator(
+        useNativeBsDiff, suffixArrayStorageFactory, matchingStrategy, numThreads);
   }
 
   @Override
   public void generateDelta(ByteSource oldBlob, ByteSource newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
-    if (useNativeBsDiff) {
+    if (matchingStrategy == MatchingStrategy.BLOCK_HASH) {
+      BsDiffPatchWriter.generatePatchWithBlockHashing(
+          oldBlob, newBlob, deltaOut, BlockHashMatcher.DEFAULT_BLOCK_SIZE, MATCH_LENGTH_BYTES);
+    } else if (useNativeBsDiff) {
       BsDiffNativePatchWriter.generatePatch(oldBlob, newBlob, deltaOut);
+    } else if (isMatchingInParallel(oldBlob, newBlob)) {
+      ExecutorService executor = Executors.newFixedThreadPool(numMatchingThreads);
+      try {
+        BsDiffPatchWriter.generatePatch(
+            oldBlob,
+            newBlob,
+            deltaOut,
+            suffixArrayStorageFactory != null
+                ? suffixArrayStorageFactory
+                : new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"),
+            MATCH_LENGTH_BYTES,
+            numMatchingThreads,
+            executor);
+      } finally {
+        executor.shutdownNow();
+      }
+    } else if (suffixArrayStorageFactory != null) {
+      BsDiffPatchWriter.generatePatch(
+          oldBlob, newBlob, deltaOut, suffixArrayStorageFactory, MATCH_LENGTH_BYTES);
     } else {
       BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, MATCH_LENGTH_BYTES);
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>When the suffix array is built in Java and matching is serial, the {@link
+   * GenerationListener.Phase#SUFFIX_SORT} and {@link GenerationListener.Phase#MATCHING} phases and
+   * the size of the suffix array are reported separately.
+   */
+  @Override
+  public void generateDelta(
+      ByteSource oldBlob, ByteSource newBlob, OutputStream deltaOut, GenerationListener listener)
+      throws IOException, InterruptedException {
+    if (matchingStrategy == MatchingStrategy.BLOCK_HASH
+        || useNativeBsDiff
+        || isMatchingInParallel(oldBlob, newBlob)) {
+      super.generateDelta(oldBlob, newBlob, deltaOut, listener);
+      return;
+    }
+    BsDiffPatchWriter.generatePatch(
+        oldBlob,
+        newBlob,
+        deltaOut,
+        suffixArrayStorageFactory != null
+            ? suffixArrayStorageFactory
+            : new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"),
+        MATCH_LENGTH_BYTES,
+        listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>When the suffix array is built in Java, it is stored in a byte array.
+   */
+  @Override
+  public DeltaGenerator withInMemoryStorage() {
+    if (matchingStrategy == MatchingStrategy.BLOCK_HASH || useNativeBsDiff) {
+      // Neither keeps working storage in files.
+      return this;
+    }
+    return new BsDiffDeltaGenerator(
+        false,
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
+        MatchingStrategy.SUFFIX_ARRAY,
+        numMatchingThreads);
+  }
+
+  /**
+   * Returns true if the delta between the specified blobs is generated with parallel matching.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @return as described
+   */
+  private boolean isMatchingInParallel(ByteSource oldBlob, ByteSource newBlob) {
+    return numMatchingThreads > 1
+        && matchingStrategy == MatchingStrategy.SUFFIX_ARRAY
+        && !useNativeBsDiff
+        && !BsDiffPatchWriter.requiresLongIndexing(oldBlob.length(), newBlob.length());
+  }
+
   public static void generateDelta(
       byte[] oldData, byte[] newData, OutputStream deltaOut, boolean generateDeltaNatively)
       throws IOException, InterruptedException {
@@ -62,4 +231,28 @@ public class BsDiffDeltaGenerator extends DeltaGenerator {
       BsDiffPatchWriter.generatePatch(oldData, newData, deltaOut, MATCH_LENGTH_BYTES);
     }
   }
+
+  /**
+   * Returns the number of bytes of memory that {@link MatchingStrategy#BLOCK_HASH} needs to
+   * generate a delta from an old blob of the specified size, in addition to the blobs themselves.
+   *
+   * @param oldSize the size of the old blob
+   * @return the number of bytes
+   */
+  public static long estimateBlockHashIndexBytes(long oldSize) {
+    return BlockHashMatcher.estimateIndexBytes(oldSize, BlockHashMatcher.DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Returns the number of bytes of memory-mapped storage needed to generate a delta from an old
+   * blob that is too large for int indexing (see {@link BsDiffPatchWriter#requiresLongIndexing}).
+   * Such blobs are sorted into two arrays of 5 or 8 bytes per byte of the old blob, whatever the
+   * configured storage.
+   *
+   * @param oldSize the size of the old blob
+   * @return the number of bytes
+   */
+  public static long estimateLongIndexingBytes(long oldSize) {
+    return 2L * MappedLongArray.bytesPerElement(oldSize + 1) * (oldSize + 1);
+  }
 }
@@ -50,6 +50,9 @@ class BsDiffMatcher implements Matcher {
    */
   private int mNewPos;
 
+  /** The byte after the last byte of |mNewData| at which matches are searched for. */
+  private final int mNewEnd;
+
   /** Minimum match length in bytes. */
   private final int mMinimumMatchLength;
 
@@ -79,10 +82,35 @@ class BsDiffMatcher implements Matcher {
       ByteSource newData,
       RandomAccessObject groupArray,
       int minimumMatchLength) {
+    this(oldData, newData, groupArray, minimumMatchLength, 0, (int) newData.length(), 0);
+  }
+
+  /**
+   * Create a BsDiffMatcher that only looks for matches starting in mNewData[newStart ... newEnd -
+   * 1], as if a previous match had ended at |newStart| and |oldStart|.
+   *
+   * @param oldData
+   * @param newData
+   * @param groupArray
+   * @param minimumMatchLength
+   * @param newStart the first byte of |newData| to look for matches at
+   * @param newEnd the byte after the last byte of |newData| to look for matches at
+   * @param oldStart the position in |oldData| that corresponds to |newStart|
+   */
+  BsDiffMatcher(
+      ByteSource oldData,
+      ByteSource newData,
+      RandomAccessObject groupArray,
+      int minimumMatchLength,
+      int newStart,
+      int newEnd,
+      int oldStart) {
     this.mOldData = oldData;
     this.mNewData = newData;
     this.mGroupArray = groupArray;
-    this.mOldPos = 0;
+    this.mOldPos = oldStart;
+    this.mNewPos = newStart;
+    this.mNewEnd = newEnd;
     this.mMinimumMatchLength = minimumMatchLength;
   }
 
@@ -106,7 +134,7 @@ class BsDiffMatcher implements Matcher {
     // Sum over all match lengths encountered, to exit loop if we take too long to compute.
     long totalMatchLen = 0;
 
-    while (mNewPos < mNewData.length()) {
+    while (mNewPos < mNewEnd) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
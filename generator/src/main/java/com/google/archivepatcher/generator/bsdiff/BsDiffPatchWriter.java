@@ -14,13 +14,25 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.generator.GenerationListener;
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import com.google.archivepatcher.generator.GenerationPhaseTimer;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory;
+import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 // TODO clean up the various generatePatch(...) methods, there are too many.
 
@@ -32,6 +44,12 @@ public class BsDiffPatchWriter {
 
   static final int DEFAULT_MINIMUM_MATCH_LENGTH = 16;
 
+  // Indices of the fields of an entry computed for a segment.
+  private static final int ENTRY_NEW_POSITION = 0;
+  private static final int ENTRY_OLD_POSITION = 1;
+  private static final int ENTRY_DIFF_LENGTH = 2;
+  private static final int ENTRY_EXTRA_LENGTH = 3;
+
   /**
    * Write a patch entry.
    *
@@ -53,11 +71,11 @@ public class BsDiffPatchWriter {
   private static void writeEntry(
       ByteSource newData,
       ByteSource oldData,
-      int newPosition,
-      int oldPosition,
-      int diffLength,
-      int extraLength,
-      int oldPositionOffsetForNextEntry,
+      long newPosition,
+      long oldPosition,
+      long diffLength,
+      long extraLength,
+      long oldPositionOffsetForNextEntry,
       OutputStream outputStream)
       throws IOException {
     // Write control data
@@ -68,7 +86,7 @@ public class BsDiffPatchWriter {
     try (InputStream oldDataInputStream = oldData.sliceFrom(oldPosition).openStream();
         InputStream newDataInputStream = newData.sliceFrom(newPosition).openStream()) {
       // Write diff data
-      for (int i = 0; i < diffLength; ++i) {
+      for (long i = 0; i < diffLength; ++i) {
         // TODO: test using a small buffer to insulate read() calls (and write() for that
         // matter).
         outputStream.write(newDataInputStream.read() - oldDataInputStream.read());
@@ -81,7 +99,7 @@ public class BsDiffPatchWriter {
       try (InputStream newDataInputStream =
           newData.sliceFrom(newPosition + diffLength).openStream()) {
       // Write extra data
-      for (int i = 0; i < extraLength; ++i) {
+      for (long i = 0; i < extraLength; ++i) {
           // TODO: same as above - test buffering readByte().
           outputStream.write(newDataInputStream.read());
         }
@@ -101,34 +119,106 @@ public class BsDiffPatchWriter {
    */
   // Visible for testing only
   static void generatePatchWithMatcher(
-      ByteSource oldData, ByteSource newData, Matcher matcher, OutputStream outputStream)
+      final ByteSource oldData,
+      final ByteSource newData,
+      Matcher matcher,
+      final OutputStream outputStream)
+      throws IOException, InterruptedException {
+    computeEntries(
+        oldData,
+        newData,
+        matcher,
+        0,
+        newData.length(),
+        0,
+        new EntrySink() {
+          @Override
+          public void entry(
+              long newPosition,
+              long oldPosition,
+              long diffLength,
+              long extraLength,
+              long oldPositionOffsetForNextEntry)
+              throws IOException {
+            writeEntry(
+                newData,
+                oldData,
+                newPosition,
+                oldPosition,
+                diffLength,
+                extraLength,
+                oldPositionOffsetForNextEntry,
+                outputStream);
+          }
+        });
+  }
+
+  /** Receives the entries of a patch as they are computed. */
+  private interface EntrySink {
+    /**
+     * Receives an entry; see {@link BsDiffPatchWriter#writeEntry} for the meaning of the
+     * arguments.
+     */
+    void entry(
+        long newPosition,
+        long oldPosition,
+        long diffLength,
+        long extraLength,
+        long oldPositionOffsetForNextEntry)
+        throws IOException;
+  }
+
+  /**
+   * Computes the entries of a patch for the segment newData[segmentStart ... segmentEnd - 1]. The
+   * entries exactly cover the segment. Unless the segment extends to the end of |newData|, the
+   * |oldPositionOffsetForNextEntry| of the last entry is zero and must be fixed up to point to the
+   * first entry of the following segment.
+   *
+   * @param oldData the old blob
+   * @param newData the new blob
+   * @param matcher a Matcher that finds matches starting at |segmentStart|
+   * @param segmentStart the first byte of the segment in |newData|
+   * @param segmentEnd the byte after the last byte of the segment in |newData|
+   * @param initialOldPosition the position in |oldData| to diff the start of the segment against
+   * @param sink the sink to send the entries to
+   * @throws IOException if unable to read data or the sink fails
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void computeEntries(
+      ByteSource oldData,
+      ByteSource newData,
+      Matcher matcher,
+      long segmentStart,
+      long segmentEnd,
+      long initialOldPosition,
+      EntrySink sink)
       throws IOException, InterruptedException {
     // Compute the differences, writing ctrl as we go
-    int lastNewPosition = 0;
-    int lastOldPosition = 0;
+    long lastNewPosition = segmentStart;
+    long lastOldPosition = initialOldPosition;
 
-    int newPosition = 0;
-    int oldPosition = 0;
-    while (newPosition < newData.length()) {
+    long newPosition = segmentStart;
+    long oldPosition = initialOldPosition;
+    while (newPosition < segmentEnd) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
       Matcher.NextMatch nextMatch = matcher.next();
-      if (nextMatch.didFindMatch) {
+      if (nextMatch.didFindMatch && nextMatch.newPosition < segmentEnd) {
         newPosition = nextMatch.newPosition;
         oldPosition = nextMatch.oldPosition;
       } else {
-        newPosition = (int) newData.length();
+        newPosition = segmentEnd;
       }
 
       // Extend the current match (|newPosition|, |oldPosition|) backward such that 50% of the bytes
       // match. We have written diff / extra data up till |lastNewPosition| so we cannot extend
       // further back than |lastNewPosition|.
-      int backwardExtension = 0;
-      if (newPosition < newData.length()) {
-        int score = 0;
-        int bestScore = 0;
-        for (int i = 1; newPosition - i >= lastNewPosition && oldPosition >= i; ++i) {
+      long backwardExtension = 0;
+      if (newPosition < segmentEnd) {
+        long score = 0;
+        long bestScore = 0;
+        for (long i = 1; newPosition - i >= lastNewPosition && oldPosition >= i; ++i) {
           try (InputStream oldDataInputStream = oldData.sliceFrom(oldPosition - i).openStream();
               InputStream newDataInputStream = newData.sliceFrom(newPosition - i).openStream()) {
             if (oldDataInputStream.read() == newDataInputStream.read()) {
@@ -148,13 +238,13 @@ public class BsDiffPatchWriter {
       // Extend the previous match (|lastNewPosition|, |lastOldPosition|) forward such that 50% of
       // the bytes match. (|lastNewPosition|, |lastOldPosition|) were extended backward in the
       // previous iteration of the loop.
-      int forwardExtension = 0;
+      long forwardExtension = 0;
       {
-        int score = 0;
-        int bestScore = 0;
+        long score = 0;
+        long bestScore = 0;
         try (InputStream oldDataInputStream = oldData.sliceFrom(lastOldPosition).openStream();
             InputStream newDataInputStream = newData.sliceFrom(lastNewPosition).openStream()) {
-          for (int i = 0;
+          for (long i = 0;
               lastNewPosition + i < newPosition && lastOldPosition + i < oldData.length();
               ++i) {
             if (oldDataInputStream.read() == newDataInputStream.read()) {
@@ -172,12 +262,12 @@ public class BsDiffPatchWriter {
 
       // Adjust |backwardExtension| and |forwardExtension| such that the extended matches do
       // not intersect in |newData|. They can intersect in |oldData|.
-      int overlap = (lastNewPosition + forwardExtension) - (newPosition - backwardExtension);
+      long overlap = (lastNewPosition + forwardExtension) - (newPosition - backwardExtension);
       if (overlap > 0) {
-        int score = 0;
-        int bestScore = 0;
-        int backwardExtensionDecrement = 0;
-        for (int i = 0; i < overlap; ++i) {
+        long score = 0;
+        long bestScore = 0;
+        long backwardExtensionDecrement = 0;
+        for (long i = 0; i < overlap; ++i) {
           try (InputStream oldDataInputStream =
                   oldData.sliceFrom(lastOldPosition + forwardExtension - overlap + i).openStream();
               InputStream newDataInputStream =
@@ -214,8 +304,8 @@ public class BsDiffPatchWriter {
       //   neither the previous extended match or the new extended match:
       //   newData[lastNewPosition + forwardExtension ... newPosition - backwardExtension - 1]
 
-      int oldPositionOffset = 0;
-      if (newPosition < newData.length()) {
+      long oldPositionOffset = 0;
+      if (newPosition < segmentEnd) {
         // The offset from the byte after the last byte of the previous match in |newData| to the
         // first byte of the new match in |oldData|.
         oldPositionOffset =
@@ -224,18 +314,11 @@ public class BsDiffPatchWriter {
 
       // The number of bytes in |newData| between |lastNewPosition| and |newPosition| which are part
       // of neither the previous extended match or the new extended match.
-      int newNoMatchLength =
+      long newNoMatchLength =
           (newPosition - backwardExtension) - (lastNewPosition + forwardExtension);
 
-      writeEntry(
-          newData,
-          oldData,
-          lastNewPosition,
-          lastOldPosition,
-          forwardExtension,
-          newNoMatchLength,
-          oldPositionOffset,
-          outputStream);
+      sink.entry(
+          lastNewPosition, lastOldPosition, forwardExtension, newNoMatchLength, oldPositionOffset);
 
       lastNewPosition = newPosition - backwardExtension;
       lastOldPosition = oldPosition - backwardExtension;
@@ -337,7 +420,10 @@ public class BsDiffPatchWriter {
   }
 
   /**
-   * Generate a diff between the old data and the new, writing to the specified stream.
+   * Generate a diff between the old data and the new, writing to the specified stream. If either
+   * input is too large for int indexing (see {@link #requiresLongIndexing(long, long)}), the
+   * long-indexed path is used instead, which ignores |randomAccessObjectFactory| and keeps its
+   * suffix array in memory-mapped temp files.
    *
    * @param oldData the old data
    * @param newData the new data
@@ -356,15 +442,406 @@ public class BsDiffPatchWriter {
       final RandomAccessObjectFactory randomAccessObjectFactory,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
-    // Write header (signature + new file length)
-    outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
-    BsUtil.writeFormattedLong(newData.length(), outputStream);
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        randomAccessObjectFactory,
+        minimumMatchLength,
+        GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #generatePatch(ByteSource, ByteSource, OutputStream, RandomAccessObjectFactory,
+   * int)}, reporting the {@link Phase#SUFFIX_SORT} and {@link Phase#MATCHING} phases and the size
+   * of the suffix array to the specified listener.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param randomAccessObjectFactory factory to create auxiliary storage during BsDiff
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @param listener the listener to report to
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final ByteSource oldData,
+      final ByteSource newData,
+      final OutputStream outputStream,
+      final RandomAccessObjectFactory randomAccessObjectFactory,
+      final int minimumMatchLength,
+      final GenerationListener listener)
+      throws IOException, InterruptedException {
+    if (requiresLongIndexing(oldData.length(), newData.length())) {
+      generatePatchWithLongIndexing(
+          oldData,
+          newData,
+          outputStream,
+          minimumMatchLength,
+          MappedLongArray.DEFAULT_MAX_REGION_SIZE,
+          listener);
+      return;
+    }
+    writeHeader(newData, outputStream);
 
     // Do the suffix search.
+    GenerationPhaseTimer timer = GenerationPhaseTimer.start(listener, Phase.SUFFIX_SORT);
     try (final RandomAccessObject groupArray =
         new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldData)) {
+      listener.onSuffixArrayAllocated(groupArray.length());
+      timer.stop(oldData.length(), groupArray.length());
       BsDiffMatcher matcher = new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
+      generatePatchWithMatcher(oldData, newData, matcher, outputStream, listener);
+    }
+  }
+
+  /**
+   * Calls {@link #generatePatchWithMatcher(ByteSource, ByteSource, Matcher, OutputStream)},
+   * reporting it to the specified listener as the {@link Phase#MATCHING} phase.
+   */
+  private static void generatePatchWithMatcher(
+      ByteSource oldData,
+      ByteSource newData,
+      Matcher matcher,
+      OutputStream outputStream,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    if (listener == GenerationListener.NO_OP) {
       generatePatchWithMatcher(oldData, newData, matcher, outputStream);
+      return;
+    }
+    GenerationPhaseTimer timer = GenerationPhaseTimer.start(listener, Phase.MATCHING);
+    CountingOutputStream countingOut = new CountingOutputStream(outputStream);
+    generatePatchWithMatcher(oldData, newData, matcher, countingOut);
+    timer.stop(oldData.length() + newData.length(), countingOut.getNumBytesWritten());
+  }
+
+  /**
+   * Returns true if inputs of the specified sizes are too large for the int-indexed implementation
+   * of BsDiff, whose suffix array is limited to 2GiB, and must therefore use the slower
+   * long-indexed implementation.
+   *
+   * @param oldSize the size of the old data
+   * @param newSize the size of the new data
+   * @return as described
+   */
+  public static boolean requiresLongIndexing(long oldSize, long newSize) {
+    return oldSize > DivSuffixSorter.MAX_INPUT_LENGTH || newSize > Integer.MAX_VALUE;
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using long
+   * indexes throughout. The suffix array is built by {@link LongSuffixSorter} in {@link
+   * MappedLongArray}s.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @param maxRegionSize the maximum size of each mapped region of the suffix array, in bytes
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  // Visible for testing only
+  static void generatePatchWithLongIndexing(
+      final ByteSource oldData,
+      final ByteSource newData,
+      final OutputStream outputStream,
+      final int minimumMatchLength,
+      final int maxRegionSize)
+      throws IOException, InterruptedException {
+    generatePatchWithLongIndexing(
+        oldData,
+        newData,
+        outputStream,
+        minimumMatchLength,
+        maxRegionSize,
+        GenerationListener.NO_OP);
+  }
+
+  /**
+   * Like {@link #generatePatchWithLongIndexing(ByteSource, ByteSource, OutputStream, int, int)},
+   * reporting to the specified listener. The suffix array size reported includes the second array
+   * that {@link LongSuffixSorter} needs while sorting.
+   */
+  private static void generatePatchWithLongIndexing(
+      final ByteSource oldData,
+      final ByteSource newData,
+      final OutputStream outputStream,
+      final int minimumMatchLength,
+      final int maxRegionSize,
+      final GenerationListener listener)
+      throws IOException, InterruptedException {
+    writeHeader(newData, outputStream);
+    GenerationPhaseTimer timer = GenerationPhaseTimer.start(listener, Phase.SUFFIX_SORT);
+    try (MappedLongArray suffixArray = new LongSuffixSorter(maxRegionSize).suffixSort(oldData)) {
+      long suffixArrayBytes = 2 * suffixArray.length() * suffixArray.getBytesPerElement();
+      listener.onSuffixArrayAllocated(suffixArrayBytes);
+      timer.stop(oldData.length(), suffixArrayBytes);
+      LongBsDiffMatcher matcher =
+          new LongBsDiffMatcher(oldData, newData, suffixArray, minimumMatchLength);
+      generatePatchWithMatcher(oldData, newData, matcher, outputStream, listener);
+    }
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, matching
+   * contiguous segments of the new data concurrently. Each segment is matched as if it were the
+   * start of a patch positioned at the same offset in the old data, and the entries of all the
+   * segments are then joined into one BSDIFF43 patch by fixing up the old position offset of the
+   * last entry before each join. Matches cannot span a join, so the patch may be slightly larger
+   * than the one generated serially; with a single segment it is identical. Both blobs are read
+   * into memory.
+   *
+   * <p>The suffix array is shared by all segments. If |randomAccessObjectFactory| does not create
+   * in-memory or memory-mapped storage, the suffix array cannot be read concurrently and the
+   * segments are matched one at a time on the calling thread.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param randomAccessObjectFactory factory to create auxiliary storage during BsDiff
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @param numSegments the number of segments to split the new data into; must be greater than
+   *     zero
+   * @param executor the executor used to match the segments concurrently, or null to match them
+   *     one at a time on the calling thread
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final ByteSource oldData,
+      final ByteSource newData,
+      final OutputStream outputStream,
+      final RandomAccessObjectFactory randomAccessObjectFactory,
+      final int minimumMatchLength,
+      final int numSegments,
+      final ExecutorService executor)
+      throws IOException, InterruptedException {
+    if (numSegments <= 0) {
+      throw new IllegalArgumentException("numSegments must be > 0: " + numSegments);
+    }
+    byte[] oldBytes = readFully(oldData);
+    byte[] newBytes = readFully(newData);
+    writeHeader(newData, outputStream);
+
+    // Wrapped byte arrays can be read concurrently, unlike arbitrary ByteSources.
+    try (final ByteSource oldByteSource = ByteSource.wrap(oldBytes);
+        final ByteSource newByteSource = ByteSource.wrap(newBytes);
+        final RandomAccessObject groupArray =
+            new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldByteSource)) {
+      List<Segment> segments = new ArrayList<Segment>(numSegments);
+      for (int index = 0; index < numSegments; index++) {
+        int start = (int) ((long) newBytes.length * index / numSegments);
+        int end = (int) ((long) newBytes.length * (index + 1) / numSegments);
+        segments.add(new Segment(start, end, Math.min(start, oldBytes.length)));
+      }
+
+      if (executor != null && groupArray instanceof RandomAccessByteArrayObject) {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(numSegments);
+        for (final Segment segment : segments) {
+          futures.add(
+              executor.submit(
+                  new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                      // Each thread needs its own position in the suffix array. The view keeps
+                      // a mapped suffix array mapped until this thread is done with it.
+                      try (RandomAccessObject view =
+                          ((RandomAccessByteArrayObject) groupArray).duplicate()) {
+                        segment.computeEntries(
+                            oldByteSource, newByteSource, view, minimumMatchLength);
+                      }
+                      return null;
+                    }
+                  }));
+        }
+        waitForSegments(futures);
+      } else {
+        for (Segment segment : segments) {
+          segment.computeEntries(oldByteSource, newByteSource, groupArray, minimumMatchLength);
+        }
+      }
+
+      // Join the segments. The old position offset of each entry is recomputed from the old
+      // position of the entry that follows it, which for the last entry of a segment is the first
+      // entry of the next non-empty segment.
+      List<long[]> entries = new ArrayList<long[]>();
+      for (Segment segment : segments) {
+        entries.addAll(segment.entries);
+      }
+      for (int index = 0; index < entries.size(); index++) {
+        long[] entry = entries.get(index);
+        long oldPositionOffsetForNextEntry = 0;
+        if (index + 1 < entries.size()) {
+          oldPositionOffsetForNextEntry =
+              entries.get(index + 1)[ENTRY_OLD_POSITION]
+                  - (entry[ENTRY_OLD_POSITION] + entry[ENTRY_DIFF_LENGTH]);
+        }
+        writeEntry(
+            newByteSource,
+            oldByteSource,
+            entry[ENTRY_NEW_POSITION],
+            entry[ENTRY_OLD_POSITION],
+            entry[ENTRY_DIFF_LENGTH],
+            entry[ENTRY_EXTRA_LENGTH],
+            oldPositionOffsetForNextEntry,
+            outputStream);
+      }
+    }
+  }
+
+  /**
+   * Waits for all segments to be matched, cancelling the outstanding work if interrupted.
+   *
+   * @param futures the futures of the segments
+   * @throws IOException if matching any segment failed; the first failure is thrown
+   * @throws InterruptedException if interrupted while waiting, or if matching was interrupted
+   */
+  private static void waitForSegments(List<Future<Void>> futures)
+      throws IOException, InterruptedException {
+    Throwable failure = null;
+    try {
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof InterruptedException) {
+      throw (InterruptedException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException("Unable to match segment", failure);
+    }
+  }
+
+  /** A segment of the new data that is matched independently of the others. */
+  private static final class Segment {
+    private final int newStart;
+    private final int newEnd;
+    private final int oldStart;
+    private final List<long[]> entries = new ArrayList<long[]>();
+
+    Segment(int newStart, int newEnd, int oldStart) {
+      this.newStart = newStart;
+      this.newEnd = newEnd;
+      this.oldStart = oldStart;
+    }
+
+    /**
+     * Computes the entries covering this segment.
+     *
+     * @param oldData the old data
+     * @param newData the new data
+     * @param groupArray the suffix array of the old data, not used by any other thread
+     * @param minimumMatchLength the minimum match length
+     * @throws IOException if unable to read data
+     * @throws InterruptedException if any thread interrupts this thread
+     */
+    void computeEntries(
+        ByteSource oldData,
+        ByteSource newData,
+        RandomAccessObject groupArray,
+        int minimumMatchLength)
+        throws IOException, InterruptedException {
+      BsDiffMatcher matcher =
+          new BsDiffMatcher(
+              oldData, newData, groupArray, minimumMatchLength, newStart, newEnd, oldStart);
+      BsDiffPatchWriter.computeEntries(
+          oldData,
+          newData,
+          matcher,
+          newStart,
+          newEnd,
+          oldStart,
+          new EntrySink() {
+            @Override
+            public void entry(
+                long newPosition,
+                long oldPosition,
+                long diffLength,
+                long extraLength,
+                long oldPositionOffsetForNextEntry) {
+              entries.add(new long[] {newPosition, oldPosition, diffLength, extraLength});
+            }
+          });
+    }
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using a
+   * {@link BlockHashMatcher} instead of a suffix array. This is much faster and needs less memory,
+   * but finds fewer matches, so the patch is somewhat larger; it is still an ordinary BSDIFF43
+   * patch. Both blobs are read into memory.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param blockSize the size of the blocks of the old data to index, in bytes. Matches shorter
+   *     than twice this may be missed; smaller blocks find more matches but need a larger index.
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatchWithBlockHashing(
+      final ByteSource oldData,
+      final ByteSource newData,
+      final OutputStream outputStream,
+      final int blockSize,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
+    byte[] oldBytes = readFully(oldData);
+    byte[] newBytes = readFully(newData);
+    writeHeader(newData, outputStream);
+    BlockHashMatcher matcher =
+        new BlockHashMatcher(oldBytes, newBytes, blockSize, minimumMatchLength);
+    try (ByteSource oldByteSource = ByteSource.wrap(oldBytes);
+        ByteSource newByteSource = ByteSource.wrap(newBytes)) {
+      generatePatchWithMatcher(oldByteSource, newByteSource, matcher, outputStream);
+    }
+  }
+
+  /**
+   * Writes the BSDIFF43 header: the signature and the length of the new data.
+   *
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @throws IOException if unable to write data
+   */
+  private static void writeHeader(ByteSource newData, OutputStream outputStream)
+      throws IOException {
+    outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+    BsUtil.writeFormattedLong(newData.length(), outputStream);
+  }
+
+  private static byte[] readFully(ByteSource data) throws IOException {
+    if (data.length() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Input too large (" + data.length() + " bytes)");
+    }
+    byte[] result = new byte[(int) data.length()];
+    try (DataInputStream in = new DataInputStream(data.openStream())) {
+      in.readFully(result);
     }
+    return result;
   }
 }
@@ -105,4 +105,41 @@ class BsUtil {
 
     return length1 - length2;
   }
+
+  /**
+   * Long-indexed version of {@link #lexicographicalCompare(ByteSource, int, int, ByteSource, int,
+   * int)}.
+   *
+   * @param data1 first byte array
+   * @param start1 index in the first array at which to start comparing
+   * @param length1 length of first byte array
+   * @param data2 second byte array
+   * @param start2 index in the second array at which to start comparing
+   * @param length2 length of second byte array
+   * @return negative, zero or positive as described for the int version
+   */
+  static long lexicographicalCompare(
+      final ByteSource data1,
+      final long start1,
+      final long length1,
+      final ByteSource data2,
+      final long start2,
+      final long length2)
+      throws IOException {
+    long bytesLeft = Math.min(length1, length2);
+
+    try (InputStream data1InputStream = data1.sliceFrom(start1).openStream();
+        InputStream data2InputStream = data2.sliceFrom(start2).openStream()) {
+      while (bytesLeft-- > 0) {
+        final int i1 = data1InputStream.read();
+        final int i2 = data2InputStream.read();
+
+        if (i1 != i2) {
+          return i1 - i2;
+        }
+      }
+    }
+
+    return length1 - length2;
+  }
 }
@@ -38,6 +38,12 @@ public final class DivSuffixSorter implements SuffixSorter {
 
   // TODO: Clean up the code, variable names and documentation of this class
 
+  /**
+   * The largest input that can be sorted: the suffix array has length + 1 elements of 4 bytes, and
+   * must be addressable by int. Larger inputs are sorted by {@link LongSuffixSorter}.
+   */
+  static final long MAX_INPUT_LENGTH = Integer.MAX_VALUE / 4 - 1;
+
   private static final int ALPHABET_SIZE = 256;
   private static final int BUCKET_A_SIZE = ALPHABET_SIZE;
   private static final int BUCKET_B_SIZE = ALPHABET_SIZE * ALPHABET_SIZE;
@@ -88,7 +94,7 @@ public final class DivSuffixSorter implements SuffixSorter {
 
   @Override
   public RandomAccessObject suffixSort(ByteSource input) throws IOException, InterruptedException {
-    if (4 * (input.length() + 1) >= Integer.MAX_VALUE) {
+    if (input.length() > MAX_INPUT_LENGTH) {
       throw new IllegalArgumentException("Input too large (" + input.length() + " bytes)");
     }
     int length = (int) input.length();
@@ -0,0 +1,135 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Long-indexed version of {@link BsDiffMatcher}, for inputs whose suffix array is a {@link
+ * MappedLongArray} produced by {@link LongSuffixSorter}. The matching rules are exactly those of
+ * {@link BsDiffMatcher}.
+ */
+class LongBsDiffMatcher implements Matcher {
+  private final ByteSource mOldData;
+  private final ByteSource mNewData;
+
+  /** The suffix array of |mOldData|. */
+  private final MappedLongArray mSuffixArray;
+
+  /**
+   * The index in |mOldData| of the first byte of the match. Zero if no matches have been found yet.
+   */
+  private long mOldPos;
+
+  /**
+   * The index in |mNewData| of the first byte of the match. Zero if no matches have been found yet.
+   * The next match will be searched starting at |mNewPos| + |mMatchLen|.
+   */
+  private long mNewPos;
+
+  /** Minimum match length in bytes. */
+  private final int mMinimumMatchLength;
+
+  /**
+   * A limit on how many total match lengths encountered, to exit the match extension loop in next()
+   * and prevent O(n^2) behavior.
+   */
+  private final long mTotalMatchLenBudget = 1L << 26; // ~64 million.
+
+  /**
+   * The number of bytes, |n|, which match between mNewData[mNewPos ... mNewPos + n] and
+   * mOldData[mOldPos ... mOldPos + n].
+   */
+  private long mMatchLen;
+
+  /**
+   * Create a LongBsDiffMatcher.
+   *
+   * @param oldData
+   * @param newData
+   * @param suffixArray the suffix array of |oldData|
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     mOldData and mNewData
+   */
+  LongBsDiffMatcher(
+      ByteSource oldData, ByteSource newData, MappedLongArray suffixArray, int minimumMatchLength) {
+    this.mOldData = oldData;
+    this.mNewData = newData;
+    this.mSuffixArray = suffixArray;
+    this.mMinimumMatchLength = minimumMatchLength;
+  }
+
+  @Override
+  public Matcher.NextMatch next() throws IOException, InterruptedException {
+    // See BsDiffMatcher.next() for an explanation of each step.
+    long previousOldOffset = mOldPos - mNewPos;
+    mNewPos += mMatchLen;
+    long numMatches = 0;
+    long matchesCacheSize = 0;
+    long totalMatchLen = 0;
+
+    while (mNewPos < mNewData.length()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      BsDiff.LongMatch match =
+          BsDiff.searchForMatch(mSuffixArray, mOldData, mNewData, mNewPos, 0, mOldData.length());
+      mOldPos = match.start;
+      mMatchLen = match.length;
+      totalMatchLen += mMatchLen;
+
+      for (; matchesCacheSize < mMatchLen; ++matchesCacheSize) {
+        long oldIndex = mNewPos + previousOldOffset + matchesCacheSize;
+        long newIndex = mNewPos + matchesCacheSize;
+        if (oldIndex < mOldData.length()) {
+          try (InputStream oldDataInputStream = mOldData.sliceFrom(oldIndex).openStream();
+              InputStream newDataInputStream = mNewData.sliceFrom(newIndex).openStream()) {
+            if (oldDataInputStream.read() == newDataInputStream.read()) {
+              ++numMatches;
+            }
+          }
+        }
+      }
+
+      if (mMatchLen > numMatches + mMinimumMatchLength || totalMatchLen >= mTotalMatchLenBudget) {
+        return Matcher.NextMatch.of(true, mOldPos, mNewPos);
+      }
+
+      if (mMatchLen == 0) {
+        ++mNewPos;
+      } else if (mMatchLen == numMatches) {
+        mNewPos += numMatches;
+        numMatches = 0;
+        matchesCacheSize = 0;
+      } else {
+        if (mNewPos + previousOldOffset < mOldData.length()) {
+          try (InputStream oldDataInputStream =
+                  mOldData.sliceFrom(mNewPos + previousOldOffset).openStream();
+              InputStream newDataInputStream = mNewData.sliceFrom(mNewPos).openStream()) {
+            if (oldDataInputStream.read() == newDataInputStream.read()) {
+              --numMatches;
+            }
+          }
+        }
+        ++mNewPos;
+        --matchesCacheSize;
+      }
+    }
+
+    return Matcher.NextMatch.of(false, 0, 0);
+  }
+}
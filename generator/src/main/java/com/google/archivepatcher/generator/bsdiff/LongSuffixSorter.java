@@ -0,0 +1,279 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A suffix sorter for inputs of any size, producing a suffix array in a {@link MappedLongArray}.
+ * This is the Larsson-Sadakane "qsufsort" algorithm used by the original bsdiff, with 64-bit
+ * offsets. It is slower than {@link DivSuffixSorter} and needs two arrays of 5 or 8 bytes per
+ * byte of input instead of one array of 4 bytes, so it is only used for inputs that {@link
+ * DivSuffixSorter} cannot handle.
+ *
+ * <p>The suffix array has the same layout as the one produced by {@link DivSuffixSorter}: it has
+ * length + 1 elements, the first of which is the empty suffix at position |length|.
+ */
+class LongSuffixSorter {
+  /** Buckets smaller than this are sorted by selection rather than by partitioning. */
+  private static final long SMALL_BUCKET_SIZE = 16;
+
+  /** Size of the buffer used to read the input. */
+  private static final int INPUT_BUFFER_SIZE = 32768;
+
+  /** The maximum size of each mapped region of the arrays, in bytes. */
+  private final int maxRegionSize;
+
+  /** Work stack used by {@link #split(MappedLongArray, MappedLongArray, long, long, long)}. */
+  private long[] stack = new long[48];
+
+  private int stackSize = 0;
+
+  /**
+   * Creates a sorter.
+   *
+   * @param maxRegionSize the maximum size of each mapped region of the arrays, in bytes
+   */
+  LongSuffixSorter(int maxRegionSize) {
+    this.maxRegionSize = maxRegionSize;
+  }
+
+  /**
+   * Sorts the suffixes of the input.
+   *
+   * @param input the input
+   * @return the suffix array, which the caller must close
+   * @throws IOException if unable to read the input or create the arrays
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  MappedLongArray suffixSort(ByteSource input) throws IOException, InterruptedException {
+    long length = input.length();
+    // Elements of I are positions or negated lengths of sorted runs, and elements of V are group
+    // numbers, so no magnitude exceeds length + 1.
+    MappedLongArray suffixArray = new MappedLongArray(length + 1, length + 1, maxRegionSize);
+    boolean success = false;
+    try (MappedLongArray groups = new MappedLongArray(length + 1, length + 1, maxRegionSize)) {
+      qsufsort(suffixArray, groups, input);
+      success = true;
+      return suffixArray;
+    } finally {
+      if (!success) {
+        suffixArray.close();
+      }
+    }
+  }
+
+  // The arrays are named as in the original bsdiff: I is the suffix array being built and V holds
+  // the group number of each suffix.
+  private void qsufsort(MappedLongArray I, MappedLongArray V, ByteSource input)
+      throws IOException, InterruptedException {
+    long length = input.length();
+    long[] buckets = new long[256];
+    try (InputStream in = openInput(input)) {
+      for (long i = 0; i < length; i++) {
+        buckets[in.read()]++;
+      }
+    }
+    for (int i = 1; i < 256; i++) {
+      buckets[i] += buckets[i - 1];
+    }
+    for (int i = 255; i > 0; i--) {
+      buckets[i] = buckets[i - 1];
+    }
+    buckets[0] = 0;
+
+    try (InputStream in = openInput(input)) {
+      for (long i = 0; i < length; i++) {
+        I.set(++buckets[in.read()], i);
+      }
+    }
+    I.set(0, length);
+    try (InputStream in = openInput(input)) {
+      for (long i = 0; i < length; i++) {
+        V.set(i, buckets[in.read()]);
+      }
+    }
+    V.set(length, 0);
+    for (int i = 1; i < 256; i++) {
+      if (buckets[i] == buckets[i - 1] + 1) {
+        I.set(buckets[i], -1);
+      }
+    }
+    I.set(0, -1);
+
+    for (long h = 1; I.get(0) != -(length + 1); h += h) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      long runLength = 0;
+      long i = 0;
+      while (i < length + 1) {
+        long value = I.get(i);
+        if (value < 0) {
+          runLength -= value;
+          i -= value;
+        } else {
+          if (runLength != 0) {
+            I.set(i - runLength, -runLength);
+          }
+          runLength = V.get(value) - i + 1;
+          split(I, V, i, runLength, h);
+          i += runLength;
+          runLength = 0;
+        }
+      }
+      if (runLength != 0) {
+        I.set(i - runLength, -runLength);
+      }
+    }
+
+    for (long i = 0; i < length + 1; i++) {
+      I.set(V.get(i), i);
+    }
+  }
+
+  /**
+   * Sorts the bucket I[start ... start + length - 1] by the group numbers of the suffixes h
+   * positions further on. This is the recursive procedure of qsufsort, run with an explicit stack
+   * so that degenerate inputs cannot overflow the thread's stack; the steps run in the same order
+   * as in the recursive version.
+   */
+  private void split(MappedLongArray I, MappedLongArray V, long start, long length, long h) {
+    // Frames are (start, length, -1) for a pending split, or (jj, kk, end) for the work that
+    // follows the split of the part of the bucket that sorts before the pivot.
+    push(start, length, -1);
+    while (stackSize > 0) {
+      stackSize -= 3;
+      long a = stack[stackSize];
+      long b = stack[stackSize + 1];
+      long c = stack[stackSize + 2];
+      if (c >= 0) {
+        finishSplit(I, V, a, b, c);
+      } else if (b < SMALL_BUCKET_SIZE) {
+        selectionSplit(I, V, a, b, h);
+      } else {
+        partition(I, V, a, b, h);
+      }
+    }
+  }
+
+  private void selectionSplit(
+      MappedLongArray I, MappedLongArray V, long start, long length, long h) {
+    long j;
+    for (long k = start; k < start + length; k += j) {
+      j = 1;
+      long x = V.get(I.get(k) + h);
+      for (long i = 1; k + i < start + length; i++) {
+        long value = V.get(I.get(k + i) + h);
+        if (value < x) {
+          x = value;
+          j = 0;
+        }
+        if (value == x) {
+          swap(I, k + j, k + i);
+          j++;
+        }
+      }
+      for (long i = 0; i < j; i++) {
+        V.set(I.get(k + i), k + j - 1);
+      }
+      if (j == 1) {
+        I.set(k, -1);
+      }
+    }
+  }
+
+  private void partition(MappedLongArray I, MappedLongArray V, long start, long length, long h) {
+    long x = V.get(I.get(start + length / 2) + h);
+    long jj = 0;
+    long kk = 0;
+    for (long i = start; i < start + length; i++) {
+      long value = V.get(I.get(i) + h);
+      if (value < x) {
+        jj++;
+      }
+      if (value == x) {
+        kk++;
+      }
+    }
+    jj += start;
+    kk += jj;
+
+    long i = start;
+    long j = 0;
+    long k = 0;
+    while (i < jj) {
+      long value = V.get(I.get(i) + h);
+      if (value < x) {
+        i++;
+      } else if (value == x) {
+        swap(I, i, jj + j);
+        j++;
+      } else {
+        swap(I, i, kk + k);
+        k++;
+      }
+    }
+    while (jj + j < kk) {
+      if (V.get(I.get(jj + j) + h) == x) {
+        j++;
+      } else {
+        swap(I, jj + j, kk + k);
+        k++;
+      }
+    }
+
+    // Split the part before the pivot group first, then finish.
+    push(jj, kk, start + length);
+    if (jj > start) {
+      push(start, jj - start, -1);
+    }
+  }
+
+  private void finishSplit(MappedLongArray I, MappedLongArray V, long jj, long kk, long end) {
+    for (long i = 0; i < kk - jj; i++) {
+      V.set(I.get(jj + i), kk - 1);
+    }
+    if (jj == kk - 1) {
+      I.set(jj, -1);
+    }
+    if (end > kk) {
+      push(kk, end - kk, -1);
+    }
+  }
+
+  private void push(long a, long b, long c) {
+    if (stackSize + 3 > stack.length) {
+      stack = Arrays.copyOf(stack, stack.length * 2);
+    }
+    stack[stackSize++] = a;
+    stack[stackSize++] = b;
+    stack[stackSize++] = c;
+  }
+
+  private static void swap(MappedLongArray array, long index1, long index2) {
+    long temp = array.get(index1);
+    array.set(index1, array.get(index2));
+    array.set(index2, temp);
+  }
+
+  private static InputStream openInput(ByteSource input) throws IOException {
+    return new BufferedInputStream(input.openStream(), INPUT_BUFFER_SIZE);
+  }
+}
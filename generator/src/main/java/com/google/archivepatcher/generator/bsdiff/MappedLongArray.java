@@ -0,0 +1,184 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.shared.BufferUnmapper;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed-length array of signed integers stored in a memory-mapped temp file, indexed by long.
+ * Each element is stored in 5 bytes if every value to be stored fits in 40 bits, and in 8 bytes
+ * otherwise. Unlike {@link RandomAccessObject.RandomAccessMmapObject}, the file may be larger than
+ * 2GiB: it is mapped as several regions, none of which is larger than a configurable size and none
+ * of which splits an element.
+ *
+ * <p>This is the storage used by BsDiff for the suffix array of inputs that are too large for
+ * {@link DivSuffixSorter}. It is not thread-safe.
+ */
+class MappedLongArray implements Closeable {
+  /** The default maximum size of each mapped region, in bytes. */
+  static final int DEFAULT_MAX_REGION_SIZE = 1 << 30;
+
+  /** The largest magnitude that can be stored in an element of 5 bytes. */
+  static final long MAX_5_BYTE_MAGNITUDE = (1L << 39) - 1;
+
+  private static final String FILE_NAME_PREFIX = "wavsprmla";
+
+  /** The number of elements. */
+  private final long length;
+
+  /** The number of bytes used to store each element, either 5 or 8. */
+  private final int bytesPerElement;
+
+  /** The number of elements in each region; the last region may hold fewer. */
+  private final long elementsPerRegion;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private MappedByteBuffer[] regions;
+
+  /**
+   * Creates a new array in a temp file, with every element initially zero. The temp file is deleted
+   * when the array is closed.
+   *
+   * @param length the number of elements
+   * @param maxMagnitude the largest magnitude of any value that will be stored, which determines
+   *     the number of bytes used to store each element
+   * @param maxRegionSize the maximum size of each mapped region, in bytes; must be at least 8
+   * @throws IOException if unable to create or map the temp file
+   */
+  MappedLongArray(long length, long maxMagnitude, int maxRegionSize) throws IOException {
+    if (length < 0) {
+      throw new IllegalArgumentException("length must be non-negative: " + length);
+    }
+    if (maxRegionSize < 8) {
+      throw new IllegalArgumentException("maxRegionSize must be >= 8: " + maxRegionSize);
+    }
+    this.length = length;
+    this.bytesPerElement = bytesPerElement(maxMagnitude);
+    this.elementsPerRegion = maxRegionSize / bytesPerElement;
+    this.file = File.createTempFile(FILE_NAME_PREFIX, "temp");
+    this.file.deleteOnExit();
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      long sizeBytes = length * bytesPerElement;
+      randomAccessFile.setLength(sizeBytes);
+      int numRegions = (int) ((length + elementsPerRegion - 1) / elementsPerRegion);
+      regions = new MappedByteBuffer[numRegions];
+      FileChannel channel = randomAccessFile.getChannel();
+      for (int index = 0; index < numRegions; index++) {
+        long start = index * elementsPerRegion * bytesPerElement;
+        regions[index] =
+            channel.map(
+                FileChannel.MapMode.READ_WRITE,
+                start,
+                Math.min(elementsPerRegion * bytesPerElement, sizeBytes - start));
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of bytes needed to store each element of an array whose values have at most
+   * the specified magnitude.
+   *
+   * @param maxMagnitude the largest magnitude of any value that will be stored
+   * @return 5 or 8
+   */
+  static int bytesPerElement(long maxMagnitude) {
+    return maxMagnitude <= MAX_5_BYTE_MAGNITUDE ? 5 : 8;
+  }
+
+  /**
+   * Returns the number of elements.
+   *
+   * @return as described
+   */
+  long length() {
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes used to store each element.
+   *
+   * @return 5 or 8
+   */
+  int getBytesPerElement() {
+    return bytesPerElement;
+  }
+
+  /**
+   * Returns the element at the specified index.
+   *
+   * @param index the index, which must be in the range [0, length())
+   * @return the element
+   */
+  long get(long index) {
+    MappedByteBuffer region = regions[(int) (index / elementsPerRegion)];
+    int offset = (int) (index % elementsPerRegion) * bytesPerElement;
+    if (bytesPerElement == 8) {
+      return region.getLong(offset);
+    }
+    // The high byte is sign-extended.
+    return ((long) region.get(offset) << 32) | (region.getInt(offset + 1) & 0xffffffffL);
+  }
+
+  /**
+   * Sets the element at the specified index.
+   *
+   * @param index the index, which must be in the range [0, length())
+   * @param value the value, whose magnitude must be no more than the maximum that this array was
+   *     created for
+   */
+  void set(long index, long value) {
+    MappedByteBuffer region = regions[(int) (index / elementsPerRegion)];
+    int offset = (int) (index % elementsPerRegion) * bytesPerElement;
+    if (bytesPerElement == 8) {
+      region.putLong(offset, value);
+    } else {
+      region.put(offset, (byte) (value >> 32));
+      region.putInt(offset + 1, (int) value);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      randomAccessFile.close();
+    } finally {
+      // As in RandomAccessObject.RandomAccessMmapObject, the mappings have to be released before
+      // the file can be deleted on some systems. Where they cannot be released explicitly, that
+      // only happens once the buffers are garbage collected.
+      boolean unmapped = true;
+      if (regions != null) {
+        for (MappedByteBuffer region : regions) {
+          unmapped &= region == null || BufferUnmapper.unmap(region);
+        }
+      }
+      regions = null;
+      if (!unmapped) {
+        System.gc();
+      }
+      file.delete();
+    }
+  }
+}
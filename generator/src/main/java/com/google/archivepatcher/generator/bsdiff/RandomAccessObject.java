@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.shared.BufferUnmapper;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -151,6 +152,20 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       // No-op, this is just used by the extending class RandomAccessMmapObject.
     }
 
+    /**
+     * Returns a view of the same data with its own position, so that several threads can read the
+     * data concurrently. The view must be closed when no longer needed, and must not be used after
+     * it is closed.
+     *
+     * @return the view
+     * @throws IOException if this object is closed
+     */
+    RandomAccessByteArrayObject duplicate() throws IOException {
+      RandomAccessByteArrayObject result = new RandomAccessByteArrayObject();
+      result.mByteBuffer = mByteBuffer.duplicate().order(mByteBuffer.order());
+      return result;
+    }
+
     @Override
     public long length() {
       return mByteBuffer.capacity();
@@ -348,6 +363,8 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
     private final boolean mShouldDeleteFileOnRelease;
     private final File mFile;
     private final FileChannel mFileChannel;
+    private int mNumOpenDuplicates = 0;
+    private boolean mClosed = false;
 
     public RandomAccessMmapObject(final RandomAccessFile randomAccessFile, String mode)
         throws IOException, IllegalArgumentException {
@@ -468,28 +485,75 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       }
     }
 
+    /**
+     * Returns a view of the same data with its own position. The mapping is only released once this
+     * object and all of its views have been closed, so that no view can ever read unmapped memory.
+     */
     @Override
-    public void close() throws IOException {
-      if (mFileChannel != null) {
-        mFileChannel.close();
+    synchronized RandomAccessByteArrayObject duplicate() throws IOException {
+      if (mByteBuffer == null) {
+        throw new IOException("RandomAccessMmapObject is closed");
+      }
+      mNumOpenDuplicates++;
+      RandomAccessByteArrayObject result =
+          new RandomAccessByteArrayObject() {
+            private boolean mClosed = false;
+
+            @Override
+            public void close() {
+              if (!mClosed) {
+                mClosed = true;
+                mByteBuffer = null;
+                releaseDuplicate();
+              }
+            }
+          };
+      result.mByteBuffer = mByteBuffer.duplicate().order(mByteBuffer.order());
+      return result;
+    }
+
+    private synchronized void releaseDuplicate() {
+      mNumOpenDuplicates--;
+      if (mClosed && mNumOpenDuplicates == 0) {
+        release();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      try {
+        if (mFileChannel != null) {
+          mFileChannel.close();
+        }
+      } finally {
+        if (mNumOpenDuplicates == 0) {
+          release();
+        }
       }
+    }
 
-      // There is a long-standing bug with memory mapped objects in Java that requires the JVM to
-      // finalize the MappedByteBuffer reference before the unmap operation is performed. This leaks
-      // file handles and fills the virtual address space. Worse, on some systems (Windows for one)
-      // the active mmap prevents the temp file from being deleted - even if File.deleteOnExit() is
-      // used. The only safe way to ensure that file handles and actual files are not leaked by this
-      // class is to force an explicit full gc after explicitly nulling the MappedByteBuffer
-      // reference. This has to be done before attempting file deletion.
+    /** Releases the mapping and deletes the file if this object owns it. */
+    private void release() {
+      // On some systems (Windows for one) an active mapping prevents the file from being deleted,
+      // even if File.deleteOnExit() is used, so the mapping has to be released first. Where the
+      // mapping can be released explicitly that is done right away; otherwise it is only released
+      // once the MappedByteBuffer is finalized, which requires forcing a full gc after nulling the
+      // reference.
       //
       // See https://github.com/andrewhayden/archive-patcher/issues/5 for more information.
+      ByteBuffer buffer = mByteBuffer;
       mByteBuffer = null;
-      System.gc();
+      if (buffer != null && !BufferUnmapper.unmap(buffer)) {
+        System.gc();
+      }
 
       if (mShouldDeleteFileOnRelease && mFile != null) {
         mFile.delete();
       }
-
     }
   }
 }
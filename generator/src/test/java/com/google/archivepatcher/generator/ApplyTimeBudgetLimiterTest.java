@@ -0,0 +1,171 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.builderWithCompressedBytesChanged;
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.builderWithCompressedBytesIdentical;
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.suppressed;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ApplyTimeBudgetLimiter}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ApplyTimeBudgetLimiterTest {
+
+  private static final ByteSource OLD_FILE = null;
+  private static final ByteSource NEW_FILE = null;
+
+  private static final long MILLIS = 1000000L;
+
+  /**
+   * A calibration in which level 1 deflates at 1 byte per millisecond and level 9 at a ninth of
+   * that, so that recompressing N bytes at level L takes N * L milliseconds.
+   */
+  private static final DeflateThroughputCalibration CALIBRATION;
+
+  static {
+    Map<JreDeflateParameters, Double> throughputs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      throughputs.put(parameters, 1000d / parameters.level);
+    }
+    CALIBRATION = new DeflateThroughputCalibration(throughputs);
+  }
+
+  private static final MinimalZipEntry UNIMPORTANT = makeFakeEntry("/unimportant", 1337);
+
+  // Projected times 90/20/10 ms; savings 30/10/1 bytes, i.e. 3/2/10 ms per byte saved.
+  private static final PreDiffPlanEntry ENTRY_A_90MS =
+      makeEntry("/a", 10, JreDeflateParameters.of(9, 0, true));
+  private static final PreDiffPlanEntry ENTRY_B_20MS =
+      makeEntry("/b", 20, JreDeflateParameters.of(1, 0, true));
+  private static final PreDiffPlanEntry ENTRY_C_10MS =
+      makeEntry("/c", 10, JreDeflateParameters.of(1, 0, true));
+  private static final PreDiffPlanEntry ENTRY_IGNORED =
+      builderWithCompressedBytesIdentical()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/ignored", 1000))
+          .build();
+
+  private static final List<PreDiffPlanEntry> ALL_ENTRIES =
+      Collections.unmodifiableList(
+          Arrays.asList(ENTRY_A_90MS, ENTRY_IGNORED, ENTRY_B_20MS, ENTRY_C_10MS));
+
+  /** Savings keyed by path, for the stub estimator. */
+  private static final Map<String, Long> SAVINGS = new HashMap<String, Long>();
+
+  static {
+    SAVINGS.put("/a", 30L);
+    SAVINGS.put("/b", 10L);
+    SAVINGS.put("/c", 1L);
+  }
+
+  /** An estimator that looks up the saving of each entry in {@link #SAVINGS}. */
+  private static final DeltaSavingEstimator STUB_ESTIMATOR =
+      new DeltaSavingEstimator() {
+        @Override
+        public long estimateSavingBytes(
+            ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry) {
+          return SAVINGS.get(entry.getNewEntry().getFileName());
+        }
+      };
+
+  private static PreDiffPlanEntry makeEntry(
+      String path, long uncompressedSize, JreDeflateParameters parameters) {
+    return builderWithCompressedBytesChanged()
+        .setZipEntries(UNIMPORTANT, makeFakeEntry(path, uncompressedSize))
+        .setNewJreDeflateParameters(parameters)
+        .build();
+  }
+
+  private static MinimalZipEntry makeFakeEntry(String path, long uncompressedSize) {
+    try {
+      return new MinimalZipEntry(
+          8, // == deflate
+          0, // crc32OfUncompressedData (ignored for this test)
+          0, // compressedSize (ignored for this test)
+          uncompressedSize,
+          path.getBytes("UTF8"),
+          true, // generalPurposeFlagBit11 (true=UTF8)
+          0 // fileOffsetOfLocalEntry (ignored for this test)
+          );
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Impossible on any modern system
+    }
+  }
+
+  private List<PreDiffPlanEntry> limit(long maxRecompressionMillis) {
+    return new ApplyTimeBudgetLimiter(
+            maxRecompressionMillis,
+            RecompressionCostModel.fromCalibration(CALIBRATION),
+            STUB_ESTIMATOR)
+        .getModifiedPreDiffPlanEntries(OLD_FILE, NEW_FILE, ALL_ENTRIES);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimit() {
+    new ApplyTimeBudgetLimiter(-1, CALIBRATION);
+  }
+
+  @Test
+  public void testProjectedTimes() {
+    RecompressionCostModel model = RecompressionCostModel.fromCalibration(CALIBRATION);
+    assertThat(model.estimateRecompressionNanos(JreDeflateParameters.of(9, 0, true), 10))
+        .isEqualTo(90 * MILLIS);
+  }
+
+  @Test
+  public void testZeroLimit() {
+    List<PreDiffPlanEntry> suppressed = suppressed(ENTRY_A_90MS, ENTRY_B_20MS, ENTRY_C_10MS);
+    assertThat(limit(0))
+        .containsExactly(suppressed.get(0), ENTRY_IGNORED, suppressed.get(1), suppressed.get(2))
+        .inOrder();
+  }
+
+  @Test
+  public void testLimit_EverythingFits() {
+    assertThat(limit(120)).containsExactlyElementsIn(ALL_ENTRIES).inOrder();
+  }
+
+  @Test
+  public void testLimit_DropsMostExpensivePerByteSavedFirst() {
+    // C costs the most per byte saved, so it goes first; that is enough.
+    assertThat(limit(110))
+        .containsExactly(
+            ENTRY_A_90MS, ENTRY_IGNORED, ENTRY_B_20MS, suppressed(ENTRY_C_10MS).get(0))
+        .inOrder();
+    // Then A, even though B is larger: B saves more per millisecond.
+    assertThat(limit(100))
+        .containsExactly(
+            suppressed(ENTRY_A_90MS).get(0),
+            ENTRY_IGNORED,
+            ENTRY_B_20MS,
+            suppressed(ENTRY_C_10MS).get(0))
+        .inOrder();
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator.MatchingStrategy;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BatchDeltaGenerator}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BatchDeltaGeneratorTest {
+  private final List<TempFileHolder> tempFiles = new ArrayList<>();
+
+  private File newFile;
+  private List<File> oldFiles;
+  private List<File> patchFiles;
+
+  @Before
+  public void setUp() throws IOException {
+    newFile = newTempFile();
+    UnitTestZipArchive.saveTestZip(newFile);
+    UnitTestZipEntry changedEntry =
+        UnitTestZipArchive.makeUnitTestZipEntry("/entry2", 9, "entry 2 changed", null);
+    oldFiles =
+        Arrays.asList(
+            writeZip(UnitTestZipArchive.makeTestZip()),
+            writeZip(
+                UnitTestZipArchive.makeTestZip(
+                    Arrays.asList(UnitTestZipArchive.entry1, changedEntry))),
+            writeZip(
+                UnitTestZipArchive.makeTestZip(
+                    Collections.singletonList(UnitTestZipArchive.entry3))));
+    patchFiles = Arrays.asList(newTempFile(), newTempFile(), newTempFile());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (TempFileHolder tempFile : tempFiles) {
+      tempFile.close();
+    }
+  }
+
+  @Test
+  public void testGenerateDeltas() throws Exception {
+    GenerationStats stats = new GenerationStats();
+    BatchGenerationReport report =
+        newBatchGenerator(null, 2).generateDeltas(newFile, oldFiles, patchFiles, stats);
+
+    assertThat(report.getNewFile()).isEqualTo(newFile);
+    assertThat(report.getNumFailures()).isEqualTo(0);
+    assertThat(report.getEntries()).hasSize(3);
+    FileByFileDeltaGenerator singleGenerator =
+        new FileByFileDeltaGenerator(
+            Collections.<PreDiffPlanEntryModifier>emptyList(),
+            Collections.singleton(DeltaFormat.BSDIFF),
+            false);
+    for (int index = 0; index < oldFiles.size(); index++) {
+      BatchGenerationReport.Entry entry = report.getEntries().get(index);
+      assertThat(entry.isSuccessful()).isTrue();
+      assertThat(entry.getOldFile()).isEqualTo(oldFiles.get(index));
+      assertThat(entry.getPatchFile()).isEqualTo(patchFiles.get(index));
+      assertThat(entry.getPatchSize()).isEqualTo(patchFiles.get(index).length());
+      // Sharing the preparation of the new archive doesn't change the patch.
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      singleGenerator.generateDelta(oldFiles.get(index), newFile, expected);
+      assertThat(Files.readAllBytes(patchFiles.get(index).toPath()))
+          .isEqualTo(expected.toByteArray());
+    }
+    // The new archive is divined once, but each pair is planned.
+    assertThat(stats.getPhaseStats(Phase.DIVINATION).getCount()).isEqualTo(1);
+    assertThat(stats.getPhaseStats(Phase.PLANNING).getCount()).isEqualTo(3);
+    assertThat(stats.getPhaseStats(Phase.PARSING).getCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testGenerateDeltas_RecordsFailure() throws Exception {
+    File notAnArchive = newTempFile();
+    try (FileOutputStream out = new FileOutputStream(notAnArchive)) {
+      out.write(new byte[] {1, 2, 3});
+    }
+    List<File> olds = Arrays.asList(oldFiles.get(0), notAnArchive);
+    List<File> patches = patchFiles.subList(0, 2);
+    BatchGenerationReport report =
+        newBatchGenerator(null, 1).generateDeltas(newFile, olds, patches);
+
+    assertThat(report.getNumFailures()).isEqualTo(1);
+    assertThat(report.getEntries().get(0).isSuccessful()).isTrue();
+    BatchGenerationReport.Entry failed = report.getEntries().get(1);
+    assertThat(failed.isSuccessful()).isFalse();
+    assertThat(failed.getFailure()).isNotNull();
+    assertThat(failed.getMemoryReport()).isNull();
+    assertThat(failed.getPatchSize()).isEqualTo(-1L);
+    assertThat(patches.get(1).exists()).isFalse();
+  }
+
+  @Test
+  public void testGenerateDeltas_RecordsRuntimeException() throws Exception {
+    final long failingLength = oldFiles.get(1).length();
+    PreDiffPlanEntryModifier failingModifier =
+        new PreDiffPlanEntryModifier() {
+          @Override
+          public List<PreDiffPlanEntry> getModifiedPreDiffPlanEntries(
+              ByteSource oldFile, ByteSource newFile, List<PreDiffPlanEntry> originalEntries) {
+            if (oldFile.length() == failingLength) {
+              throw new IllegalStateException("broken modifier");
+            }
+            return originalEntries;
+          }
+        };
+    BatchGenerationReport report =
+        new BatchDeltaGenerator(
+                Collections.singletonList(failingModifier),
+                Collections.singleton(DeltaFormat.BSDIFF),
+                /* useNativeBsDiff= */ false,
+                Collections.<PatchFlag>emptySet(),
+                MatchingStrategy.SUFFIX_ARRAY,
+                /* totalMemoryBudget= */ null,
+                /* maxConcurrency= */ 2)
+            .generateDeltas(newFile, oldFiles, patchFiles);
+
+    assertThat(report.getNumFailures()).isEqualTo(1);
+    assertThat(report.getEntries().get(0).isSuccessful()).isTrue();
+    assertThat(report.getEntries().get(2).isSuccessful()).isTrue();
+    BatchGenerationReport.Entry failed = report.getEntries().get(1);
+    assertThat(failed.getFailure()).isInstanceOf(IllegalStateException.class);
+    assertThat(failed.getMemoryReport()).isNull();
+    assertThat(patchFiles.get(1).exists()).isFalse();
+  }
+
+  @Test
+  public void testGenerateDeltas_MeasuresEachGenerationOnlyWhenSequential() throws Exception {
+    BatchGenerationReport concurrent =
+        newBatchGenerator(null, 2).generateDeltas(newFile, oldFiles, patchFiles);
+    for (BatchGenerationReport.Entry entry : concurrent.getEntries()) {
+      assertThat(entry.getMemoryReport().getActualPeakBytes()).isEqualTo(-1L);
+    }
+    assertThat(concurrent.getPeakBytes()).isAtLeast(0L);
+
+    BatchGenerationReport sequential =
+        newBatchGenerator(null, 1).generateDeltas(newFile, oldFiles, patchFiles);
+    for (BatchGenerationReport.Entry entry : sequential.getEntries()) {
+      assertThat(entry.getMemoryReport().getActualPeakBytes()).isAtLeast(0L);
+    }
+    assertThat(sequential.getPeakBytes()).isAtLeast(0L);
+  }
+
+  @Test
+  public void testGenerateDeltas_DividesMemoryBudget() throws Exception {
+    GenerationMemoryBudget totalBudget =
+        new GenerationMemoryBudget(
+            1024L * 1024 * 1024, GenerationMemoryBudget.Adaptation.REDUCE_UNCOMPRESSION_FIRST);
+    BatchGenerationReport report =
+        newBatchGenerator(totalBudget, 2).generateDeltas(newFile, oldFiles, patchFiles);
+
+    for (BatchGenerationReport.Entry entry : report.getEntries()) {
+      assertThat(entry.getMemoryReport().getMaxBytes()).isEqualTo(512L * 1024 * 1024);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGenerateDeltas_MismatchedLists() throws Exception {
+    newBatchGenerator(null, 1).generateDeltas(newFile, oldFiles, patchFiles.subList(0, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadConcurrency() {
+    newBatchGenerator(null, 0);
+  }
+
+  private static BatchDeltaGenerator newBatchGenerator(
+      GenerationMemoryBudget totalMemoryBudget, int maxConcurrency) {
+    return new BatchDeltaGenerator(
+        Collections.<PreDiffPlanEntryModifier>emptyList(),
+        Collections.singleton(DeltaFormat.BSDIFF),
+        /* useNativeBsDiff= */ false,
+        Collections.<PatchFlag>emptySet(),
+        MatchingStrategy.SUFFIX_ARRAY,
+        totalMemoryBudget,
+        maxConcurrency);
+  }
+
+  private File newTempFile() throws IOException {
+    TempFileHolder holder = new TempFileHolder();
+    tempFiles.add(holder);
+    return holder.file;
+  }
+
+  private File writeZip(byte[] data) throws IOException {
+    File file = newTempFile();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+    return file;
+  }
+}
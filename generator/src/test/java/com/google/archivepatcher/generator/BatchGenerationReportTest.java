@@ -0,0 +1,115 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BatchGenerationReport}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BatchGenerationReportTest {
+  @Test
+  public void testGetNumFailures() {
+    BatchGenerationReport report =
+        new BatchGenerationReport(
+            new File("new"),
+            1,
+            2,
+            3,
+            Arrays.asList(
+                new BatchGenerationReport.Entry(
+                    new File("old1"), new File("patch1"), 1, new IOException("bad")),
+                new BatchGenerationReport.Entry(
+                    new File("old2"), new File("patch2"), 1, 10, newMemoryReport())));
+    assertThat(report.getNumFailures()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWriteJson() {
+    BatchGenerationReport report =
+        new BatchGenerationReport(
+            new File("new"),
+            100,
+            500,
+            4096,
+            Arrays.asList(
+                new BatchGenerationReport.Entry(
+                    new File("old1"), new File("patch1"), 200, 42, newMemoryReport()),
+                new BatchGenerationReport.Entry(
+                    new File("old\"2"), new File("patch2"), 300, new IOException("bad\\zip"))));
+    StringWriter out = new StringWriter();
+    report.writeJson(new PrintWriter(out));
+    assertThat(out.toString())
+        .isEqualTo(
+            "{\n"
+                + "  \"newFile\": \"new\",\n"
+                + "  \"preparationNanos\": 100,\n"
+                + "  \"elapsedNanos\": 500,\n"
+                + "  \"peakBytes\": 4096,\n"
+                + "  \"patches\": [\n"
+                + "    {\"oldFile\": \"old1\", \"patchFile\": \"patch1\", \"elapsedNanos\": 200,"
+                + " \"patchBytes\": 42, \"backend\": \"DISK\", \"plannedPeakBytes\": 1000,"
+                + " \"actualPeakBytes\": 900},\n"
+                + "    {\"oldFile\": \"old\\\"2\", \"patchFile\": \"patch2\","
+                + " \"elapsedNanos\": 300, \"error\": \"java.io.IOException: bad\\\\zip\"}\n"
+                + "  ]\n"
+                + "}\n");
+  }
+
+  @Test
+  public void testWriteJson_Empty() {
+    BatchGenerationReport report =
+        new BatchGenerationReport(
+            new File("new"), 1, 2, 3, Collections.<BatchGenerationReport.Entry>emptyList());
+    StringWriter out = new StringWriter();
+    report.writeJson(new PrintWriter(out));
+    assertThat(out.toString()).contains("\"patches\": []\n");
+  }
+
+  @Test
+  public void testWriteJson_OmitsUnmeasuredActualPeak() {
+    BatchGenerationReport report =
+        new BatchGenerationReport(
+            new File("new"),
+            1,
+            2,
+            3,
+            Arrays.asList(
+                new BatchGenerationReport.Entry(
+                    new File("old1"),
+                    new File("patch1"),
+                    1,
+                    10,
+                    new GenerationMemoryReport(2000, Backend.DISK, 10, 20, false, 1000, -1))));
+    StringWriter out = new StringWriter();
+    report.writeJson(new PrintWriter(out));
+    assertThat(out.toString()).contains("\"plannedPeakBytes\": 1000}");
+    assertThat(out.toString()).doesNotContain("actualPeakBytes");
+  }
+
+  private static GenerationMemoryReport newMemoryReport() {
+    return new GenerationMemoryReport(2000, Backend.DISK, 10, 20, false, 1000, 900);
+  }
+}
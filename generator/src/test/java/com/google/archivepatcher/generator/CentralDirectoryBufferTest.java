@@ -0,0 +1,94 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link CentralDirectoryBuffer}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CentralDirectoryBufferTest {
+
+  @Test
+  public void testMatchesStreamingParser() throws IOException {
+    byte[] archive = UnitTestZipArchive.makeTestZip();
+    ByteSource data = ByteSource.wrap(archive);
+    MinimalCentralDirectoryMetadata metadata =
+        MinimalZipArchive.readCentralDirectoryMetadata(data);
+    CentralDirectoryBuffer centralDirectory = CentralDirectoryBuffer.read(data, metadata);
+    centralDirectory.resolveCompressedDataOffsets(data);
+
+    ByteArrayInputStream in = new ByteArrayInputStream(archive);
+    assertThat(in.skip(metadata.getOffsetOfCentralDirectory()))
+        .isEqualTo(metadata.getOffsetOfCentralDirectory());
+    assertThat(centralDirectory.getNumEntries())
+        .isEqualTo(UnitTestZipArchive.allEntriesInFileOrder.size());
+    for (int index = 0; index < centralDirectory.getNumEntries(); index++) {
+      MinimalZipEntry expected = MinimalZipParser.parseCentralDirectoryEntry(in);
+      long localEntryOffset = expected.getFileOffsetOfLocalEntry();
+      long relativeDataOffset =
+          MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(
+              new ByteArrayInputStream(
+                  archive, (int) localEntryOffset, archive.length - (int) localEntryOffset));
+      expected.setFileOffsetOfCompressedData(localEntryOffset + relativeDataOffset);
+      assertThat(centralDirectory.toMinimalZipEntry(index)).isEqualTo(expected);
+      assertThat(centralDirectory.getFileNameLength(index))
+          .isEqualTo(expected.getFileNameBytes().length);
+    }
+  }
+
+  @Test
+  public void testManyEntries() throws IOException {
+    // More entries than fit in the EOCD record, so the archive is written with zip64 records.
+    int numEntries = 70000;
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(buffer)) {
+      for (int index = 0; index < numEntries; index++) {
+        out.putNextEntry(new ZipEntry("entry" + index));
+        out.write(index);
+        out.closeEntry();
+      }
+    }
+    List<MinimalZipEntry> entries =
+        MinimalZipArchive.listEntries(ByteSource.wrap(buffer.toByteArray()));
+    assertThat(entries).hasSize(numEntries);
+    List<String> expectedNames = new ArrayList<>();
+    List<String> actualNames = new ArrayList<>();
+    for (int index = 0; index < numEntries; index++) {
+      expectedNames.add("entry" + index);
+      actualNames.add(entries.get(index).getFileName());
+    }
+    assertThat(actualNames).containsExactlyElementsIn(expectedNames).inOrder();
+    MinimalZipEntry last = entries.get(numEntries - 1);
+    assertThat(last.getUncompressedSize()).isEqualTo(1);
+    assertThat(last.getFileOffsetOfCompressedData())
+        .isGreaterThan(last.getFileOffsetOfLocalEntry());
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.builderWithCompressedBytesChanged;
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.builderWithCompressedBytesIdentical;
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.suppressed;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CostBasedRecompressionLimiter}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CostBasedRecompressionLimiterTest {
+
+  private static final ByteSource OLD_FILE = null;
+  private static final ByteSource NEW_FILE = null;
+
+  /** A model in which recompression costs one nanosecond per byte. */
+  private static final RecompressionCostModel ONE_NANO_PER_BYTE = uniformCostModel(1d);
+
+  private static final MinimalZipEntry UNIMPORTANT = makeFakeEntry("/unimportant", 1337);
+
+  // Costs 6/5/5 and savings 7/5/5: greedy by saving keeps only A, the optimum keeps B and C.
+  private static final PreDiffPlanEntry ENTRY_A_COST_6 =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/a", 6))
+          .build();
+  private static final PreDiffPlanEntry ENTRY_B_COST_5 =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/b", 5))
+          .build();
+  private static final PreDiffPlanEntry ENTRY_C_COST_5 =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/c", 5))
+          .build();
+  private static final PreDiffPlanEntry ENTRY_D_NO_SAVING =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/d", 1))
+          .build();
+  private static final PreDiffPlanEntry ENTRY_IGNORED =
+      builderWithCompressedBytesIdentical()
+          .setZipEntries(UNIMPORTANT, makeFakeEntry("/ignored", 1000))
+          .build();
+
+  private static final List<PreDiffPlanEntry> ALL_ENTRIES =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              ENTRY_A_COST_6, ENTRY_IGNORED, ENTRY_B_COST_5, ENTRY_C_COST_5, ENTRY_D_NO_SAVING));
+
+  /** Savings keyed by path, for the stub estimator. */
+  private static final Map<String, Long> SAVINGS = new HashMap<String, Long>();
+
+  static {
+    SAVINGS.put("/a", 7L);
+    SAVINGS.put("/b", 5L);
+    SAVINGS.put("/c", 5L);
+    SAVINGS.put("/d", 0L);
+  }
+
+  /** An estimator that looks up the saving of each entry in {@link #SAVINGS}. */
+  private static final DeltaSavingEstimator STUB_ESTIMATOR =
+      new DeltaSavingEstimator() {
+        @Override
+        public long estimateSavingBytes(
+            ByteSource oldFile, ByteSource newFile, PreDiffPlanEntry entry) {
+          return SAVINGS.get(entry.getNewEntry().getFileName());
+        }
+      };
+
+  private static RecompressionCostModel uniformCostModel(double nanosPerByte) {
+    Map<JreDeflateParameters, Double> costs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      costs.put(parameters, nanosPerByte);
+    }
+    return new RecompressionCostModel(costs);
+  }
+
+  private static MinimalZipEntry makeFakeEntry(String path, long uncompressedSize) {
+    try {
+      return new MinimalZipEntry(
+          8, // == deflate
+          0, // crc32OfUncompressedData (ignored for this test)
+          0, // compressedSize (ignored for this test)
+          uncompressedSize,
+          path.getBytes("UTF8"),
+          true, // generalPurposeFlagBit11 (true=UTF8)
+          0 // fileOffsetOfLocalEntry (ignored for this test)
+          );
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Impossible on any modern system
+    }
+  }
+
+  private List<PreDiffPlanEntry> limit(long maxRecompressionNanos) {
+    return new CostBasedRecompressionLimiter(
+            maxRecompressionNanos, ONE_NANO_PER_BYTE, STUB_ESTIMATOR)
+        .getModifiedPreDiffPlanEntries(OLD_FILE, NEW_FILE, ALL_ENTRIES);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimit() {
+    new CostBasedRecompressionLimiter(-1, ONE_NANO_PER_BYTE);
+  }
+
+  @Test
+  public void testZeroLimit() {
+    List<PreDiffPlanEntry> suppressed =
+        suppressed(ENTRY_A_COST_6, ENTRY_B_COST_5, ENTRY_C_COST_5, ENTRY_D_NO_SAVING);
+    assertThat(limit(0))
+        .containsExactly(
+            suppressed.get(0), ENTRY_IGNORED, suppressed.get(1), suppressed.get(2),
+            suppressed.get(3))
+        .inOrder();
+  }
+
+  @Test
+  public void testMaxLimit_DropsOnlyEntriesWithoutSaving() {
+    assertThat(limit(Long.MAX_VALUE))
+        .containsExactly(
+            ENTRY_A_COST_6,
+            ENTRY_IGNORED,
+            ENTRY_B_COST_5,
+            ENTRY_C_COST_5,
+            suppressed(ENTRY_D_NO_SAVING).get(0))
+        .inOrder();
+  }
+
+  @Test
+  public void testLimit_PrefersBestTotalSaving() {
+    assertThat(limit(10))
+        .containsExactly(
+            suppressed(ENTRY_A_COST_6).get(0),
+            ENTRY_IGNORED,
+            ENTRY_B_COST_5,
+            ENTRY_C_COST_5,
+            suppressed(ENTRY_D_NO_SAVING).get(0))
+        .inOrder();
+  }
+
+  @Test
+  public void testLimit_OneUnderBestTotalSaving() {
+    assertThat(limit(9))
+        .containsExactly(
+            ENTRY_A_COST_6,
+            ENTRY_IGNORED,
+            suppressed(ENTRY_B_COST_5).get(0),
+            suppressed(ENTRY_C_COST_5).get(0),
+            suppressed(ENTRY_D_NO_SAVING).get(0))
+        .inOrder();
+  }
+
+  @Test
+  public void testLimit_UsesDivinedParameters() {
+    // Level 9 costs ten times as much per byte as everything else, so A no longer fits.
+    Map<JreDeflateParameters, Double> costs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      costs.put(parameters, parameters.level == 9 ? 10d : 1d);
+    }
+    PreDiffPlanEntry slowEntry =
+        ENTRY_A_COST_6.toBuilder()
+            .setNewJreDeflateParameters(JreDeflateParameters.of(9, 0, true))
+            .build();
+    List<PreDiffPlanEntry> result =
+        new CostBasedRecompressionLimiter(59, new RecompressionCostModel(costs), STUB_ESTIMATOR)
+            .getModifiedPreDiffPlanEntries(
+                OLD_FILE, NEW_FILE, Collections.singletonList(slowEntry));
+    assertThat(result).containsExactlyElementsIn(suppressed(slowEntry));
+  }
+
+  @Test
+  public void testSampledDeltaSavingEstimator() throws Exception {
+    // The same content behind different prefixes: the compressed forms differ throughout, but the
+    // uncompressed forms differ only in the prefix.
+    UnitTestZipEntry oldEntry = UnitTestZipArchive.makeUnitTestZipEntry("/x", 6, "old", null);
+    UnitTestZipEntry newEntry =
+        UnitTestZipArchive.makeUnitTestZipEntry("/x", 6, "newer prefix", null);
+    try (ByteSource oldFile =
+            ByteSource.wrap(UnitTestZipArchive.makeTestZip(Collections.singletonList(oldEntry)));
+        ByteSource newFile =
+            ByteSource.wrap(UnitTestZipArchive.makeTestZip(Collections.singletonList(newEntry)))) {
+      PreDiffPlanEntry entry =
+          builderWithCompressedBytesChanged()
+              .setZipEntries(
+                  MinimalZipArchive.listEntries(oldFile).get(0),
+                  MinimalZipArchive.listEntries(newFile).get(0))
+              .build();
+      long saving =
+          new SampledDeltaSavingEstimator(SampledDeltaSavingEstimator.DEFAULT_SAMPLE_SIZE_BYTES)
+              .estimateSavingBytes(oldFile, newFile, entry);
+      assertThat(saving).isGreaterThan(0L);
+      assertThat(saving).isAtMost(entry.getNewEntry().getCompressedSize() * 2);
+    }
+  }
+}
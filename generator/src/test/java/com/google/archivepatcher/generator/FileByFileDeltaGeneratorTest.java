@@ -16,8 +16,10 @@ package com.google.archivepatcher.generator;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.archivepatcher.generator.GenerationListener.Phase;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.Collection;
@@ -71,4 +73,131 @@ public class FileByFileDeltaGeneratorTest {
     byte[] result = buffer.toByteArray();
     assertThat(result).isNotEmpty();
   }
+
+  @Test
+  public void testGenerateDeltaReportingMemory_SpillsToDisk() throws Exception {
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator.Builder()
+            .addSupportedDeltaFormats(Collections.singleton(DeltaFormat.BSDIFF))
+            .usingNativeBsDiff(useNativeBsDiff)
+            .withMemoryBudget(
+                new GenerationMemoryBudget(
+                    GenerationMemoryBudget.SUFFIX_SORTER_OVERHEAD_BYTES,
+                    GenerationMemoryBudget.Adaptation.SPILL_TO_DISK_FIRST))
+            .build();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationMemoryReport report;
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      try (ByteSource oldBlob = ByteSource.fromFile(oldArchive.file);
+          ByteSource newBlob = ByteSource.fromFile(newArchive.file)) {
+        report = generator.generateDeltaReportingMemory(oldBlob, newBlob, buffer);
+      }
+    }
+    assertThat(buffer.toByteArray()).isNotEmpty();
+    assertThat(report.getBackend()).isEqualTo(GenerationMemoryBudget.Backend.DISK);
+    assertThat(report.isPlanWithinBudget()).isTrue();
+    assertThat(report.getActualPeakBytes()).isAtLeast(0L);
+  }
+
+  @Test
+  public void testGenerateDelta_ReportsStats() throws Exception {
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator(
+            /* preDiffPlanEntryModifiers= */ Collections.emptyList(),
+            Collections.singleton(DeltaFormat.BSDIFF),
+            useNativeBsDiff);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationStats stats = new GenerationStats();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      try (ByteSource oldBlob = ByteSource.fromFile(oldArchive.file);
+          ByteSource newBlob = ByteSource.fromFile(newArchive.file)) {
+        generator.generateDelta(oldBlob, newBlob, buffer, stats);
+      }
+    }
+    for (Phase phase :
+        new Phase[] {
+          Phase.PARSING,
+          Phase.DIVINATION,
+          Phase.PLANNING,
+          Phase.DELTA_FRIENDLY_EXPANSION,
+          Phase.MATCHING,
+          Phase.PATCH_WRITING
+        }) {
+      assertThat(stats.getPhaseStats(phase).getCount()).isEqualTo(1);
+    }
+    assertThat(stats.getPhaseStats(Phase.PATCH_WRITING).getBytesOut())
+        .isEqualTo(buffer.size());
+    int numEntries = 0;
+    for (UncompressionOptionExplanation explanation : UncompressionOptionExplanation.values()) {
+      numEntries += stats.getEntryCount(explanation);
+    }
+    assertThat(numEntries).isEqualTo(UnitTestZipArchive.allEntriesInFileOrder.size());
+    // Every entry of the test archive is compressed with standard parameters.
+    assertThat(stats.getDivinationAttempts()).isGreaterThan(0L);
+    assertThat(stats.getEntriesNotDivined()).isEqualTo(0);
+    if (!useNativeBsDiff) {
+      assertThat(stats.getPhaseStats(Phase.SUFFIX_SORT).getCount()).isEqualTo(1);
+      assertThat(stats.getPeakSuffixArrayBytes()).isGreaterThan(0L);
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_SamplesMemoryOnlyWhenReporting() throws Exception {
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator(
+            /* preDiffPlanEntryModifiers= */ Collections.emptyList(),
+            Collections.singleton(DeltaFormat.BSDIFF),
+            useNativeBsDiff);
+    SamplerWatchingListener listener = new SamplerWatchingListener();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      try (ByteSource oldBlob = ByteSource.fromFile(oldArchive.file);
+          ByteSource newBlob = ByteSource.fromFile(newArchive.file)) {
+        generator.generateDelta(oldBlob, newBlob, new ByteArrayOutputStream(), listener);
+        assertThat(listener.samplerRunningDuringMatching).isFalse();
+        generator.generateDeltaReportingMemory(
+            oldBlob, newBlob, new ByteArrayOutputStream(), listener);
+        assertThat(listener.samplerRunningDuringMatching).isTrue();
+      }
+    }
+  }
+
+  /** Records whether a {@link MemoryUsageSampler} thread was running when matching started. */
+  private static class SamplerWatchingListener implements GenerationListener {
+    boolean samplerRunningDuringMatching;
+
+    @Override
+    public void onPhaseStarted(Phase phase) {
+      if (phase != Phase.MATCHING) {
+        return;
+      }
+      samplerRunningDuringMatching = false;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().equals("MemoryUsageSampler")) {
+          samplerRunningDuringMatching = true;
+        }
+      }
+    }
+
+    @Override
+    public void onPhaseCompleted(
+        Phase phase, long wallNanos, long cpuNanos, long bytesIn, long bytesOut) {}
+
+    @Override
+    public void onEntryDivined(String entryName, int configurationsTried, boolean divined) {}
+
+    @Override
+    public void onEntryPlanned(UncompressionOptionExplanation explanation) {}
+
+    @Override
+    public void onSuffixArrayAllocated(long bytes) {}
+  }
 }
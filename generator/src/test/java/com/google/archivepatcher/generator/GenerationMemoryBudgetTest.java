@@ -0,0 +1,76 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Adaptation;
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GenerationMemoryBudget}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GenerationMemoryBudgetTest {
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeBudget() {
+    new GenerationMemoryBudget(-1, Adaptation.REDUCE_UNCOMPRESSION_FIRST);
+  }
+
+  @Test
+  public void testEstimatePeakBytes() {
+    long overhead = GenerationMemoryBudget.SUFFIX_SORTER_OVERHEAD_BYTES;
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.NATIVE, 1000, 500))
+        .isEqualTo(1000 + 2 * 500 + 4 * 1001 + overhead);
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.MEMORY_MAPPED, 1000, 500))
+        .isEqualTo(4 * 1001 + overhead);
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.DISK, 1000, 500))
+        .isEqualTo(overhead);
+    // The block hash index is much smaller than a suffix array.
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.BLOCK_HASH, 1000000, 500))
+        .isLessThan(
+            GenerationMemoryBudget.estimatePeakBytes(Backend.MEMORY_MAPPED, 1000000, 500));
+  }
+
+  @Test
+  public void testEstimatePeakBytes_LongIndexing() {
+    // Too large for int indexing: two mapped arrays of 5 bytes per byte, even when spilling.
+    long oldSize = 3L * Integer.MAX_VALUE;
+    long expected = 2 * 5 * (oldSize + 1);
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.MEMORY_MAPPED, oldSize, 500))
+        .isEqualTo(expected);
+    assertThat(GenerationMemoryBudget.estimatePeakBytes(Backend.DISK, oldSize, 500))
+        .isEqualTo(expected);
+  }
+
+  @Test
+  public void testGetMaxDeltaFriendlyOldSize() {
+    for (Backend backend :
+        new Backend[] {Backend.NATIVE, Backend.MEMORY_MAPPED, Backend.BLOCK_HASH}) {
+      long maxBytes = GenerationMemoryBudget.estimatePeakBytes(backend, 12345, 500);
+      GenerationMemoryBudget budget =
+          new GenerationMemoryBudget(maxBytes, Adaptation.REDUCE_UNCOMPRESSION_FIRST);
+      assertThat(budget.getMaxDeltaFriendlyOldSize(backend, 500)).isEqualTo(12345);
+    }
+    GenerationMemoryBudget tiny = new GenerationMemoryBudget(1, Adaptation.SPILL_TO_DISK_FIRST);
+    assertThat(tiny.getMaxDeltaFriendlyOldSize(Backend.MEMORY_MAPPED, 500)).isEqualTo(-1);
+    assertThat(tiny.getMaxDeltaFriendlyOldSize(Backend.DISK, 500)).isEqualTo(-1);
+    GenerationMemoryBudget huge =
+        new GenerationMemoryBudget(Long.MAX_VALUE, Adaptation.SPILL_TO_DISK_FIRST);
+    assertThat(huge.getMaxDeltaFriendlyOldSize(Backend.DISK, 500)).isEqualTo(Long.MAX_VALUE);
+  }
+}
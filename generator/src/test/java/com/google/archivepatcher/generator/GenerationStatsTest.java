@@ -0,0 +1,120 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GenerationStats}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GenerationStatsTest {
+
+  @Test
+  public void testOnPhaseCompleted_Accumulates() {
+    GenerationStats stats = new GenerationStats();
+    stats.onPhaseCompleted(Phase.MATCHING, 10, 5, 100, 20);
+    stats.onPhaseCompleted(Phase.MATCHING, 30, 7, 200, 40);
+    GenerationStats.PhaseStats matching = stats.getPhaseStats(Phase.MATCHING);
+    assertThat(matching.getCount()).isEqualTo(2);
+    assertThat(matching.getWallNanos()).isEqualTo(40);
+    assertThat(matching.getCpuNanos()).isEqualTo(12);
+    assertThat(matching.getBytesIn()).isEqualTo(300);
+    assertThat(matching.getBytesOut()).isEqualTo(60);
+    assertThat(stats.getPhaseStats(Phase.PARSING)).isNull();
+  }
+
+  @Test
+  public void testOnPhaseCompleted_UnmeasuredCpuTime() {
+    GenerationStats stats = new GenerationStats();
+    stats.onPhaseCompleted(Phase.PARSING, 10, 5, 0, 0);
+    stats.onPhaseCompleted(Phase.PARSING, 10, -1, 0, 0);
+    stats.onPhaseCompleted(Phase.PARSING, 10, 5, 0, 0);
+    assertThat(stats.getPhaseStats(Phase.PARSING).getCpuNanos()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testEntryCountsAndSuffixArray() {
+    GenerationStats stats = new GenerationStats();
+    stats.onEntryPlanned(UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED);
+    stats.onEntryPlanned(UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED);
+    stats.onEntryPlanned(UncompressionOptionExplanation.UNSUITABLE);
+    stats.onSuffixArrayAllocated(400);
+    stats.onSuffixArrayAllocated(100);
+    assertThat(stats.getEntryCount(UncompressionOptionExplanation.COMPRESSED_BYTES_CHANGED))
+        .isEqualTo(2);
+    assertThat(stats.getEntryCount(UncompressionOptionExplanation.UNSUITABLE)).isEqualTo(1);
+    assertThat(stats.getEntryCount(UncompressionOptionExplanation.DEFLATE_UNSUITABLE))
+        .isEqualTo(0);
+    assertThat(stats.getPeakSuffixArrayBytes()).isEqualTo(400);
+  }
+
+  @Test
+  public void testOnEntryDivined() {
+    GenerationStats stats = new GenerationStats();
+    stats.onEntryDivined("a", 1, true);
+    stats.onEntryDivined("b", 36, false);
+    assertThat(stats.getDivinationAttempts()).isEqualTo(37);
+    assertThat(stats.getEntriesNotDivined()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWriteJson() {
+    GenerationStats stats = new GenerationStats();
+    stats.onPhaseCompleted(Phase.PARSING, 1, 2, 3, 4);
+    stats.onPhaseCompleted(Phase.PATCH_WRITING, 5, 6, 7, 8);
+    stats.onEntryPlanned(UncompressionOptionExplanation.UNSUITABLE);
+    stats.onEntryDivined("foo", 3, true);
+    stats.onSuffixArrayAllocated(9);
+    StringWriter out = new StringWriter();
+    stats.writeJson(new PrintWriter(out));
+    assertThat(out.toString())
+        .isEqualTo(
+            "{\n"
+                + "  \"phases\": {\n"
+                + "    \"PARSING\": {\"count\": 1, \"wallNanos\": 1, \"cpuNanos\": 2,"
+                + " \"bytesIn\": 3, \"bytesOut\": 4},\n"
+                + "    \"PATCH_WRITING\": {\"count\": 1, \"wallNanos\": 5, \"cpuNanos\": 6,"
+                + " \"bytesIn\": 7, \"bytesOut\": 8}\n"
+                + "  },\n"
+                + "  \"entries\": {\n"
+                + "    \"UNSUITABLE\": 1\n"
+                + "  },\n"
+                + "  \"divinationAttempts\": 3,\n"
+                + "  \"entriesNotDivined\": 0,\n"
+                + "  \"peakSuffixArrayBytes\": 9\n"
+                + "}\n");
+  }
+
+  @Test
+  public void testWriteJson_Empty() {
+    StringWriter out = new StringWriter();
+    new GenerationStats().writeJson(new PrintWriter(out));
+    assertThat(out.toString())
+        .isEqualTo(
+            "{\n"
+                + "  \"phases\": {},\n"
+                + "  \"entries\": {},\n"
+                + "  \"divinationAttempts\": 0,\n"
+                + "  \"entriesNotDivined\": 0,\n"
+                + "  \"peakSuffixArrayBytes\": 0\n"
+                + "}\n");
+  }
+}
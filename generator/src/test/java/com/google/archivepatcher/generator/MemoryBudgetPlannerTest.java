@@ -0,0 +1,178 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.builderWithCompressedBytesChanged;
+import static com.google.archivepatcher.generator.PreDiffPlanEntryTestUtils.suppressed;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Adaptation;
+import com.google.archivepatcher.generator.GenerationMemoryBudget.Backend;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MemoryBudgetPlanner}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MemoryBudgetPlannerTest {
+  private static final int DEFLATE_COMPRESSION_METHOD = 8;
+
+  /** The size of the old and new files. */
+  private static final int FILE_SIZE = 1000;
+
+  private static final PreDiffPlanEntry ENTRY_A =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(
+              makeFakeEntry("/a", 100, 10000, 10), makeFakeEntry("/a", 100, 100, 10))
+          .build();
+  private static final PreDiffPlanEntry ENTRY_B =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(
+              makeFakeEntry("/b", 100, 20000, 200), makeFakeEntry("/b", 100, 100, 200))
+          .build();
+  // Shares its old entry with ENTRY_A, which must only be counted once.
+  private static final PreDiffPlanEntry ENTRY_A_COPY =
+      builderWithCompressedBytesChanged()
+          .setZipEntries(
+              makeFakeEntry("/a", 100, 10000, 10), makeFakeEntry("/a-copy", 100, 100, 400))
+          .build();
+
+  private static final List<PreDiffPlanEntry> ENTRIES =
+      Arrays.asList(ENTRY_A, ENTRY_B, ENTRY_A_COPY);
+
+  /** The size of the delta-friendly old blob with everything uncompressed. */
+  private static final long FULL_OLD_SIZE = FILE_SIZE + 9900 + 19900;
+
+  /** The size of the delta-friendly old blob with only ENTRY_B uncompressed. */
+  private static final long REDUCED_OLD_SIZE = FILE_SIZE + 19900;
+
+  private static MinimalZipEntry makeFakeEntry(
+      String path, long compressedSize, long uncompressedSize, long dataOffset) {
+    try {
+      MinimalZipEntry entry =
+          new MinimalZipEntry(
+              DEFLATE_COMPRESSION_METHOD,
+              0, // crc32OfUncompressedData (ignored for this test)
+              compressedSize,
+              uncompressedSize,
+              path.getBytes("UTF8"),
+              true, // generalPurposeFlagBit11 (true=UTF8)
+              0); // fileOffsetOfLocalEntry (ignored for this test)
+      entry.setFileOffsetOfCompressedData(dataOffset);
+      return entry;
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Impossible on any modern system
+    }
+  }
+
+  private static List<PreDiffPlanEntry> plan(MemoryBudgetPlanner planner) {
+    ByteSource file = ByteSource.wrap(new byte[FILE_SIZE]);
+    return planner.getModifiedPreDiffPlanEntries(file, file, ENTRIES);
+  }
+
+  private static long mmapPeak(long deltaFriendlyOldSize) {
+    return GenerationMemoryBudget.estimatePeakBytes(
+        Backend.MEMORY_MAPPED, deltaFriendlyOldSize, FILE_SIZE);
+  }
+
+  @Test
+  public void testProjectedSizes() {
+    ByteSource file = ByteSource.wrap(new byte[FILE_SIZE]);
+    assertThat(MemoryBudgetPlanner.projectDeltaFriendlyOldSize(file, ENTRIES))
+        .isEqualTo(FULL_OLD_SIZE);
+    assertThat(MemoryBudgetPlanner.projectDeltaFriendlyNewSize(file, ENTRIES))
+        .isEqualTo(FILE_SIZE);
+  }
+
+  @Test
+  public void testPreferredBackendFits() {
+    MemoryBudgetPlanner planner =
+        new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(
+                mmapPeak(FULL_OLD_SIZE), Adaptation.REDUCE_UNCOMPRESSION_FIRST),
+            Backend.MEMORY_MAPPED);
+    assertThat(plan(planner)).isEqualTo(ENTRIES);
+    assertThat(planner.getBackend()).isEqualTo(Backend.MEMORY_MAPPED);
+    assertThat(planner.isUncompressionReduced()).isFalse();
+    assertThat(planner.getProjectedDeltaFriendlyOldSize()).isEqualTo(FULL_OLD_SIZE);
+    assertThat(planner.getPlannedPeakBytes()).isEqualTo(mmapPeak(FULL_OLD_SIZE));
+  }
+
+  @Test
+  public void testReduceUncompressionFirst() {
+    MemoryBudgetPlanner planner =
+        new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(
+                mmapPeak(FULL_OLD_SIZE) - 1, Adaptation.REDUCE_UNCOMPRESSION_FIRST),
+            Backend.MEMORY_MAPPED);
+    // The largest entry is kept, and there is no longer room for the other one.
+    List<PreDiffPlanEntry> expected = new ArrayList<>(suppressed(ENTRY_A, ENTRY_A_COPY));
+    expected.add(ENTRY_B);
+    assertThat(plan(planner)).containsExactlyElementsIn(expected);
+    assertThat(planner.getBackend()).isEqualTo(Backend.MEMORY_MAPPED);
+    assertThat(planner.isUncompressionReduced()).isTrue();
+    assertThat(planner.getProjectedDeltaFriendlyOldSize()).isEqualTo(REDUCED_OLD_SIZE);
+  }
+
+  @Test
+  public void testSpillToDiskFirst() {
+    MemoryBudgetPlanner planner =
+        new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(
+                mmapPeak(FULL_OLD_SIZE) - 1, Adaptation.SPILL_TO_DISK_FIRST),
+            Backend.MEMORY_MAPPED);
+    assertThat(plan(planner)).isEqualTo(ENTRIES);
+    assertThat(planner.getBackend()).isEqualTo(Backend.DISK);
+    assertThat(planner.isUncompressionReduced()).isFalse();
+    assertThat(planner.getPlannedPeakBytes())
+        .isEqualTo(GenerationMemoryBudget.SUFFIX_SORTER_OVERHEAD_BYTES);
+  }
+
+  @Test
+  public void testNativeFallsBackToMemoryMapped() {
+    MemoryBudgetPlanner planner =
+        new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(mmapPeak(FULL_OLD_SIZE), Adaptation.SPILL_TO_DISK_FIRST),
+            Backend.NATIVE);
+    assertThat(plan(planner)).isEqualTo(ENTRIES);
+    assertThat(planner.getBackend()).isEqualTo(Backend.MEMORY_MAPPED);
+  }
+
+  @Test
+  public void testNothingFits() {
+    MemoryBudgetPlanner planner =
+        new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(0, Adaptation.REDUCE_UNCOMPRESSION_FIRST),
+            Backend.MEMORY_MAPPED);
+    assertThat(plan(planner)).isEqualTo(ENTRIES);
+    assertThat(planner.getBackend()).isEqualTo(Backend.DISK);
+    assertThat(planner.isUncompressionReduced()).isFalse();
+    assertThat(planner.getPlannedPeakBytes()).isGreaterThan(0L);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotPlanned() {
+    new MemoryBudgetPlanner(
+            new GenerationMemoryBudget(0, Adaptation.REDUCE_UNCOMPRESSION_FIRST),
+            Backend.MEMORY_MAPPED)
+        .getBackend();
+  }
+}
@@ -18,11 +18,17 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -109,4 +115,85 @@ public class MinimalZipArchiveTest {
       }
     }
   }
+
+  @Test
+  public void testListEntries_Zip64SparseArchive() throws IOException {
+    // A sparse file is cheap to create even though it is larger than 4GB: only the records written
+    // below take up space. The second entry's local header, the central directory and the zip64
+    // records are all beyond the reach of 32-bit offsets.
+    byte[] smallData = "small".getBytes("UTF-8");
+    byte[] bigData = "beyond 4GB".getBytes("UTF-8");
+    long bigEntryOffset = 5L * 1024 * 1024 * 1024;
+    byte[] smallEntry = UnitTestZip64Records.localEntry("small", smallData);
+    byte[] bigEntry = UnitTestZip64Records.localEntry("big", bigData);
+    byte[] centralDirectory1 =
+        UnitTestZip64Records.centralDirectoryEntry("big", bigData, bigEntryOffset);
+    byte[] centralDirectory2 =
+        UnitTestZip64Records.centralDirectoryEntry("small", smallData, 0);
+    long centralDirectoryOffset = bigEntryOffset + bigEntry.length;
+    long centralDirectoryLength = centralDirectory1.length + centralDirectory2.length;
+    long zip64EocdOffset = centralDirectoryOffset + centralDirectoryLength;
+    try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+      raf.setLength(0);
+      raf.write(smallEntry);
+      raf.seek(bigEntryOffset);
+      raf.write(bigEntry);
+      raf.write(centralDirectory1);
+      raf.write(centralDirectory2);
+      raf.write(
+          UnitTestZip64Records.zip64Eocd(2, centralDirectoryOffset, centralDirectoryLength));
+      raf.write(UnitTestZip64Records.zip64EocdLocator(zip64EocdOffset));
+      raf.write(UnitTestZip64Records.eocdWithPlaceholders());
+    }
+
+    List<MinimalZipEntry> parsedEntries = MinimalZipArchive.listEntries(tempFile);
+    assertThat(parsedEntries).hasSize(2);
+    MinimalZipEntry small = parsedEntries.get(0);
+    assertThat(small.getFileName()).isEqualTo("small");
+    assertThat(small.getFileOffsetOfLocalEntry()).isEqualTo(0);
+    assertThat(small.getFileOffsetOfCompressedData())
+        .isEqualTo(smallEntry.length - smallData.length);
+    MinimalZipEntry big = parsedEntries.get(1);
+    assertThat(big.getFileName()).isEqualTo("big");
+    assertThat(big.getCompressedSize()).isEqualTo(bigData.length);
+    assertThat(big.getUncompressedSize()).isEqualTo(bigData.length);
+    assertThat(big.getFileOffsetOfLocalEntry()).isEqualTo(bigEntryOffset);
+    assertThat(big.getFileOffsetOfCompressedData())
+        .isEqualTo(bigEntryOffset + bigEntry.length - bigData.length);
+  }
+
+  @Test
+  public void testListEntries_65535EntriesWithoutZip64() throws IOException {
+    // The EOCD record holds 0xffff entries, which is not a zip64 placeholder without a locator.
+    int numEntries = 0xffff;
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(buffer)) {
+      for (int index = 0; index < numEntries; index++) {
+        out.putNextEntry(new ZipEntry("e" + index));
+        out.closeEntry();
+      }
+    }
+    // ZipOutputStream adds zip64 records at this count; cut them out, leaving an ordinary archive.
+    byte[] zip64Archive = buffer.toByteArray();
+    int zip64RecordsLength = 56 + MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH;
+    int eocdOffset = MinimalZipParser.locateStartOfEocd(zip64Archive);
+    assertThat(
+            MinimalZipParser.parseZip64EocdLocator(
+                new ByteArrayInputStream(
+                    zip64Archive,
+                    eocdOffset - MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH,
+                    MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH)))
+        .isEqualTo((long) eocdOffset - zip64RecordsLength);
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(zip64Archive, 0, eocdOffset - zip64RecordsLength);
+      out.write(zip64Archive, eocdOffset, zip64Archive.length - eocdOffset);
+    }
+
+    List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(tempFile);
+    assertThat(entries).hasSize(numEntries);
+    assertThat(entries.get(numEntries - 1).getFileName()).isEqualTo("e" + (numEntries - 1));
+    try (ZipFile zipFile = new ZipFile(tempFile)) {
+      assertThat(zipFile.size()).isEqualTo(numEntries);
+    }
+  }
 }
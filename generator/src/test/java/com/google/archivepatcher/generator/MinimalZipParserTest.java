@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -211,4 +212,83 @@ public class MinimalZipParserTest {
           (int) (parsedEntry.getFileOffsetOfLocalEntry() + relativeDataOffset));
     }
   }
+
+  @Test
+  public void testParseCentralDirectoryEntry_Zip64() throws Exception {
+    byte[] data = "zip64".getBytes("UTF-8");
+    long localEntryOffset = 5L * 1024 * 1024 * 1024;
+    MinimalZipEntry parsed =
+        MinimalZipParser.parseCentralDirectoryEntry(
+            new ByteArrayInputStream(
+                UnitTestZip64Records.centralDirectoryEntry("big", data, localEntryOffset)));
+    assertThat(parsed.getFileName()).isEqualTo("big");
+    assertThat(parsed.getCompressedSize()).isEqualTo(data.length);
+    assertThat(parsed.getUncompressedSize()).isEqualTo(data.length);
+    assertThat(parsed.getFileOffsetOfLocalEntry()).isEqualTo(localEntryOffset);
+  }
+
+  @Test
+  public void testParseCentralDirectoryEntry_PlaceholdersWithoutZip64Extra() throws Exception {
+    byte[] record = UnitTestZip64Records.centralDirectoryEntry("big", new byte[0], 0);
+    // Drop the zip64 extra field, leaving only the unrelated one before it.
+    int zip64ExtraLength = 4 + 24;
+    byte[] withoutZip64Extra = new byte[record.length - zip64ExtraLength];
+    System.arraycopy(record, 0, withoutZip64Extra, 0, withoutZip64Extra.length);
+    withoutZip64Extra[30] = 4 + 2;
+    withoutZip64Extra[31] = 0;
+    MinimalZipEntry parsed =
+        MinimalZipParser.parseCentralDirectoryEntry(new ByteArrayInputStream(withoutZip64Extra));
+    // As in java.util.zip, the values are taken as they are.
+    assertThat(parsed.getCompressedSize()).isEqualTo(0xffffffffL);
+    assertThat(parsed.getUncompressedSize()).isEqualTo(0xffffffffL);
+    assertThat(parsed.getFileOffsetOfLocalEntry()).isEqualTo(0xffffffffL);
+  }
+
+  @Test
+  public void testParseZip64EocdLocator() throws IOException {
+    long zip64EocdOffset = 5L * 1024 * 1024 * 1024;
+    assertThat(
+            MinimalZipParser.parseZip64EocdLocator(
+                new ByteArrayInputStream(UnitTestZip64Records.zip64EocdLocator(zip64EocdOffset))))
+        .isEqualTo(zip64EocdOffset);
+  }
+
+  @Test
+  public void testParseZip64EocdLocator_NoLocator() throws IOException {
+    // The last 20 bytes before the EOCD of an ordinary archive are not a locator.
+    int eocdOffset = MinimalZipParser.locateStartOfEocd(unitTestZipArchive);
+    ByteArrayInputStream in = new ByteArrayInputStream(unitTestZipArchive);
+    long skip = eocdOffset - MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH;
+    assertThat(in.skip(skip)).isEqualTo(skip);
+    assertThat(MinimalZipParser.parseZip64EocdLocator(in)).isEqualTo(-1);
+  }
+
+  @Test
+  public void testParseZip64Eocd() throws IOException {
+    long offset = 6L * 1024 * 1024 * 1024;
+    MinimalCentralDirectoryMetadata metadata =
+        MinimalZipParser.parseZip64Eocd(
+            new ByteArrayInputStream(UnitTestZip64Records.zip64Eocd(70000, offset, 123456L)));
+    assertThat(metadata.getNumEntriesInCentralDirectory()).isEqualTo(70000);
+    assertThat(metadata.getOffsetOfCentralDirectory()).isEqualTo(offset);
+    assertThat(metadata.getLengthOfCentralDirectory()).isEqualTo(123456L);
+  }
+
+  @Test(expected = ZipException.class)
+  public void testParseZip64Eocd_TooManyEntries() throws IOException {
+    MinimalZipParser.parseZip64Eocd(
+        new ByteArrayInputStream(
+            UnitTestZip64Records.zip64Eocd(Integer.MAX_VALUE + 1L, 0L, 0L)));
+  }
+
+  @Test
+  public void testParseEocd_Zip64Placeholders() throws IOException {
+    // The placeholders are returned as they are; only a zip64 locator says they are placeholders.
+    MinimalCentralDirectoryMetadata metadata =
+        MinimalZipParser.parseEocd(
+            new ByteArrayInputStream(UnitTestZip64Records.eocdWithPlaceholders()));
+    assertThat(metadata.getNumEntriesInCentralDirectory()).isEqualTo(0xffff);
+    assertThat(metadata.getLengthOfCentralDirectory()).isEqualTo(0xffffffffL);
+    assertThat(metadata.getOffsetOfCentralDirectory()).isEqualTo(0xffffffffL);
+  }
 }
@@ -149,4 +149,21 @@ public class PatchWriterTest {
     patchIn.readFully(actualDeltaContent);
     assertThat(actualDeltaContent).isEqualTo(expectedDeltaContent);
   }
+
+  @Test
+  public void testWriteV1Patch_WithNewFileSize() throws IOException {
+    PatchWriter writer =
+        new PatchWriter(
+            PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile, BIG + 3L);
+    writer.writePatch(buffer);
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    byte[] eightBytes = new byte[8];
+    patchIn.readFully(eightBytes);
+    assertThat(eightBytes).isEqualTo(PatchConstants.IDENTIFIER.getBytes(US_ASCII));
+    assertThat(patchIn.readInt()).isEqualTo(PatchConstants.PatchFlag.NEW_FILE_SIZE.mask);
+    assertThat(patchIn.readLong()).isEqualTo(DELTA_FRIENDLY_OLD_FILE_SIZE);
+    assertThat(patchIn.readLong()).isEqualTo(BIG + 3L);
+    // The rest of the patch is unchanged.
+    assertThat(patchIn.readInt()).isEqualTo(1); // Number of old archive uncompression instructions
+  }
 }
@@ -0,0 +1,57 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PreparedNewArchive}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class PreparedNewArchiveTest {
+  @Test
+  public void testPrepare() throws Exception {
+    ByteSource blob = ByteSource.wrap(UnitTestZipArchive.makeTestZip());
+    GenerationStats stats = new GenerationStats();
+    PreparedNewArchive prepared = PreparedNewArchive.prepare(blob, stats);
+    assertThat(prepared.getBlob()).isSameAs(blob);
+    int numEntries = UnitTestZipArchive.allEntriesInFileOrder.size();
+    assertThat(prepared.getZipEntries().getNumEntries()).isEqualTo(numEntries);
+    assertThat(prepared.getDeflateParameters()).hasLength(numEntries);
+    assertThat(stats.getPhaseStats(GenerationListener.Phase.DIVINATION).getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWithBlob() throws Exception {
+    byte[] data = UnitTestZipArchive.makeTestZip();
+    PreparedNewArchive prepared = PreparedNewArchive.prepare(ByteSource.wrap(data));
+    ByteSource otherBlob = ByteSource.wrap(data.clone());
+    PreparedNewArchive rebound = prepared.withBlob(otherBlob);
+    assertThat(rebound.getBlob()).isSameAs(otherBlob);
+    assertThat(rebound.getZipEntries()).isSameAs(prepared.getZipEntries());
+    assertThat(rebound.getDeflateParameters()).isSameAs(prepared.getDeflateParameters());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWithBlob_DifferentLength() throws Exception {
+    PreparedNewArchive prepared =
+        PreparedNewArchive.prepare(ByteSource.wrap(UnitTestZipArchive.makeTestZip()));
+    prepared.withBlob(ByteSource.wrap(new byte[1]));
+  }
+}
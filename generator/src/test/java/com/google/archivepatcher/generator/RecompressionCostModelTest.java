@@ -0,0 +1,85 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.EnumMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RecompressionCostModel}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class RecompressionCostModelTest {
+
+  private static Map<JreDeflateParameters, Double> costsByLevel() {
+    Map<JreDeflateParameters, Double> costs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      costs.put(parameters, (double) parameters.level);
+    }
+    return costs;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_MissingCost() {
+    Map<JreDeflateParameters, Double> costs = costsByLevel();
+    costs.remove(JreDeflateParameters.of(6, 0, true));
+    new RecompressionCostModel(costs);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NonPositiveCost() {
+    Map<JreDeflateParameters, Double> costs = costsByLevel();
+    costs.put(JreDeflateParameters.of(6, 0, true), 0d);
+    new RecompressionCostModel(costs);
+  }
+
+  @Test
+  public void testEstimateRecompressionNanos() {
+    RecompressionCostModel model = new RecompressionCostModel(costsByLevel());
+    assertThat(model.estimateRecompressionNanos(JreDeflateParameters.of(3, 1, false), 100))
+        .isEqualTo(300);
+    // Unknown parameters are assumed to be the most expensive.
+    assertThat(model.estimateRecompressionNanos(null, 100)).isEqualTo(900);
+  }
+
+  @Test
+  public void testScaledBy() {
+    RecompressionCostModel model = new RecompressionCostModel(costsByLevel()).scaledBy(2.5);
+    assertThat(model.getNanosPerByte(JreDeflateParameters.of(2, 0, true))).isEqualTo(5d);
+    assertThat(model.getNanosPerByte(null)).isEqualTo(22.5d);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testScaledBy_NonPositive() {
+    new RecompressionCostModel(costsByLevel()).scaledBy(0);
+  }
+
+  @Test
+  public void testCalibrate() throws Exception {
+    RecompressionCostModel model =
+        RecompressionCostModel.calibrate(new DefaultDeflateCompatibilityWindow().getCorpus(), 1);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      assertThat(model.getNanosPerByte(parameters)).isGreaterThan(0d);
+      assertThat(model.getNanosPerByte(parameters)).isAtMost(model.getNanosPerByte(null));
+    }
+  }
+}
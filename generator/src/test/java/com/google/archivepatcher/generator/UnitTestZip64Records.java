@@ -0,0 +1,171 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Builds the raw records of a zip64 archive for tests. Every record is returned as a byte array so
+ * that tests can place it anywhere, including at offsets past 4GB in a sparse file. All entries are
+ * stored (uncompressed) and every 32-bit size and offset is written as a zip64 placeholder.
+ */
+public class UnitTestZip64Records {
+  /**
+   * Returns a local file entry, including the entry's data.
+   * @param path the path of the entry
+   * @param data the data of the entry
+   * @return the record
+   */
+  public static byte[] localEntry(String path, byte[] data) {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write32(out, MinimalZipParser.LOCAL_ENTRY_SIGNATURE);
+    write16(out, 45); // version needed to extract
+    write16(out, 0); // general purpose flags
+    write16(out, 0); // compression method: stored
+    write16(out, 0); // modification time
+    write16(out, 0); // modification date
+    write32(out, crc32(data));
+    write32(out, 0xffffffffL); // compressed size, in the zip64 extra
+    write32(out, 0xffffffffL); // uncompressed size, in the zip64 extra
+    write16(out, pathBytes.length);
+    write16(out, 4 + 16);
+    out.write(pathBytes, 0, pathBytes.length);
+    write16(out, 0x0001);
+    write16(out, 16);
+    write64(out, data.length);
+    write64(out, data.length);
+    out.write(data, 0, data.length);
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a central directory entry whose sizes and local entry offset are all in a zip64 extra
+   * field, preceded by an unrelated extra field that the parser must skip.
+   * @param path the path of the entry
+   * @param data the data of the entry
+   * @param localEntryOffset the file offset of the local entry
+   * @return the record
+   */
+  public static byte[] centralDirectoryEntry(String path, byte[] data, long localEntryOffset) {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write32(out, MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_SIGNATURE);
+    write16(out, 45); // version made by
+    write16(out, 45); // version needed to extract
+    write16(out, 0); // general purpose flags
+    write16(out, 0); // compression method: stored
+    write16(out, 0); // modification time
+    write16(out, 0); // modification date
+    write32(out, crc32(data));
+    write32(out, 0xffffffffL); // compressed size, in the zip64 extra
+    write32(out, 0xffffffffL); // uncompressed size, in the zip64 extra
+    write16(out, pathBytes.length);
+    write16(out, (4 + 2) + (4 + 24));
+    write16(out, 0); // comment length
+    write16(out, 0); // disk number start
+    write16(out, 0); // internal attributes
+    write32(out, 0); // external attributes
+    write32(out, 0xffffffffL); // local entry offset, in the zip64 extra
+    out.write(pathBytes, 0, pathBytes.length);
+    // An unrelated extra field (extended timestamp) that precedes the zip64 extra field.
+    write16(out, 0x5455);
+    write16(out, 2);
+    write16(out, 0);
+    write16(out, 0x0001);
+    write16(out, 24);
+    write64(out, data.length); // uncompressed size
+    write64(out, data.length); // compressed size
+    write64(out, localEntryOffset);
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a zip64 end-of-central-directory record.
+   * @param numEntries the number of entries in the central directory
+   * @param centralDirectoryOffset the file offset of the central directory
+   * @param centralDirectoryLength the length of the central directory
+   * @return the record
+   */
+  public static byte[] zip64Eocd(
+      long numEntries, long centralDirectoryOffset, long centralDirectoryLength) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write32(out, MinimalZipParser.ZIP64_EOCD_SIGNATURE);
+    write64(out, 44); // size of the remainder of the record
+    write16(out, 45); // version made by
+    write16(out, 45); // version needed to extract
+    write32(out, 0); // this disk
+    write32(out, 0); // disk with the central directory
+    write64(out, numEntries);
+    write64(out, numEntries);
+    write64(out, centralDirectoryLength);
+    write64(out, centralDirectoryOffset);
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a zip64 end-of-central-directory locator.
+   * @param zip64EocdOffset the file offset of the zip64 end-of-central-directory record
+   * @return the record
+   */
+  public static byte[] zip64EocdLocator(long zip64EocdOffset) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write32(out, MinimalZipParser.ZIP64_EOCD_LOCATOR_SIGNATURE);
+    write32(out, 0); // disk with the zip64 eocd
+    write64(out, zip64EocdOffset);
+    write32(out, 1); // total number of disks
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns an end-of-central-directory record whose values are all zip64 placeholders.
+   * @return the record
+   */
+  public static byte[] eocdWithPlaceholders() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write32(out, MinimalZipParser.EOCD_SIGNATURE);
+    write16(out, 0xffff); // this disk
+    write16(out, 0xffff); // disk with the central directory
+    write16(out, 0xffff); // entries on this disk
+    write16(out, 0xffff); // entries overall
+    write32(out, 0xffffffffL); // central directory length
+    write32(out, 0xffffffffL); // central directory offset
+    write16(out, 0); // comment length
+    return out.toByteArray();
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+    return crc32.getValue();
+  }
+
+  private static void write16(ByteArrayOutputStream out, int value) {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+  }
+
+  private static void write32(ByteArrayOutputStream out, long value) {
+    write16(out, (int) (value & 0xffff));
+    write16(out, (int) ((value >>> 16) & 0xffff));
+  }
+
+  private static void write64(ByteArrayOutputStream out, long value) {
+    write32(out, value & 0xffffffffL);
+    write32(out, value >>> 32);
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ZipEntryTable}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ZipEntryTableTest {
+
+  @Test
+  public void testRead_MatchesListEntries() throws IOException {
+    ByteSource data = ByteSource.wrap(UnitTestZipArchive.makeTestZip());
+    List<MinimalZipEntry> expected = MinimalZipArchive.listEntries(data);
+    ZipEntryTable table = ZipEntryTable.read(data);
+    assertThat(table.getNumEntries()).isEqualTo(expected.size());
+    for (int index = 0; index < expected.size(); index++) {
+      MinimalZipEntry expectedEntry = expected.get(index);
+      assertThat(table.toMinimalZipEntry(index)).isEqualTo(expectedEntry);
+      assertThat(table.getFileNameBytes(index)).isEqualTo(expectedEntry.getFileNameBytes());
+      assertThat(table.isDeflateCompressed(index)).isEqualTo(expectedEntry.isDeflateCompressed());
+      assertThat(table.indexOf(expectedEntry.getFileNameBytes())).isEqualTo(index);
+    }
+  }
+
+  @Test
+  public void testIndexOf() {
+    List<MinimalZipEntry> entries = new ArrayList<>();
+    // Enough entries that many share a slot in the path index.
+    for (int index = 0; index < 10000; index++) {
+      entries.add(entry("path/" + index, index));
+    }
+    ZipEntryTable table = ZipEntryTable.of(entries);
+    for (int index = 0; index < 10000; index++) {
+      assertThat(table.indexOf(bytes("path/" + index))).isEqualTo(index);
+      assertThat(table.getFileOffsetOfLocalEntry(index)).isEqualTo(index);
+    }
+    assertThat(table.indexOf(bytes("path/10000"))).isEqualTo(ZipEntryTable.NOT_FOUND);
+    assertThat(table.indexOf(bytes(""))).isEqualTo(ZipEntryTable.NOT_FOUND);
+  }
+
+  @Test
+  public void testIndexOf_OtherTable() {
+    List<MinimalZipEntry> oldEntries = new ArrayList<>();
+    oldEntries.add(entry("a", 0));
+    oldEntries.add(entry("b", 1));
+    List<MinimalZipEntry> newEntries = new ArrayList<>();
+    newEntries.add(entry("c", 0));
+    newEntries.add(entry("a", 1));
+    ZipEntryTable oldTable = ZipEntryTable.of(oldEntries);
+    ZipEntryTable newTable = ZipEntryTable.of(newEntries);
+    assertThat(oldTable.indexOf(newTable, 0)).isEqualTo(ZipEntryTable.NOT_FOUND);
+    assertThat(oldTable.indexOf(newTable, 1)).isEqualTo(0);
+  }
+
+  @Test
+  public void testIndexOf_DuplicatePathsLastWins() {
+    List<MinimalZipEntry> entries = new ArrayList<>();
+    entries.add(entry("dup", 0));
+    entries.add(entry("other", 1));
+    entries.add(entry("dup", 2));
+    ZipEntryTable table = ZipEntryTable.of(entries);
+    assertThat(table.getNumEntries()).isEqualTo(3);
+    assertThat(table.indexOf(bytes("dup"))).isEqualTo(2);
+    assertThat(table.indexOf(table, 0)).isEqualTo(2);
+  }
+
+  @Test
+  public void testEmpty() {
+    ZipEntryTable table = ZipEntryTable.of(new ArrayList<MinimalZipEntry>());
+    assertThat(table.getNumEntries()).isEqualTo(0);
+    assertThat(table.indexOf(bytes("a"))).isEqualTo(ZipEntryTable.NOT_FOUND);
+  }
+
+  private static MinimalZipEntry entry(String path, long localEntryOffset) {
+    MinimalZipEntry entry =
+        new MinimalZipEntry(8, 0xfedcba98L, 10, 20, bytes(path), true, localEntryOffset);
+    entry.setFileOffsetOfCompressedData(localEntryOffset + 30);
+    return entry;
+  }
+
+  private static byte[] bytes(String path) {
+    return path.getBytes(StandardCharsets.UTF_8);
+  }
+}
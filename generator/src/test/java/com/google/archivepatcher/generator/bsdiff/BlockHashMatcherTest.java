@@ -0,0 +1,199 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.bsdiff.Matcher.NextMatch;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlockHashMatcher}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BlockHashMatcherTest {
+  private static final int BLOCK_SIZE = 8;
+  private static final int MINIMUM_MATCH_LENGTH = 4;
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] result = new byte[length];
+    random.nextBytes(result);
+    return result;
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testFindsUnalignedMatch() throws Exception {
+    Random random = new Random(42);
+    byte[] common = randomBytes(random, 100);
+    byte[] oldData = concat(randomBytes(random, 13), common, randomBytes(random, 50));
+    byte[] newData = concat(randomBytes(random, 29), common, randomBytes(random, 7));
+
+    BlockHashMatcher matcher =
+        new BlockHashMatcher(oldData, newData, BLOCK_SIZE, MINIMUM_MATCH_LENGTH);
+    NextMatch match = matcher.next();
+    assertThat(match.didFindMatch).isTrue();
+    // The match is extended backward past the first indexed block to its true start.
+    assertThat(match.oldPosition).isEqualTo(13);
+    assertThat(match.newPosition).isEqualTo(29);
+    assertThat(matcher.next().didFindMatch).isFalse();
+  }
+
+  @Test
+  public void testSkipsMatchCoveredByPreviousAlignment() throws Exception {
+    Random random = new Random(42);
+    byte[] first = randomBytes(random, 64);
+    byte[] second = randomBytes(random, 64);
+    byte[] oldData = concat(first, second);
+    // A single changed byte in data at the initial alignment is left to the diff, just as with
+    // BsDiffMatcher.
+    byte[] newData = oldData.clone();
+    newData[70] ^= 1;
+
+    BlockHashMatcher matcher =
+        new BlockHashMatcher(oldData, newData, BLOCK_SIZE, MINIMUM_MATCH_LENGTH);
+    assertThat(matcher.next().didFindMatch).isFalse();
+  }
+
+  @Test
+  public void testNoMatches() throws Exception {
+    Random random = new Random(42);
+    BlockHashMatcher matcher =
+        new BlockHashMatcher(
+            randomBytes(random, 100), randomBytes(random, 100), BLOCK_SIZE, MINIMUM_MATCH_LENGTH);
+    assertThat(matcher.next().didFindMatch).isFalse();
+  }
+
+  @Test
+  public void testEmptyData() throws Exception {
+    BlockHashMatcher matcher =
+        new BlockHashMatcher(new byte[0], new byte[0], BLOCK_SIZE, MINIMUM_MATCH_LENGTH);
+    assertThat(matcher.next().didFindMatch).isFalse();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadBlockSize() {
+    new BlockHashMatcher(new byte[0], new byte[0], 0, MINIMUM_MATCH_LENGTH);
+  }
+
+  @Test
+  public void testGeneratePatchWithBlockHashing_RoundTrip() throws Exception {
+    Random random = new Random(42);
+    byte[] a = randomBytes(random, 5000);
+    byte[] b = randomBytes(random, 3000);
+    byte[] c = randomBytes(random, 4000);
+    byte[] oldData = concat(a, b, c);
+    byte[] bModified = b.clone();
+    for (int i = 0; i < bModified.length; i += 100) {
+      bModified[i]++;
+    }
+    // Reordered, modified and with new content inserted.
+    byte[] newData = concat(c, randomBytes(random, 123), bModified, a, new byte[1000]);
+
+    byte[] patch = generatePatch(oldData, newData);
+    assertThat(applyPatch(oldData, patch)).isEqualTo(newData);
+    // Most of the new data is matched rather than copied verbatim into the patch.
+    assertThat(countExtraBytes(patch)).isLessThan(newData.length / 4L);
+  }
+
+  @Test
+  public void testGeneratePatchWithBlockHashing_RealData() throws Exception {
+    byte[] oldData = readTestData("minimalBlobA.bin");
+    byte[] newData = readTestData("minimalBlobB.bin");
+    assertThat(applyPatch(oldData, generatePatch(oldData, newData))).isEqualTo(newData);
+    assertThat(applyPatch(newData, generatePatch(newData, oldData))).isEqualTo(oldData);
+  }
+
+  private byte[] readTestData(String fileName) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (InputStream in = getClass().getResourceAsStream("testdata/" + fileName)) {
+      byte[] buffer = new byte[32768];
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        result.write(buffer, 0, numRead);
+      }
+    }
+    return result.toByteArray();
+  }
+
+  private static byte[] generatePatch(byte[] oldData, byte[] newData) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatchWithBlockHashing(
+        ByteSource.wrap(oldData), ByteSource.wrap(newData), out, BLOCK_SIZE, MINIMUM_MATCH_LENGTH);
+    return out.toByteArray();
+  }
+
+  /**
+   * A minimal BSDIFF43 applier, to check that the patches are well formed. Also used by other tests
+   * in this package.
+   */
+  static byte[] applyPatch(byte[] oldData, byte[] patch) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(patch));
+    byte[] signature = new byte[16];
+    in.readFully(signature);
+    assertThat(new String(signature, StandardCharsets.US_ASCII)).isEqualTo("ENDSLEY/BSDIFF43");
+    byte[] newData = new byte[(int) BsUtil.readFormattedLong(in)];
+    int newPosition = 0;
+    int oldPosition = 0;
+    while (newPosition < newData.length) {
+      int diffLength = (int) BsUtil.readFormattedLong(in);
+      int extraLength = (int) BsUtil.readFormattedLong(in);
+      int oldOffset = (int) BsUtil.readFormattedLong(in);
+      in.readFully(newData, newPosition, diffLength);
+      for (int i = 0; i < diffLength; i++) {
+        newData[newPosition + i] += oldData[oldPosition + i];
+      }
+      newPosition += diffLength;
+      oldPosition += diffLength;
+      in.readFully(newData, newPosition, extraLength);
+      newPosition += extraLength;
+      oldPosition += oldOffset;
+    }
+    assertThat(in.available()).isEqualTo(0);
+    return newData;
+  }
+
+  private static long countExtraBytes(byte[] patch) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(patch));
+    in.skipBytes(16);
+    long remaining = BsUtil.readFormattedLong(in);
+    long extraBytes = 0;
+    while (remaining > 0) {
+      long diffLength = BsUtil.readFormattedLong(in);
+      long extraLength = BsUtil.readFormattedLong(in);
+      BsUtil.readFormattedLong(in);
+      in.skipBytes((int) (diffLength + extraLength));
+      remaining -= diffLength + extraLength;
+      extraBytes += extraLength;
+    }
+    return extraBytes;
+  }
+}
@@ -17,6 +17,7 @@ package com.google.archivepatcher.generator.bsdiff;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.archivepatcher.generator.bsdiff.Matcher.NextMatch;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory;
 import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -28,6 +29,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -267,6 +270,171 @@ public class BsDiffTest {
     assertThat(actualPatch).isEqualTo(expectedPatch);
   }
 
+  @Test
+  public void generatePatchWithLongIndexing_MatchesIntIndexing() throws Exception {
+    // Both suffix sorters produce the same suffix array and the matchers follow the same rules, so
+    // the patches are identical. The small regions make the suffix array span several of them.
+    String[][] pairs = {
+      {"BsDiffInternalTestOld.txt", "BsDiffInternalTestNew.txt"},
+      {"minimalBlobA.bin", "minimalBlobB.bin"}
+    };
+    for (String[] pair : pairs) {
+      byte[] oldData = readTestData(pair[0]);
+      byte[] newData = readTestData(pair[1]);
+      ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatch(oldData, newData, expectedOut);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatchWithLongIndexing(
+          ByteSource.wrap(oldData),
+          ByteSource.wrap(newData),
+          out,
+          BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+          4096);
+      assertThat(out.toByteArray()).isEqualTo(expectedOut.toByteArray());
+    }
+  }
+
+  @Test
+  public void requiresLongIndexingTest() {
+    assertThat(BsDiffPatchWriter.requiresLongIndexing(0, 0)).isFalse();
+    assertThat(
+            BsDiffPatchWriter.requiresLongIndexing(
+                DivSuffixSorter.MAX_INPUT_LENGTH, Integer.MAX_VALUE))
+        .isFalse();
+    assertThat(BsDiffPatchWriter.requiresLongIndexing(DivSuffixSorter.MAX_INPUT_LENGTH + 1, 0))
+        .isTrue();
+    assertThat(BsDiffPatchWriter.requiresLongIndexing(0, Integer.MAX_VALUE + 1L)).isTrue();
+  }
+
+  @Test
+  public void generatePatchInParallel_OneSegmentMatchesSerialPatch() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] oldData = readTestData("minimalBlobA.bin");
+    byte[] newData = readTestData("minimalBlobB.bin");
+    byte[] expectedPatch = readTestData("minimalBlobPatch.patch");
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      BsDiffPatchWriter.generatePatch(
+          ByteSource.wrap(oldData),
+          ByteSource.wrap(newData),
+          out,
+          new RandomAccessByteArrayObjectFactory(),
+          BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+          1,
+          executor);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(out.toByteArray()).isEqualTo(expectedPatch);
+  }
+
+  @Test
+  public void generatePatchInParallel_AppliesCorrectly() throws Exception {
+    byte[] oldData = readTestData("minimalBlobA.bin");
+    byte[] newData = readTestData("minimalBlobB.bin");
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int numSegments : new int[] {2, 7, newData.length + 3}) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BsDiffPatchWriter.generatePatch(
+            ByteSource.wrap(oldData),
+            ByteSource.wrap(newData),
+            out,
+            new RandomAccessByteArrayObjectFactory(),
+            BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+            numSegments,
+            executor);
+        assertThat(BlockHashMatcherTest.applyPatch(oldData, out.toByteArray()))
+            .isEqualTo(newData);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void generatePatchInParallel_Serially() throws Exception {
+    // With no executor the segments are matched on the calling thread, with the same result.
+    byte[] oldData = readTestData("BsDiffInternalTestOld.txt");
+    byte[] newData = readTestData("BsDiffInternalTestNew.txt");
+    ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+
+    BsDiffPatchWriter.generatePatch(
+        ByteSource.wrap(oldData),
+        ByteSource.wrap(newData),
+        serialOut,
+        new RandomAccessByteArrayObjectFactory(),
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+        3,
+        null);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      BsDiffPatchWriter.generatePatch(
+          ByteSource.wrap(oldData),
+          ByteSource.wrap(newData),
+          parallelOut,
+          new RandomAccessByteArrayObjectFactory(),
+          BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+          3,
+          executor);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(parallelOut.toByteArray()).isEqualTo(serialOut.toByteArray());
+    assertThat(BlockHashMatcherTest.applyPatch(oldData, serialOut.toByteArray()))
+        .isEqualTo(newData);
+  }
+
+  @Test
+  public void generateDeltaWithParallelMatching_MatchesSegmentedPatch() throws Exception {
+    byte[] oldData = readTestData("BsDiffInternalTestOld.txt");
+    byte[] newData = readTestData("BsDiffInternalTestNew.txt");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        ByteSource.wrap(oldData),
+        ByteSource.wrap(newData),
+        expected,
+        new RandomAccessByteArrayObjectFactory(),
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+        3,
+        null);
+
+    BsDiffDeltaGenerator generator =
+        new BsDiffDeltaGenerator(false, new RandomAccessByteArrayObjectFactory())
+            .withParallelMatching(3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.generateDelta(ByteSource.wrap(oldData), ByteSource.wrap(newData), out);
+    assertThat(out.toByteArray()).isEqualTo(expected.toByteArray());
+    // In-memory storage keeps the parallel matching.
+    out.reset();
+    generator
+        .withInMemoryStorage()
+        .generateDelta(ByteSource.wrap(oldData), ByteSource.wrap(newData), out);
+    assertThat(out.toByteArray()).isEqualTo(expected.toByteArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void generateDeltaWithParallelMatching_BadNumThreads() {
+    new BsDiffDeltaGenerator(false).withParallelMatching(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void generatePatchInParallel_BadNumSegments() throws Exception {
+    BsDiffPatchWriter.generatePatch(
+        ByteSource.wrap(new byte[1]),
+        ByteSource.wrap(new byte[1]),
+        new ByteArrayOutputStream(),
+        new RandomAccessByteArrayObjectFactory(),
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+        0,
+        null);
+  }
+
   /**
    * Naive implementation of BsDiff.Matcher. Exact matches between newData[a ... a + len - 1] and
    * oldData[b ... b + len - 1] are valid if |len| >= 3.
@@ -0,0 +1,49 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import java.io.IOException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the common suffix sorter tests against {@link LongSuffixSorter}, converting its suffix array
+ * to the int form that the tests expect. The regions are small so that the arrays of the longer
+ * inputs span several of them.
+ */
+@RunWith(JUnit4.class)
+public class LongSuffixSorterTest extends SuffixSorterTestBase {
+  private static final int MAX_REGION_SIZE = 1000;
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return new SuffixSorter() {
+      @Override
+      public RandomAccessObject suffixSort(ByteSource input)
+          throws IOException, InterruptedException {
+        try (MappedLongArray suffixArray =
+            new LongSuffixSorter(MAX_REGION_SIZE).suffixSort(input)) {
+          RandomAccessObject result =
+              new RandomAccessObject.RandomAccessByteArrayObject((int) suffixArray.length() * 4);
+          for (long index = 0; index < suffixArray.length(); index++) {
+            result.writeInt((int) suffixArray.get(index));
+          }
+          return result;
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MappedLongArrayTest {
+
+  @Test
+  public void testBytesPerElement() {
+    assertThat(MappedLongArray.bytesPerElement(0)).isEqualTo(5);
+    assertThat(MappedLongArray.bytesPerElement(MappedLongArray.MAX_5_BYTE_MAGNITUDE)).isEqualTo(5);
+    assertThat(MappedLongArray.bytesPerElement(MappedLongArray.MAX_5_BYTE_MAGNITUDE + 1))
+        .isEqualTo(8);
+  }
+
+  @Test
+  public void testGetAndSet_FiveBytesAcrossRegions() throws Exception {
+    // 3 elements per region, so the array spans 7 regions.
+    try (MappedLongArray array =
+        new MappedLongArray(20, MappedLongArray.MAX_5_BYTE_MAGNITUDE, 16)) {
+      assertThat(array.getBytesPerElement()).isEqualTo(5);
+      assertThat(array.length()).isEqualTo(20);
+      for (int index = 0; index < 20; index++) {
+        assertThat(array.get(index)).isEqualTo(0);
+      }
+      long[] values = {
+        0, 1, -1, 255, -256, Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 32, -(1L << 32),
+        MappedLongArray.MAX_5_BYTE_MAGNITUDE, -MappedLongArray.MAX_5_BYTE_MAGNITUDE
+      };
+      for (int index = 0; index < 20; index++) {
+        array.set(index, values[index % values.length]);
+      }
+      for (int index = 0; index < 20; index++) {
+        assertThat(array.get(index)).isEqualTo(values[index % values.length]);
+      }
+    }
+  }
+
+  @Test
+  public void testGetAndSet_EightBytes() throws Exception {
+    try (MappedLongArray array = new MappedLongArray(5, Long.MAX_VALUE, 16)) {
+      assertThat(array.getBytesPerElement()).isEqualTo(8);
+      array.set(0, Long.MAX_VALUE);
+      array.set(2, Long.MIN_VALUE);
+      array.set(4, -1);
+      assertThat(array.get(0)).isEqualTo(Long.MAX_VALUE);
+      assertThat(array.get(1)).isEqualTo(0);
+      assertThat(array.get(2)).isEqualTo(Long.MIN_VALUE);
+      assertThat(array.get(4)).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    try (MappedLongArray array = new MappedLongArray(0, 0, 16)) {
+      assertThat(array.length()).isEqualTo(0);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadRegionSize() throws Exception {
+    new MappedLongArray(1, 0, 7);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLength() throws Exception {
+    new MappedLongArray(-1, 0, 16);
+  }
+}
@@ -528,7 +528,8 @@ public class RandomAccessObjectTest {
     File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
 
     try {
-      try (RandomAccessObject obj = new RandomAccessObject.RandomAccessMmapObject(tmpFile, "r")) {}
+      RandomAccessObject obj = new RandomAccessObject.RandomAccessMmapObject(tmpFile, "r");
+      obj.close();
       assertThat(tmpFile.exists()).isFalse();
       tmpFile = null;
     } finally {
@@ -540,14 +541,47 @@ public class RandomAccessObjectTest {
     tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
 
     try {
-      try (RandomAccessObject obj =
-          new RandomAccessObject.RandomAccessMmapObject(new RandomAccessFile(tmpFile, "r"), "r")) {}
+      RandomAccessObject obj =
+          new RandomAccessObject.RandomAccessMmapObject(new RandomAccessFile(tmpFile, "r"), "r");
+      obj.close();
       assertThat(tmpFile.exists()).isTrue();
     } finally {
       tmpFile.delete();
     }
   }
 
+  @Test
+  public void mmapCloseTest_WithOpenDuplicate() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+
+    try {
+      RandomAccessObject.RandomAccessMmapObject obj =
+          new RandomAccessObject.RandomAccessMmapObject(tmpFile, "r");
+      RandomAccessObject duplicate = obj.duplicate();
+      obj.close();
+      // The mapping and the file are kept until the duplicate is closed.
+      assertThat(tmpFile.exists()).isTrue();
+      duplicate.seek(7);
+      assertThat(duplicate.readByte()).isEqualTo(8);
+      duplicate.close();
+      assertThat(tmpFile.exists()).isFalse();
+      tmpFile = null;
+    } finally {
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void mmapDuplicateAfterCloseTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+    RandomAccessObject.RandomAccessMmapObject obj =
+        new RandomAccessObject.RandomAccessMmapObject(tmpFile, "r");
+    obj.close();
+    obj.duplicate();
+  }
+
   private void seekTest(final RandomAccessObject obj) throws IOException {
     obj.seek(7);
     assertThat(obj.readByte()).isEqualTo(8);
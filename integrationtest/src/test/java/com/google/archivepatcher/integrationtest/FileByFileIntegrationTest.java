@@ -16,20 +16,29 @@ package com.google.archivepatcher.integrationtest;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.archivepatcher.applier.BatchDeltaApplier;
+import com.google.archivepatcher.applier.DeltaFriendlyOldBlobCache;
 import com.google.archivepatcher.applier.FileByFileDeltaApplier;
 import com.google.archivepatcher.generator.FileByFileDeltaGenerator;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -150,12 +159,20 @@ public class FileByFileIntegrationTest {
     }
   }
 
+  private static byte[] readFile(File file) throws IOException {
+    byte[] result = new byte[(int) file.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      in.readFully(result);
+    }
+    return result;
+  }
+
   /**
-   * High-level integration test that covers the most common kinds of operations expected to be
-   * found in the real world.
+   * Writes the old and new test archives to disk.
+   *
+   * @return the bytes of the new archive
    */
-  @Test
-  public void testPatchAndApply() throws Exception {
+  private byte[] writeTestArchives() throws IOException {
     // Write the old archive to disk.
     byte[] oldArchiveBytes = UnitTestZipArchive.makeTestZip(Arrays.asList(
         OLD_ENTRY1,
@@ -192,6 +209,16 @@ public class FileByFileIntegrationTest {
     Collections.reverse(newEntries);
     byte[] newArchiveBytes = UnitTestZipArchive.makeTestZip(newEntries);
     writeFile(newFile, newArchiveBytes);
+    return newArchiveBytes;
+  }
+
+  /**
+   * High-level integration test that covers the most common kinds of operations expected to be
+   * found in the real world.
+   */
+  @Test
+  public void testPatchAndApply() throws Exception {
+    byte[] newArchiveBytes = writeTestArchives();
 
     // Generate the patch.
     ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
@@ -212,4 +239,102 @@ public class FileByFileIntegrationTest {
     // that was written to disk.
     assertThat(newOut.toByteArray()).isEqualTo(newArchiveBytes);
   }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but records verification data in the patch and checks the
+   * output against it while writing it directly to a file.
+   */
+  @Test
+  public void testPatchAndApply_Verified() throws Exception {
+    byte[] newArchiveBytes = writeTestArchives();
+
+    ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator.Builder()
+            .addSupportedDeltaFormats(Collections.singleton(DeltaFormat.BSDIFF))
+            .usingNativeBsDiff(useNativeBsDiff)
+            .addPatchFlags(EnumSet.allOf(PatchFlag.class))
+            .build();
+    generator.generateDelta(oldFile, newFile, patchBuffer);
+
+    FileByFileDeltaApplier applier = new FileByFileDeltaApplier(tempDir, /* verifyOutput= */ true);
+    File appliedFile = File.createTempFile("fbf_test", "applied");
+    try {
+      applier.applyDelta(
+          oldFile, new ByteArrayInputStream(patchBuffer.toByteArray()), appliedFile, false);
+      assertThat(readFile(appliedFile)).isEqualTo(newArchiveBytes);
+    } finally {
+      appliedFile.delete();
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply_Verified()}, but matching segments of the new blob concurrently.
+   * Ignored by the native implementation.
+   */
+  @Test
+  public void testPatchAndApply_ParallelMatching() throws Exception {
+    byte[] newArchiveBytes = writeTestArchives();
+
+    ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator.Builder()
+            .addSupportedDeltaFormats(Collections.singleton(DeltaFormat.BSDIFF))
+            .usingNativeBsDiff(useNativeBsDiff)
+            .addPatchFlags(EnumSet.allOf(PatchFlag.class))
+            .withParallelMatching(3)
+            .build();
+    generator.generateDelta(oldFile, newFile, patchBuffer);
+
+    FileByFileDeltaApplier applier = new FileByFileDeltaApplier(tempDir, /* verifyOutput= */ true);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    applier.applyDelta(oldFile, new ByteArrayInputStream(patchBuffer.toByteArray()), newOut);
+    assertThat(newOut.toByteArray()).isEqualTo(newArchiveBytes);
+  }
+
+  /**
+   * Applies several copies of one patch in a single batch, concurrently, against one shared
+   * delta-friendly old blob.
+   */
+  @Test
+  public void testPatchAndApply_Batch() throws Exception {
+    byte[] newArchiveBytes = writeTestArchives();
+
+    ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator(
+            /* preDiffPlanEntryModifiers= */ Collections.emptyList(),
+            Collections.singleton(DeltaFormat.BSDIFF),
+            useNativeBsDiff);
+    generator.generateDelta(oldFile, newFile, patchBuffer);
+
+    List<File> patchFiles = new ArrayList<File>();
+    List<File> appliedFiles = new ArrayList<File>();
+    DeltaFriendlyOldBlobCache cache = new DeltaFriendlyOldBlobCache(tempDir, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int x = 0; x < 3; x++) {
+        File patchFile = File.createTempFile("fbf_test", "patch");
+        writeFile(patchFile, patchBuffer.toByteArray());
+        patchFiles.add(patchFile);
+        appliedFiles.add(File.createTempFile("fbf_test", "applied"));
+      }
+      BatchDeltaApplier applier =
+          new BatchDeltaApplier(new FileByFileDeltaApplier(tempDir), cache);
+      applier.applyDeltas(oldFile, patchFiles, appliedFiles, executor);
+      for (File appliedFile : appliedFiles) {
+        assertThat(readFile(appliedFile)).isEqualTo(newArchiveBytes);
+      }
+      assertThat(cache.getNumEntries()).isEqualTo(1);
+    } finally {
+      executor.shutdown();
+      cache.clear();
+      for (File file : patchFiles) {
+        file.delete();
+      }
+      for (File file : appliedFiles) {
+        file.delete();
+      }
+    }
+  }
 }
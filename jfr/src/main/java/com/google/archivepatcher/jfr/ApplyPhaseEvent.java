@@ -0,0 +1,49 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A phase of patch application. Each recompression range is one RECOMPRESS phase, between BSDIFF
+ * phases.
+ */
+@Name("com.google.archivepatcher.ApplyPhase")
+@Label("Apply Phase")
+@Category({"Archive Patcher", "Application"})
+@Description("A phase of patch application; each recompression range is one RECOMPRESS phase")
+@StackTrace(false)
+public final class ApplyPhaseEvent extends jdk.jfr.Event {
+  @Label("Phase")
+  String phase;
+
+  @Label("Bytes Inflated")
+  @Description("The bytes produced by uncompressing the old file, for the EXPAND_OLD phase")
+  @DataAmount
+  long bytesInflated;
+
+  @Label("Deflate Level")
+  @Description("The deflate level of the range, for a RECOMPRESS phase; otherwise -1")
+  int deflateLevel = -1;
+
+  @Label("Bytes Deflated")
+  @Description("The uncompressed bytes of the range, for a RECOMPRESS phase")
+  @DataAmount
+  long bytesDeflated;
+}
@@ -0,0 +1,35 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A batch of bsdiff control entries applied, including the recompression of their output. */
+@Name("com.google.archivepatcher.BsPatchBatch")
+@Label("BsPatch Control Entry Batch")
+@Category({"Archive Patcher", "Application"})
+@Description("A batch of bsdiff control entries applied, including recompressing their output")
+@StackTrace(false)
+public final class BsPatchBatchEvent extends jdk.jfr.Event {
+  @Label("Control Entries")
+  long controlEntries;
+
+  @Label("Old Data Seeks")
+  @Description("The seeks in the delta-friendly old blob")
+  long oldDataSeeks;
+}
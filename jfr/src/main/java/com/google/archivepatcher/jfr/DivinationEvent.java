@@ -0,0 +1,39 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** The divination of the deflate parameters of one entry of the new archive. */
+@Name("com.google.archivepatcher.Divination")
+@Label("Entry Divination")
+@Category({"Archive Patcher", "Generation"})
+@Description("The divination of the deflate parameters of one entry of the new archive")
+@StackTrace(false)
+public final class DivinationEvent extends jdk.jfr.Event {
+  @Label("Entry Name")
+  String entryName;
+
+  @Label("Configurations Tried")
+  @Description("The number of combinations of level, strategy and nowrap tried")
+  int configurationsTried;
+
+  @Label("Divined")
+  @Description("Whether the parameters were found")
+  boolean divined;
+}
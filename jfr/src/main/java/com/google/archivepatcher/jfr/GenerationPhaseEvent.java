@@ -0,0 +1,45 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A phase of patch generation, such as a suffix sort or a matcher pass. */
+@Name("com.google.archivepatcher.GenerationPhase")
+@Label("Generation Phase")
+@Category({"Archive Patcher", "Generation"})
+@Description("A phase of patch generation")
+@StackTrace(false)
+public final class GenerationPhaseEvent extends jdk.jfr.Event {
+  @Label("Phase")
+  String phase;
+
+  @Label("Bytes In")
+  @DataAmount
+  long bytesIn;
+
+  @Label("Bytes Out")
+  @DataAmount
+  long bytesOut;
+
+  @Label("Suffix Array Size")
+  @Description("The size of the suffix array built, for the suffix sort phase")
+  @DataAmount
+  long suffixArrayBytes;
+}
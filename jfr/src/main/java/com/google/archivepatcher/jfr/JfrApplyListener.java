@@ -0,0 +1,142 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import com.google.archivepatcher.applier.ApplyListener;
+import com.google.archivepatcher.applier.ApplyProgressListener;
+
+/**
+ * An {@link ApplyListener} that emits an {@link ApplyPhaseEvent} for each phase of patch
+ * application, including each recompression range, and a {@link BsPatchBatchEvent} for each batch
+ * of bsdiff control entries, and forwards everything to another listener. The events are enabled
+ * and configured like any other JFR event, by name.
+ *
+ * <p>Each batch event spans the time from the end of the previous one, or from the start of delta
+ * application, as a batch is reported only once it has completed. Instances may be shared by
+ * concurrent applications.
+ */
+public class JfrApplyListener implements ApplyListener {
+  /** The events in progress on one thread. */
+  private static final class State {
+    private ApplyPhaseEvent phaseEvent;
+    private BsPatchBatchEvent batchEvent;
+  }
+
+  /** The listener to forward to, or null. */
+  private final ApplyProgressListener delegate;
+
+  /** The listener to forward telemetry to, or null. */
+  private final ApplyListener applyDelegate;
+
+  private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+  /** Creates a listener that only emits events. */
+  public JfrApplyListener() {
+    this(null);
+  }
+
+  /**
+   * Creates a listener that emits events and forwards everything to the specified listener.
+   * Telemetry is only forwarded if it is an {@link ApplyListener}.
+   *
+   * @param delegate the listener to forward to, or null
+   */
+  public JfrApplyListener(ApplyProgressListener delegate) {
+    this.delegate = delegate;
+    this.applyDelegate = delegate instanceof ApplyListener ? (ApplyListener) delegate : null;
+  }
+
+  @Override
+  public void onPhase(Phase phase) {
+    State current = state.get();
+    if (phase == Phase.EXPAND_OLD) {
+      // A new application has started.
+      current.batchEvent = null;
+    }
+    ApplyPhaseEvent event = new ApplyPhaseEvent();
+    event.phase = phase.name();
+    event.begin();
+    current.phaseEvent = event;
+    if (phase == Phase.BSDIFF && current.batchEvent == null) {
+      current.batchEvent = beginBatch();
+    }
+    if (delegate != null) {
+      delegate.onPhase(phase);
+    }
+  }
+
+  @Override
+  public void onProgress(long deltaBytesConsumed, long newBytesWritten) {
+    if (delegate != null) {
+      delegate.onProgress(deltaBytesConsumed, newBytesWritten);
+    }
+  }
+
+  @Override
+  public void onPhaseCompleted(Phase phase, long elapsedNanos) {
+    State current = state.get();
+    ApplyPhaseEvent event = current.phaseEvent;
+    if (event != null && event.phase.equals(phase.name())) {
+      event.commit();
+      current.phaseEvent = null;
+    }
+    if (applyDelegate != null) {
+      applyDelegate.onPhaseCompleted(phase, elapsedNanos);
+    }
+  }
+
+  @Override
+  public void onOldBlobExpanded(long bytesInflated) {
+    ApplyPhaseEvent event = state.get().phaseEvent;
+    if (event != null) {
+      event.bytesInflated = bytesInflated;
+    }
+    if (applyDelegate != null) {
+      applyDelegate.onOldBlobExpanded(bytesInflated);
+    }
+  }
+
+  @Override
+  public void onRangeRecompressed(int level, long bytesDeflated) {
+    ApplyPhaseEvent event = state.get().phaseEvent;
+    if (event != null) {
+      event.deflateLevel = level;
+      event.bytesDeflated = bytesDeflated;
+    }
+    if (applyDelegate != null) {
+      applyDelegate.onRangeRecompressed(level, bytesDeflated);
+    }
+  }
+
+  @Override
+  public void onControlEntriesApplied(long controlEntries, long oldDataSeeks) {
+    State current = state.get();
+    BsPatchBatchEvent event = current.batchEvent;
+    if (event != null) {
+      event.controlEntries = controlEntries;
+      event.oldDataSeeks = oldDataSeeks;
+      event.commit();
+      current.batchEvent = beginBatch();
+    }
+    if (applyDelegate != null) {
+      applyDelegate.onControlEntriesApplied(controlEntries, oldDataSeeks);
+    }
+  }
+
+  private static BsPatchBatchEvent beginBatch() {
+    BsPatchBatchEvent event = new BsPatchBatchEvent();
+    event.begin();
+    return event;
+  }
+}
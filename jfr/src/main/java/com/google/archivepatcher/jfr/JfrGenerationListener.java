@@ -0,0 +1,120 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import com.google.archivepatcher.generator.GenerationListener;
+import com.google.archivepatcher.generator.UncompressionOptionExplanation;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A {@link GenerationListener} that emits a {@link GenerationPhaseEvent} for each phase of patch
+ * generation and a {@link DivinationEvent} for each entry divined, and forwards everything to
+ * another listener. The events are enabled and configured like any other JFR event, by name.
+ *
+ * <p>Each divination event spans the time from the end of the previous one, or from the start of
+ * the divination phase, as the divination of an entry is reported only once it has completed.
+ * Instances may be shared by concurrent generations.
+ */
+public class JfrGenerationListener implements GenerationListener {
+  /** The events in progress on one thread. */
+  private static final class State {
+    private final Map<Phase, GenerationPhaseEvent> phaseEvents = new EnumMap<>(Phase.class);
+    private DivinationEvent divinationEvent;
+  }
+
+  private final GenerationListener delegate;
+
+  private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+  /** Creates a listener that only emits events. */
+  public JfrGenerationListener() {
+    this(GenerationListener.NO_OP);
+  }
+
+  /**
+   * Creates a listener that emits events and forwards everything to the specified listener.
+   *
+   * @param delegate the listener to forward to
+   */
+  public JfrGenerationListener(GenerationListener delegate) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("delegate cannot be null");
+    }
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void onPhaseStarted(Phase phase) {
+    State current = state.get();
+    GenerationPhaseEvent event = new GenerationPhaseEvent();
+    event.begin();
+    current.phaseEvents.put(phase, event);
+    if (phase == Phase.DIVINATION) {
+      current.divinationEvent = beginDivination();
+    }
+    delegate.onPhaseStarted(phase);
+  }
+
+  @Override
+  public void onPhaseCompleted(
+      Phase phase, long wallNanos, long cpuNanos, long bytesIn, long bytesOut) {
+    State current = state.get();
+    GenerationPhaseEvent event = current.phaseEvents.remove(phase);
+    if (event != null) {
+      event.phase = phase.name();
+      event.bytesIn = bytesIn;
+      event.bytesOut = bytesOut;
+      event.commit();
+    }
+    if (phase == Phase.DIVINATION) {
+      current.divinationEvent = null;
+    }
+    delegate.onPhaseCompleted(phase, wallNanos, cpuNanos, bytesIn, bytesOut);
+  }
+
+  @Override
+  public void onEntryDivined(String entryName, int configurationsTried, boolean divined) {
+    State current = state.get();
+    DivinationEvent event = current.divinationEvent;
+    if (event != null) {
+      event.entryName = entryName;
+      event.configurationsTried = configurationsTried;
+      event.divined = divined;
+      event.commit();
+      current.divinationEvent = beginDivination();
+    }
+    delegate.onEntryDivined(entryName, configurationsTried, divined);
+  }
+
+  @Override
+  public void onEntryPlanned(UncompressionOptionExplanation explanation) {
+    delegate.onEntryPlanned(explanation);
+  }
+
+  @Override
+  public void onSuffixArrayAllocated(long bytes) {
+    GenerationPhaseEvent event = state.get().phaseEvents.get(Phase.SUFFIX_SORT);
+    if (event != null) {
+      event.suffixArrayBytes = bytes;
+    }
+    delegate.onSuffixArrayAllocated(bytes);
+  }
+
+  private static DivinationEvent beginDivination() {
+    DivinationEvent event = new DivinationEvent();
+    event.begin();
+    return event;
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.applier.ApplyProgressListener.Phase;
+import com.google.archivepatcher.applier.ApplyStats;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JfrApplyListener}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class JfrApplyListenerTest {
+  private static final String PHASE_EVENT = "com.google.archivepatcher.ApplyPhase";
+  private static final String BATCH_EVENT = "com.google.archivepatcher.BsPatchBatch";
+
+  private Recording recording = null;
+  private Path dumpFile = null;
+
+  @Before
+  public void setUp() throws IOException {
+    recording = new Recording();
+    recording.enable(PHASE_EVENT);
+    recording.enable(BATCH_EVENT);
+    dumpFile = Files.createTempFile("jfr-apply", ".jfr");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    recording.close();
+    Files.deleteIfExists(dumpFile);
+  }
+
+  @Test
+  public void testEventsRecorded() throws IOException {
+    ApplyStats stats = new ApplyStats();
+    JfrApplyListener listener = new JfrApplyListener(stats);
+    recording.start();
+    simulateApplication(listener);
+
+    List<RecordedEvent> phases = readEvents(PHASE_EVENT);
+    assertThat(phases).hasSize(4);
+    assertThat(phases.get(0).getString("phase")).isEqualTo("EXPAND_OLD");
+    assertThat(phases.get(0).getLong("bytesInflated")).isEqualTo(1000L);
+    assertThat(phases.get(1).getString("phase")).isEqualTo("BSDIFF");
+    assertThat(phases.get(1).getInt("deflateLevel")).isEqualTo(-1);
+    assertThat(phases.get(2).getString("phase")).isEqualTo("RECOMPRESS");
+    assertThat(phases.get(2).getInt("deflateLevel")).isEqualTo(6);
+    assertThat(phases.get(2).getLong("bytesDeflated")).isEqualTo(300L);
+    assertThat(phases.get(3).getString("phase")).isEqualTo("BSDIFF");
+
+    List<RecordedEvent> batches = readEvents(BATCH_EVENT);
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0).getLong("controlEntries")).isEqualTo(1024L);
+    assertThat(batches.get(0).getLong("oldDataSeeks")).isEqualTo(12L);
+    assertThat(batches.get(1).getLong("controlEntries")).isEqualTo(5L);
+    assertThat(batches.get(1).getLong("oldDataSeeks")).isEqualTo(1L);
+
+    // Everything is forwarded to the delegate as well.
+    assertThat(stats.getBytesInflated()).isEqualTo(1000L);
+    assertThat(stats.getBytesDeflated(6)).isEqualTo(300L);
+    assertThat(stats.getControlEntries()).isEqualTo(1029L);
+    assertThat(stats.getOldDataSeeks()).isEqualTo(13L);
+  }
+
+  @Test
+  public void testEventsDisabled() throws IOException {
+    recording.disable(BATCH_EVENT);
+    JfrApplyListener listener = new JfrApplyListener();
+    recording.start();
+    simulateApplication(listener);
+
+    assertThat(readEvents(PHASE_EVENT)).hasSize(4);
+    assertThat(readEvents(BATCH_EVENT)).isEmpty();
+  }
+
+  /**
+   * Makes the calls that a {@link com.google.archivepatcher.applier.FileByFileDeltaApplier} makes
+   * for a patch with one recompression range in the middle of the new file.
+   */
+  private static void simulateApplication(JfrApplyListener listener) {
+    listener.onPhase(Phase.EXPAND_OLD);
+    listener.onOldBlobExpanded(1000);
+    listener.onPhaseCompleted(Phase.EXPAND_OLD, 10);
+    listener.onPhase(Phase.BSDIFF);
+    listener.onProgress(10, 100);
+    listener.onControlEntriesApplied(1024, 12);
+    listener.onPhaseCompleted(Phase.BSDIFF, 10);
+    listener.onPhase(Phase.RECOMPRESS);
+    listener.onRangeRecompressed(6, 300);
+    listener.onPhaseCompleted(Phase.RECOMPRESS, 10);
+    listener.onPhase(Phase.BSDIFF);
+    listener.onControlEntriesApplied(5, 1);
+    listener.onPhaseCompleted(Phase.BSDIFF, 10);
+  }
+
+  /** Stops the recording if necessary and returns the events with the specified name, in order. */
+  private List<RecordedEvent> readEvents(String name) throws IOException {
+    if (recording.getState() == RecordingState.RUNNING) {
+      recording.stop();
+      recording.dump(dumpFile);
+    }
+    List<RecordedEvent> result = new ArrayList<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dumpFile)) {
+      if (event.getEventType().getName().equals(name)) {
+        result.add(event);
+      }
+    }
+    result.sort((a, b) -> a.getStartTime().compareTo(b.getStartTime()));
+    return result;
+  }
+}
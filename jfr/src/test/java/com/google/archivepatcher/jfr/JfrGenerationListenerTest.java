@@ -0,0 +1,129 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.jfr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.generator.GenerationListener.Phase;
+import com.google.archivepatcher.generator.GenerationStats;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JfrGenerationListener}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class JfrGenerationListenerTest {
+  private static final String PHASE_EVENT = "com.google.archivepatcher.GenerationPhase";
+  private static final String DIVINATION_EVENT = "com.google.archivepatcher.Divination";
+
+  private Recording recording = null;
+  private Path dumpFile = null;
+
+  @Before
+  public void setUp() throws IOException {
+    recording = new Recording();
+    recording.enable(PHASE_EVENT);
+    recording.enable(DIVINATION_EVENT);
+    dumpFile = Files.createTempFile("jfr-generation", ".jfr");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    recording.close();
+    Files.deleteIfExists(dumpFile);
+  }
+
+  @Test
+  public void testEventsRecorded() throws IOException {
+    GenerationStats stats = new GenerationStats();
+    JfrGenerationListener listener = new JfrGenerationListener(stats);
+    recording.start();
+    listener.onPhaseStarted(Phase.DIVINATION);
+    listener.onEntryDivined("foo", 3, true);
+    listener.onEntryDivined("bar", 37, false);
+    listener.onPhaseCompleted(Phase.DIVINATION, 10, 10, 100, 0);
+    listener.onPhaseStarted(Phase.SUFFIX_SORT);
+    listener.onSuffixArrayAllocated(4096);
+    listener.onPhaseCompleted(Phase.SUFFIX_SORT, 10, 10, 512, 0);
+
+    List<RecordedEvent> phases = readEvents(PHASE_EVENT);
+    assertThat(phases).hasSize(2);
+    assertThat(phases.get(0).getString("phase")).isEqualTo("DIVINATION");
+    assertThat(phases.get(0).getLong("bytesIn")).isEqualTo(100L);
+    assertThat(phases.get(1).getString("phase")).isEqualTo("SUFFIX_SORT");
+    assertThat(phases.get(1).getLong("bytesIn")).isEqualTo(512L);
+    assertThat(phases.get(1).getLong("suffixArrayBytes")).isEqualTo(4096L);
+
+    List<RecordedEvent> divinations = readEvents(DIVINATION_EVENT);
+    assertThat(divinations).hasSize(2);
+    assertThat(divinations.get(0).getString("entryName")).isEqualTo("foo");
+    assertThat(divinations.get(0).getInt("configurationsTried")).isEqualTo(3);
+    assertThat(divinations.get(0).getBoolean("divined")).isTrue();
+    assertThat(divinations.get(1).getString("entryName")).isEqualTo("bar");
+    assertThat(divinations.get(1).getInt("configurationsTried")).isEqualTo(37);
+    assertThat(divinations.get(1).getBoolean("divined")).isFalse();
+
+    // Everything is forwarded to the delegate as well.
+    assertThat(stats.getPhaseStats(Phase.SUFFIX_SORT).getCount()).isEqualTo(1);
+    assertThat(stats.getDivinationAttempts()).isEqualTo(40L);
+    assertThat(stats.getEntriesNotDivined()).isEqualTo(1);
+    assertThat(stats.getPeakSuffixArrayBytes()).isEqualTo(4096L);
+  }
+
+  @Test
+  public void testEventsDisabled() throws IOException {
+    recording.disable(DIVINATION_EVENT);
+    JfrGenerationListener listener = new JfrGenerationListener();
+    recording.start();
+    listener.onPhaseStarted(Phase.DIVINATION);
+    listener.onEntryDivined("foo", 3, true);
+    listener.onPhaseCompleted(Phase.DIVINATION, 10, 10, 100, 0);
+
+    assertThat(readEvents(PHASE_EVENT)).hasSize(1);
+    assertThat(readEvents(DIVINATION_EVENT)).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullDelegate() {
+    new JfrGenerationListener(null);
+  }
+
+  /** Stops the recording if necessary and returns the events with the specified name, in order. */
+  private List<RecordedEvent> readEvents(String name) throws IOException {
+    if (recording.getState() == RecordingState.RUNNING) {
+      recording.stop();
+      recording.dump(dumpFile);
+    }
+    List<RecordedEvent> result = new ArrayList<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dumpFile)) {
+      if (event.getEventType().getName().equals(name)) {
+        result.add(event);
+      }
+    }
+    result.sort((a, b) -> a.getStartTime().compareTo(b.getStartTime()));
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases the memory mapping of a {@link java.nio.MappedByteBuffer} immediately instead of
+ * waiting for the buffer to be garbage collected. The JDK offers no public API for this, so the
+ * JDK-internal cleaner is invoked reflectively: through {@code sun.misc.Unsafe.invokeCleaner} on
+ * Java 9 and later, and through {@code sun.nio.ch.DirectBuffer.cleaner()} on Java 8. On runtimes
+ * where neither is available (Android, for one) {@link #unmap(ByteBuffer)} does nothing and returns
+ * false.
+ *
+ * <p>A buffer that has been unmapped must never be accessed again, by any thread and through any
+ * duplicate or slice of it: doing so crashes the JVM. Callers are responsible for tracking that all
+ * users of a mapping are done with it before unmapping it.
+ */
+public final class BufferUnmapper {
+  /** The object to invoke {@link #CLEAN_METHOD} on, or null if it is invoked on the buffer. */
+  private static final Object UNSAFE;
+
+  /**
+   * Either {@code Unsafe.invokeCleaner(ByteBuffer)}, or {@code DirectBuffer.cleaner()}; null if
+   * unmapping is not supported.
+   */
+  private static final Method CLEAN_METHOD;
+
+  /** {@code Cleaner.clean()}, when {@link #CLEAN_METHOD} is {@code DirectBuffer.cleaner()}. */
+  private static final Method CLEANER_CLEAN_METHOD;
+
+  static {
+    Object unsafe = null;
+    Method cleanMethod = null;
+    Method cleanerCleanMethod = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+      cleanMethod = invokeCleaner;
+    } catch (ReflectiveOperationException | RuntimeException notJava9) {
+      try {
+        Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+        Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+        unsafe = null;
+        cleanMethod = cleaner;
+        cleanerCleanMethod = clean;
+      } catch (ReflectiveOperationException | RuntimeException notJava8) {
+        unsafe = null;
+        cleanMethod = null;
+      }
+    }
+    UNSAFE = unsafe;
+    CLEAN_METHOD = cleanMethod;
+    CLEANER_CLEAN_METHOD = cleanerCleanMethod;
+  }
+
+  private BufferUnmapper() {
+    // Static utility class.
+  }
+
+  /**
+   * Returns true if {@link #unmap(ByteBuffer)} can release mappings on this runtime.
+   *
+   * @return as described
+   */
+  public static boolean isSupported() {
+    return CLEAN_METHOD != null;
+  }
+
+  /**
+   * Releases the mapping of the specified buffer immediately, if supported on this runtime. The
+   * buffer, and every duplicate or slice of it, must not be used afterwards.
+   *
+   * @param buffer the buffer, which must be a mapped or otherwise direct buffer that is not itself
+   *     a duplicate or slice
+   * @return true if the mapping was released; false if unmapping is not supported or failed, in
+   *     which case the mapping is released when the buffer is garbage collected
+   */
+  public static boolean unmap(ByteBuffer buffer) {
+    if (CLEAN_METHOD == null || buffer == null || !buffer.isDirect()) {
+      return false;
+    }
+    try {
+      if (CLEANER_CLEAN_METHOD == null) {
+        CLEAN_METHOD.invoke(UNSAFE, buffer);
+      } else {
+        Object cleaner = CLEAN_METHOD.invoke(buffer);
+        if (cleaner == null) {
+          return false;
+        }
+        CLEANER_CLEAN_METHOD.invoke(cleaner);
+      }
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A table of how fast the current machine can deflate data with each set of {@link
+ * JreDeflateParameters}, in bytes of uncompressed input per second. Patch generators use the table
+ * to predict how long recompression will take when a patch is applied, so it should be measured on
+ * the devices that will apply patches (or on representative reference hardware) with {@link
+ * #calibrate()}, saved with {@link #writeTo(OutputStream)}, and read back wherever patches are
+ * generated with {@link #readFrom(InputStream)}.
+ *
+ * <p>The serialized form is UTF-8 text with one line per set of parameters, in the form
+ * <code>level strategy nowrap bytesPerSecond</code>. Blank lines and lines starting with '#' are
+ * ignored.
+ */
+public class DeflateThroughputCalibration {
+  /**
+   * The default number of timed compressions per set of parameters.
+   */
+  public static final int DEFAULT_ITERATIONS = 3;
+
+  /**
+   * The throughput for each set of parameters, in bytes per second.
+   */
+  private final Map<JreDeflateParameters, Double> bytesPerSecond;
+
+  /**
+   * Creates a table with the specified throughputs.
+   *
+   * @param bytesPerSecond the throughput for every value of {@link JreDeflateParameters}, in bytes
+   *     of uncompressed input per second; each must be positive
+   */
+  public DeflateThroughputCalibration(Map<JreDeflateParameters, Double> bytesPerSecond) {
+    EnumMap<JreDeflateParameters, Double> copy =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      Double throughput = bytesPerSecond.get(parameters);
+      if (throughput == null || !(throughput > 0) || throughput.isInfinite()) {
+        throw new IllegalArgumentException(
+            "Missing or invalid throughput for " + parameters + ": " + throughput);
+      }
+      copy.put(parameters, throughput);
+    }
+    this.bytesPerSecond = Collections.unmodifiableMap(copy);
+  }
+
+  /**
+   * Measures the throughput of this machine by compressing the corpus from {@link
+   * DefaultDeflateCompatibilityWindow#getCorpus()} {@value #DEFAULT_ITERATIONS} times with every
+   * set of parameters. This takes on the order of a second on a typical phone.
+   *
+   * @return the table
+   * @throws IOException if compression fails
+   */
+  public static DeflateThroughputCalibration calibrate() throws IOException {
+    return calibrate(new DefaultDeflateCompatibilityWindow().getCorpus(), DEFAULT_ITERATIONS);
+  }
+
+  /**
+   * Measures the throughput of this machine by compressing the specified sample with every set of
+   * parameters.
+   *
+   * @param sample the data to compress, which should be representative of the content of the
+   *     archives to be patched; tens of kilobytes are enough
+   * @param iterations the number of timed compressions per set of parameters, after one untimed
+   *     warm-up compression; the fastest is used, to reduce noise
+   * @return the table
+   * @throws IOException if compression fails
+   */
+  public static DeflateThroughputCalibration calibrate(byte[] sample, int iterations)
+      throws IOException {
+    if (sample.length == 0) {
+      throw new IllegalArgumentException("sample must not be empty");
+    }
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be >= 1: " + iterations);
+    }
+    Map<JreDeflateParameters, Double> bytesPerSecond =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    DeflateCompressor compressor = new DeflateCompressor();
+    compressor.setCaching(true);
+    try {
+      for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+        compressor.setCompressionLevel(parameters.level);
+        compressor.setStrategy(parameters.strategy);
+        compressor.setNowrap(parameters.nowrap);
+        compressor.compress(new ByteArrayInputStream(sample), new NullOutputStream());
+        long fastest = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+          long start = System.nanoTime();
+          compressor.compress(new ByteArrayInputStream(sample), new NullOutputStream());
+          fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        // Guard against timers too coarse to measure a small sample.
+        bytesPerSecond.put(parameters, sample.length * 1e9d / Math.max(fastest, 1L));
+      }
+    } finally {
+      compressor.release();
+    }
+    return new DeflateThroughputCalibration(bytesPerSecond);
+  }
+
+  /**
+   * Returns the throughput for the specified parameters.
+   * @param parameters the parameters
+   * @return the throughput, in bytes of uncompressed input per second
+   */
+  public double getBytesPerSecond(JreDeflateParameters parameters) {
+    return bytesPerSecond.get(parameters);
+  }
+
+  /**
+   * Writes the table in the serialized form described in the class documentation.
+   * @param out the stream to write to; it is flushed but not closed
+   */
+  public void writeTo(OutputStream out) {
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.print("# level strategy nowrap bytesPerSecond\n");
+    for (Map.Entry<JreDeflateParameters, Double> entry : bytesPerSecond.entrySet()) {
+      JreDeflateParameters parameters = entry.getKey();
+      writer.print(
+          parameters.level + " " + parameters.strategy + " " + parameters.nowrap + " "
+              + entry.getValue() + "\n");
+    }
+    writer.flush();
+  }
+
+  /**
+   * Reads a table in the serialized form described in the class documentation.
+   * @param in the stream to read from; it is read to the end but not closed
+   * @return the table
+   * @throws IOException if unable to read the stream or if the table is malformed or incomplete
+   */
+  public static DeflateThroughputCalibration readFrom(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    Map<JreDeflateParameters, Double> bytesPerSecond =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\s+");
+      if (fields.length != 4 || !(fields[2].equals("true") || fields[2].equals("false"))) {
+        throw new IOException("Malformed calibration line: " + line);
+      }
+      try {
+        JreDeflateParameters parameters =
+            JreDeflateParameters.of(
+                Integer.parseInt(fields[0]),
+                Integer.parseInt(fields[1]),
+                Boolean.parseBoolean(fields[2]));
+        bytesPerSecond.put(parameters, Double.parseDouble(fields[3]));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Malformed calibration line: " + line, e);
+      }
+    }
+    try {
+      return new DeflateThroughputCalibration(bytesPerSecond);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Incomplete calibration", e);
+    }
+  }
+}
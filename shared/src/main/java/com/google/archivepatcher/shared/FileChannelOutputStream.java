@@ -0,0 +1,228 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link OutputStream} that writes serially to a file through a {@link FileChannel}, staging
+ * bytes in a large direct buffer so that the many small writes typical of patch application are
+ * turned into few large write calls. The file can optionally be pre-allocated to its expected size
+ * and synced to the backing storage exactly once, when the stream is closed.
+ *
+ * <p>Unlike {@link RandomAccessFileOutputStream}, {@link #flush()} only drains the staging buffer
+ * into the channel; it does not force the data to the backing storage.
+ */
+public class FileChannelOutputStream extends OutputStream {
+  /**
+   * The default size of the direct buffer used to stage writes.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The backing {@link RandomAccessFile}.
+   */
+  private final RandomAccessFile raf;
+
+  /**
+   * The channel of {@link #raf}, to which all writes are performed.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The direct buffer used to stage writes.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * Whether or not to force the data to the backing storage when the stream is closed.
+   */
+  private final boolean syncOnClose;
+
+  /**
+   * Used when writing one byte at a time.
+   */
+  private final byte[] internalCopyBuffer = new byte[1];
+
+  /**
+   * The number of bytes written so far.
+   */
+  private long numBytesWritten = 0;
+
+  private boolean closed = false;
+
+  /**
+   * Constructs a new instance that will immediately open the specified file for writing, discarding
+   * any existing content, and pre-allocate it to the specified size.
+   *
+   * @param outputFile the file to write
+   * @param expectedSize if greater than or equal to zero, the size to set the file to immediately;
+   *     otherwise, the file grows as data is written. If the number of bytes actually written
+   *     differs from the expected size, the file is truncated to the number of bytes written when
+   *     the stream is closed.
+   * @param bufferSize the size of the direct buffer to stage writes in; must be greater than zero
+   * @param syncOnClose if true, force all data to the backing storage when the stream is closed
+   * @throws IOException if unable to open the file for writing or set the size
+   */
+  public FileChannelOutputStream(
+      File outputFile, long expectedSize, int bufferSize, boolean syncOnClose)
+      throws IOException {
+    this(outputFile, expectedSize, 0, bufferSize, syncOnClose);
+  }
+
+  /**
+   * Constructs a new instance that will immediately open the specified file for writing, keeping
+   * the first resumeAt bytes of any existing content and discarding the rest, and continue writing
+   * at that position. This is used to resume writing a file from a point at which it was known to
+   * be intact (see {@link #sync()}).
+   *
+   * @param outputFile the file to write
+   * @param expectedSize if greater than resumeAt, the size to set the file to immediately;
+   *     otherwise, the file grows as data is written. If the number of bytes actually written
+   *     (including the resumeAt bytes kept) differs from the expected size, the file is truncated
+   *     to the number of bytes written when the stream is closed.
+   * @param resumeAt the number of bytes of existing content to keep; must be no larger than the
+   *     current size of the file
+   * @param bufferSize the size of the direct buffer to stage writes in; must be greater than zero
+   * @param syncOnClose if true, force all data to the backing storage when the stream is closed
+   * @throws IOException if unable to open the file for writing or set the size, or if the file is
+   *     shorter than resumeAt
+   */
+  public FileChannelOutputStream(
+      File outputFile, long expectedSize, long resumeAt, int bufferSize, boolean syncOnClose)
+      throws IOException {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be > 0: " + bufferSize);
+    }
+    if (resumeAt < 0) {
+      throw new IllegalArgumentException("resumeAt must be >= 0: " + resumeAt);
+    }
+    this.raf = new RandomAccessFile(outputFile, "rw");
+    this.channel = raf.getChannel();
+    this.syncOnClose = syncOnClose;
+    try {
+      if (channel.size() < resumeAt) {
+        throw new IOException("Unable to resume at " + resumeAt + ", file is too short");
+      }
+      channel.truncate(resumeAt);
+      if (expectedSize > resumeAt) {
+        raf.setLength(expectedSize);
+        if (raf.length() != expectedSize) {
+          throw new IOException("Unable to set the file size");
+        }
+      }
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    this.numBytesWritten = resumeAt;
+  }
+
+  /**
+   * Returns the number of bytes written to this stream so far.
+   * @return as described
+   */
+  public long getNumBytesWritten() {
+    return numBytesWritten;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    internalCopyBuffer[0] = (byte) b;
+    write(internalCopyBuffer, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int numToCopy = Math.min(len, buffer.remaining());
+      buffer.put(b, off, numToCopy);
+      off += numToCopy;
+      len -= numToCopy;
+      numBytesWritten += numToCopy;
+      if (!buffer.hasRemaining()) {
+        drainBuffer();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    drainBuffer();
+  }
+
+  /**
+   * Drains the staging buffer and forces all data written so far to the backing storage, so that
+   * the file can later be resumed from {@link #getNumBytesWritten()}.
+   * @throws IOException if the write or sync fails
+   */
+  public void sync() throws IOException {
+    ensureOpen();
+    drainBuffer();
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      drainBuffer();
+      if (channel.size() != numBytesWritten) {
+        channel.truncate(numBytesWritten);
+      }
+      if (syncOnClose) {
+        channel.force(true);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes all of the bytes currently staged in {@link #buffer} to the channel at the current write
+   * position.
+   * @throws IOException if the write fails
+   */
+  private void drainBuffer() throws IOException {
+    buffer.flip();
+    long position = numBytesWritten - buffer.remaining();
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+    buffer.clear();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("stream closed");
+    }
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream that discards everything written to it. Combined with a {@link CountingOutputStream},
+ * this measures the size of some output without storing it.
+ */
+public class NullOutputStream extends OutputStream {
+  @Override
+  public void write(int b) throws IOException {
+    // Nothing.
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    // Nothing.
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    // Nothing.
+  }
+}
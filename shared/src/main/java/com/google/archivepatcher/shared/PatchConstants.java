@@ -32,6 +32,66 @@ public class PatchConstants {
   // TODO: Get gradle to work with JNI
   public static final boolean USE_NATIVE_BSDIFF_BY_DEFAULT = false;
 
+  /**
+   * The {@link java.security.MessageDigest} algorithm used for the new file digest recorded with
+   * {@link PatchFlag#NEW_FILE_DIGEST}.
+   */
+  public static final String NEW_FILE_DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * The length, in bytes, of the new file digest recorded with {@link PatchFlag#NEW_FILE_DIGEST}.
+   */
+  public static final int NEW_FILE_DIGEST_LENGTH = 32;
+
+  /**
+   * Optional features that can be enabled in the flags field of the patch header. The {@link
+   * #mask} field specifies the bit that represents each constant in a patch file. Patches that set
+   * any of these bits can only be read by appliers that understand them.
+   */
+  public enum PatchFlag {
+    /**
+     * The size of the new file is recorded as a long immediately after the delta-friendly old file
+     * size, allowing the applier to reserve space for the output before writing it.
+     */
+    NEW_FILE_SIZE(0x1),
+
+    /**
+     * A digest of the new file, computed with {@link #NEW_FILE_DIGEST_ALGORITHM}, is recorded
+     * immediately after the new file size (or the delta-friendly old file size, if the new file
+     * size is not recorded), allowing the applier to verify its output without re-reading it.
+     */
+    NEW_FILE_DIGEST(0x2),
+
+    /**
+     * The CRC32 of the uncompressed data in each delta-friendly new file recompression range is
+     * recorded as an int at the end of the corresponding recompression instruction, allowing the
+     * applier to verify each range before it is recompressed.
+     */
+    RECOMPRESSION_CRC32(0x4);
+
+    /**
+     * The bit that represents this enumerated constant in the flags field of patch files.
+     */
+    public final int mask;
+
+    /** Construct a new enumerated constant with the specified bit in patch files. */
+    PatchFlag(int mask) {
+      this.mask = mask;
+    }
+
+    /**
+     * Returns the bitwise OR of the masks of all the known flags.
+     * @return as described
+     */
+    public static int allMasks() {
+      int result = 0;
+      for (PatchFlag flag : values()) {
+        result |= flag.mask;
+      }
+      return result;
+    }
+  }
+
   /**
    * All available compatibility windows. The {@link #patchValue} field specifies the value for each
    * constant as represented in a patch file.
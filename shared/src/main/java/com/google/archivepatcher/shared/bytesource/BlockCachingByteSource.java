@@ -0,0 +1,290 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ByteSource} that caches fixed-size, aligned blocks of another {@link ByteSource}, so
+ * that regions read over and over through fresh streams are only read from the underlying source
+ * once. This helps most when the underlying source issues a system call per read, like {@link
+ * FileChannelByteSource} or {@link RandomAccessFileByteSource}.
+ *
+ * <p>The number of cached blocks is bounded. When the cache is full a block is evicted with the
+ * CLOCK algorithm, an approximation of least-recently-used eviction in which cache hits only set a
+ * flag and therefore do not need a lock. Misses are serialized only while the block is inserted,
+ * not while it is read. Blocks can be stored off-heap in direct buffers.
+ *
+ * <p>This source is thread-safe if the underlying source is. Closing it closes the underlying
+ * source.
+ */
+public class BlockCachingByteSource extends ByteSource {
+  /** The default size of each block, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /** The maximum number of blocks cached, regardless of the configured size. */
+  private static final long MAX_NUM_BLOCKS = 1 << 20;
+
+  private final ByteSource source;
+  private final int blockSize;
+  private final boolean offHeap;
+
+  /** The cached blocks, by block index. */
+  private final ConcurrentHashMap<Long, Block> blocks;
+
+  /** The CLOCK ring of cached blocks; guarded by itself, as is {@link #clockHand}. */
+  private final Block[] clock;
+
+  private int clockHand = 0;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a new source caching blocks of the specified source.
+   *
+   * @param source the source to cache
+   * @param blockSize the size of each block, in bytes
+   * @param maxCachedBytes the maximum total size of the cached blocks, in bytes; at least one block
+   *     is always cached
+   * @param offHeap if true, store blocks in direct buffers instead of on the Java heap
+   */
+  public BlockCachingByteSource(
+      ByteSource source, int blockSize, long maxCachedBytes, boolean offHeap) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("blockSize must be > 0: " + blockSize);
+    }
+    if (maxCachedBytes < 0) {
+      throw new IllegalArgumentException("maxCachedBytes must be non-negative: " + maxCachedBytes);
+    }
+    this.source = source;
+    this.blockSize = blockSize;
+    this.offHeap = offHeap;
+    long numBlocksInSource = (source.length() + blockSize - 1) / blockSize;
+    long maxBlocks = Math.min(maxCachedBytes / blockSize, numBlocksInSource);
+    // Bound the ring so that a huge limit does not allocate a huge array up front.
+    maxBlocks = Math.max(1, Math.min(maxBlocks, MAX_NUM_BLOCKS));
+    this.clock = new Block[(int) maxBlocks];
+    this.blocks = new ConcurrentHashMap<Long, Block>((int) maxBlocks * 2);
+  }
+
+  @Override
+  public long length() {
+    return source.length();
+  }
+
+  /** Unlike the default implementation this is not synchronized, as no state is shared. */
+  @Override
+  public InputStream openStream() throws IOException {
+    return openStream(0, length());
+  }
+
+  @Override
+  protected InputStream openStream(long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > length()) {
+      throw new IllegalArgumentException(
+          "Specified offset and length would read out of the bounds of the source.");
+    }
+    return new BlockInputStream(offset, offset + length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (clock) {
+      blocks.clear();
+      for (int index = 0; index < clock.length; index++) {
+        clock[index] = null;
+      }
+    }
+    source.close();
+  }
+
+  /**
+   * Returns the number of block reads served from the cache.
+   *
+   * @return as described
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of block reads that had to read the underlying source.
+   *
+   * @return as described
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the specified block, reading it from the underlying source if it is not cached.
+   *
+   * @param blockIndex the index of the block
+   * @return the block
+   * @throws IOException if unable to read the block
+   */
+  private Block getBlock(long blockIndex) throws IOException {
+    Block block = blocks.get(blockIndex);
+    if (block != null) {
+      block.referenced = true;
+      hitCount.incrementAndGet();
+      return block;
+    }
+    missCount.incrementAndGet();
+    // Concurrent misses on the same block may both read it; only one copy is cached.
+    block = readBlock(blockIndex);
+    synchronized (clock) {
+      Block existing = blocks.get(blockIndex);
+      if (existing != null) {
+        return existing;
+      }
+      while (clock[clockHand] != null && clock[clockHand].referenced) {
+        clock[clockHand].referenced = false;
+        clockHand = (clockHand + 1) % clock.length;
+      }
+      if (clock[clockHand] != null) {
+        blocks.remove(clock[clockHand].index);
+      }
+      clock[clockHand] = block;
+      clockHand = (clockHand + 1) % clock.length;
+      blocks.put(blockIndex, block);
+    }
+    return block;
+  }
+
+  private Block readBlock(long blockIndex) throws IOException {
+    long start = blockIndex * blockSize;
+    int size = (int) Math.min(blockSize, length() - start);
+    byte[] bytes = new byte[size];
+    try (InputStream in = source.openStream(start, size)) {
+      int numRead = 0;
+      while (numRead < size) {
+        int count = in.read(bytes, numRead, size - numRead);
+        if (count < 0) {
+          throw new IOException("Unexpected end of source at " + (start + numRead));
+        }
+        numRead += count;
+      }
+    }
+    ByteBuffer data;
+    if (offHeap) {
+      data = ByteBuffer.allocateDirect(size);
+      data.put(bytes);
+      data.flip();
+    } else {
+      data = ByteBuffer.wrap(bytes);
+    }
+    return new Block(blockIndex, data.asReadOnlyBuffer());
+  }
+
+  /** A cached block. */
+  private static final class Block {
+    private final long index;
+    private final ByteBuffer data;
+
+    /** Set on every hit and cleared as the clock hand passes; a hint, so not synchronized. */
+    private volatile boolean referenced = false;
+
+    Block(long index, ByteBuffer data) {
+      this.index = index;
+      this.data = data;
+    }
+  }
+
+  /** A stream over a range of the source with its own position. Not thread-safe itself. */
+  private class BlockInputStream extends InputStream {
+    private final long readLimit;
+    private long nextReadPos;
+    private Block block = null;
+    // A duplicate of the block's data, so that this stream has a position of its own.
+    private ByteBuffer view = null;
+    private boolean streamClosed = false;
+
+    BlockInputStream(long offset, long readLimit) {
+      this.nextReadPos = offset;
+      this.readLimit = readLimit;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(readLimit - nextReadPos, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (nextReadPos >= readLimit) {
+        return -1;
+      }
+      seekToNextReadPos();
+      ++nextReadPos;
+      return view.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (nextReadPos >= readLimit) {
+        return -1;
+      }
+      int totalRead = 0;
+      while (len > 0 && nextReadPos < readLimit) {
+        seekToNextReadPos();
+        int numToRead = (int) Math.min(Math.min(len, view.remaining()), readLimit - nextReadPos);
+        view.get(b, off, numToRead);
+        nextReadPos += numToRead;
+        off += numToRead;
+        len -= numToRead;
+        totalRead += numToRead;
+      }
+      return totalRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      long skipped = Math.min(n, readLimit - nextReadPos);
+      nextReadPos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() {
+      streamClosed = true;
+      block = null;
+      view = null;
+    }
+
+    /** Positions {@link #view} at {@link #nextReadPos}, switching blocks if necessary. */
+    private void seekToNextReadPos() throws IOException {
+      if (streamClosed) {
+        throw new IOException("stream closed");
+      }
+      long blockIndex = nextReadPos / blockSize;
+      if (block == null || block.index != blockIndex) {
+        block = getBlock(blockIndex);
+        view = block.data.duplicate();
+      }
+      view.position((int) (nextReadPos - blockIndex * blockSize));
+    }
+  }
+}
@@ -23,19 +23,35 @@ import java.util.Arrays;
 public class ByteArrayByteSource extends ByteSource {
 
   private final byte[] buffer;
+  private final int offset;
+  private final int length;
 
   public ByteArrayByteSource(byte[] buffer) {
-    this.buffer = Arrays.copyOf(buffer, buffer.length);
+    this(Arrays.copyOf(buffer, buffer.length), 0, buffer.length);
+  }
+
+  /**
+   * Creates a source of a range of the specified buffer, which is not copied; see {@link
+   * ByteSource#wrap(byte[], int, int)}.
+   */
+  ByteArrayByteSource(byte[] buffer, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > buffer.length - length) {
+      throw new IndexOutOfBoundsException(
+          "offset " + offset + " and length " + length + " out of range: " + buffer.length);
+    }
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
   }
 
   @Override
   public long length() {
-    return buffer.length;
+    return length;
   }
 
   @Override
   protected InputStream openStream(long offset, long length) throws IOException {
-    return new ByteArrayInputStream(buffer, (int) offset, (int) length);
+    return new ByteArrayInputStream(buffer, this.offset + (int) offset, (int) length);
   }
 
   @Override
@@ -50,13 +50,24 @@ public abstract class ByteSource implements Closeable {
    */
   protected abstract InputStream openStream(long offset, long length) throws IOException;
 
-  /** Convenience method to obtain a {@link ByteSource} from a {@link File}. */
+  /**
+   * Convenience method to obtain a {@link ByteSource} from a {@link File}. Streams of the returned
+   * source can be read concurrently from different threads.
+   */
   public static ByteSource fromFile(File file) throws IOException {
-    return new RandomAccessFileByteSource(file);
+    return new FileChannelByteSource(file);
   }
 
   /** Convenience method to obtain a {@link ByteSource} from a byte array. */
   public static ByteSource wrap(byte[] buffer) {
     return new ByteArrayByteSource(buffer);
   }
+
+  /**
+   * Obtains a {@link ByteSource} of a range of a byte array without copying it, for callers that
+   * reuse large buffers. The range must not be modified while the source is in use.
+   */
+  public static ByteSource wrap(byte[] buffer, int offset, int length) {
+    return new ByteArrayByteSource(buffer, offset, length);
+  }
 }
@@ -0,0 +1,216 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ByteSource} backed by a single {@link FileChannel} that is shared by all streams. Each
+ * stream keeps its own position and reads with {@link FileChannel#read(ByteBuffer, long)}, which
+ * does not use or modify the position of the channel, so any number of threads can read the same
+ * file concurrently without locking and without opening additional file descriptors.
+ *
+ * <p>A {@link FileChannel} is closed when a thread blocked in it is interrupted. The thread that
+ * was interrupted gets an {@link InterruptedIOException}, and the channel is transparently reopened
+ * for everyone else.
+ */
+public class FileChannelByteSource extends ByteSource {
+
+  private final File file;
+  private final long length;
+
+  /** The shared channel, replaced if it is closed by an interrupt. */
+  private volatile FileChannel channel;
+
+  private volatile boolean closed = false;
+
+  public FileChannelByteSource(File file) throws IOException {
+    this.file = file;
+    this.channel = openChannel(file);
+    this.length = channel.size();
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /** Unlike the default implementation this is not synchronized, as no state is shared. */
+  @Override
+  public InputStream openStream() throws IOException {
+    return openStream(0, length);
+  }
+
+  @Override
+  protected InputStream openStream(long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > this.length) {
+      throw new IllegalArgumentException(
+          "Specified offset and length would read out of the bounds of the file.");
+    }
+    ensureOpen();
+    return new PositionalInputStream(offset, offset + length);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  /**
+   * Getter for the underlying file for cases where we absolutely needs it, e.g., passing file name
+   * to native API.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Reads bytes at the specified position of the file.
+   *
+   * @param buffer the buffer to read into
+   * @param position the position of the file to read from
+   * @return the number of bytes read, or -1 at the end of the file
+   * @throws IOException if the read fails or this source is closed
+   */
+  private int read(ByteBuffer buffer, long position) throws IOException {
+    while (true) {
+      FileChannel current = channel;
+      try {
+        return current.read(buffer, position);
+      } catch (ClosedChannelException e) {
+        ensureOpen();
+        if (Thread.interrupted()) {
+          // This thread's interrupt closed the channel. Preserve the interrupt for the caller.
+          Thread.currentThread().interrupt();
+          reopen(current);
+          InterruptedIOException interrupted = new InterruptedIOException();
+          interrupted.initCause(e);
+          throw interrupted;
+        }
+        // Another thread's interrupt closed the channel; retry with a fresh one.
+        reopen(current);
+      }
+    }
+  }
+
+  /**
+   * Replaces the channel if it is still the specified, closed, channel.
+   *
+   * @param closedChannel the channel found to be closed
+   * @throws IOException if this source is closed or the file cannot be opened
+   */
+  private synchronized void reopen(FileChannel closedChannel) throws IOException {
+    ensureOpen();
+    if (channel == closedChannel) {
+      channel = openChannel(file);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("FileChannelByteSource is closed");
+    }
+  }
+
+  @SuppressWarnings("resource") // Closing the channel closes the file
+  private static FileChannel openChannel(File file) throws IOException {
+    return new RandomAccessFile(file, "r").getChannel();
+  }
+
+  /** A stream over a range of the file with its own position. Not thread-safe itself. */
+  private class PositionalInputStream extends InputStream {
+    private final long readLimit;
+    private long nextReadPos;
+    private ByteBuffer singleByteBuffer = null;
+    private boolean streamClosed = false;
+
+    PositionalInputStream(long offset, long readLimit) {
+      this.nextReadPos = offset;
+      this.readLimit = readLimit;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(readLimit - nextReadPos, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (singleByteBuffer == null) {
+        singleByteBuffer = ByteBuffer.allocate(1);
+      }
+      singleByteBuffer.clear();
+      if (read(singleByteBuffer) < 0) {
+        return -1;
+      }
+      return singleByteBuffer.get(0) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    /** Fills as much of the buffer as the range allows, returning -1 at the end of the range. */
+    private int read(ByteBuffer buffer) throws IOException {
+      if (streamClosed) {
+        throw new IOException("stream closed");
+      }
+      if (nextReadPos >= readLimit) {
+        return -1;
+      }
+      long remaining = readLimit - nextReadPos;
+      if (buffer.remaining() > remaining) {
+        buffer.limit(buffer.position() + (int) remaining);
+      }
+      int totalRead = 0;
+      while (buffer.hasRemaining()) {
+        int numRead = FileChannelByteSource.this.read(buffer, nextReadPos);
+        if (numRead < 0) {
+          // The file was truncated underneath us.
+          break;
+        }
+        nextReadPos += numRead;
+        totalRead += numRead;
+      }
+      return totalRead == 0 ? -1 : totalRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      long skipped = Math.min(n, readLimit - nextReadPos);
+      nextReadPos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() {
+      streamClosed = true;
+    }
+  }
+}
@@ -11,115 +11,256 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package com.google.archivepatcher.shared.bytesource;
 
+import com.google.archivepatcher.shared.BufferUnmapper;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
-/** A {@link ByteSource} backed by a memory mapped file. */
+/**
+ * A {@link ByteSource} backed by a memory mapped file. The file is mapped lazily in fixed-size
+ * chunks, so files of any size are supported, and reads may span chunk boundaries. Streams do not
+ * share any position, so different streams may be read from different threads.
+ *
+ * <p>Each chunk is reference counted by the streams currently reading from it. Chunks that are not
+ * being read stay mapped for reuse, up to a limit, beyond which the least recently used one is
+ * released. Released chunks are unmapped immediately where {@link BufferUnmapper} supports it, and
+ * are otherwise left to the garbage collector; garbage collection is never forced. Closing this
+ * source releases every chunk that is not being read, and the remaining ones are released as soon
+ * as the last stream reading from them is closed, so streams must always be closed.
+ */
 public class MmapByteSource extends ByteSource {
+  /** The default size of each mapped chunk, in bytes. */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+  /** The default number of chunks that stay mapped when no stream is reading from them. */
+  public static final int DEFAULT_MAX_IDLE_CHUNKS = 4;
+
   private final RandomAccessFile raf;
-  private ByteBuffer byteBuffer;
+  private final FileChannel channel;
+  private final long length;
+  private final int chunkSize;
+  private final int maxIdleChunks;
+
+  /** All chunks of the file, mapped or not. */
+  private final Chunk[] chunks;
+
+  /** The chunks that are mapped but not being read, in least-recently-used order. */
+  private final LinkedHashMap<Integer, Chunk> idleChunks =
+      new LinkedHashMap<Integer, Chunk>(16, 0.75f, true);
+
+  private boolean closed = false;
 
   public MmapByteSource(File file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IDLE_CHUNKS);
+  }
+
+  /**
+   * Creates a new source for the specified file. No part of the file is mapped until it is read.
+   *
+   * @param file the file to read
+   * @param chunkSize the size of each mapped chunk, in bytes
+   * @param maxIdleChunks the maximum number of chunks that stay mapped when no stream is reading
+   *     from them; zero releases each chunk as soon as it is no longer being read
+   * @throws IOException if unable to open the file
+   */
+  public MmapByteSource(File file, int chunkSize, int maxIdleChunks) throws IOException {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+    }
+    if (maxIdleChunks < 0) {
+      throw new IllegalArgumentException("maxIdleChunks must be non-negative: " + maxIdleChunks);
+    }
     this.raf = new RandomAccessFile(file, "r");
-    long length = file.length();
-    if (length > Integer.MAX_VALUE) {
-      throw new IllegalArgumentException(
-          "RandomAccessMmapObject only supports file sizes up to " + "Integer.MAX_VALUE.");
+    this.channel = raf.getChannel();
+    this.length = raf.length();
+    this.chunkSize = chunkSize;
+    this.maxIdleChunks = maxIdleChunks;
+    long numChunks = (length + chunkSize - 1) / chunkSize;
+    if (numChunks > Integer.MAX_VALUE) {
+      raf.close();
+      throw new IllegalArgumentException("chunkSize too small for file length: " + chunkSize);
+    }
+    this.chunks = new Chunk[(int) numChunks];
+    for (int index = 0; index < chunks.length; index++) {
+      long start = (long) index * chunkSize;
+      chunks[index] = new Chunk(index, start, (int) Math.min(chunkSize, length - start));
     }
-    this.byteBuffer = raf.getChannel().map(MapMode.READ_ONLY, 0, (int) length);
   }
 
   @Override
   public long length() {
-    return byteBuffer.capacity();
+    return length;
   }
 
-  /**
-   * Note that this method is not thread safe since all streams will be sharing the same ByteBuffer.
-   */
   @Override
   protected InputStream openStream(long offset, long length) throws IOException {
-    if (offset + length > length()) {
+    if (offset < 0 || length < 0 || offset + length > length()) {
       throw new IllegalArgumentException(
-          "Specified offset and length would read out of the bounds of the mapped byte buffer.");
+          "Specified offset and length would read out of the bounds of the mapped file.");
+    }
+    synchronized (this) {
+      ensureOpen();
     }
-    return new ByteBufferInputStream(byteBuffer, (int) offset, (int) length);
+    return new ChunkedInputStream(offset, offset + length);
   }
 
   @Override
-  public void close() throws IOException {
-    raf.close();
-
-    // There is a long-standing bug with memory mapped objects in Java that requires the JVM to
-    // finalize the MappedByteBuffer reference before the unmap operation is performed. This leaks
-    // file handles and fills the virtual address space. Worse, on some systems (Windows for one)
-    // the active mmap prevents the temp file from being deleted - even if File.deleteOnExit() is
-    // used. The only safe way to ensure that file handles and actual files are not leaked by this
-    // class is to force an explicit full gc after explicitly nulling the MappedByteBuffer
-    // reference. This has to be done before attempting file deletion.
-    //
-    // See https://github.com/andrewhayden/archive-patcher/issues/5 for more information.
-    // Also http://bugs.java.com/view_bug.do?bug_id=6417205.
-
-    byteBuffer = null;
-    System.gc();
-    System.runFinalization();
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      raf.close();
+    } finally {
+      for (Chunk chunk : idleChunks.values()) {
+        chunk.unmap();
+      }
+      idleChunks.clear();
+    }
   }
 
-  private static class ByteBufferInputStream extends InputStream {
-    private final ByteBuffer buffer;
-    private final int readLimit;
-    // Position of next read. We cannot rely on internal state of the byte buffer since it will be
-    // shared across multiple streams
-    private int nextReadPos;
+  /**
+   * Returns the number of chunks that are currently mapped, whether or not they are being read.
+   *
+   * @return as described
+   */
+  synchronized int getNumMappedChunks() {
+    int count = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk.buffer != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Maps the specified chunk if necessary and adds a reference to it.
+   *
+   * @param index the index of the chunk
+   * @return the chunk
+   * @throws IOException if this source is closed or the chunk cannot be mapped
+   */
+  private synchronized Chunk acquire(int index) throws IOException {
+    ensureOpen();
+    Chunk chunk = chunks[index];
+    if (chunk.buffer == null) {
+      chunk.buffer = channel.map(MapMode.READ_ONLY, chunk.start, chunk.size);
+    }
+    idleChunks.remove(index);
+    chunk.refCount++;
+    return chunk;
+  }
 
-    public ByteBufferInputStream(ByteBuffer buffer, int offset, int length) {
-      this.buffer = buffer;
+  /**
+   * Removes a reference to the specified chunk, releasing chunks as necessary.
+   *
+   * @param chunk the chunk
+   */
+  private synchronized void release(Chunk chunk) {
+    chunk.refCount--;
+    if (chunk.refCount > 0) {
+      return;
+    }
+    if (closed) {
+      chunk.unmap();
+      return;
+    }
+    idleChunks.put(chunk.index, chunk);
+    Iterator<Chunk> iterator = idleChunks.values().iterator();
+    while (idleChunks.size() > maxIdleChunks) {
+      iterator.next().unmap();
+      iterator.remove();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("MmapByteSource is closed");
+    }
+  }
+
+  /** A fixed-size region of the file. Everything except the bounds is guarded by the source. */
+  private static final class Chunk {
+    private final int index;
+    private final long start;
+    private final int size;
+    private MappedByteBuffer buffer = null;
+    private int refCount = 0;
+
+    Chunk(int index, long start, int size) {
+      this.index = index;
+      this.start = start;
+      this.size = size;
+    }
+
+    /** Releases the mapping, which must not be in use. */
+    void unmap() {
+      // Without explicit unmapping the mapping is released when the buffer is garbage collected.
+      BufferUnmapper.unmap(buffer);
+      buffer = null;
+    }
+  }
+
+  /** Reads a range of the file, holding a reference to the chunk currently being read. */
+  private class ChunkedInputStream extends InputStream {
+    private final long readLimit;
+    private long nextReadPos;
+    private Chunk chunk = null;
+    // A duplicate of the chunk's buffer, so that this stream has a position of its own.
+    private ByteBuffer buffer = null;
+    private boolean streamClosed = false;
+
+    ChunkedInputStream(long offset, long readLimit) {
       this.nextReadPos = offset;
-      this.readLimit = offset + length;
+      this.readLimit = readLimit;
     }
 
     @Override
     public int available() throws IOException {
-      return readLimit - nextReadPos;
+      return (int) Math.min(readLimit - nextReadPos, Integer.MAX_VALUE);
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-      if (endOfStream()) {
+      if (len == 0) {
+        return 0;
+      }
+      if (nextReadPos >= readLimit) {
         return -1;
       }
-      buffer.position(nextReadPos);
-
-      // Default behaviour for ByteBuffer when not enough data can be read is to through an
-      // Exception. Expected behaviour of an InputStream is to read as much as possible.
-      int remaining = readLimit - nextReadPos;
-      if (len > remaining) {
-        len = remaining;
+      // Fill as much of the request as possible, crossing chunk boundaries as needed.
+      int totalRead = 0;
+      while (len > 0 && nextReadPos < readLimit) {
+        seekToNextReadPos();
+        int numToRead = (int) Math.min(Math.min(len, buffer.remaining()), readLimit - nextReadPos);
+        buffer.get(b, off, numToRead);
+        nextReadPos += numToRead;
+        off += numToRead;
+        len -= numToRead;
+        totalRead += numToRead;
       }
-
-      buffer.get(b, off, len);
-      nextReadPos += len;
-      return len;
+      return totalRead;
     }
 
     @Override
     public int read() throws IOException {
-      if (endOfStream()) {
+      if (nextReadPos >= readLimit) {
         return -1;
       }
-      buffer.position(nextReadPos);
-
-      // InputStream.read() expects an unsigned byte. ByteBuffer.get() returns a signed one. Hence
-      // we need to convert it to unsigned.
+      seekToNextReadPos();
       ++nextReadPos;
+      // InputStream.read() expects an unsigned byte. ByteBuffer.get() returns a signed one.
       return buffer.get() & 0xff;
     }
 
@@ -128,19 +269,39 @@ public class MmapByteSource extends ByteSource {
       if (n <= 0) {
         return 0;
       }
+      long skipped = Math.min(n, readLimit - nextReadPos);
+      nextReadPos += skipped;
+      return skipped;
+    }
 
-      int remaining = readLimit - nextReadPos;
-      if (n > remaining) {
-        nextReadPos = readLimit;
-        return remaining;
-      } else {
-        nextReadPos += (int)n;
-        return n;
+    @Override
+    public void close() throws IOException {
+      if (!streamClosed) {
+        streamClosed = true;
+        releaseChunk();
       }
     }
 
-    private boolean endOfStream() {
-      return nextReadPos >= readLimit;
+    /** Positions {@link #buffer} at {@link #nextReadPos}, switching chunks if necessary. */
+    private void seekToNextReadPos() throws IOException {
+      if (streamClosed) {
+        throw new IOException("stream closed");
+      }
+      int index = (int) (nextReadPos / chunkSize);
+      if (chunk == null || chunk.index != index) {
+        releaseChunk();
+        chunk = acquire(index);
+        buffer = chunk.buffer.duplicate();
+      }
+      buffer.position((int) (nextReadPos - chunk.start));
+    }
+
+    private void releaseChunk() {
+      if (chunk != null) {
+        buffer = null;
+        release(chunk);
+        chunk = null;
+      }
     }
   }
 }
@@ -0,0 +1,69 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BufferUnmapper}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BufferUnmapperTest {
+  private File tempFile = null;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFile = File.createTempFile("buffer-unmapper-test", "tmp");
+    tempFile.deleteOnExit();
+  }
+
+  @After
+  public void tearDown() {
+    tempFile.delete();
+  }
+
+  @Test
+  public void testUnmap() throws Exception {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+      buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, 16);
+    }
+    buffer.put(0, (byte) 7);
+    assertThat(BufferUnmapper.unmap(buffer)).isEqualTo(BufferUnmapper.isSupported());
+    // The data written through the mapping reaches the file either way.
+    try (RandomAccessFile raf = new RandomAccessFile(tempFile, "r")) {
+      assertThat(raf.read()).isEqualTo(7);
+    }
+  }
+
+  @Test
+  public void testUnmap_HeapBuffer() {
+    assertThat(BufferUnmapper.unmap(ByteBuffer.allocate(16))).isFalse();
+  }
+
+  @Test
+  public void testUnmap_Null() {
+    assertThat(BufferUnmapper.unmap(null)).isFalse();
+  }
+}
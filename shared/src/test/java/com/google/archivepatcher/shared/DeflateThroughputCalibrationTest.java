@@ -0,0 +1,87 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DeflateThroughputCalibration}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeflateThroughputCalibrationTest {
+
+  private static Map<JreDeflateParameters, Double> throughputsByLevel() {
+    Map<JreDeflateParameters, Double> throughputs =
+        new EnumMap<JreDeflateParameters, Double>(JreDeflateParameters.class);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      throughputs.put(parameters, 1000000d / parameters.level);
+    }
+    return throughputs;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_Incomplete() {
+    Map<JreDeflateParameters, Double> throughputs = throughputsByLevel();
+    throughputs.remove(JreDeflateParameters.of(1, 2, false));
+    new DeflateThroughputCalibration(throughputs);
+  }
+
+  @Test
+  public void testCalibrate() throws IOException {
+    DeflateThroughputCalibration calibration =
+        DeflateThroughputCalibration.calibrate(
+            new DefaultDeflateCompatibilityWindow().getCorpus(), 1);
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      assertThat(calibration.getBytesPerSecond(parameters)).isGreaterThan(0d);
+    }
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    DeflateThroughputCalibration calibration =
+        new DeflateThroughputCalibration(throughputsByLevel());
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    calibration.writeTo(buffer);
+    DeflateThroughputCalibration read =
+        DeflateThroughputCalibration.readFrom(new ByteArrayInputStream(buffer.toByteArray()));
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      assertThat(read.getBytesPerSecond(parameters))
+          .isEqualTo(calibration.getBytesPerSecond(parameters));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testRead_Incomplete() throws IOException {
+    DeflateThroughputCalibration.readFrom(
+        new ByteArrayInputStream("6 0 true 1000\n".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testRead_Malformed() throws IOException {
+    DeflateThroughputCalibration.readFrom(
+        new ByteArrayInputStream("6 0 maybe 1000\n".getBytes(StandardCharsets.UTF_8)));
+  }
+}
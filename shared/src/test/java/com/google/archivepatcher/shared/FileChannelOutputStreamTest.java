@@ -0,0 +1,157 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileChannelOutputStream}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class FileChannelOutputStreamTest {
+  /**
+   * The object under test.
+   */
+  private FileChannelOutputStream stream = null;
+
+  /**
+   * Test data written to the file.
+   */
+  private byte[] testData = null;
+
+  /**
+   * The temp file.
+   */
+  private File tempFile = null;
+
+  @Before
+  public void setup() throws IOException {
+    testData = new byte[128];
+    for (int x = 0; x < 128; x++) {
+      testData[x] = (byte) x;
+    }
+    tempFile = File.createTempFile("fc-fost", "tmp");
+    tempFile.deleteOnExit();
+  }
+
+  @After
+  public void tearDown() {
+    try {
+      stream.close();
+    } catch (Exception ignored) {
+      // Nothing to do
+    }
+    try {
+      tempFile.delete();
+    } catch (Exception ignored) {
+      // Nothing to do
+    }
+  }
+
+  @Test
+  public void testCreateAndSize() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, 11L, 16, false);
+    assertThat(tempFile.length()).isEqualTo(11);
+  }
+
+  @Test
+  public void testCreateTruncatesExistingContent() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, -1L, 16, false);
+    stream.write(testData);
+    stream.close();
+    stream = new FileChannelOutputStream(tempFile, -1L, 16, false);
+    stream.close();
+    assertThat(tempFile.length()).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCreateWithBadBufferSize() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, -1L, 0, false);
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, 1L, 16, false);
+    stream.write(7);
+    stream.close();
+    assertThat(stream.getNumBytesWritten()).isEqualTo(1);
+    assertThat(readTempFile()).isEqualTo(new byte[] {7});
+  }
+
+  @Test
+  public void testWriteArray_SpanningBuffers() throws IOException {
+    // A buffer size that does not divide the data evenly exercises partial drains.
+    stream = new FileChannelOutputStream(tempFile, testData.length, 7, true);
+    stream.write(testData, 0, 3);
+    stream.flush();
+    stream.write(testData, 3, testData.length - 3);
+    stream.close();
+    assertThat(readTempFile()).isEqualTo(testData);
+  }
+
+  @Test
+  public void testCloseTruncatesToBytesWritten() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, 1000L, 16, false);
+    stream.write(testData);
+    stream.close();
+    assertThat(readTempFile()).isEqualTo(testData);
+  }
+
+  @Test
+  public void testSyncAndResume() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, testData.length, 16, false);
+    stream.write(testData, 0, 50);
+    stream.sync();
+    // Bytes written after the sync point are discarded on resume.
+    stream.write(new byte[10]);
+    stream.close();
+    stream = new FileChannelOutputStream(tempFile, testData.length, 50, 16, false);
+    assertThat(stream.getNumBytesWritten()).isEqualTo(50);
+    stream.write(testData, 50, testData.length - 50);
+    stream.close();
+    assertThat(readTempFile()).isEqualTo(testData);
+  }
+
+  @Test(expected = IOException.class)
+  public void testResumePastEndOfFile() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, -1L, 1, 16, false);
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteAfterClose() throws IOException {
+    stream = new FileChannelOutputStream(tempFile, -1L, 16, false);
+    stream.close();
+    stream.write(1);
+  }
+
+  private byte[] readTempFile() throws IOException {
+    byte[] actual = new byte[(int) tempFile.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(tempFile))) {
+      in.readFully(actual);
+    }
+    return actual;
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class specific for {@link BlockCachingByteSource}. The common functionality is tested in
+ * {@link ByteSourceBaseTest}.
+ */
+@RunWith(JUnit4.class)
+public class BlockCachingByteSourceTest extends ByteSourceBaseTest {
+  /** A block size that does not divide the test data evenly. */
+  private static final int BLOCK_SIZE = 10;
+
+  private byte[] testData;
+
+  @Before
+  public void setUp() throws Exception {
+    testData = getSampleTestData();
+    byteSource = new BlockCachingByteSource(ByteSource.wrap(testData), BLOCK_SIZE, 1000, false);
+    expectedData = testData;
+  }
+
+  @Test
+  public void hitsAndMisses() throws Exception {
+    BlockCachingByteSource source = (BlockCachingByteSource) byteSource;
+    readSlice(source, 5, 20);
+    // Blocks 0, 1 and 2 are read from the underlying source.
+    assertThat(source.getHitCount()).isEqualTo(0);
+    assertThat(source.getMissCount()).isEqualTo(3);
+    readSlice(source, 12, 5);
+    assertThat(source.getHitCount()).isEqualTo(1);
+    assertThat(source.getMissCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void evictsWhenFull() throws Exception {
+    BlockCachingByteSource source =
+        new BlockCachingByteSource(ByteSource.wrap(testData), BLOCK_SIZE, 2 * BLOCK_SIZE, false);
+    readSlice(source, 0, BLOCK_SIZE);
+    readSlice(source, BLOCK_SIZE, BLOCK_SIZE);
+    readSlice(source, 0, BLOCK_SIZE);
+    assertThat(source.getHitCount()).isEqualTo(1);
+    // Reading a third block evicts one of the first two; the data stays correct regardless.
+    readSlice(source, 2 * BLOCK_SIZE, BLOCK_SIZE);
+    readSlice(source, 0, 3 * BLOCK_SIZE);
+    assertThat(source.getMissCount()).isAtLeast(4L);
+    assertThat(source.getHitCount() + source.getMissCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void offHeap() throws Exception {
+    BlockCachingByteSource source =
+        new BlockCachingByteSource(ByteSource.wrap(testData), BLOCK_SIZE, 1000, true);
+    readSlice(source, 0, testData.length);
+    readSlice(source, 3, 50);
+    assertThat(source.getMissCount()).isEqualTo((testData.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badBlockSize() {
+    new BlockCachingByteSource(ByteSource.wrap(testData), 0, 1000, false);
+  }
+
+  private void readSlice(ByteSource source, int offset, int length) throws Exception {
+    byte[] buffer = new byte[length];
+    try (InputStream in = source.slice(offset, length).openStream()) {
+      assertThat(in.read(buffer)).isEqualTo(length);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+    for (int index = 0; index < length; index++) {
+      assertThat(buffer[index]).isEqualTo(testData[offset + index]);
+    }
+  }
+}
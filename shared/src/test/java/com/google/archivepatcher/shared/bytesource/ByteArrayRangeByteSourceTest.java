@@ -0,0 +1,55 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class specific for {@link ByteSource#wrap(byte[], int, int)}. The common functionality is
+ * tested in {@link ByteSourceBaseTest}.
+ */
+@RunWith(JUnit4.class)
+public class ByteArrayRangeByteSourceTest extends ByteSourceBaseTest {
+  private static final int PADDING = 7;
+
+  private byte[] buffer;
+
+  @Before
+  public void setUp() throws Exception {
+    byte[] testData = getSampleTestData();
+    expectedData = testData;
+    buffer = new byte[testData.length + 2 * PADDING];
+    System.arraycopy(testData, 0, buffer, PADDING, testData.length);
+    byteSource = ByteSource.wrap(buffer, PADDING, testData.length);
+  }
+
+  @Test
+  public void testDoesNotCopy() throws Exception {
+    buffer[PADDING] = (byte) (buffer[PADDING] + 1);
+    try (InputStream in = byteSource.openStream()) {
+      assertThat(in.read()).isEqualTo(buffer[PADDING] & 0xff);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testRangeOutOfBounds() {
+    ByteSource.wrap(buffer, PADDING + 1, buffer.length - PADDING);
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import static com.google.archivepatcher.shared.TestUtils.storeInTempFile;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Tests for an {@link MmapByteSource} whose chunks are much smaller than the file. */
+public class ChunkedMmapByteSourceTest extends ByteSourceBaseTest {
+  /** A chunk size that does not divide the test data evenly. */
+  private static final int CHUNK_SIZE = 7;
+
+  private static File tempFile = null;
+  private static byte[] testData;
+
+  @BeforeClass
+  public static void staticSetUp() throws Exception {
+    testData = getSampleTestData();
+    tempFile = storeInTempFile(new ByteArrayInputStream(testData));
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    byteSource = new MmapByteSource(tempFile, CHUNK_SIZE, 2);
+    expectedData = testData;
+  }
+
+  @AfterClass
+  public static void staticTearDown() throws Exception {
+    if (tempFile != null) {
+      tempFile.delete();
+    }
+  }
+
+  @Test
+  public void readAcrossChunkBoundaries() throws Exception {
+    byte[] buffer = new byte[20];
+    try (InputStream in = byteSource.slice(5, 20).openStream()) {
+      assertThat(in.read(buffer)).isEqualTo(20);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+    for (int index = 0; index < buffer.length; index++) {
+      assertThat(buffer[index]).isEqualTo(testData[index + 5]);
+    }
+  }
+
+  @Test
+  public void skipAcrossChunkBoundaries() throws Exception {
+    try (InputStream in = byteSource.openStream()) {
+      assertThat(in.skip(CHUNK_SIZE * 3 + 1)).isEqualTo(CHUNK_SIZE * 3 + 1);
+      assertThat(in.read()).isEqualTo(testData[CHUNK_SIZE * 3 + 1]);
+      assertThat(in.skip(testData.length)).isEqualTo(testData.length - CHUNK_SIZE * 3 - 2);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void idleChunksAreBounded() throws Exception {
+    MmapByteSource source = (MmapByteSource) byteSource;
+    assertThat(source.getNumMappedChunks()).isEqualTo(0);
+    try (InputStream in = source.openStream()) {
+      while (in.read() >= 0) {
+        // Only the chunk being read and two idle chunks stay mapped.
+        assertThat(source.getNumMappedChunks()).isAtMost(3);
+      }
+    }
+    assertThat(source.getNumMappedChunks()).isEqualTo(2);
+  }
+
+  @Test
+  public void close_ReleasesIdleChunks() throws Exception {
+    MmapByteSource source = (MmapByteSource) byteSource;
+    try (InputStream in = source.openStream()) {
+      assertThat(in.read()).isEqualTo(testData[0]);
+    }
+    assertThat(source.getNumMappedChunks()).isEqualTo(1);
+    source.close();
+    assertThat(source.getNumMappedChunks()).isEqualTo(0);
+  }
+
+  @Test
+  public void close_KeepsChunksBeingReadUntilStreamIsClosed() throws Exception {
+    MmapByteSource source = (MmapByteSource) byteSource;
+    InputStream in = source.openStream();
+    assertThat(in.read()).isEqualTo(testData[0]);
+    source.close();
+    assertThat(source.getNumMappedChunks()).isEqualTo(1);
+    // The chunk being read remains readable, but no other chunk can be mapped.
+    assertThat(in.read()).isEqualTo(testData[1]);
+    try {
+      in.skip(CHUNK_SIZE);
+      in.read();
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Pass
+    }
+    in.close();
+    assertThat(source.getNumMappedChunks()).isEqualTo(0);
+  }
+
+  @Test(expected = IOException.class)
+  public void openStream_AfterClose() throws Exception {
+    byteSource.close();
+    byteSource.openStream();
+  }
+
+  @Test(expected = IOException.class)
+  public void read_AfterStreamClose() throws Exception {
+    InputStream in = byteSource.openStream();
+    in.close();
+    in.read();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badChunkSize() throws Exception {
+    new MmapByteSource(tempFile, 0, 1);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.shared.bytesource;
+
+import static com.google.archivepatcher.shared.TestUtils.assertThrows;
+import static com.google.archivepatcher.shared.TestUtils.storeInTempFile;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class specific for {@link FileChannelByteSource}. The common functionality is tested in
+ * {@link ByteSourceBaseTest}.
+ */
+@RunWith(JUnit4.class)
+public class FileChannelByteSourceTest extends ByteSourceBaseTest {
+
+  private static File tempFile = null;
+  private static byte[] testData;
+
+  @BeforeClass
+  public static void staticSetUp() throws Exception {
+    testData = getSampleTestData();
+    tempFile = storeInTempFile(new ByteArrayInputStream(testData));
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    byteSource = new FileChannelByteSource(tempFile);
+    expectedData = testData;
+  }
+
+  @AfterClass
+  public static void staticTearDown() throws Exception {
+    if (tempFile != null) {
+      tempFile.delete();
+    }
+  }
+
+  @Test
+  public void close() throws Exception {
+    try (InputStream in = byteSource.openStream()) {
+      assertThat(in.read()).isEqualTo(expectedData[0]);
+    }
+
+    byteSource.close();
+
+    assertThrows(IOException.class, () -> byteSource.openStream().read());
+  }
+
+  @Test
+  public void skip() throws Exception {
+    try (InputStream in = byteSource.slice(10, 20).openStream()) {
+      assertThat(in.skip(5)).isEqualTo(5);
+      assertThat(in.read()).isEqualTo(expectedData[15]);
+      assertThat(in.skip(100)).isEqualTo(14);
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void concurrentReads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (int task = 0; task < 16; task++) {
+        final int offset = task;
+        futures.add(
+            executor.submit(
+                new Callable<Boolean>() {
+                  @Override
+                  public Boolean call() throws IOException {
+                    for (int repeat = 0; repeat < 100; repeat++) {
+                      try (InputStream in =
+                          byteSource.slice(offset, testData.length - offset).openStream()) {
+                        for (int index = offset; index < testData.length; index++) {
+                          if (in.read() != testData[index]) {
+                            return false;
+                          }
+                        }
+                      }
+                    }
+                    return true;
+                  }
+                }));
+      }
+      for (Future<Boolean> future : futures) {
+        assertThat(future.get()).isTrue();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void interruptedRead_DoesNotAffectOtherStreams() throws Exception {
+    InputStream other = byteSource.openStream();
+    assertThat(other.read()).isEqualTo(expectedData[0]);
+    Thread.currentThread().interrupt();
+    try (InputStream in = byteSource.openStream()) {
+      assertThrows(InterruptedIOException.class, () -> in.read());
+      assertThat(Thread.interrupted()).isTrue();
+    }
+    assertThat(other.read()).isEqualTo(expectedData[1]);
+    other.close();
+  }
+}
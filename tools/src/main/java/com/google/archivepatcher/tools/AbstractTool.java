@@ -14,7 +14,12 @@
 
 package com.google.archivepatcher.tools;
 
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 
 /**
@@ -52,6 +57,18 @@ public abstract class AbstractTool {
     return result;
   }
 
+  /**
+   * Read a calibration table written by {@link DeflateCalibrationTool}.
+   * @param file the file to read
+   * @return the table
+   * @throws IOException if the file cannot be read or is not a valid table
+   */
+  protected DeflateThroughputCalibration readCalibration(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return DeflateThroughputCalibration.readFrom(in);
+    }
+  }
+
   /**
    * Terminate the program with an error message and usage instructions.
    * @param message the error message to give to the user prior to the usage instructions
@@ -0,0 +1,167 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.tools;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache of computed values, keyed by strings, that also coalesces concurrent requests for the
+ * same key: only the first computes the value and the rest wait for it. Values are evicted least
+ * recently used first once their total weight exceeds a limit. Failures are not cached. All
+ * methods are thread-safe.
+ *
+ * @param <V> the type of the values
+ */
+abstract class CoalescingCache<V> {
+  /** The cached values, least recently used first. */
+  private final LinkedHashMap<String, V> values = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The computations in progress. */
+  private final Map<String, FutureTask<V>> inFlight = new HashMap<>();
+
+  /** The maximum total weight of the cached values. */
+  private final long maxWeight;
+
+  private long totalWeight = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long coalesced = 0;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxWeight the maximum total weight of the cached values; values heavier than this are
+   *     never cached, but concurrent requests for them are still coalesced
+   */
+  CoalescingCache(long maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Returns the weight of a value, such as its size in bytes.
+   *
+   * @param value the value
+   * @return the weight
+   */
+  protected abstract long weigh(V value);
+
+  /**
+   * Returns the value for the specified key, computing it on the calling thread if it is neither
+   * cached nor being computed by another thread.
+   *
+   * @param key the key
+   * @param computation computes the value
+   * @return the value
+   * @throws IOException if the computation failed with an {@link IOException}
+   * @throws InterruptedException if interrupted while waiting for another thread's computation, or
+   *     if the computation was
+   */
+  V get(String key, Callable<V> computation) throws IOException, InterruptedException {
+    FutureTask<V> task;
+    boolean computing = false;
+    synchronized (this) {
+      V value = values.get(key);
+      if (value != null) {
+        hits++;
+        return value;
+      }
+      task = inFlight.get(key);
+      if (task == null) {
+        misses++;
+        task = new FutureTask<>(computation);
+        inFlight.put(key, task);
+        computing = true;
+      } else {
+        coalesced++;
+      }
+    }
+    if (computing) {
+      task.run();
+      synchronized (this) {
+        inFlight.remove(key);
+        // The task is done, so this doesn't wait.
+        try {
+          put(key, task.get());
+        } catch (ExecutionException e) {
+          // Reported below.
+        }
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Computation failed", cause);
+    }
+  }
+
+  /** Returns the number of requests answered from the cache. */
+  synchronized long getHits() {
+    return hits;
+  }
+
+  /** Returns the number of requests that computed a value. */
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Returns the number of requests that waited for another request's computation. */
+  synchronized long getCoalesced() {
+    return coalesced;
+  }
+
+  /** Returns the number of cached values. */
+  synchronized int size() {
+    return values.size();
+  }
+
+  /** Returns the total weight of the cached values. */
+  synchronized long getTotalWeight() {
+    return totalWeight;
+  }
+
+  /** Caches a value, evicting the least recently used values until the total weight fits. */
+  private void put(String key, V value) {
+    long weight = weigh(value);
+    if (weight > maxWeight) {
+      return;
+    }
+    V previous = values.put(key, value);
+    if (previous != null) {
+      totalWeight -= weigh(previous);
+    }
+    totalWeight += weight;
+    Iterator<V> iterator = values.values().iterator();
+    while (totalWeight > maxWeight) {
+      totalWeight -= weigh(iterator.next());
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.tools;
+
+import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Simple command-line tool for measuring how fast this machine can deflate data with each set of
+ * deflate parameters. The resulting table is used by the --atb and --calibration options of the
+ * other tools to project the apply time of patches, so it should be run on the devices that will
+ * apply them, or on hardware representative of those devices.
+ */
+public class DeflateCalibrationTool extends AbstractTool {
+
+  /** Usage instructions for the command line. */
+  private static final String USAGE =
+      "java -cp <classpath> com.google.archivepatcher.tools.DeflateCalibrationTool <options>\n"
+          + "\n"
+          + "Options:\n"
+          + "  --output        the file to write the calibration table to\n"
+          + "  --iterations    optionally, the number of timed compressions per set of deflate\n"
+          + "                  parameters (default "
+          + DeflateThroughputCalibration.DEFAULT_ITERATIONS
+          + ")\n"
+          + "\n"
+          + "Examples:\n"
+          + "  To calibrate this machine, saving the table in CALIBRATION:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.DeflateCalibrationTool \\\n"
+          + "      --output CALIBRATION\n";
+
+  /**
+   * Runs the tool. See usage instructions for more information.
+   *
+   * @param args command line arguments
+   * @throws IOException if anything goes wrong
+   */
+  public static void main(String... args) throws IOException {
+    new DeflateCalibrationTool().run(args);
+  }
+
+  /**
+   * Run the tool.
+   *
+   * @param args command line arguments
+   * @throws IOException if anything goes wrong
+   */
+  public void run(String... args) throws IOException {
+    String outputPath = null;
+    int iterations = DeflateThroughputCalibration.DEFAULT_ITERATIONS;
+    Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
+    while (argIterator.hasNext()) {
+      String arg = argIterator.next();
+      if ("--output".equals(arg)) {
+        outputPath = popOrDie(argIterator, "--output");
+      } else if ("--iterations".equals(arg)) {
+        iterations = Integer.parseInt(popOrDie(argIterator, "--iterations"));
+        if (iterations < 1) {
+          exitWithUsage("--iterations must be positive: " + iterations);
+        }
+      } else {
+        exitWithUsage("unknown argument: " + arg);
+      }
+    }
+    if (outputPath == null) {
+      exitWithUsage("missing required argument(s)");
+    }
+    DeflateThroughputCalibration calibration =
+        DeflateThroughputCalibration.calibrate(
+            new DefaultDeflateCompatibilityWindow().getCorpus(),
+            iterations);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputPath))) {
+      calibration.writeTo(out);
+    }
+  }
+
+  @Override
+  protected String getUsage() {
+    return USAGE;
+  }
+}
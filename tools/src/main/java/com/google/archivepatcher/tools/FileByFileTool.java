@@ -15,22 +15,38 @@
 package com.google.archivepatcher.tools;
 
 import com.google.archivepatcher.applier.FileByFileDeltaApplier;
+import com.google.archivepatcher.generator.ApplyTimeBudgetLimiter;
+import com.google.archivepatcher.generator.BatchDeltaGenerator;
+import com.google.archivepatcher.generator.BatchGenerationReport;
 import com.google.archivepatcher.generator.DeltaFriendlyOldBlobSizeLimiter;
 import com.google.archivepatcher.generator.FileByFileDeltaGenerator;
+import com.google.archivepatcher.generator.GenerationMemoryBudget;
+import com.google.archivepatcher.generator.GenerationListener;
+import com.google.archivepatcher.generator.GenerationMemoryReport;
+import com.google.archivepatcher.generator.GenerationStats;
 import com.google.archivepatcher.generator.PreDiffPlanEntryModifier;
 import com.google.archivepatcher.generator.TotalRecompressionLimiter;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator.MatchingStrategy;
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Simple command-line tool for generating and applying patches.
@@ -44,12 +60,39 @@ public class FileByFileTool extends AbstractTool {
           + "Options:\n"
           + "  --generate      generate a patch\n"
           + "  --apply         apply a patch\n"
+          + "  --generate-batch generate a patch from each --old to --new (see below)\n"
           + "  --old           the old file\n"
           + "  --new           the new file\n"
           + "  --patch         the patch file\n"
+          + "  --patch-dir     with --generate-batch, the directory to write the patches to\n"
+          + "  --jobs          with --generate-batch, optionally, the maximum number of patches\n"
+          + "                  to generate at once; defaults to the number of processors\n"
+          + "  --report        with --generate-batch, optionally, the file to write the summary\n"
+          + "                  report to instead of stdout\n"
           + "  --trl           optionally, the total bytes of recompression to allow (see below)\n"
+          + "  --atb           optionally, the apply time budget for recompression in\n"
+          + "                  milliseconds (see below); requires --calibration\n"
+          + "  --calibration   optionally, a calibration table written by DeflateCalibrationTool\n"
           + "  --dfobsl        optionally, a limit on the total size of the delta-friendly old"
           + " blob (see below)\n"
+          + "  --gmb           optionally, the memory budget for generating the patch in bytes\n"
+          + "                  (see below)\n"
+          + "  --gmb-spill     optionally, fit --gmb by moving the suffix array to disk rather\n"
+          + "                  than by uncompressing less of the old file\n"
+          + "  --fast          optionally, find matches with a rolling hash of blocks of the old\n"
+          + "                  file instead of a suffix array: much faster, but the patch is\n"
+          + "                  somewhat larger\n"
+          + "  --matching-threads optionally, the number of threads to find matches for segments\n"
+          + "                  of the new file on; faster, but the patch may be slightly larger\n"
+          + "                  and both files are held in memory. Cannot be used with --fast\n"
+          + "                  or --gmb\n"
+          + "  --stats         optionally, print the time, CPU time and bytes read and written by\n"
+          + "                  each phase of generation, the number of entries uncompressed or\n"
+          + "                  not for each reason and the suffix array size, as JSON\n"
+          + "  --verifiable    optionally, record the size, digest and recompression CRC32s of\n"
+          + "                  the new file in the patch so that --verify can check the output\n"
+          + "  --verify        optionally, verify the new file against the data recorded by\n"
+          + "                  --verifiable while the patch is applied\n"
           + "\n"
           + "Total Recompression Limit (trl):\n"
           + "  When generating a patch, a limit can be specified on the total number of bytes to\n"
@@ -60,6 +103,14 @@ public class FileByFileTool extends AbstractTool {
           + "  patch that had such a limitation, it is necessary to specify the same limitation\n"
           + "  here. This argument is illegal for --apply, since it only applies to --generate.\n"
           + "\n"
+          + "Apply Time Budget (atb):\n"
+          + "  Like trl, but limits the projected time that recompression will take on the\n"
+          + "  devices applying the patch rather than the number of bytes. The projection uses\n"
+          + "  the calibration table given with --calibration, which should be produced by\n"
+          + "  running DeflateCalibrationTool on (or on hardware representative of) those\n"
+          + "  devices. When the budget is exceeded, the entries that cost the most time per\n"
+          + "  byte of patch saved are kept compressed first.\n"
+          + "\n"
           + "Delta Friendly Old Blob Size Limit (dfobsl):\n"
           + "  When generating a patch, a limit can be specified on the total size of the delta-\n"
           + "  friendly old blob. This implicitly limits the size of the temporary file that\n"
@@ -70,6 +121,24 @@ public class FileByFileTool extends AbstractTool {
           + "  uncompression will be performed at all. Otherwise, the old file can expand into\n"
           + "  delta-friendly old blob until the size reaches this limit.\n"
           + "\n"
+          + "Generation Memory Budget (gmb):\n"
+          + "  Generating the delta needs a suffix array of 4 bytes per byte of the delta-\n"
+          + "  friendly old blob, which dominates the memory used. When a budget is given, the\n"
+          + "  peak memory is estimated from the plan before the delta is generated. If it does\n"
+          + "  not fit, less of the old file is uncompressed (giving a larger patch) and, if that\n"
+          + "  is not enough, the suffix array is moved to a memory-mapped file and then to disk\n"
+          + "  (making generation slower). With --gmb-spill, the suffix array is moved first and\n"
+          + "  uncompression is never reduced. The planned and actual peak memory are printed.\n"
+          + "\n"
+          + "Batch Generation (generate-batch):\n"
+          + "  Generates a patch from each of several old files to the same new file, named\n"
+          + "  after the old file with \".patch\" appended. --old is given once per old file.\n"
+          + "  The new file is parsed and its deflate parameters divined only once, and up to\n"
+          + "  --jobs patches are generated at once. With --gmb, the budget is for all the\n"
+          + "  patches being generated at once and each gets an equal share. A JSON report\n"
+          + "  gives the size, time and memory of each patch; if any patch fails, the others\n"
+          + "  are still generated and the failure is in the report.\n"
+          + "\n"
           + "Examples:\n"
           + "  To generate a patch from OLD to NEW, saving the patch in PATCH:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
@@ -79,6 +148,28 @@ public class FileByFileTool extends AbstractTool {
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
           + " \\\n"
           + "      --old OLD --new NEW --trl 1000000 --patch PATCH\n"
+          + "  To generate a patch from OLD to NEW, limiting recompression to 2 seconds on the\n"
+          + "  devices that produced CALIBRATION:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
+          + " \\\n"
+          + "      --old OLD --new NEW --atb 2000 --calibration CALIBRATION --patch PATCH\n"
+          + "  To generate a patch from OLD to NEW using at most 256 MiB of memory:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
+          + " \\\n"
+          + "      --old OLD --new NEW --gmb 268435456 --patch PATCH\n"
+          + "  To quickly generate a somewhat larger patch from OLD to NEW:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
+          + " \\\n"
+          + "      --old OLD --new NEW --fast --patch PATCH\n"
+          + "  To generate a patch from OLD to NEW and print statistics about the generation:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate"
+          + " \\\n"
+          + "      --old OLD --new NEW --stats --patch PATCH\n"
+          + "  To generate patches from OLD1 and OLD2 to NEW, 4 at a time using at most 1 GiB\n"
+          + "  in total, saving them in PATCHDIR:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool"
+          + " --generate-batch \\\n"
+          + "      --old OLD1 --old OLD2 --new NEW --patch-dir PATCHDIR --jobs 4 --gmb 1073741824\n"
           + "  To apply a patch PATCH to OLD, saving the result in NEW:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --apply \\\n"
           + "      --old OLD --patch PATCH --new NEW";
@@ -91,7 +182,10 @@ public class FileByFileTool extends AbstractTool {
     GENERATE,
 
     /** Apply a patch. */
-    APPLY
+    APPLY,
+
+    /** Generate a patch from each of several old files to the same new file. */
+    GENERATE_BATCH
   }
 
   /**
@@ -113,17 +207,29 @@ public class FileByFileTool extends AbstractTool {
    * @throws InterruptedException if any thread has interrupted the current thread
    */
   public void run(String... args) throws IOException, InterruptedException {
-    String oldPath = null;
+    List<String> oldPaths = new ArrayList<>();
     String newPath = null;
     String patchPath = null;
     Long totalRecompressionLimit = null;
     Long deltaFriendlyOldBlobSizeLimit = null;
+    Long applyTimeBudgetMillis = null;
+    String calibrationPath = null;
+    Long generationMemoryBudget = null;
+    boolean generationMemoryBudgetSpill = false;
+    boolean fast = false;
+    Integer matchingThreads = null;
+    boolean stats = false;
+    boolean verifiable = false;
+    boolean verify = false;
+    String patchDirPath = null;
+    Integer jobs = null;
+    String reportPath = null;
     Mode mode = null;
     Iterator<String> argIterator = new ArrayList<>(Arrays.asList(args)).iterator();
     while (argIterator.hasNext()) {
       String arg = argIterator.next();
       if ("--old".equals(arg)) {
-        oldPath = popOrDie(argIterator, "--old");
+        oldPaths.add(popOrDie(argIterator, "--old"));
       } else if ("--new".equals(arg)) {
         newPath = popOrDie(argIterator, "--new");
       } else if ("--patch".equals(arg)) {
@@ -132,41 +238,206 @@ public class FileByFileTool extends AbstractTool {
         mode = Mode.GENERATE;
       } else if ("--apply".equals(arg)) {
         mode = Mode.APPLY;
+      } else if ("--generate-batch".equals(arg)) {
+        mode = Mode.GENERATE_BATCH;
+      } else if ("--patch-dir".equals(arg)) {
+        patchDirPath = popOrDie(argIterator, "--patch-dir");
+      } else if ("--jobs".equals(arg)) {
+        jobs = Integer.parseInt(popOrDie(argIterator, "--jobs"));
+        if (jobs < 1) {
+          exitWithUsage("--jobs must be at least 1: " + jobs);
+        }
+      } else if ("--report".equals(arg)) {
+        reportPath = popOrDie(argIterator, "--report");
       } else if ("--trl".equals(arg)) {
         totalRecompressionLimit = Long.parseLong(popOrDie(argIterator, "--trl"));
         if (totalRecompressionLimit < 0) {
           exitWithUsage("--trl cannot be negative: " + totalRecompressionLimit);
         }
+      } else if ("--atb".equals(arg)) {
+        applyTimeBudgetMillis = Long.parseLong(popOrDie(argIterator, "--atb"));
+        if (applyTimeBudgetMillis < 0) {
+          exitWithUsage("--atb cannot be negative: " + applyTimeBudgetMillis);
+        }
+      } else if ("--calibration".equals(arg)) {
+        calibrationPath = popOrDie(argIterator, "--calibration");
       } else if ("--dfobsl".equals(arg)) {
         deltaFriendlyOldBlobSizeLimit = Long.parseLong(popOrDie(argIterator, "--dfobsl"));
         if (deltaFriendlyOldBlobSizeLimit < 0) {
           exitWithUsage("--dfobsl cannot be negative: " + deltaFriendlyOldBlobSizeLimit);
         }
+      } else if ("--gmb".equals(arg)) {
+        generationMemoryBudget = Long.parseLong(popOrDie(argIterator, "--gmb"));
+        if (generationMemoryBudget < 0) {
+          exitWithUsage("--gmb cannot be negative: " + generationMemoryBudget);
+        }
+      } else if ("--gmb-spill".equals(arg)) {
+        generationMemoryBudgetSpill = true;
+      } else if ("--fast".equals(arg)) {
+        fast = true;
+      } else if ("--matching-threads".equals(arg)) {
+        matchingThreads = Integer.parseInt(popOrDie(argIterator, "--matching-threads"));
+        if (matchingThreads < 1) {
+          exitWithUsage("--matching-threads must be at least 1: " + matchingThreads);
+        }
+      } else if ("--stats".equals(arg)) {
+        stats = true;
+      } else if ("--verifiable".equals(arg)) {
+        verifiable = true;
+      } else if ("--verify".equals(arg)) {
+        verify = true;
       } else {
         exitWithUsage("unknown argument: " + arg);
       }
     }
-    if (oldPath == null || newPath == null || patchPath == null || mode == null) {
-      exitWithUsage("missing required argument(s)");
+    if (mode == Mode.GENERATE_BATCH) {
+      if (oldPaths.isEmpty() || newPath == null || patchDirPath == null) {
+        exitWithUsage("missing required argument(s)");
+      }
+      if (patchPath != null) {
+        exitWithUsage("--patch cannot be used with --generate-batch, use --patch-dir");
+      }
+    } else {
+      if (oldPaths.isEmpty() || newPath == null || patchPath == null || mode == null) {
+        exitWithUsage("missing required argument(s)");
+      }
+      if (oldPaths.size() > 1) {
+        exitWithUsage("--old can only be repeated with --generate-batch");
+      }
+      if (patchDirPath != null || jobs != null || reportPath != null) {
+        exitWithUsage("--patch-dir, --jobs and --report can only be used with --generate-batch");
+      }
     }
     if (mode == Mode.APPLY && totalRecompressionLimit != null) {
       exitWithUsage("--trl can only be used with --generate");
     }
+    if (mode == Mode.APPLY && (applyTimeBudgetMillis != null || calibrationPath != null)) {
+      exitWithUsage("--atb and --calibration can only be used with --generate");
+    }
+    if ((applyTimeBudgetMillis == null) != (calibrationPath == null)) {
+      exitWithUsage("--atb and --calibration must be used together");
+    }
     if (mode == Mode.APPLY && deltaFriendlyOldBlobSizeLimit != null) {
       exitWithUsage("--dfobsl can only be used with --generate");
     }
-    File oldFile = getRequiredFileOrDie(oldPath, "old file");
-    if (mode == Mode.GENERATE) {
-      File newFile = getRequiredFileOrDie(newPath, "new file");
-      generatePatch(
-          oldFile,
-          newFile,
-          new File(patchPath),
-          totalRecompressionLimit,
-          deltaFriendlyOldBlobSizeLimit);
-    } else { // mode == Mode.APPLY
+    if (mode == Mode.APPLY && (generationMemoryBudget != null || generationMemoryBudgetSpill)) {
+      exitWithUsage("--gmb and --gmb-spill can only be used with --generate");
+    }
+    if (generationMemoryBudgetSpill && generationMemoryBudget == null) {
+      exitWithUsage("--gmb-spill requires --gmb");
+    }
+    if (mode == Mode.APPLY && fast) {
+      exitWithUsage("--fast can only be used with --generate");
+    }
+    if (mode != Mode.GENERATE && matchingThreads != null) {
+      exitWithUsage("--matching-threads can only be used with --generate");
+    }
+    if (matchingThreads != null && (fast || generationMemoryBudget != null)) {
+      exitWithUsage("--matching-threads cannot be used with --fast or --gmb");
+    }
+    if (mode == Mode.APPLY && stats) {
+      exitWithUsage("--stats can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && verifiable) {
+      exitWithUsage("--verifiable can only be used with --generate");
+    }
+    if (mode != Mode.APPLY && verify) {
+      exitWithUsage("--verify can only be used with --apply");
+    }
+    if (mode == Mode.APPLY) {
+      File oldFile = getRequiredFileOrDie(oldPaths.get(0), "old file");
       File patchFile = getRequiredFileOrDie(patchPath, "patch file");
-      applyPatch(oldFile, patchFile, new File(newPath));
+      applyPatch(oldFile, patchFile, new File(newPath), verify);
+      return;
+    }
+    List<File> oldFiles = new ArrayList<>();
+    for (String path : oldPaths) {
+      oldFiles.add(getRequiredFileOrDie(path, "old file"));
+    }
+    File newFile = getRequiredFileOrDie(newPath, "new file");
+    List<PreDiffPlanEntryModifier> additionalModifiers = new ArrayList<>();
+    if (applyTimeBudgetMillis != null) {
+      additionalModifiers.add(
+          new ApplyTimeBudgetLimiter(
+              applyTimeBudgetMillis,
+              readCalibration(getRequiredFileOrDie(calibrationPath, "calibration file"))));
+    }
+    GenerationMemoryBudget memoryBudget = null;
+    if (generationMemoryBudget != null) {
+      memoryBudget =
+          new GenerationMemoryBudget(
+              generationMemoryBudget,
+              generationMemoryBudgetSpill
+                  ? GenerationMemoryBudget.Adaptation.SPILL_TO_DISK_FIRST
+                  : GenerationMemoryBudget.Adaptation.REDUCE_UNCOMPRESSION_FIRST);
+    }
+    MatchingStrategy matchingStrategy =
+        fast ? MatchingStrategy.BLOCK_HASH : MatchingStrategy.SUFFIX_ARRAY;
+    GenerationStats generationStats = stats ? new GenerationStats() : null;
+    BatchGenerationReport batchReport = null;
+    if (mode == Mode.GENERATE) {
+      GenerationMemoryReport report =
+          generatePatch(
+              oldFiles.get(0),
+              newFile,
+              new File(patchPath),
+              totalRecompressionLimit,
+              deltaFriendlyOldBlobSizeLimit,
+              verifiable,
+              additionalModifiers,
+              memoryBudget,
+              matchingStrategy,
+              matchingThreads != null ? matchingThreads : 1,
+              stats ? generationStats : GenerationListener.NO_OP);
+      if (memoryBudget != null) {
+        printMemoryReport(report);
+      }
+    } else { // mode == Mode.GENERATE_BATCH
+      File patchDir = new File(patchDirPath);
+      if (!patchDir.isDirectory()) {
+        exitWithUsage("patch directory does not exist: " + patchDirPath);
+      }
+      List<File> patchFiles = new ArrayList<>();
+      Set<String> patchNames = new HashSet<>();
+      for (File oldFile : oldFiles) {
+        String patchName = oldFile.getName() + ".patch";
+        if (!patchNames.add(patchName)) {
+          exitWithUsage("old files must have distinct names: " + oldFile.getName());
+        }
+        patchFiles.add(new File(patchDir, patchName));
+      }
+      batchReport =
+          generatePatches(
+              newFile,
+              oldFiles,
+              patchFiles,
+              totalRecompressionLimit,
+              deltaFriendlyOldBlobSizeLimit,
+              verifiable,
+              additionalModifiers,
+              memoryBudget,
+              matchingStrategy,
+              jobs != null ? jobs : Runtime.getRuntime().availableProcessors(),
+              stats ? generationStats : GenerationListener.NO_OP);
+      if (reportPath != null) {
+        try (PrintWriter reportOut =
+            new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(reportPath), "UTF-8"))) {
+          batchReport.writeJson(reportOut);
+        }
+      } else {
+        batchReport.writeJson(new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")));
+      }
+    }
+    if (stats) {
+      generationStats.writeJson(new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")));
+    }
+    if (batchReport != null && batchReport.getNumFailures() > 0) {
+      throw new IOException(
+          batchReport.getNumFailures()
+              + " of "
+              + batchReport.getEntries().size()
+              + " patches failed, see the report");
     }
   }
 
@@ -190,7 +461,337 @@ public class FileByFileTool extends AbstractTool {
       Long totalRecompressionLimit,
       Long deltaFriendlyOldBlobSizeLimit)
       throws IOException, InterruptedException {
-    List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers = new ArrayList<>();
+    generatePatch(
+        oldFile, newFile, patchFile, totalRecompressionLimit, deltaFriendlyOldBlobSizeLimit, false);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        verifiable,
+        Collections.<PreDiffPlanEntryModifier>emptyList());
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        verifiable,
+        additionalModifiers,
+        null);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @param memoryBudget optional memory budget for generating the patch
+   * @return the planned and actual memory usage of the generation
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static GenerationMemoryReport generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers,
+      GenerationMemoryBudget memoryBudget)
+      throws IOException, InterruptedException {
+    return generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        verifiable,
+        additionalModifiers,
+        memoryBudget,
+        MatchingStrategy.SUFFIX_ARRAY);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @param memoryBudget optional memory budget for generating the patch
+   * @param matchingStrategy how the delta finds matches
+   * @return the planned and actual memory usage of the generation
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static GenerationMemoryReport generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers,
+      GenerationMemoryBudget memoryBudget,
+      MatchingStrategy matchingStrategy)
+      throws IOException, InterruptedException {
+    return generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        verifiable,
+        additionalModifiers,
+        memoryBudget,
+        matchingStrategy,
+        GenerationListener.NO_OP);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @param memoryBudget optional memory budget for generating the patch
+   * @param matchingStrategy how the delta finds matches
+   * @param listener the listener to report the phases of generation to, such as a {@link
+   *     GenerationStats}
+   * @return the planned and actual memory usage of the generation
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static GenerationMemoryReport generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers,
+      GenerationMemoryBudget memoryBudget,
+      MatchingStrategy matchingStrategy,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    return generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        verifiable,
+        additionalModifiers,
+        memoryBudget,
+        matchingStrategy,
+        /* numMatchingThreads= */ 1,
+        listener);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patch
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @param memoryBudget optional memory budget for generating the patch
+   * @param matchingStrategy how the delta finds matches
+   * @param numMatchingThreads the number of threads to match segments of the new file on, or 1 to
+   *     match serially; ignored with a memory budget or {@link MatchingStrategy#BLOCK_HASH}
+   * @param listener the listener to report the phases of generation to, such as a {@link
+   *     GenerationStats}
+   * @return the planned and actual memory usage of the generation
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static GenerationMemoryReport generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers,
+      GenerationMemoryBudget memoryBudget,
+      MatchingStrategy matchingStrategy,
+      int numMatchingThreads,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    FileByFileDeltaGenerator generator =
+        new FileByFileDeltaGenerator.Builder()
+            .addPreDiffPlanEntryModifiers(
+                getModifiers(
+                    totalRecompressionLimit, deltaFriendlyOldBlobSizeLimit, additionalModifiers))
+            .addSupportedDeltaFormats(Collections.singleton(DeltaFormat.BSDIFF))
+            .addPatchFlags(
+                verifiable ? EnumSet.allOf(PatchFlag.class) : EnumSet.noneOf(PatchFlag.class))
+            .withMemoryBudget(memoryBudget)
+            .withMatchingStrategy(matchingStrategy)
+            .withParallelMatching(numMatchingThreads)
+            .build();
+    try (ByteSource oldBlob = ByteSource.fromFile(oldFile);
+        ByteSource newBlob = ByteSource.fromFile(newFile);
+        FileOutputStream patchOut = new FileOutputStream(patchFile);
+        BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(patchOut)) {
+      GenerationMemoryReport report =
+          generator.generateDeltaReportingMemory(oldBlob, newBlob, bufferedPatchOut, listener);
+      bufferedPatchOut.flush();
+      return report;
+    }
+  }
+
+  /**
+   * Generate a patch from each of the specified old files to the specified new file, running the
+   * generations concurrently and sharing the parsing and divination of the new file between them.
+   *
+   * @param newFile the new file (will be read)
+   * @param oldFiles the old files (will be read)
+   * @param patchFiles the patch files (will be written), one per old file
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in each patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob of each patch
+   * @param verifiable whether to record the size, digest and recompression CRC32s of the new file
+   *     in the patches
+   * @param additionalModifiers additional modifiers to apply before the limits above, such as an
+   *     {@link ApplyTimeBudgetLimiter}
+   * @param totalMemoryBudget optional memory budget for all the generations that run at once
+   * @param matchingStrategy how the deltas find matches
+   * @param maxConcurrency the maximum number of generations to run at once
+   * @param listener the listener to report the phases of generation to, such as a {@link
+   *     GenerationStats}
+   * @return the outcome of each generation
+   * @throws IOException if unable to read the new file
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static BatchGenerationReport generatePatches(
+      File newFile,
+      List<File> oldFiles,
+      List<File> patchFiles,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      boolean verifiable,
+      List<PreDiffPlanEntryModifier> additionalModifiers,
+      GenerationMemoryBudget totalMemoryBudget,
+      MatchingStrategy matchingStrategy,
+      int maxConcurrency,
+      GenerationListener listener)
+      throws IOException, InterruptedException {
+    BatchDeltaGenerator generator =
+        new BatchDeltaGenerator(
+            getModifiers(
+                totalRecompressionLimit, deltaFriendlyOldBlobSizeLimit, additionalModifiers),
+            Collections.singleton(DeltaFormat.BSDIFF),
+            PatchConstants.USE_NATIVE_BSDIFF_BY_DEFAULT,
+            verifiable ? EnumSet.allOf(PatchFlag.class) : EnumSet.noneOf(PatchFlag.class),
+            matchingStrategy,
+            totalMemoryBudget,
+            maxConcurrency);
+    return generator.generateDeltas(newFile, oldFiles, patchFiles, listener);
+  }
+
+  /**
+   * Returns the additional modifiers followed by the limiters for the specified limits.
+   *
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old blob
+   * @param additionalModifiers the modifiers to apply before the limits
+   * @return the modifiers
+   */
+  static List<PreDiffPlanEntryModifier> getModifiers(
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      List<PreDiffPlanEntryModifier> additionalModifiers) {
+    List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers =
+        new ArrayList<>(additionalModifiers);
     if (totalRecompressionLimit != null) {
       preDiffPlanEntryModifiers.add(new TotalRecompressionLimiter(totalRecompressionLimit));
     }
@@ -198,14 +799,34 @@ public class FileByFileTool extends AbstractTool {
       preDiffPlanEntryModifiers.add(
           new DeltaFriendlyOldBlobSizeLimiter(deltaFriendlyOldBlobSizeLimit));
     }
-    FileByFileDeltaGenerator generator =
-        new FileByFileDeltaGenerator(
-            preDiffPlanEntryModifiers, Collections.singleton(DeltaFormat.BSDIFF));
-    try (FileOutputStream patchOut = new FileOutputStream(patchFile);
-        BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(patchOut)) {
-      generator.generateDelta(oldFile, newFile, bufferedPatchOut);
-      bufferedPatchOut.flush();
-    }
+    return preDiffPlanEntryModifiers;
+  }
+
+  /**
+   * Prints a memory report to stdout.
+   * @param report the report
+   */
+  private static void printMemoryReport(GenerationMemoryReport report) {
+    System.out.println("Memory budget: " + report.getMaxBytes() + " bytes");
+    System.out.println(
+        "Backend: "
+            + report.getBackend()
+            + (report.isUncompressionReduced() ? ", with uncompression reduced" : ""));
+    System.out.println(
+        "Projected delta-friendly blob sizes: "
+            + report.getProjectedDeltaFriendlyOldSize()
+            + " bytes (old), "
+            + report.getProjectedDeltaFriendlyNewSize()
+            + " bytes (new)");
+    System.out.println(
+        "Planned peak memory: "
+            + report.getPlannedPeakBytes()
+            + " bytes"
+            + (report.isPlanWithinBudget() ? "" : " (over budget; nothing smaller was available)"));
+    System.out.println(
+        "Actual peak memory: "
+            + report.getActualPeakBytes()
+            + " bytes (an upper bound, as it includes garbage not yet collected)");
   }
 
   /**
@@ -216,17 +837,28 @@ public class FileByFileTool extends AbstractTool {
    * @throws IOException if anything goes wrong
    */
   public static void applyPatch(File oldFile, File patchFile, File newFile) throws IOException {
+    applyPatch(oldFile, patchFile, newFile, false);
+  }
+
+  /**
+   * Apply a specified patch to the specified old file, creating the specified new file.
+   * @param oldFile the old file (will be read)
+   * @param patchFile the patch file (will be read)
+   * @param newFile the new file (will be written)
+   * @param verify whether to verify the new file against the verification data in the patch, if
+   * any, while it is being written
+   * @throws IOException if anything goes wrong
+   */
+  public static void applyPatch(File oldFile, File patchFile, File newFile, boolean verify)
+      throws IOException {
     // Figure out temp directory
     File tempFile = File.createTempFile("fbftool", "tmp");
     File tempDir = tempFile.getParentFile();
     tempFile.delete();
-    FileByFileDeltaApplier applier = new FileByFileDeltaApplier(tempDir);
+    FileByFileDeltaApplier applier = new FileByFileDeltaApplier(tempDir, verify);
     try (FileInputStream patchIn = new FileInputStream(patchFile);
-        BufferedInputStream bufferedPatchIn = new BufferedInputStream(patchIn);
-        FileOutputStream newOut = new FileOutputStream(newFile);
-        BufferedOutputStream bufferedNewOut = new BufferedOutputStream(newOut)) {
-      applier.applyDelta(oldFile, bufferedPatchIn, bufferedNewOut);
-      bufferedNewOut.flush();
+        BufferedInputStream bufferedPatchIn = new BufferedInputStream(patchIn)) {
+      applier.applyDelta(oldFile, bufferedPatchIn, newFile, false);
     }
   }
 
@@ -0,0 +1,651 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.tools;
+
+import com.google.archivepatcher.applier.FileByFileDeltaApplier;
+import com.google.archivepatcher.explainer.PatchExplainer;
+import com.google.archivepatcher.explainer.PatchExplanation;
+import com.google.archivepatcher.generator.FileByFileDeltaGenerator;
+import com.google.archivepatcher.generator.GenerationListener;
+import com.google.archivepatcher.generator.PreDiffPlanEntryModifier;
+import com.google.archivepatcher.generator.PreparedNewArchive;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator.MatchingStrategy;
+import com.google.archivepatcher.shared.DeflateCompressor;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.PatchConstants.PatchFlag;
+import com.google.archivepatcher.shared.bytesource.ByteSource;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running local service that generates, applies and explains patches over HTTP, so that
+ * callers that would otherwise run {@link FileByFileTool} or {@link PatchExplainerTool} many times
+ * pay for JVM startup and warmup only once. See {@link PatchDaemonTool} for the protocol.
+ *
+ * <p>Jobs are identified by the SHA-256 digests of their input files and their options. Results
+ * are cached, least recently used first, up to a total size, so that repeated jobs are answered
+ * without any work, and concurrent identical jobs are coalesced into one. The parsed entries and
+ * divined deflate parameters of recently used new archives are also kept (see {@link
+ * PreparedNewArchive}), so that generating patches from several old archives to the same new
+ * archive only divines it once.
+ *
+ * <p>The service only listens on the loopback interface, and only serves requests that carry the
+ * secret token it writes, readable only by its owner, to a file when it starts (see {@link
+ * #TOKEN_HEADER}). Requests with an Origin header or a Host other than the loopback interface are
+ * rejected, so that web pages cannot use the service through the browser, even with DNS
+ * rebinding.
+ */
+public class PatchDaemon {
+  /** The request header that must carry the token of the service. */
+  public static final String TOKEN_HEADER = "X-Patch-Daemon-Token";
+
+  /** The number of random bytes in a token. */
+  private static final int TOKEN_BYTES = 32;
+
+  /** Size of the buffer used to read files. */
+  private static final int BUFFER_SIZE = 32768;
+
+  private final int port;
+  private final File tokenFile;
+  private final ExecutorService executor;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /** The results of recent jobs: patches, new files and explanations. */
+  private final CoalescingCache<byte[]> results;
+
+  /** Recently used new archives, keyed by digest. */
+  private final CoalescingCache<PreparedNewArchive> preparedNewArchives;
+
+  private HttpServer server;
+  private String token;
+  private long numRequests = 0;
+
+  /**
+   * Creates a new service; call {@link #start()} to start it.
+   *
+   * @param port the port to listen on, or 0 to use any free port
+   * @param numThreads the number of requests to handle at once
+   * @param maxCachedResultBytes the maximum total size of the cached results
+   * @param maxPreparedNewArchives the maximum number of prepared new archives to keep
+   * @param tokenFile the file to write the token that requests must carry to; it is replaced when
+   *     the service starts and deleted when it stops
+   */
+  public PatchDaemon(
+      int port,
+      int numThreads,
+      long maxCachedResultBytes,
+      int maxPreparedNewArchives,
+      File tokenFile) {
+    this.port = port;
+    this.tokenFile = tokenFile;
+    this.executor = Executors.newFixedThreadPool(numThreads);
+    this.results =
+        new CoalescingCache<byte[]>(maxCachedResultBytes) {
+          @Override
+          protected long weigh(byte[] value) {
+            return value.length;
+          }
+        };
+    this.preparedNewArchives =
+        new CoalescingCache<PreparedNewArchive>(maxPreparedNewArchives) {
+          @Override
+          protected long weigh(PreparedNewArchive value) {
+            return 1;
+          }
+        };
+  }
+
+  /**
+   * Writes a new token to the token file and starts listening on the loopback interface.
+   *
+   * @throws IOException if unable to write the token file or listen on the port
+   */
+  public void start() throws IOException {
+    token = newToken();
+    writeTokenFile(tokenFile, token);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            PatchDaemon.this.handle(exchange);
+          }
+        });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** Returns the port the service is listening on. */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /** Stops the service, abandoning any requests in progress. */
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+    tokenFile.delete();
+    stopped.countDown();
+  }
+
+  /**
+   * Waits until the service has been stopped, by {@link #stop()} or a shutdown request.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  /**
+   * Handles one request and sends the response: 200 with the result, 400 if the request is
+   * malformed, 403 if it is not from a trusted caller (see {@link #checkCaller}), 404 if the path
+   * is unknown, 405 if the method is wrong or 500 if the job failed. Errors are reported as
+   * {"error": message}.
+   *
+   * @param exchange the request and response
+   * @throws IOException if unable to send the response
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    synchronized (this) {
+      numRequests++;
+    }
+    int status;
+    byte[] body;
+    try {
+      checkCaller(exchange);
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      if ("/stats".equals(path)) {
+        body = stats();
+      } else if (!"POST".equals(exchange.getRequestMethod())) {
+        throw new HttpException(405, "use POST for " + path);
+      } else if ("/generate".equals(path)) {
+        body = generate(params);
+      } else if ("/apply".equals(path)) {
+        body = apply(params);
+      } else if ("/explain".equals(path)) {
+        body = explain(params);
+      } else if ("/shutdown".equals(path)) {
+        body = toJson("status", "stopping");
+        stopAfterResponding();
+      } else {
+        throw new HttpException(404, "unknown path: " + path);
+      }
+      status = 200;
+    } catch (HttpException e) {
+      status = e.status;
+      body = toJson("error", e.getMessage());
+    } catch (IllegalArgumentException e) {
+      status = 400;
+      body = toJson("error", e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      status = 500;
+      body = toJson("error", e.toString());
+    } catch (InterruptedException e) {
+      // The service is stopping.
+      status = 503;
+      body = toJson("error", "stopping");
+      Thread.currentThread().interrupt();
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Checks that a request comes from a trusted local caller: it must carry the token, must not
+   * come from a web page (which browsers mark with an Origin header) and must be addressed to the
+   * loopback interface by the Host header, which a DNS-rebound name would not be.
+   *
+   * @param exchange the request
+   * @throws HttpException with status 403 if the caller is not trusted
+   */
+  private void checkCaller(HttpExchange exchange) throws HttpException, IOException {
+    Headers headers = exchange.getRequestHeaders();
+    if (headers.containsKey("Origin")) {
+      throw new HttpException(403, "requests from web pages are not allowed");
+    }
+    if (!isLoopbackHost(headers.getFirst("Host"))) {
+      throw new HttpException(403, "the Host must be the loopback interface");
+    }
+    String requestToken = headers.getFirst(TOKEN_HEADER);
+    if (requestToken == null
+        || !MessageDigest.isEqual(requestToken.getBytes("UTF-8"), token.getBytes("UTF-8"))) {
+      throw new HttpException(403, "missing or wrong " + TOKEN_HEADER + " header");
+    }
+  }
+
+  /**
+   * Returns true if the specified value of a Host header names the loopback interface, with or
+   * without a port.
+   */
+  private static boolean isLoopbackHost(String host) {
+    if (host == null) {
+      return false;
+    }
+    String name = host;
+    if (host.startsWith("[")) {
+      int end = host.indexOf(']');
+      name = end < 0 ? host : host.substring(0, end + 1);
+    } else if (host.indexOf(':') >= 0) {
+      name = host.substring(0, host.indexOf(':'));
+    }
+    return "127.0.0.1".equals(name) || "localhost".equalsIgnoreCase(name) || "[::1]".equals(name);
+  }
+
+  /** Returns a new random token as a hex string. */
+  private static String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    return toHex(bytes);
+  }
+
+  /**
+   * Replaces the token file with one that contains the token and that only its owner can read.
+   */
+  private static void writeTokenFile(File file, String token) throws IOException {
+    Path path = file.toPath();
+    Files.deleteIfExists(path);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      // Create the file without access for others, so that there is no moment they could open it.
+      Files.createFile(
+          path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      // Best effort: without POSIX permissions, the access control of the directory applies.
+      Files.createFile(path);
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+    }
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(token.getBytes("UTF-8"));
+    }
+  }
+
+  /**
+   * Generates a patch from the "old" file to the "new" file and writes it to the "out" file, with
+   * the optional "trl", "dfobsl", "fast" and "verifiable" options of {@link FileByFileTool}.
+   */
+  private byte[] generate(Map<String, String> params) throws IOException, InterruptedException {
+    final File oldFile = getFile(params, "old");
+    final File newFile = getFile(params, "new");
+    File outFile = new File(getParam(params, "out"));
+    final Long totalRecompressionLimit = getLong(params, "trl");
+    final Long deltaFriendlyOldBlobSizeLimit = getLong(params, "dfobsl");
+    final boolean fast = getBoolean(params, "fast");
+    final boolean verifiable = getBoolean(params, "verifiable");
+    final String newDigest = digest(newFile);
+    String key =
+        "generate "
+            + digest(oldFile)
+            + " "
+            + newDigest
+            + " trl="
+            + totalRecompressionLimit
+            + " dfobsl="
+            + deltaFriendlyOldBlobSizeLimit
+            + " fast="
+            + fast
+            + " verifiable="
+            + verifiable;
+    byte[] patch =
+        results.get(
+            key,
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException, InterruptedException {
+                FileByFileDeltaGenerator generator =
+                    new FileByFileDeltaGenerator.Builder()
+                        .addPreDiffPlanEntryModifiers(
+                            FileByFileTool.getModifiers(
+                                totalRecompressionLimit,
+                                deltaFriendlyOldBlobSizeLimit,
+                                Collections.<PreDiffPlanEntryModifier>emptyList()))
+                        .addSupportedDeltaFormats(Collections.singleton(DeltaFormat.BSDIFF))
+                        .addPatchFlags(
+                            verifiable
+                                ? EnumSet.allOf(PatchFlag.class)
+                                : EnumSet.noneOf(PatchFlag.class))
+                        .withMatchingStrategy(
+                            fast ? MatchingStrategy.BLOCK_HASH : MatchingStrategy.SUFFIX_ARRAY)
+                        .build();
+                ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+                try (ByteSource oldBlob = ByteSource.fromFile(oldFile);
+                    ByteSource newBlob = ByteSource.fromFile(newFile)) {
+                  PreparedNewArchive newArchive = prepareNewArchive(newDigest, newBlob);
+                  generator.generateDelta(oldBlob, newArchive, patchOut, GenerationListener.NO_OP);
+                }
+                return patchOut.toByteArray();
+              }
+            });
+    writeFile(outFile, patch);
+    return toJson("out", outFile.getPath(), "bytes", patch.length);
+  }
+
+  /**
+   * Applies the "patch" file to the "old" file and writes the result to the "out" file, verifying
+   * the result if the "verify" option is true.
+   */
+  private byte[] apply(Map<String, String> params) throws IOException, InterruptedException {
+    final File oldFile = getFile(params, "old");
+    final File patchFile = getFile(params, "patch");
+    File outFile = new File(getParam(params, "out"));
+    final boolean verify = getBoolean(params, "verify");
+    String key = "apply " + digest(oldFile) + " " + digest(patchFile) + " verify=" + verify;
+    byte[] newData =
+        results.get(
+            key,
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException {
+                ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+                try (InputStream patchIn =
+                    new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE)) {
+                  new FileByFileDeltaApplier(null, verify).applyDelta(oldFile, patchIn, newOut);
+                }
+                return newOut.toByteArray();
+              }
+            });
+    writeFile(outFile, newData);
+    return toJson("out", outFile.getPath(), "bytes", newData.length);
+  }
+
+  /**
+   * Explains a patch from the "old" file to the "new" file, with the optional "trl" and "dfobsl"
+   * options of {@link PatchExplainerTool}, and returns the explanation as JSON.
+   */
+  private byte[] explain(Map<String, String> params) throws IOException, InterruptedException {
+    final File oldFile = getFile(params, "old");
+    final File newFile = getFile(params, "new");
+    final Long totalRecompressionLimit = getLong(params, "trl");
+    final Long deltaFriendlyOldBlobSizeLimit = getLong(params, "dfobsl");
+    String key =
+        "explain "
+            + digest(oldFile)
+            + " "
+            + digest(newFile)
+            + " trl="
+            + totalRecompressionLimit
+            + " dfobsl="
+            + deltaFriendlyOldBlobSizeLimit;
+    return results.get(
+        key,
+        new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException, InterruptedException {
+            PatchExplainer explainer =
+                new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(), null);
+            List<PreDiffPlanEntryModifier> modifiers =
+                FileByFileTool.getModifiers(
+                    totalRecompressionLimit,
+                    deltaFriendlyOldBlobSizeLimit,
+                    Collections.<PreDiffPlanEntryModifier>emptyList());
+            PatchExplanation explanation =
+                new PatchExplanation(
+                    explainer.explainPatch(
+                        oldFile,
+                        newFile,
+                        modifiers.toArray(new PreDiffPlanEntryModifier[] {})));
+            StringWriter json = new StringWriter();
+            explanation.writeJson(new PrintWriter(json));
+            return json.toString().getBytes("UTF-8");
+          }
+        });
+  }
+
+  /** Returns the counters of the service and its caches as JSON. */
+  private byte[] stats() throws UnsupportedEncodingException {
+    long requests;
+    synchronized (this) {
+      requests = numRequests;
+    }
+    StringBuilder buffer = new StringBuilder(); // For convenience
+    buffer.append("{\n");
+    buffer.append("  \"requests\": ").append(requests).append(",\n");
+    buffer.append("  \"results\": ");
+    appendStats(buffer, results);
+    buffer.append(", \"bytes\": ").append(results.getTotalWeight()).append("},\n");
+    buffer.append("  \"preparedNewArchives\": ");
+    appendStats(buffer, preparedNewArchives);
+    buffer.append("}\n");
+    buffer.append("}\n");
+    return buffer.toString().getBytes("UTF-8");
+  }
+
+  private static void appendStats(StringBuilder buffer, CoalescingCache<?> cache) {
+    buffer.append("{\"hits\": ").append(cache.getHits());
+    buffer.append(", \"misses\": ").append(cache.getMisses());
+    buffer.append(", \"coalesced\": ").append(cache.getCoalesced());
+    buffer.append(", \"entries\": ").append(cache.size());
+  }
+
+  /**
+   * Returns the prepared new archive with the specified digest, preparing it from the blob if it
+   * is not cached.
+   *
+   * @param digest the digest of the new archive
+   * @param newBlob the new archive
+   * @return the prepared archive, reading from newBlob
+   */
+  private PreparedNewArchive prepareNewArchive(String digest, final ByteSource newBlob)
+      throws IOException, InterruptedException {
+    PreparedNewArchive prepared =
+        preparedNewArchives.get(
+            digest,
+            new Callable<PreparedNewArchive>() {
+              @Override
+              public PreparedNewArchive call() throws IOException {
+                return PreparedNewArchive.prepare(newBlob);
+              }
+            });
+    // The cached preparation may have been made from a blob that has since been closed.
+    return prepared.withBlob(newBlob);
+  }
+
+  /**
+   * Returns the SHA-256 digest of a file as a hex string. The file is read every time: its length
+   * and modification time cannot tell whether it has been rewritten since it was last read.
+   */
+  private static String digest(File file) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unable to create digest", e);
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = new FileInputStream(file)) {
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        messageDigest.update(buffer, 0, numRead);
+      }
+    }
+    return toHex(messageDigest.digest());
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  /** Stops the service once the current response has had a chance to be sent. */
+  private void stopAfterResponding() {
+    new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  Thread.sleep(100);
+                } catch (InterruptedException e) {
+                  // Stop anyway.
+                }
+                stop();
+              }
+            })
+        .start();
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery)
+      throws UnsupportedEncodingException {
+    Map<String, String> result = new HashMap<>();
+    if (rawQuery == null) {
+      return result;
+    }
+    for (String param : rawQuery.split("&")) {
+      if (param.isEmpty()) {
+        continue;
+      }
+      int equals = param.indexOf('=');
+      if (equals < 0) {
+        result.put(URLDecoder.decode(param, "UTF-8"), "");
+      } else {
+        result.put(
+            URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return result;
+  }
+
+  private static String getParam(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException("missing parameter: " + name);
+    }
+    return value;
+  }
+
+  private static File getFile(Map<String, String> params, String name) {
+    File file = new File(getParam(params, name));
+    if (!file.isFile() || !file.canRead()) {
+      throw new IllegalArgumentException(name + " does not exist or cannot be read: " + file);
+    }
+    return file;
+  }
+
+  private static Long getLong(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null) {
+      return null;
+    }
+    long result = Long.parseLong(value);
+    if (result < 0) {
+      throw new IllegalArgumentException(name + " cannot be negative: " + result);
+    }
+    return result;
+  }
+
+  private static boolean getBoolean(Map<String, String> params, String name) {
+    String value = params.get(name);
+    return value != null && (value.isEmpty() || Boolean.parseBoolean(value));
+  }
+
+  /**
+   * Returns a JSON object of the specified names and values, which are quoted unless they are
+   * numbers.
+   */
+  private static byte[] toJson(Object... namesAndValues) throws UnsupportedEncodingException {
+    StringBuilder buffer = new StringBuilder(); // For convenience
+    buffer.append("{");
+    for (int index = 0; index < namesAndValues.length; index += 2) {
+      if (index > 0) {
+        buffer.append(", ");
+      }
+      appendString(buffer, String.valueOf(namesAndValues[index]));
+      buffer.append(": ");
+      Object value = namesAndValues[index + 1];
+      if (value instanceof Number) {
+        buffer.append(value);
+      } else {
+        appendString(buffer, String.valueOf(value));
+      }
+    }
+    buffer.append("}\n");
+    return buffer.toString().getBytes("UTF-8");
+  }
+
+  private static void appendString(StringBuilder buffer, String value) {
+    buffer.append('"');
+    for (int index = 0; index < value.length(); index++) {
+      char c = value.charAt(index);
+      if (c == '"' || c == '\\') {
+        buffer.append('\\').append(c);
+      } else if (c < 0x20) {
+        buffer.append(String.format("\\u%04x", (int) c));
+      } else {
+        buffer.append(c);
+      }
+    }
+    buffer.append('"');
+  }
+
+  /** A failure that maps to a specific HTTP status. */
+  private static final class HttpException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    HttpException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+}
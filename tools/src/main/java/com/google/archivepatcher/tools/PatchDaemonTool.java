@@ -0,0 +1,152 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Command-line tool that runs a {@link PatchDaemon}.
+ */
+public class PatchDaemonTool extends AbstractTool {
+
+  /** Usage instructions for the command line. */
+  private static final String USAGE =
+      "java -cp <classpath> com.google.archivepatcher.tools.PatchDaemonTool <options>\n"
+          + "\n"
+          + "Runs a local service that generates, applies and explains patches, for callers\n"
+          + "that would otherwise run FileByFileTool or PatchExplainerTool many times. It\n"
+          + "listens on 127.0.0.1 only and prints the port once it is ready.\n"
+          + "\n"
+          + "Options:\n"
+          + "  --port          optionally, the port to listen on; defaults to any free port\n"
+          + "  --jobs          optionally, the number of requests to handle at once; defaults\n"
+          + "                  to the number of processors\n"
+          + "  --cache-mb      optionally, the total size of the results to cache, in MiB;\n"
+          + "                  defaults to 256\n"
+          + "  --prepared      optionally, the number of new archives to keep parsed and\n"
+          + "                  divined; defaults to 16\n"
+          + "  --token-file    optionally, the file to write the token of the service to;\n"
+          + "                  defaults to .archive-patcher-daemon-token in the home directory\n"
+          + "\n"
+          + "Protocol:\n"
+          + "  Requests are HTTP, with parameters in the query string. Paths are resolved by\n"
+          + "  the service, so they should be absolute. Boolean options are true if present.\n"
+          + "  Responses are JSON; failures have a non-200 status and an \"error\" message.\n"
+          + "  Every request must carry the contents of the token file, which the service\n"
+          + "  writes when it starts and which only its owner can read, in the\n"
+          + "  X-Patch-Daemon-Token header. Requests with an Origin header, as sent by web\n"
+          + "  browsers, or with a Host header other than the loopback interface are refused\n"
+          + "  with status 403.\n"
+          + "    POST /generate?old=OLD&new=NEW&out=PATCH[&trl=N][&dfobsl=N][&fast][&verifiable]\n"
+          + "      generates a patch as FileByFileTool --generate does\n"
+          + "    POST /apply?old=OLD&patch=PATCH&out=NEW[&verify]\n"
+          + "      applies a patch as FileByFileTool --apply does\n"
+          + "    POST /explain?old=OLD&new=NEW[&trl=N][&dfobsl=N]\n"
+          + "      responds with the explanation that PatchExplainerTool --json prints\n"
+          + "    GET /stats\n"
+          + "      responds with the number of requests and the hits, misses and coalesced\n"
+          + "      requests of each cache\n"
+          + "    POST /shutdown\n"
+          + "      stops the service\n"
+          + "\n"
+          + "Caching:\n"
+          + "  Jobs are identified by the SHA-256 digests of their input files and their\n"
+          + "  options. The results of recent jobs are cached, so a repeated job is answered\n"
+          + "  without any work, and identical jobs that arrive while one is running wait for\n"
+          + "  it rather than repeating it. The parsed entries and divined deflate parameters\n"
+          + "  of recent new files are kept too, so generating patches from several old files\n"
+          + "  to the same new file only divines it once.\n"
+          + "\n"
+          + "Examples:\n"
+          + "  To run the service on port 8765:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.PatchDaemonTool --port 8765\n"
+          + "  To generate a patch with it:\n"
+          + "    curl -X POST \\\n"
+          + "      -H \"X-Patch-Daemon-Token: $(cat ~/.archive-patcher-daemon-token)\" \\\n"
+          + "      'http://127.0.0.1:8765/generate?old=/a/OLD&new=/a/NEW&out=/a/PATCH'";
+
+  /**
+   * Runs the tool. See usage instructions for more information.
+   *
+   * @param args command line arguments
+   * @throws IOException if unable to start the service
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public static void main(String... args) throws IOException, InterruptedException {
+    new PatchDaemonTool().run(args);
+  }
+
+  /**
+   * Runs the tool until the service is stopped.
+   *
+   * @param args command line arguments
+   * @throws IOException if unable to start the service
+   * @throws InterruptedException if the thread is interrupted
+   */
+  public void run(String... args) throws IOException, InterruptedException {
+    int port = 0;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    long cacheMegabytes = 256;
+    int prepared = 16;
+    String tokenPath = null;
+    Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
+    while (argIterator.hasNext()) {
+      String arg = argIterator.next();
+      if ("--port".equals(arg)) {
+        port = Integer.parseInt(popOrDie(argIterator, "--port"));
+        if (port < 0 || port > 65535) {
+          exitWithUsage("--port must be between 0 and 65535: " + port);
+        }
+      } else if ("--jobs".equals(arg)) {
+        jobs = Integer.parseInt(popOrDie(argIterator, "--jobs"));
+        if (jobs < 1) {
+          exitWithUsage("--jobs must be at least 1: " + jobs);
+        }
+      } else if ("--cache-mb".equals(arg)) {
+        cacheMegabytes = Long.parseLong(popOrDie(argIterator, "--cache-mb"));
+        if (cacheMegabytes < 0) {
+          exitWithUsage("--cache-mb cannot be negative: " + cacheMegabytes);
+        }
+      } else if ("--prepared".equals(arg)) {
+        prepared = Integer.parseInt(popOrDie(argIterator, "--prepared"));
+        if (prepared < 0) {
+          exitWithUsage("--prepared cannot be negative: " + prepared);
+        }
+      } else if ("--token-file".equals(arg)) {
+        tokenPath = popOrDie(argIterator, "--token-file");
+      } else {
+        exitWithUsage("unknown argument: " + arg);
+      }
+    }
+    File tokenFile =
+        tokenPath != null
+            ? new File(tokenPath)
+            : new File(System.getProperty("user.home"), ".archive-patcher-daemon-token");
+    PatchDaemon daemon =
+        new PatchDaemon(port, jobs, cacheMegabytes * 1024 * 1024, prepared, tokenFile);
+    daemon.start();
+    System.out.println(
+        "Listening on http://127.0.0.1:" + daemon.getPort() + "/ with the token in " + tokenFile);
+    daemon.awaitStop();
+  }
+
+  @Override
+  protected String getUsage() {
+    return USAGE;
+  }
+}
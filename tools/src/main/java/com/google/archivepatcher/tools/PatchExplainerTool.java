@@ -17,12 +17,16 @@ package com.google.archivepatcher.tools;
 import com.google.archivepatcher.explainer.EntryExplanation;
 import com.google.archivepatcher.explainer.PatchExplainer;
 import com.google.archivepatcher.explainer.PatchExplanation;
+import com.google.archivepatcher.generator.ApplyTimeBudgetLimiter;
 import com.google.archivepatcher.generator.DeltaFriendlyOldBlobSizeLimiter;
 import com.google.archivepatcher.generator.PreDiffPlanEntryModifier;
+import com.google.archivepatcher.generator.RecompressionCostModel;
 import com.google.archivepatcher.generator.TotalRecompressionLimiter;
 import com.google.archivepatcher.generator.UncompressionOptionExplanation;
 import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.shared.Compressor;
 import com.google.archivepatcher.shared.DeflateCompressor;
+import com.google.archivepatcher.shared.DeflateThroughputCalibration;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -47,9 +51,16 @@ public class PatchExplainerTool extends AbstractTool {
           + "  --old           the old file\n"
           + "  --new           the new file\n"
           + "  --trl           optionally, the total bytes of recompression to allow (see below)\n"
+          + "  --atb           optionally, the apply time budget for recompression in\n"
+          + "                  milliseconds (see below); requires --calibration\n"
+          + "  --calibration   optionally, a calibration table written by DeflateCalibrationTool;\n"
+          + "                  if specified, the projected apply time of the patch is reported\n"
           + "  --dfobsl        optionally, a limit on the total size of the delta-friendly old"
           + " blob (see below)\n"
           + "  --json          output JSON results instead of plain text\n"
+          + "  --jobs          optionally, the number of entries to analyze at once; defaults to\n"
+          + "                  the number of available processors. The results do not depend\n"
+          + "                  on it.\n"
           + "\n"
           + "Total Recompression Limit (trl):\n"
           + "  When generating a patch, a limit can be specified on the total number of bytes to\n"
@@ -60,6 +71,12 @@ public class PatchExplainerTool extends AbstractTool {
           + "  patch that had such a limitation, it is necessary to specify the same limitation\n"
           + "  here.\n"
           + "\n"
+          + "Apply Time Budget (atb):\n"
+          + "  Like trl, but limits the projected time that recompression will take on the\n"
+          + "  devices that produced the calibration table given with --calibration. To\n"
+          + "  properly explain a patch that had such a limitation, it is necessary to specify\n"
+          + "  the same budget and calibration here.\n"
+          + "\n"
           + "Delta Friendly Old Blob Size Limit (dfobsl):\n"
           + "  When generating a patch, a limit can be specified on the total size of the delta-\n"
           + "  friendly old blob. This implicitly limits the size of the temporary file that\n"
@@ -79,7 +96,11 @@ public class PatchExplainerTool extends AbstractTool {
           + "      --old OLD --new NEW --json\n"
           + "  To explain a patch from OLD to NEW, limiting to 1,000,000 recompress bytes:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.PatchExplainerTool \\\n"
-          + "      --old OLD --new NEW --trl 1000000\n";
+          + "      --old OLD --new NEW --trl 1000000\n"
+          + "  To explain a patch from OLD to NEW, projecting its apply time on the devices that\n"
+          + "  produced CALIBRATION:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.PatchExplainerTool \\\n"
+          + "      --old OLD --new NEW --calibration CALIBRATION\n";
 
   /**
    * Runs the tool. See usage instructions for more information.
@@ -109,7 +130,10 @@ public class PatchExplainerTool extends AbstractTool {
     String newPath = null;
     Long totalRecompressionLimit = null;
     Long deltaFriendlyOldBlobSizeLimit = null;
+    Long applyTimeBudgetMillis = null;
+    String calibrationPath = null;
     boolean outputJson = false;
+    int jobs = Runtime.getRuntime().availableProcessors();
     Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
     while (argIterator.hasNext()) {
       String arg = argIterator.next();
@@ -124,6 +148,18 @@ public class PatchExplainerTool extends AbstractTool {
         if (totalRecompressionLimit < 0) {
           exitWithUsage("--trl cannot be negative: " + totalRecompressionLimit);
         }
+      } else if ("--atb".equals(arg)) {
+        applyTimeBudgetMillis = Long.parseLong(popOrDie(argIterator, "--atb"));
+        if (applyTimeBudgetMillis < 0) {
+          exitWithUsage("--atb cannot be negative: " + applyTimeBudgetMillis);
+        }
+      } else if ("--jobs".equals(arg)) {
+        jobs = Integer.parseInt(popOrDie(argIterator, "--jobs"));
+        if (jobs < 1) {
+          exitWithUsage("--jobs must be at least 1: " + jobs);
+        }
+      } else if ("--calibration".equals(arg)) {
+        calibrationPath = popOrDie(argIterator, "--calibration");
       } else if ("--dfobsl".equals(arg)) {
         deltaFriendlyOldBlobSizeLimit = Long.parseLong(popOrDie(argIterator, "--dfobsl"));
         if (deltaFriendlyOldBlobSizeLimit < 0) {
@@ -136,14 +172,35 @@ public class PatchExplainerTool extends AbstractTool {
     if (oldPath == null || newPath == null) {
       exitWithUsage("missing required argument(s)");
     }
+    if (applyTimeBudgetMillis != null && calibrationPath == null) {
+      exitWithUsage("--atb requires --calibration");
+    }
     File oldFile = getRequiredFileOrDie(oldPath, "old file");
     File newFile = getRequiredFileOrDie(newPath, "new file");
     DeflateCompressor compressor = new DeflateCompressor();
     compressor.setCaching(true);
     compressor.setCompressionLevel(9);
+    DeflateThroughputCalibration calibration = null;
+    RecompressionCostModel recompressionCostModel = null;
+    if (calibrationPath != null) {
+      calibration = readCalibration(getRequiredFileOrDie(calibrationPath, "calibration file"));
+      recompressionCostModel = RecompressionCostModel.fromCalibration(calibration);
+    }
     PatchExplainer explainer =
-        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator());
+        new PatchExplainer(
+            new PatchExplainer.CompressorFactory() {
+              @Override
+              public Compressor newCompressor() {
+                return new DeflateCompressor();
+              }
+            },
+            new BsDiffDeltaGenerator(),
+            recompressionCostModel,
+            jobs);
     List<PreDiffPlanEntryModifier> preDiffPlanEntryModifiers = new ArrayList<>();
+    if (applyTimeBudgetMillis != null) {
+      preDiffPlanEntryModifiers.add(new ApplyTimeBudgetLimiter(applyTimeBudgetMillis, calibration));
+    }
     if (totalRecompressionLimit != null) {
       preDiffPlanEntryModifiers.add(new TotalRecompressionLimiter(totalRecompressionLimit));
     }
@@ -161,6 +218,12 @@ public class PatchExplainerTool extends AbstractTool {
       patchExplanation.writeJson(new PrintWriter(System.out));
     } else {
       dumpPlainText(patchExplanation);
+      if (recompressionCostModel != null) {
+        System.out.println(
+            "Projected apply time spent recompressing: "
+                + format.format(patchExplanation.getProjectedApplyTimeMillis())
+                + " ms");
+      }
     }
   }
 
@@ -184,7 +247,7 @@ public class PatchExplainerTool extends AbstractTool {
             + format.format(patchExplanation.getEstimatedNewSize())
             + " bytes)");
     System.out.println(
-        "Num files changed but forced to stay compressed by the total recompression limit: "
+        "Num files changed but forced to stay compressed by a recompression limit: "
             + patchExplanation.getExplainedAsResourceConstrained().size()
             + " (estimated patch size "
             + format.format(patchExplanation.getEstimatedResourceConstrainedSize())
@@ -0,0 +1,226 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.tools;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CoalescingCache}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CoalescingCacheTest {
+  /** A cache of strings weighed by their length. */
+  private static CoalescingCache<String> newCache(long maxWeight) {
+    return new CoalescingCache<String>(maxWeight) {
+      @Override
+      protected long weigh(String value) {
+        return value.length();
+      }
+    };
+  }
+
+  /** Returns a computation of the specified value that counts how many times it runs. */
+  private static Callable<String> computing(final String value, final AtomicInteger numRuns) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        numRuns.incrementAndGet();
+        return value;
+      }
+    };
+  }
+
+  @Test
+  public void testGet_Hit() throws Exception {
+    CoalescingCache<String> cache = newCache(100);
+    AtomicInteger numRuns = new AtomicInteger();
+    assertThat(cache.get("key", computing("value", numRuns))).isEqualTo("value");
+    assertThat(cache.get("key", computing("other", numRuns))).isEqualTo("value");
+    assertThat(numRuns.get()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1L);
+    assertThat(cache.getHits()).isEqualTo(1L);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.getTotalWeight()).isEqualTo(5L);
+  }
+
+  @Test
+  public void testGet_EvictsLeastRecentlyUsed() throws Exception {
+    CoalescingCache<String> cache = newCache(10);
+    AtomicInteger numRuns = new AtomicInteger();
+    cache.get("a", computing("aaaa", numRuns));
+    cache.get("b", computing("bbbb", numRuns));
+    // Use "a" so that "b" is the least recently used.
+    cache.get("a", computing("aaaa", numRuns));
+    cache.get("c", computing("cccc", numRuns));
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.getTotalWeight()).isEqualTo(8L);
+    numRuns.set(0);
+    cache.get("a", computing("aaaa", numRuns));
+    assertThat(numRuns.get()).isEqualTo(0);
+    cache.get("b", computing("bbbb", numRuns));
+    assertThat(numRuns.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGet_TooHeavyToCache() throws Exception {
+    CoalescingCache<String> cache = newCache(3);
+    AtomicInteger numRuns = new AtomicInteger();
+    assertThat(cache.get("key", computing("value", numRuns))).isEqualTo("value");
+    assertThat(cache.get("key", computing("value", numRuns))).isEqualTo("value");
+    assertThat(numRuns.get()).isEqualTo(2);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGet_FailureIsPropagatedAndNotCached() throws Exception {
+    CoalescingCache<String> cache = newCache(100);
+    try {
+      cache.get(
+          "key",
+          new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+              throw new IOException("failed");
+            }
+          });
+      Assert.fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("failed");
+    }
+    try {
+      cache.get(
+          "key",
+          new Callable<String>() {
+            @Override
+            public String call() {
+              throw new IllegalStateException("broken");
+            }
+          });
+      Assert.fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("broken");
+    }
+    AtomicInteger numRuns = new AtomicInteger();
+    assertThat(cache.get("key", computing("value", numRuns))).isEqualTo("value");
+    assertThat(numRuns.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGet_CoalescesConcurrentRequests() throws Exception {
+    final int numRequests = 8;
+    final CoalescingCache<String> cache = newCache(100);
+    final AtomicInteger numRuns = new AtomicInteger();
+    final CountDownLatch computationStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<String> computation =
+        new Callable<String>() {
+          @Override
+          public String call() throws InterruptedException {
+            numRuns.incrementAndGet();
+            computationStarted.countDown();
+            release.await();
+            return "value";
+          }
+        };
+    ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (int x = 0; x < numRequests; x++) {
+        futures.add(
+            executor.submit(
+                new Callable<String>() {
+                  @Override
+                  public String call() throws Exception {
+                    return cache.get("key", computation);
+                  }
+                }));
+      }
+      assertThat(computationStarted.await(10, TimeUnit.SECONDS)).isTrue();
+      // Wait for all the other requests to be waiting for the computation.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (cache.getCoalesced() < numRequests - 1 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+      for (Future<String> future : futures) {
+        assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo("value");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(numRuns.get()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1L);
+    assertThat(cache.getCoalesced()).isEqualTo((long) numRequests - 1);
+  }
+
+  @Test
+  public void testGet_CoalescedRequestsShareFailure() throws Exception {
+    final CoalescingCache<String> cache = newCache(100);
+    final CountDownLatch computationStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<String> computation =
+        new Callable<String>() {
+          @Override
+          public String call() throws IOException, InterruptedException {
+            computationStarted.countDown();
+            release.await();
+            throw new IOException("failed");
+          }
+        };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<String> request =
+          new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              try {
+                cache.get("key", computation);
+                return "no failure";
+              } catch (IOException e) {
+                return e.getMessage();
+              }
+            }
+          };
+      Future<String> first = executor.submit(request);
+      assertThat(computationStarted.await(10, TimeUnit.SECONDS)).isTrue();
+      Future<String> second = executor.submit(request);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (cache.getCoalesced() < 1 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+      assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo("failed");
+      assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo("failed");
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(cache.getMisses()).isEqualTo(1L);
+    assertThat(cache.getCoalesced()).isEqualTo(1L);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+}
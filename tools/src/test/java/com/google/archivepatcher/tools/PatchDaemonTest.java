@@ -0,0 +1,272 @@
+// Copyright 2016 Google LLC. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.archivepatcher.tools;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PatchDaemon}, talking to it over HTTP. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class PatchDaemonTest {
+  private File tempDir;
+  private File oldFile;
+  private File newFile;
+  private File tokenFile;
+  private PatchDaemon daemon;
+  private String token;
+
+  /** The status and body of a response. */
+  private static final class Response {
+    final int status;
+    final String body;
+
+    Response(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  @Before
+  public void setup() throws IOException {
+    tempDir = Files.createTempDirectory("patchdaemontest").toFile();
+    oldFile = new File(tempDir, "old.zip");
+    newFile = new File(tempDir, "new.zip");
+    tokenFile = new File(tempDir, "token");
+    save(makeOldZip("content A"), oldFile);
+    save(UnitTestZipArchive.makeTestZip(), newFile);
+    daemon = new PatchDaemon(0, 2, 1024 * 1024, 4, tokenFile);
+    daemon.start();
+    token = new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8");
+  }
+
+  @After
+  public void tearDown() {
+    if (daemon != null) {
+      daemon.stop();
+    }
+    File[] files = tempDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    tempDir.delete();
+  }
+
+  @Test
+  public void testTokenFile() throws Exception {
+    assertThat(token).isNotEmpty();
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())))
+          .isEqualTo("rw-------");
+    }
+    daemon.stop();
+    daemon = null;
+    assertThat(tokenFile.exists()).isFalse();
+  }
+
+  @Test
+  public void testGenerateAndApply() throws Exception {
+    File patchFile = new File(tempDir, "patch");
+    File outFile = new File(tempDir, "out.zip");
+    String generateRequest =
+        "/generate?old=" + path(oldFile) + "&new=" + path(newFile) + "&out=" + path(patchFile);
+    assertThat(post(generateRequest).status).isEqualTo(200);
+    assertThat(patchFile.length()).isGreaterThan(0L);
+    Response applied =
+        post(
+            "/apply?old="
+                + path(oldFile)
+                + "&patch="
+                + path(patchFile)
+                + "&out="
+                + path(outFile)
+                + "&verify");
+    assertThat(applied.status).isEqualTo(200);
+    assertThat(Files.readAllBytes(outFile.toPath()))
+        .isEqualTo(Files.readAllBytes(newFile.toPath()));
+
+    // The same job again is answered from the cache.
+    assertThat(post(generateRequest).status).isEqualTo(200);
+    Response stats = request("GET", "/stats", token);
+    assertThat(stats.status).isEqualTo(200);
+    assertThat(stats.body).contains("\"results\": {\"hits\": 1, \"misses\": 2");
+  }
+
+  @Test
+  public void testGenerate_FileRewrittenWithSameLengthAndTime() throws Exception {
+    File patchFile = new File(tempDir, "patch");
+    String request =
+        "/generate?old=" + path(oldFile) + "&new=" + path(newFile) + "&out=" + path(patchFile);
+    assertThat(post(request).status).isEqualTo(200);
+    byte[] firstPatch = Files.readAllBytes(patchFile.toPath());
+
+    // Rewrite the old file with different content of the same length and modification time.
+    byte[] oldData = Files.readAllBytes(oldFile.toPath());
+    long lastModified = oldFile.lastModified();
+    byte[] otherOldData = makeOldZip("content B");
+    assertThat(otherOldData.length).isEqualTo(oldData.length);
+    assertThat(otherOldData).isNotEqualTo(oldData);
+    save(otherOldData, oldFile);
+    oldFile.setLastModified(lastModified);
+
+    assertThat(post(request).status).isEqualTo(200);
+    assertThat(Files.readAllBytes(patchFile.toPath())).isNotEqualTo(firstPatch);
+  }
+
+  @Test
+  public void testExplain() throws Exception {
+    Response explained = post("/explain?old=" + path(oldFile) + "&new=" + path(newFile));
+    assertThat(explained.status).isEqualTo(200);
+    assertThat(explained.body).contains("estimatedNewSize");
+  }
+
+  @Test
+  public void testRejectsMissingOrWrongToken() throws Exception {
+    String request = "/explain?old=" + path(oldFile) + "&new=" + path(newFile);
+    assertThat(request("POST", request, null).status).isEqualTo(403);
+    assertThat(request("POST", request, token + "0").status).isEqualTo(403);
+    assertThat(request("GET", "/stats", null).status).isEqualTo(403);
+  }
+
+  @Test
+  public void testRejectsOrigin() throws Exception {
+    assertThat(requestByHand("Host: 127.0.0.1\r\nOrigin: http://example.com\r\n"))
+        .startsWith("HTTP/1.1 403");
+  }
+
+  @Test
+  public void testRejectsNonLoopbackHost() throws Exception {
+    assertThat(requestByHand("Host: 127.0.0.1\r\n")).startsWith("HTTP/1.1 200");
+    assertThat(requestByHand("Host: localhost:" + daemon.getPort() + "\r\n"))
+        .startsWith("HTTP/1.1 200");
+    assertThat(requestByHand("Host: attacker.example.com\r\n")).startsWith("HTTP/1.1 403");
+    assertThat(requestByHand("Host: 127.0.0.1.attacker.example.com\r\n"))
+        .startsWith("HTTP/1.1 403");
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    Response missing = post("/explain?old=" + path(oldFile));
+    assertThat(missing.status).isEqualTo(400);
+    assertThat(missing.body).contains("missing parameter: new");
+    assertThat(post("/explain?old=" + path(oldFile) + "&new=" + path(new File(tempDir, "nope")))
+            .status)
+        .isEqualTo(400);
+    assertThat(post("/nothing").status).isEqualTo(404);
+    assertThat(request("GET", "/generate", token).status).isEqualTo(405);
+    // Not an archive.
+    File notArchive = new File(tempDir, "not-archive");
+    save(new byte[] {1, 2, 3}, notArchive);
+    Response failed = post("/explain?old=" + path(notArchive) + "&new=" + path(newFile));
+    assertThat(failed.status).isEqualTo(500);
+    assertThat(failed.body).contains("\"error\"");
+  }
+
+  /**
+   * Sends GET /stats with the token and the specified extra headers, by hand because
+   * HttpURLConnection doesn't allow setting the Host or Origin headers, and returns the response.
+   */
+  private String requestByHand(String headers) throws IOException {
+    try (Socket socket = new Socket("127.0.0.1", daemon.getPort())) {
+      OutputStream out = socket.getOutputStream();
+      out.write(
+          ("GET /stats HTTP/1.1\r\n"
+                  + headers
+                  + PatchDaemon.TOKEN_HEADER
+                  + ": "
+                  + token
+                  + "\r\nConnection: close\r\n\r\n")
+              .getBytes("UTF-8"));
+      out.flush();
+      return readAll(socket.getInputStream());
+    }
+  }
+
+  /** Returns an old archive with a stored entry of the specified content after entry1. */
+  private static byte[] makeOldZip(String storedContent) {
+    return UnitTestZipArchive.makeTestZip(
+        Arrays.asList(
+            UnitTestZipArchive.entry1,
+            UnitTestZipArchive.makeUnitTestZipEntry("stored", 0, storedContent, null)));
+  }
+
+  private Response post(String pathAndQuery) throws IOException {
+    return request("POST", pathAndQuery, token);
+  }
+
+  private Response request(String method, String pathAndQuery, String token) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://127.0.0.1:" + daemon.getPort() + pathAndQuery).openConnection();
+    connection.setRequestMethod(method);
+    if (token != null) {
+      connection.setRequestProperty(PatchDaemon.TOKEN_HEADER, token);
+    }
+    try {
+      int status = connection.getResponseCode();
+      InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+      try {
+        return new Response(status, in == null ? "" : readAll(in));
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String path(File file) throws IOException {
+    return URLEncoder.encode(file.getAbsolutePath(), "UTF-8");
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int numRead;
+    while ((numRead = in.read(chunk)) >= 0) {
+      buffer.write(chunk, 0, numRead);
+    }
+    return buffer.toString("UTF-8");
+  }
+
+  private static void save(byte[] data, File file) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+}